@@ -0,0 +1,52 @@
+package com.github.boybeak.benchmarks;
+
+import com.github.boybeak.mediakit.aac.AacConfig;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The csd AudioUtil.checkCsd builds for the AAC encoder, against the boxed HashMap lookup it used
+ * to do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AacConfigBenchmark {
+
+    private static final Map<Integer, Integer> FREQUENCY_INDICES = new HashMap<>();
+
+    static {
+        int[] rates = {96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+        for (int i = 0; i < rates.length; i++) {
+            FREQUENCY_INDICES.put(rates[i], i);
+        }
+    }
+
+    @Param({"44100", "8000", "44000"})
+    public int sampleRate;
+
+    @Benchmark
+    public byte[] create() {
+        return AacConfig.create(AacConfig.PROFILE_LC, sampleRate, 2);
+    }
+
+    @Benchmark
+    public ByteBuffer hashMapBaseline() {
+        int freqIdx = FREQUENCY_INDICES.containsKey(sampleRate) ? FREQUENCY_INDICES.get(sampleRate) : 4;
+        ByteBuffer csd = ByteBuffer.allocate(2);
+        csd.put(0, (byte) (AacConfig.PROFILE_LC << 3 | freqIdx >> 1));
+        csd.put(1, (byte) ((freqIdx & 0x01) << 7 | 2 << 3));
+        return csd;
+    }
+}
@@ -0,0 +1,103 @@
+package com.github.boybeak.benchmarks;
+
+import com.github.boybeak.mediakit.FakeFrameCodec;
+import com.github.boybeak.mediakit.FrameCodec;
+import com.github.boybeak.mediakit.TrackFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a model of the polling loops, not the loops themselves. VideoDecodeThread,
+ * VideoEncodeThread and VideoSlimEncoder are tied to MediaExtractor, EGL surfaces and MediaMuxer and
+ * do not run on the JVM, so this class re-implements only their dequeue/queue/release skeleton: a
+ * decode thread feeding a decoder that renders into an encoder drained by a second thread, both
+ * polling with the given dequeue timeout. Extraction, the surface hop, frame dropping, muxing and
+ * the async {@code awaitEvent} path are left out, and a change to the real loops is not picked up
+ * here until this model is updated to match.
+ * <p>
+ * The codecs are {@link FakeFrameCodec}s with a fixed latency, so the time above frames * latency
+ * is what the polling itself costs. The returned value is the number of empty polls.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FrameCodecPipelineBenchmark {
+
+    private static final int FRAMES = 300;
+
+    /**
+     * 1us is what the xcmpsor threads use, 10us VideoSlimEncoder
+     */
+    @Param({"1", "10", "10000"})
+    public long timeoutUs;
+
+    @Param({"2000"})
+    public long codecLatencyUs;
+
+    @Benchmark
+    public long decodeRenderEncode() throws InterruptedException {
+        FakeFrameCodec decoder = new FakeFrameCodec(TrackFormat.createVideoFormat("video/raw", 1280, 720));
+        FakeFrameCodec encoder = new FakeFrameCodec(TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 1280, 720));
+        decoder.setLatencyUs(codecLatencyUs);
+        encoder.setLatencyUs(codecLatencyUs);
+        decoder.setRenderTarget(encoder);
+        decoder.start();
+        encoder.start();
+        Thread encodeThread = new Thread(() -> {
+            FrameCodec.BufferInfo info = new FrameCodec.BufferInfo();
+            while (true) {
+                int index = encoder.dequeueOutputBuffer(info, timeoutUs);
+                if (index >= 0) {
+                    encoder.releaseOutputBuffer(index, false);
+                    if ((info.flags & FrameCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        break;
+                    }
+                }
+            }
+        });
+        encodeThread.start();
+
+        FrameCodec.BufferInfo info = new FrameCodec.BufferInfo();
+        byte[] sample = new byte[4096];
+        int queued = 0;
+        boolean inputDone = false;
+        while (true) {
+            if (!inputDone) {
+                int index = decoder.dequeueInputBuffer(timeoutUs);
+                if (index >= 0) {
+                    if (queued == FRAMES) {
+                        decoder.queueInputBuffer(index, 0, 0, 0, FrameCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        ByteBuffer buffer = decoder.getInputBuffer(index);
+                        buffer.put(sample);
+                        decoder.queueInputBuffer(index, 0, sample.length, queued * 33333L, 0);
+                        queued++;
+                    }
+                }
+            }
+            int index = decoder.dequeueOutputBuffer(info, timeoutUs);
+            if (index >= 0) {
+                decoder.releaseOutputBuffer(index, info.size > 0);
+                if ((info.flags & FrameCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    break;
+                }
+            }
+        }
+        encoder.signalEndOfInputStream();
+        encodeThread.join();
+        long polls = decoder.getTryAgainCount() + encoder.getTryAgainCount();
+        decoder.release();
+        encoder.release();
+        return polls;
+    }
+}
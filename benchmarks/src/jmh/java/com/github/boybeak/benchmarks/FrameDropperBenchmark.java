@@ -0,0 +1,44 @@
+package com.github.boybeak.benchmarks;
+
+import com.github.boybeak.xcmpor.FrameDropper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FrameDropper#checkDrop(int)} is called once per decoded frame on the decode thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameDropperBenchmark {
+
+    private static final int FRAMES = 1800;
+
+    @Param({"60", "30"})
+    public int srcFrameRate;
+
+    @Param({"25"})
+    public int dstFrameRate;
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int checkDrop() {
+        FrameDropper dropper = new FrameDropper(srcFrameRate, dstFrameRate);
+        int dropped = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            if (dropper.checkDrop(i)) {
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+}
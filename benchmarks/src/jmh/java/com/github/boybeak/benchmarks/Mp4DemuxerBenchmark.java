@@ -0,0 +1,119 @@
+package com.github.boybeak.benchmarks;
+
+import com.github.boybeak.mediakit.SampleIndex;
+import com.github.boybeak.mediakit.mp4.Mp4Demuxer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opening and reading an mp4 with the pure-java demuxer, and the sample index built from it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class Mp4DemuxerBenchmark {
+
+    @Param({"60", "600"})
+    public int seconds;
+
+    private File mFile;
+    private byte[] mIndexBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        mFile = new SyntheticMedia(seconds).writeMp4();
+        Mp4Demuxer demuxer = new Mp4Demuxer(mFile);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            SampleIndex.build(demuxer).writeTo(new DataOutputStream(out));
+            mIndexBytes = out.toByteArray();
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    /**
+     * moov parsing, what every probe pays
+     */
+    @Benchmark
+    public int open() throws IOException {
+        Mp4Demuxer demuxer = new Mp4Demuxer(mFile);
+        try {
+            return demuxer.getTrackCount();
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    /**
+     * Every sample as MediaCodec wants it, video converted to Annex-B.
+     */
+    @Benchmark
+    public void readAllAnnexB(Blackhole blackhole) throws IOException {
+        readAll(true, blackhole);
+    }
+
+    /**
+     * Every sample as stored, zero-copy slices.
+     */
+    @Benchmark
+    public void readAllRaw(Blackhole blackhole) throws IOException {
+        readAll(false, blackhole);
+    }
+
+    @Benchmark
+    public SampleIndex buildIndex() throws IOException {
+        Mp4Demuxer demuxer = new Mp4Demuxer(mFile);
+        try {
+            return SampleIndex.build(demuxer);
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Benchmark
+    public SampleIndex readIndex() throws IOException {
+        return SampleIndex.readFrom(new DataInputStream(new ByteArrayInputStream(mIndexBytes)));
+    }
+
+    private void readAll(boolean annexB, Blackhole blackhole) throws IOException {
+        Mp4Demuxer demuxer = new Mp4Demuxer(mFile);
+        try {
+            demuxer.setAnnexB(annexB);
+            for (int i = 0; i < demuxer.getTrackCount(); i++) {
+                demuxer.selectTrack(i);
+            }
+            do {
+                ByteBuffer sample = demuxer.getSampleData();
+                blackhole.consume(sample.get(sample.position()));
+                blackhole.consume(demuxer.getSampleTime());
+            } while (demuxer.advance());
+        } finally {
+            demuxer.release();
+        }
+    }
+}
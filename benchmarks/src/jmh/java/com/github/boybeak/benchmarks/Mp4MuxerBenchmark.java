@@ -0,0 +1,65 @@
+package com.github.boybeak.benchmarks;
+
+import com.github.boybeak.mediakit.MuxerBackend;
+import com.github.boybeak.mediakit.mp4.FragmentedMp4Muxer;
+import com.github.boybeak.mediakit.mp4.Mp4Muxer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Muxing an already encoded 1:1 AVC/AAC stream, i.e. the muxer's share of a compression job.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class Mp4MuxerBenchmark {
+
+    @Param({"60"})
+    public int seconds;
+
+    private SyntheticMedia mMedia;
+    private File mOutput;
+
+    @Setup
+    public void setup() throws IOException {
+        mMedia = new SyntheticMedia(seconds);
+        mOutput = File.createTempFile("mux", ".mp4");
+    }
+
+    @TearDown
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mOutput.delete();
+    }
+
+    @Benchmark
+    public long mp4() throws IOException {
+        return write(new Mp4Muxer(mOutput));
+    }
+
+    @Benchmark
+    public long fragmentedMp4() throws IOException {
+        return write(new FragmentedMp4Muxer(mOutput.getPath()));
+    }
+
+    private long write(MuxerBackend muxer) throws IOException {
+        try {
+            mMedia.writeTo(muxer);
+        } finally {
+            muxer.release();
+        }
+        return mOutput.length();
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.boybeak.benchmarks;
+
+import com.github.boybeak.mediakit.h264.ParameterSets;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting the encoder's codec config into SPS / PPS, as VideoSlimEncoder.convertVideo does,
+ * against the backward byte scan it used before.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ParameterSetsBenchmark {
+
+    /**
+     * SPS size, large ones carry VUI and scaling lists
+     */
+    @Param({"16", "256"})
+    public int spsSize;
+
+    private byte[] mCsd;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(spsSize);
+        int ppsSize = 8;
+        mCsd = new byte[4 + spsSize + 4 + ppsSize];
+        random.nextBytes(mCsd);
+        for (int i = 0; i < mCsd.length; i++) {
+            if (mCsd[i] == 0) {
+                mCsd[i] = 1;
+            }
+        }
+        mCsd[0] = 0;
+        mCsd[1] = 0;
+        mCsd[2] = 0;
+        mCsd[3] = 1;
+        mCsd[4] = 0x67;
+        int pps = 4 + spsSize;
+        mCsd[pps] = 0;
+        mCsd[pps + 1] = 0;
+        mCsd[pps + 2] = 0;
+        mCsd[pps + 3] = 1;
+        mCsd[pps + 4] = 0x68;
+    }
+
+    @Benchmark
+    public byte[][] split() {
+        return ParameterSets.split(mCsd, 0, mCsd.length);
+    }
+
+    @Benchmark
+    public ByteBuffer[] backwardScanBaseline() {
+        byte[] csd = mCsd;
+        int size = csd.length;
+        for (int a = size - 1; a > 3; a--) {
+            if (csd[a] == 1 && csd[a - 1] == 0 && csd[a - 2] == 0 && csd[a - 3] == 0) {
+                ByteBuffer sps = ByteBuffer.allocate(a - 3);
+                ByteBuffer pps = ByteBuffer.allocate(size - (a - 3));
+                sps.put(csd, 0, a - 3).position(0);
+                pps.put(csd, a - 3, size - (a - 3)).position(0);
+                return new ByteBuffer[]{sps, pps};
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,111 @@
+package com.github.boybeak.benchmarks;
+
+import com.github.boybeak.mediakit.MuxerBackend;
+import com.github.boybeak.mediakit.TrackFormat;
+import com.github.boybeak.mediakit.mp4.Mp4Muxer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Reproducible fake AVC + AAC streams for the mp4 benchmarks. Frames are random bytes wrapped in a
+ * single Annex-B NAL unit, sized like a 2Mbps 30fps stream.
+ */
+final class SyntheticMedia {
+
+    static final int FRAME_RATE = 30;
+    static final int GOP = 30;
+    static final int SAMPLE_RATE = 44100;
+    static final int AAC_FRAME_SIZE = 1024;
+
+    final ByteBuffer[] videoFrames;
+    final long[] videoTimesUs;
+    final ByteBuffer[] audioFrames;
+    final long[] audioTimesUs;
+
+    SyntheticMedia(int seconds) {
+        Random random = new Random(seconds);
+        int videoCount = seconds * FRAME_RATE;
+        videoFrames = new ByteBuffer[videoCount];
+        videoTimesUs = new long[videoCount];
+        for (int i = 0; i < videoCount; i++) {
+            int size = i % GOP == 0 ? 40000 : 6000 + random.nextInt(4000);
+            videoFrames[i] = annexB(random, i % GOP == 0 ? 0x65 : 0x41, size);
+            videoTimesUs[i] = i * 1000000L / FRAME_RATE;
+        }
+        int audioCount = (int) ((long) seconds * SAMPLE_RATE / AAC_FRAME_SIZE);
+        audioFrames = new ByteBuffer[audioCount];
+        audioTimesUs = new long[audioCount];
+        for (int i = 0; i < audioCount; i++) {
+            byte[] payload = new byte[300 + random.nextInt(100)];
+            random.nextBytes(payload);
+            audioFrames[i] = ByteBuffer.wrap(payload);
+            audioTimesUs[i] = i * (long) AAC_FRAME_SIZE * 1000000L / SAMPLE_RATE;
+        }
+    }
+
+    static TrackFormat videoFormat() {
+        TrackFormat format = TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 1280, 720);
+        format.setCsd(0, new byte[]{0, 0, 0, 1, 0x67, 0x64, 0x00, 0x1f, (byte) 0xac, (byte) 0xd9, 0x40, 0x50});
+        format.setCsd(1, new byte[]{0, 0, 0, 1, 0x68, (byte) 0xeb, (byte) 0xe3, (byte) 0xcb, 0x22, (byte) 0xc0});
+        return format;
+    }
+
+    static TrackFormat audioFormat() {
+        TrackFormat format = TrackFormat.createAudioFormat(TrackFormat.MIMETYPE_AUDIO_AAC, SAMPLE_RATE, 2);
+        format.setCsd(0, new byte[]{0x12, 0x10});
+        return format;
+    }
+
+    /**
+     * Interleaves both streams into {@code muxer} in presentation order, then stops it.
+     */
+    void writeTo(MuxerBackend muxer) throws IOException {
+        int videoTrack = muxer.addTrack(videoFormat());
+        int audioTrack = muxer.addTrack(audioFormat());
+        muxer.start();
+        int audio = 0;
+        for (int i = 0; i < videoFrames.length; i++) {
+            while (audio < audioFrames.length && audioTimesUs[audio] <= videoTimesUs[i]) {
+                ByteBuffer frame = audioFrames[audio];
+                muxer.writeSampleData(audioTrack, frame, 0, frame.capacity(), audioTimesUs[audio], MuxerBackend.FLAG_KEY_FRAME);
+                audio++;
+            }
+            ByteBuffer frame = videoFrames[i];
+            muxer.writeSampleData(videoTrack, frame, 0, frame.capacity(), videoTimesUs[i],
+                    i % GOP == 0 ? MuxerBackend.FLAG_KEY_FRAME : 0);
+        }
+        muxer.stop();
+    }
+
+    File writeMp4() throws IOException {
+        File file = File.createTempFile("synthetic", ".mp4");
+        file.deleteOnExit();
+        Mp4Muxer muxer = new Mp4Muxer(file);
+        try {
+            writeTo(muxer);
+        } finally {
+            muxer.release();
+        }
+        return file;
+    }
+
+    private static ByteBuffer annexB(Random random, int nalHeader, int size) {
+        byte[] frame = new byte[size];
+        random.nextBytes(frame);
+        // no accidental start codes inside the payload
+        for (int i = 5; i < size; i++) {
+            if (frame[i] == 0) {
+                frame[i] = 1;
+            }
+        }
+        frame[0] = 0;
+        frame[1] = 0;
+        frame[2] = 0;
+        frame[3] = 1;
+        frame[4] = (byte) nalHeader;
+        return ByteBuffer.wrap(frame);
+    }
+}
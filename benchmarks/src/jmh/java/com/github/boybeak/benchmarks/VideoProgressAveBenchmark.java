@@ -0,0 +1,39 @@
+package com.github.boybeak.benchmarks;
+
+import com.github.boybeak.xcmpor.VideoProgressAve;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link VideoProgressAve#setEncodeTimeStamp(long)} runs for every encoded frame, listener included.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VideoProgressAveBenchmark {
+
+    private VideoProgressAve mProgressAve;
+    private long mTimeUs;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        mProgressAve = new VideoProgressAve(blackhole::consume);
+        mProgressAve.setStartTimeMs(0);
+        mProgressAve.setEndTimeMs(10 * 60 * 1000);
+    }
+
+    @Benchmark
+    public void setEncodeTimeStamp() {
+        mTimeUs += 33333;
+        mProgressAve.setEncodeTimeStamp(mTimeUs);
+    }
+}
@@ -0,0 +1,293 @@
+package com.github.boybeak.mediakit.android;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import com.github.boybeak.mediakit.FrameCodec;
+import com.github.boybeak.mediakit.TrackFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FrameCodec} driven by MediaCodec's asynchronous callbacks, delivered on a HandlerThread owned
+ * by this codec. The callbacks only record which buffers became available; the dequeue calls hand
+ * them out and block on a monitor while there are none, so a loop waiting for the codec sleeps
+ * instead of polling it.
+ * <p>
+ * Has to be created before the codec is configured, and needs API 23, see {@link #isSupported()}.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+public class AsyncFrameCodec implements FrameCodec {
+
+    private final MediaCodec mCodec;
+    private final Object mLock;
+    private final HandlerThread mCallbackThread;
+    private final Handler mHandler;
+    private final ArrayDeque<Integer> mInputBuffers = new ArrayDeque<>();
+    private final ArrayDeque<Output> mOutputs = new ArrayDeque<>();
+    private TrackFormat mOutputFormat;
+    private MediaCodec.CodecException mError;
+    private volatile long mCallbackCpuTimeMs;
+    private boolean mReleased;
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    public AsyncFrameCodec(MediaCodec codec, String name) {
+        this(codec, name, new Object());
+    }
+
+    /**
+     * @param lock notified on every callback. Codecs driven by the same loop share one, so the loop
+     *             can wait for any of them with {@link #awaitEvent(boolean, long, AsyncFrameCodec)}
+     */
+    public AsyncFrameCodec(MediaCodec codec, String name, Object lock) {
+        mCodec = codec;
+        mLock = lock;
+        mCallbackThread = new HandlerThread(name);
+        mCallbackThread.start();
+        mHandler = new Handler(mCallbackThread.getLooper());
+        try {
+            codec.setCallback(new Callback(), mHandler);
+        } catch (RuntimeException e) {
+            mCallbackThread.quit();
+            throw e;
+        }
+    }
+
+    public MediaCodec getCodec() {
+        return mCodec;
+    }
+
+    /**
+     * Blocks until this codec has an input buffer (if {@code input}) or an output, or {@code other}
+     * has an output. Lets one loop feed a decoder and drain an encoder without spinning on either.
+     *
+     * @param other a codec sharing this codec's lock, may be null
+     * @return whether an event is pending, false when the timeout elapsed first
+     */
+    public boolean awaitEvent(boolean input, long timeoutUs, @Nullable AsyncFrameCodec other) {
+        if (other != null && other.mLock != mLock) {
+            throw new IllegalArgumentException("codecs waited on together must share a lock");
+        }
+        return await(input, true, timeoutUs, other);
+    }
+
+    private boolean await(boolean input, boolean output, long timeoutUs, @Nullable AsyncFrameCodec other) {
+        synchronized (mLock) {
+            long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(timeoutUs);
+            while (true) {
+                if (hasEvent(input, output) || (other != null && other.hasEvent(false, true))) {
+                    return true;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (timeoutUs == 0 || (timeoutUs > 0 && remaining <= 0)) {
+                    return false;
+                }
+                try {
+                    if (timeoutUs < 0) {
+                        mLock.wait();
+                    } else {
+                        TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+    }
+
+    private boolean hasEvent(boolean input, boolean output) {
+        if (mError != null) {
+            throw mError;
+        }
+        return (input && !mInputBuffers.isEmpty()) || (output && !mOutputs.isEmpty());
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        synchronized (mLock) {
+            if (!await(true, false, timeoutUs, null)) {
+                return INFO_TRY_AGAIN_LATER;
+            }
+            return mInputBuffers.poll();
+        }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();
+    }
+
+    @Override
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+        synchronized (mLock) {
+            if (!await(false, true, timeoutUs, null)) {
+                return INFO_TRY_AGAIN_LATER;
+            }
+            Output output = mOutputs.poll();
+            if (output.format != null) {
+                mOutputFormat = output.format;
+                return INFO_OUTPUT_FORMAT_CHANGED;
+            }
+            info.set(output.offset, output.size, output.presentationTimeUs, output.flags);
+            return output.index;
+        }
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public TrackFormat getOutputFormat() {
+        synchronized (mLock) {
+            if (mOutputFormat != null) {
+                return mOutputFormat;
+            }
+        }
+        return MediaFormats.toTrackFormat(mCodec.getOutputFormat());
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public void flush() {
+        mCodec.flush();
+        synchronized (mLock) {
+            // MediaCodec drops the callbacks of buffers from before the flush, the indices already
+            // recorded are stale as well
+            mInputBuffers.clear();
+            mOutputs.clear();
+        }
+        // in asynchronous mode the codec only hands out buffers again after start()
+        mCodec.start();
+    }
+
+    @Override
+    public void stop() {
+        mCodec.stop();
+        synchronized (mLock) {
+            // indices handed out before stop() are no longer valid
+            mInputBuffers.clear();
+            mOutputs.clear();
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mReleased) {
+            return;
+        }
+        mReleased = true;
+        mCodec.release();
+        // quitSafely() still runs what is already posted, so this reads the callback thread's own CPU time
+        mHandler.post(() -> mCallbackCpuTimeMs = SystemClock.currentThreadTimeMillis());
+        mCallbackThread.quitSafely();
+        try {
+            mCallbackThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return CPU time spent on the callback thread, valid after {@link #release()}
+     */
+    public long getCallbackCpuTimeMs() {
+        return mCallbackCpuTimeMs;
+    }
+
+    private static class Output {
+        final int index;
+        final int offset;
+        final int size;
+        final long presentationTimeUs;
+        final int flags;
+        final TrackFormat format;
+
+        Output(int index, MediaCodec.BufferInfo info) {
+            this.index = index;
+            this.offset = info.offset;
+            this.size = info.size;
+            this.presentationTimeUs = info.presentationTimeUs;
+            this.flags = info.flags;
+            this.format = null;
+        }
+
+        Output(TrackFormat format) {
+            this.index = INFO_OUTPUT_FORMAT_CHANGED;
+            this.offset = 0;
+            this.size = 0;
+            this.presentationTimeUs = 0;
+            this.flags = 0;
+            this.format = format;
+        }
+    }
+
+    private class Callback extends MediaCodec.Callback {
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            synchronized (mLock) {
+                mInputBuffers.add(index);
+                mLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            synchronized (mLock) {
+                mOutputs.add(new Output(index, info));
+                mLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            synchronized (mLock) {
+                mError = e;
+                mLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            TrackFormat trackFormat = MediaFormats.toTrackFormat(format);
+            synchronized (mLock) {
+                mOutputs.add(new Output(trackFormat));
+                mLock.notifyAll();
+            }
+        }
+    }
+}
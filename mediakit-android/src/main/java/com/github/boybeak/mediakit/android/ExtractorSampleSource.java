@@ -0,0 +1,142 @@
+package com.github.boybeak.mediakit.android;
+
+import android.media.MediaExtractor;
+
+import com.github.boybeak.mediakit.SampleSource;
+import com.github.boybeak.mediakit.TrackFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link SampleSource} on top of MediaExtractor, used when the input is not an mp4 that
+ * {@link com.github.boybeak.mediakit.mp4.Mp4Demuxer} can map, e.g. a content Uri backed by a pipe.
+ */
+public class ExtractorSampleSource implements SampleSource {
+
+    /**
+     * Buffer size for audio tracks whose format carries no max-input-size.
+     */
+    private static final int DEFAULT_AUDIO_BUFFER_SIZE = 100 * 1000;
+
+    private final MediaExtractor mExtractor;
+    private final boolean mOwnsExtractor;
+    private final TrackFormat[] mFormats;
+    private ByteBuffer mBuffer;
+    private boolean mBufferValid;
+
+    /**
+     * @param ownsExtractor whether {@link #release()} releases the extractor
+     */
+    public ExtractorSampleSource(MediaExtractor extractor, boolean ownsExtractor) {
+        mExtractor = extractor;
+        mOwnsExtractor = ownsExtractor;
+        mFormats = new TrackFormat[extractor.getTrackCount()];
+    }
+
+    public MediaExtractor getExtractor() {
+        return mExtractor;
+    }
+
+    @Override
+    public int getTrackCount() {
+        return mFormats.length;
+    }
+
+    @Override
+    public TrackFormat getTrackFormat(int index) {
+        if (mFormats[index] == null) {
+            mFormats[index] = MediaFormats.toTrackFormat(mExtractor.getTrackFormat(index));
+        }
+        return mFormats[index];
+    }
+
+    @Override
+    public void selectTrack(int index) {
+        mExtractor.selectTrack(index);
+        mBufferValid = false;
+    }
+
+    @Override
+    public void unselectTrack(int index) {
+        mExtractor.unselectTrack(index);
+        mBufferValid = false;
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        mExtractor.seekTo(timeUs, mode);
+        mBufferValid = false;
+    }
+
+    @Override
+    public boolean advance() {
+        mBufferValid = false;
+        return mExtractor.advance();
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        return mExtractor.getSampleTrackIndex();
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mExtractor.getSampleTime();
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mExtractor.getSampleFlags();
+    }
+
+    @Override
+    public int getSampleSize() {
+        ByteBuffer sample = getSampleData();
+        return sample == null ? -1 : sample.remaining();
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        mBufferValid = false;
+        return mExtractor.readSampleData(buffer, offset);
+    }
+
+    @Override
+    public ByteBuffer getSampleData() {
+        if (mBufferValid) {
+            mBuffer.position(0);
+            return mBuffer;
+        }
+        int trackIndex = mExtractor.getSampleTrackIndex();
+        if (trackIndex < 0) {
+            return null;
+        }
+        TrackFormat format = getTrackFormat(trackIndex);
+        int capacity = format.getMaxSampleSize();
+        if (capacity <= 0) {
+            capacity = format.isVideo() ? format.getWidth() * format.getHeight() * 3 / 2 : DEFAULT_AUDIO_BUFFER_SIZE;
+        }
+        if (mBuffer == null || mBuffer.capacity() < capacity) {
+            mBuffer = ByteBuffer.allocateDirect(capacity);
+        }
+        int size = mExtractor.readSampleData(mBuffer, 0);
+        if (size < 0) {
+            return null;
+        }
+        mBuffer.position(0).limit(size);
+        mBufferValid = true;
+        return mBuffer;
+    }
+
+    @Override
+    public void release() {
+        if (mOwnsExtractor) {
+            mExtractor.release();
+        }
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+}
@@ -0,0 +1,108 @@
+package com.github.boybeak.mediakit.android;
+
+import android.media.MediaCodec;
+import android.os.Build;
+
+import com.github.boybeak.mediakit.FrameCodec;
+import com.github.boybeak.mediakit.TrackFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link FrameCodec} backed by a configured MediaCodec. Creating and configuring the codec (and its
+ * surfaces) stays with the caller, this only forwards the buffer calls.
+ */
+public class MediaCodecFrameCodec implements FrameCodec {
+
+    private final MediaCodec mCodec;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+
+    public MediaCodecFrameCodec(MediaCodec codec) {
+        mCodec = codec;
+    }
+
+    public MediaCodec getCodec() {
+        return mCodec;
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            mInputBuffers = mCodec.getInputBuffers();
+            mOutputBuffers = mCodec.getOutputBuffers();
+        }
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        if (mInputBuffers != null) {
+            ByteBuffer buffer = mInputBuffers[index];
+            buffer.clear();
+            return buffer;
+        }
+        return mCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();
+    }
+
+    @Override
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+        int index = mCodec.dequeueOutputBuffer(mInfo, timeoutUs);
+        if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED && mOutputBuffers != null) {
+            mOutputBuffers = mCodec.getOutputBuffers();
+        }
+        if (index >= 0) {
+            info.set(mInfo.offset, mInfo.size, mInfo.presentationTimeUs, mInfo.flags);
+        }
+        return index;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        if (mOutputBuffers != null) {
+            return mOutputBuffers[index];
+        }
+        return mCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public TrackFormat getOutputFormat() {
+        return MediaFormats.toTrackFormat(mCodec.getOutputFormat());
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public void flush() {
+        mCodec.flush();
+    }
+
+    @Override
+    public void stop() {
+        mCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        mCodec.release();
+    }
+}
@@ -0,0 +1,105 @@
+package com.github.boybeak.mediakit.android;
+
+import android.media.MediaFormat;
+
+import com.github.boybeak.mediakit.TrackFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts between android.media.MediaFormat and the plain-java {@link TrackFormat} of mediakit.
+ */
+public class MediaFormats {
+
+    private static final String KEY_ROTATION = "rotation-degrees";
+
+    public static TrackFormat toTrackFormat(MediaFormat mediaFormat) {
+        TrackFormat format = new TrackFormat(mediaFormat.getString(MediaFormat.KEY_MIME));
+        if (format.isVideo()) {
+            format.setWidth(getInt(mediaFormat, MediaFormat.KEY_WIDTH, 0));
+            format.setHeight(getInt(mediaFormat, MediaFormat.KEY_HEIGHT, 0));
+            format.setRotation(getInt(mediaFormat, KEY_ROTATION, 0));
+            format.setFrameRate(getFloat(mediaFormat, MediaFormat.KEY_FRAME_RATE, 0));
+        } else if (format.isAudio()) {
+            format.setSampleRate(getInt(mediaFormat, MediaFormat.KEY_SAMPLE_RATE, 0));
+            format.setChannelCount(getInt(mediaFormat, MediaFormat.KEY_CHANNEL_COUNT, 0));
+        }
+        if (mediaFormat.containsKey(MediaFormat.KEY_DURATION)) {
+            format.setDurationUs(mediaFormat.getLong(MediaFormat.KEY_DURATION));
+        }
+        format.setMaxSampleSize(getInt(mediaFormat, MediaFormat.KEY_MAX_INPUT_SIZE, 0));
+        format.setBitrate(getInt(mediaFormat, MediaFormat.KEY_BIT_RATE, 0));
+        if (mediaFormat.containsKey(MediaFormat.KEY_LANGUAGE)) {
+            format.setLanguage(mediaFormat.getString(MediaFormat.KEY_LANGUAGE));
+        }
+        for (int i = 0; i < 3; i++) {
+            String key = "csd-" + i;
+            if (mediaFormat.containsKey(key)) {
+                ByteBuffer csd = mediaFormat.getByteBuffer(key).duplicate();
+                byte[] bytes = new byte[csd.remaining()];
+                csd.get(bytes);
+                format.setCsd(i, bytes);
+            }
+        }
+        return format;
+    }
+
+    public static MediaFormat toMediaFormat(TrackFormat format) {
+        MediaFormat mediaFormat;
+        if (format.isVideo()) {
+            mediaFormat = MediaFormat.createVideoFormat(format.getMime(), format.getWidth(), format.getHeight());
+            if (format.getRotation() != 0) {
+                mediaFormat.setInteger(KEY_ROTATION, format.getRotation());
+            }
+            if (format.getFrameRate() > 0) {
+                mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, Math.round(format.getFrameRate()));
+            }
+        } else if (format.isAudio()) {
+            mediaFormat = MediaFormat.createAudioFormat(format.getMime(), format.getSampleRate(), format.getChannelCount());
+        } else {
+            mediaFormat = new MediaFormat();
+            mediaFormat.setString(MediaFormat.KEY_MIME, format.getMime());
+        }
+        if (format.getDurationUs() > 0) {
+            mediaFormat.setLong(MediaFormat.KEY_DURATION, format.getDurationUs());
+        }
+        if (format.getMaxSampleSize() > 0) {
+            mediaFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, format.getMaxSampleSize());
+        }
+        if (format.getBitrate() > 0) {
+            mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, format.getBitrate());
+        }
+        if (format.getLanguage() != null) {
+            mediaFormat.setString(MediaFormat.KEY_LANGUAGE, format.getLanguage());
+        }
+        for (int i = 0; i < 3; i++) {
+            byte[] csd = format.getCsd(i);
+            if (csd != null) {
+                mediaFormat.setByteBuffer("csd-" + i, ByteBuffer.wrap(csd));
+            }
+        }
+        return mediaFormat;
+    }
+
+    static int getInt(MediaFormat format, String key, int defaultValue) {
+        if (!format.containsKey(key)) {
+            return defaultValue;
+        }
+        try {
+            return format.getInteger(key);
+        } catch (ClassCastException e) {
+            return (int) format.getFloat(key);
+        }
+    }
+
+    static float getFloat(MediaFormat format, String key, float defaultValue) {
+        if (!format.containsKey(key)) {
+            return defaultValue;
+        }
+        try {
+            return format.getFloat(key);
+        } catch (ClassCastException e) {
+            return format.getInteger(key);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.boybeak.mediakit.android;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import com.github.boybeak.mediakit.MuxerBackend;
+import com.github.boybeak.mediakit.TrackFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link MuxerBackend} on top of android.media.MediaMuxer, the default backend of the xcmpsor and vcompressor pipelines.
+ */
+public class MediaMuxerBackend implements MuxerBackend {
+
+    public static final Factory FACTORY = MediaMuxerBackend::new;
+
+    private final MediaMuxer mMuxer;
+    private final boolean mOwnsMuxer;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+    public MediaMuxerBackend(String outputPath) throws IOException {
+        this(new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4), true);
+    }
+
+    /**
+     * @param ownsMuxer whether {@link #release()} releases the muxer
+     */
+    public MediaMuxerBackend(MediaMuxer muxer, boolean ownsMuxer) {
+        mMuxer = muxer;
+        mOwnsMuxer = ownsMuxer;
+    }
+
+    /**
+     * MediaMuxer always writes avc1/hvc1, {@link TrackFormat#isInBandParameterSets()} can not be
+     * honoured; use {@link com.github.boybeak.mediakit.mp4.Mp4Muxer} for such tracks.
+     */
+    @Override
+    public int addTrack(TrackFormat format) {
+        return mMuxer.addTrack(MediaFormats.toMediaFormat(format));
+    }
+
+    public int addTrack(MediaFormat format) {
+        return mMuxer.addTrack(format);
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        mMuxer.setOrientationHint(degrees);
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+    }
+
+    @Override
+    public synchronized void writeSampleData(int trackIndex, ByteBuffer data, int offset, int size,
+                                             long presentationTimeUs, int flags) {
+        mInfo.set(offset, size, presentationTimeUs, flags);
+        mMuxer.writeSampleData(trackIndex, data, mInfo);
+    }
+
+    @Override
+    public void stop() {
+        mMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        if (mOwnsMuxer) {
+            mMuxer.release();
+        }
+    }
+
+    public MediaMuxer getMuxer() {
+        return mMuxer;
+    }
+}
@@ -0,0 +1,105 @@
+package com.github.boybeak.mediakit;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Shared stop signal for the stages of one job. Each stage loop calls {@link #throwIfCancelled()}
+ * once per iteration. A stage that fails reports it with {@link #fail(Throwable)}, which stops
+ * the other stages the same way a user {@link #cancel()} does. Only the first reason is kept.
+ * <p>
+ * Stages blocked on something other than their loop (a latch, a frame) register a listener that
+ * wakes them up.
+ */
+public final class CancellationToken {
+
+    private final Object mLock = new Object();
+    private final CopyOnWriteArrayList<Runnable> mListeners = new CopyOnWriteArrayList<>();
+    private volatile Throwable mReason;
+
+    /**
+     * @return false if the token was already cancelled or failed
+     */
+    public boolean cancel() {
+        return stop(new CancellationException("cancelled"));
+    }
+
+    /**
+     * Stops every stage because one of them failed.
+     *
+     * @return false if the token was already cancelled or failed, the first reason wins
+     */
+    public boolean fail(Throwable cause) {
+        return stop(cause);
+    }
+
+    private boolean stop(Throwable reason) {
+        synchronized (mLock) {
+            if (mReason != null) {
+                return false;
+            }
+            mReason = reason;
+        }
+        for (Runnable listener : mListeners) {
+            // remove first, addListener() racing with us runs it only if it is still there
+            if (mListeners.remove(listener)) {
+                listener.run();
+            }
+        }
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return mReason != null;
+    }
+
+    /**
+     * @return whether the token was stopped by {@link #cancel()} rather than a failure
+     */
+    public boolean isCancelledByUser() {
+        return mReason instanceof CancellationException;
+    }
+
+    /**
+     * @return the CancellationException of {@link #cancel()}, the first failure, or null
+     */
+    public Throwable getReason() {
+        return mReason;
+    }
+
+    /**
+     * @throws CancellationException once the token is cancelled or failed, caused by the failure
+     */
+    public void throwIfCancelled() {
+        Throwable reason = mReason;
+        if (reason == null) {
+            return;
+        }
+        if (reason instanceof CancellationException) {
+            throw (CancellationException) reason;
+        }
+        CancellationException e = new CancellationException("stopped by a failed stage");
+        e.initCause(reason);
+        throw e;
+    }
+
+    /**
+     * Runs {@code listener} once when the token is cancelled or failed, right away if it already is.
+     * Runs on the thread that cancels, keep it short.
+     */
+    public void addListener(Runnable listener) {
+        mListeners.add(listener);
+        synchronized (mLock) {
+            if (mReason == null) {
+                return;
+            }
+        }
+        if (mListeners.remove(listener)) {
+            listener.run();
+        }
+    }
+
+    public void removeListener(Runnable listener) {
+        mListeners.remove(listener);
+    }
+}
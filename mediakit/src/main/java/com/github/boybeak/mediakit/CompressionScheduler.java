@@ -0,0 +1,221 @@
+package com.github.boybeak.mediakit;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs compression jobs on a bounded number of workers. A job waits in a queue ordered by
+ * {@link Priority} and, within one priority, by submission order. A user-facing job therefore
+ * overtakes queued background ones, but never preempts a running job.
+ * <p>
+ * Each job holds a hardware decoder and encoder while it runs, so the worker count should not
+ * exceed the number of codec instances the device supports. The Android modules derive it from
+ * MediaCodecInfo.CodecCapabilities#getMaxSupportedInstances.
+ */
+public class CompressionScheduler {
+
+    /**
+     * Priority classes, most urgent first.
+     */
+    public enum Priority {
+        /**
+         * The user is waiting for the result.
+         */
+        USER_INITIATED,
+        DEFAULT,
+        /**
+         * Prefetching, uploads queued for later and similar work nobody is watching.
+         */
+        BACKGROUND
+    }
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    public CompressionScheduler(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("workerCount must be >= 1: " + workerCount);
+        }
+        mExecutor = new ThreadPoolExecutor(workerCount, workerCount, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), new WorkerFactory());
+        // idle schedulers do not keep threads around
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public <T> Job<T> submit(Priority priority, Callable<T> task) {
+        Job<T> job = new Job<>(task, priority, mSequence.getAndIncrement());
+        // execute(), not submit(): the queue orders the Job itself, a wrapping FutureTask is not comparable
+        mExecutor.execute(job);
+        return job;
+    }
+
+    public Job<Void> submit(Priority priority, Runnable task) {
+        return submit(priority, Executors.<Void>callable(task, null));
+    }
+
+    /**
+     * @return an executor that schedules every runnable as a job of the given priority, for APIs
+     * that take an Executor
+     */
+    public Executor asExecutor(Priority priority) {
+        return task -> submit(priority, task);
+    }
+
+    /**
+     * Changes how many jobs run at the same time. Running jobs are not interrupted when it shrinks.
+     */
+    public void setWorkerCount(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("workerCount must be >= 1: " + workerCount);
+        }
+        synchronized (mExecutor) {
+            if (workerCount > mExecutor.getMaximumPoolSize()) {
+                mExecutor.setMaximumPoolSize(workerCount);
+                mExecutor.setCorePoolSize(workerCount);
+            } else {
+                mExecutor.setCorePoolSize(workerCount);
+                mExecutor.setMaximumPoolSize(workerCount);
+            }
+        }
+    }
+
+    public int getWorkerCount() {
+        return mExecutor.getMaximumPoolSize();
+    }
+
+    /**
+     * @return jobs waiting for a worker
+     */
+    public int getQueuedCount() {
+        return mExecutor.getQueue().size();
+    }
+
+    public int getRunningCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    /**
+     * Lets queued jobs finish and accepts no new ones.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Drops queued jobs and interrupts running ones.
+     */
+    public void shutdownNow() {
+        for (Runnable runnable : mExecutor.shutdownNow()) {
+            ((Job<?>) runnable).cancel(false);
+        }
+    }
+
+    /**
+     * Future of a scheduled job that also reports how long it waited for a worker and how long it
+     * ran, separately.
+     */
+    public static class Job<T> extends FutureTask<T> implements Comparable<Job<?>> {
+
+        private final Priority mPriority;
+        private final long mSequence;
+        private final long mSubmitNanos;
+        private volatile long mStartNanos;
+        private volatile long mFinishNanos;
+
+        Job(Callable<T> callable, Priority priority, long sequence) {
+            super(callable);
+            mPriority = priority;
+            mSequence = sequence;
+            mSubmitNanos = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            if (!isDone()) {
+                mStartNanos = System.nanoTime();
+            }
+            super.run();
+        }
+
+        @Override
+        protected void set(T result) {
+            // before the result is published: get() returns before done() is called
+            mFinishNanos = System.nanoTime();
+            super.set(result);
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            mFinishNanos = System.nanoTime();
+            super.setException(t);
+        }
+
+        @Override
+        protected void done() {
+            if (mFinishNanos == 0) {
+                // cancelled
+                mFinishNanos = System.nanoTime();
+            }
+        }
+
+        public Priority getPriority() {
+            return mPriority;
+        }
+
+        public boolean isStarted() {
+            return mStartNanos != 0;
+        }
+
+        /**
+         * @return time spent in the queue, still growing while the job waits
+         */
+        public long getQueueWaitMs() {
+            long start = mStartNanos;
+            if (start == 0) {
+                long finish = mFinishNanos;
+                start = finish != 0 ? finish : System.nanoTime();
+            }
+            return TimeUnit.NANOSECONDS.toMillis(start - mSubmitNanos);
+        }
+
+        /**
+         * @return time spent running, still growing while the job runs, 0 if it never started
+         */
+        public long getRunTimeMs() {
+            long start = mStartNanos;
+            if (start == 0) {
+                return 0;
+            }
+            long finish = mFinishNanos;
+            return TimeUnit.NANOSECONDS.toMillis((finish != 0 ? finish : System.nanoTime()) - start);
+        }
+
+        @Override
+        public int compareTo(Job<?> other) {
+            if (mPriority != other.mPriority) {
+                return mPriority.compareTo(other.mPriority);
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "CompressionWorker-" + mCount.incrementAndGet());
+        }
+    }
+}
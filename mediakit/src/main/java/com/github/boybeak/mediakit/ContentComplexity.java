@@ -0,0 +1,146 @@
+package com.github.boybeak.mediakit;
+
+/**
+ * Estimates how hard a video is to compress from the compressed sample statistics in a
+ * {@link SampleIndex}, without decoding a frame. A few GOPs spread over the track are sampled:
+ * <ul>
+ * <li>the P/I size ratio measures motion: a static shot predicts almost everything from the key
+ * frame, handheld or fast footage needs inter frames nearly as large as the key frame;</li>
+ * <li>key frame bits per pixel measure detail;</li>
+ * <li>GOPs much shorter than the longest one are scene cuts the source encoder inserted.</li>
+ * </ul>
+ * The P/I ratio barely depends on the quality the source was encoded at, so it carries the most
+ * weight; key frame size does depend on it and only nudges the score.
+ */
+public final class ContentComplexity {
+
+    public static final int DEFAULT_SAMPLED_GOPS = 8;
+
+    private static final float MOTION_WEIGHT = 0.6f;
+    private static final float DETAIL_WEIGHT = 0.25f;
+    private static final float CUT_WEIGHT = 0.15f;
+    /**
+     * P/I ratio of a static shot and of content where prediction hardly helps.
+     */
+    private static final float EASY_INTER_RATIO = 0.04f;
+    private static final float HARD_INTER_RATIO = 0.4f;
+    private static final float EASY_INTRA_BPP = 0.1f;
+    private static final float HARD_INTRA_BPP = 1.0f;
+    /**
+     * Bits per pixel per frame an H.264 encoder needs for the easiest and the hardest content.
+     */
+    private static final float EASY_BPP = 0.025f;
+    private static final float HARD_BPP = 0.09f;
+
+    private final float score;
+    private final float interToIntraRatio;
+    private final float intraBitsPerPixel;
+    private final float averageGopFrames;
+
+    private ContentComplexity(float score, float interToIntraRatio, float intraBitsPerPixel, float averageGopFrames) {
+        this.score = score;
+        this.interToIntraRatio = interToIntraRatio;
+        this.intraBitsPerPixel = intraBitsPerPixel;
+        this.averageGopFrames = averageGopFrames;
+    }
+
+    /**
+     * @param track   a video track
+     * @param maxGops number of GOPs sampled, evenly spaced over the track
+     * @return null if the track has no sync sample to start a GOP from
+     */
+    public static ContentComplexity analyze(SampleIndex.Track track, int width, int height, int maxGops) {
+        int syncCount = track.getSyncSampleCount();
+        if (syncCount == 0 || width <= 0 || height <= 0) {
+            return null;
+        }
+        int gops = Math.max(1, Math.min(maxGops, syncCount));
+        double intraBits = 0;
+        double interRatio = 0;
+        int interGops = 0;
+        int[] gopFrames = new int[gops];
+        int longestGop = 0;
+        for (int g = 0; g < gops; g++) {
+            int n = (int) ((long) g * syncCount / gops);
+            int first = track.getSyncSample(n);
+            int end = n + 1 < syncCount ? track.getSyncSample(n + 1) : track.getSampleCount();
+            int intraSize = track.getSize(first);
+            long interBytes = 0;
+            for (int i = first + 1; i < end; i++) {
+                interBytes += track.getSize(i);
+            }
+            intraBits += intraSize * 8.0;
+            if (end - first > 1 && intraSize > 0) {
+                interRatio += interBytes / (double) (end - first - 1) / intraSize;
+                interGops++;
+            }
+            gopFrames[g] = end - first;
+            longestGop = Math.max(longestGop, gopFrames[g]);
+        }
+        float intraBpp = (float) (intraBits / gops / ((long) width * height));
+        // all intra sources say nothing about motion, call it average
+        float ratio = interGops == 0 ? -1 : (float) (interRatio / interGops);
+        float motion = ratio < 0 ? 0.5f : normalize(ratio, EASY_INTER_RATIO, HARD_INTER_RATIO);
+        float detail = normalize(intraBpp, EASY_INTRA_BPP, HARD_INTRA_BPP);
+        int cuts = 0;
+        long totalFrames = 0;
+        for (int frames : gopFrames) {
+            totalFrames += frames;
+            if (frames * 2 < longestGop) {
+                cuts++;
+            }
+        }
+        float score = MOTION_WEIGHT * motion + DETAIL_WEIGHT * detail + CUT_WEIGHT * cuts / (float) gops;
+        return new ContentComplexity(score, ratio, intraBpp, totalFrames / (float) gops);
+    }
+
+    private static float normalize(float value, float easy, float hard) {
+        return Math.max(0, Math.min(1, (value - easy) / (hard - easy)));
+    }
+
+    /**
+     * @return 0 for a static, flat shot up to 1 for detailed footage in constant motion
+     */
+    public float getScore() {
+        return score;
+    }
+
+    /**
+     * @return average size of the inter frames relative to the key frame of their GOP, -1 for an
+     * all intra track
+     */
+    public float getInterToIntraRatio() {
+        return interToIntraRatio;
+    }
+
+    public float getIntraBitsPerPixel() {
+        return intraBitsPerPixel;
+    }
+
+    public float getAverageGopFrames() {
+        return averageGopFrames;
+    }
+
+    /**
+     * @return bits per pixel per frame an H.264 encoder needs for this content
+     */
+    public float getBitsPerPixel() {
+        return EASY_BPP + (HARD_BPP - EASY_BPP) * score;
+    }
+
+    /**
+     * @return bitrate for encoding this content at the given size and frame rate
+     */
+    public int suggestBitrate(int width, int height, int frameRate) {
+        return (int) Math.min(Integer.MAX_VALUE, (long) (getBitsPerPixel() * width * height * frameRate));
+    }
+
+    /**
+     * @return frame rate for this content, between {@code minFrameRate} for static content and
+     * {@code maxFrameRate} for content in motion, never above the source frame rate
+     */
+    public int suggestFrameRate(int sourceFrameRate, int minFrameRate, int maxFrameRate) {
+        int frameRate = Math.round(minFrameRate + (maxFrameRate - minFrameRate) * score);
+        return sourceFrameRate > 0 ? Math.min(frameRate, sourceFrameRate) : frameRate;
+    }
+}
@@ -0,0 +1,461 @@
+package com.github.boybeak.mediakit;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Deterministic in-memory {@link FrameCodec} for running and timing decode / encode loops on a
+ * JVM. Every queued input comes out again, in order, {@link #setLatencyUs(long) latency} later:
+ * byte buffers are copied through as they are, frames rendered into it with
+ * {@link #renderFrame(long)} (the surface input of an encoder) come out as synthetic
+ * {@link #setFrameSize(int) frameSize} byte frames.
+ * <p>
+ * Like a real codec an input buffer stays busy until its frame reaches an output buffer, and the
+ * first output is preceded by {@link #INFO_OUTPUT_FORMAT_CHANGED}. Failures and the devices that
+ * never deliver end of stream can be injected. All setters must be called before {@link #start()}.
+ */
+public class FakeFrameCodec implements FrameCodec {
+
+    private final TrackFormat mOutputFormat;
+    private final Object mLock = new Object();
+    private int mInputBufferCount = 4;
+    private int mOutputBufferCount = 4;
+    private int mBufferSize = 1024 * 1024;
+    private int mFrameSize = 1024;
+    private int mKeyFrameInterval = 1;
+    private long mLatencyUs;
+    private int mFailAfterFrames = -1;
+    private boolean mDropEndOfStream;
+    private FakeFrameCodec mRenderTarget;
+
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    private Frame[] mOutputFrames;
+    private final ArrayDeque<Integer> mFreeInputs = new ArrayDeque<>();
+    private final ArrayDeque<Integer> mFreeOutputs = new ArrayDeque<>();
+    private final ArrayDeque<Frame> mPending = new ArrayDeque<>();
+    private final ArrayDeque<Integer> mReadyOutputs = new ArrayDeque<>();
+    private boolean mStarted;
+    private boolean mReleased;
+    private boolean mFormatReported;
+    private boolean mInputEnded;
+
+    private int mQueuedFrames;
+    private int mOutputFrameCount;
+    private int mRenderedFrames;
+    private long mTryAgainCount;
+
+    public FakeFrameCodec(TrackFormat outputFormat) {
+        mOutputFormat = outputFormat;
+    }
+
+    public void setBufferCounts(int inputBufferCount, int outputBufferCount) {
+        if (inputBufferCount <= 0 || outputBufferCount <= 0) {
+            throw new IllegalArgumentException("buffer counts must be positive");
+        }
+        mInputBufferCount = inputBufferCount;
+        mOutputBufferCount = outputBufferCount;
+    }
+
+    /**
+     * Capacity of every input and output buffer, 1MB by default.
+     */
+    public void setBufferSize(int bufferSize) {
+        mBufferSize = bufferSize;
+    }
+
+    /**
+     * Size of the frames produced for {@link #renderFrame(long)}, 1KB by default.
+     */
+    public void setFrameSize(int frameSize) {
+        mFrameSize = frameSize;
+    }
+
+    /**
+     * Every n-th rendered frame is flagged as key frame, 1 by default.
+     */
+    public void setKeyFrameInterval(int keyFrameInterval) {
+        mKeyFrameInterval = Math.max(keyFrameInterval, 1);
+    }
+
+    /**
+     * Time between queueing a frame and its output becoming available, 0 by default.
+     */
+    public void setLatencyUs(long latencyUs) {
+        mLatencyUs = latencyUs;
+    }
+
+    /**
+     * Queueing more than {@code frames} frames throws an IllegalStateException, the way
+     * MediaCodec.CodecException surfaces. Negative disables it.
+     */
+    public void setFailAfterFrames(int frames) {
+        mFailAfterFrames = frames;
+    }
+
+    /**
+     * Swallows the end of stream output, like the devices the pipelines count try-again loops for.
+     */
+    public void setDropEndOfStream(boolean dropEndOfStream) {
+        mDropEndOfStream = dropEndOfStream;
+    }
+
+    /**
+     * Buffers released with render=true are rendered into {@code target}, the fake counterpart of
+     * configuring a decoder with the input surface of an encoder.
+     */
+    public void setRenderTarget(FakeFrameCodec target) {
+        mRenderTarget = target;
+    }
+
+    @Override
+    public void start() {
+        synchronized (mLock) {
+            checkNotReleased();
+            mInputBuffers = new ByteBuffer[mInputBufferCount];
+            mOutputBuffers = new ByteBuffer[mOutputBufferCount];
+            mOutputFrames = new Frame[mOutputBufferCount];
+            mFreeInputs.clear();
+            mFreeOutputs.clear();
+            mPending.clear();
+            mReadyOutputs.clear();
+            for (int i = 0; i < mInputBufferCount; i++) {
+                mInputBuffers[i] = ByteBuffer.allocate(mBufferSize);
+                mFreeInputs.add(i);
+            }
+            for (int i = 0; i < mOutputBufferCount; i++) {
+                mOutputBuffers[i] = ByteBuffer.allocate(mBufferSize);
+                mFreeOutputs.add(i);
+            }
+            mFormatReported = false;
+            mInputEnded = false;
+            mStarted = true;
+        }
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        synchronized (mLock) {
+            checkStarted();
+            long deadlineNs = deadline(timeoutUs);
+            while (true) {
+                process();
+                if (!mFreeInputs.isEmpty()) {
+                    int index = mFreeInputs.poll();
+                    mInputBuffers[index].clear();
+                    return index;
+                }
+                if (!await(deadlineNs)) {
+                    mTryAgainCount++;
+                    return INFO_TRY_AGAIN_LATER;
+                }
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        synchronized (mLock) {
+            checkStarted();
+            return mInputBuffers[index];
+        }
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        synchronized (mLock) {
+            checkStarted();
+            if (mInputEnded) {
+                throw new IllegalStateException("input already ended");
+            }
+            byte[] data = new byte[size];
+            ByteBuffer view = mInputBuffers[index].duplicate();
+            view.limit(offset + size).position(offset);
+            view.get(data);
+            if ((flags & BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mInputEnded = true;
+            }
+            if (size > 0 || (flags & BUFFER_FLAG_END_OF_STREAM) == 0) {
+                countFrame();
+            }
+            mPending.add(new Frame(index, data, presentationTimeUs, flags, readyAt()));
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Feeds one frame through the "surface" input, what eglSwapBuffers does for a real encoder.
+     */
+    public void renderFrame(long presentationTimeUs) {
+        synchronized (mLock) {
+            checkStarted();
+            if (mInputEnded) {
+                throw new IllegalStateException("input already ended");
+            }
+            int frame = countFrame();
+            byte[] data = new byte[mFrameSize];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) (presentationTimeUs + i);
+            }
+            int flags = (frame - 1) % mKeyFrameInterval == 0 ? BUFFER_FLAG_KEY_FRAME : 0;
+            mPending.add(new Frame(-1, data, presentationTimeUs, flags, readyAt()));
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        synchronized (mLock) {
+            checkStarted();
+            mInputEnded = true;
+            mPending.add(new Frame(-1, new byte[0], 0, BUFFER_FLAG_END_OF_STREAM, readyAt()));
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+        synchronized (mLock) {
+            checkStarted();
+            long deadlineNs = deadline(timeoutUs);
+            while (true) {
+                process();
+                if (!mReadyOutputs.isEmpty()) {
+                    if (!mFormatReported) {
+                        mFormatReported = true;
+                        return INFO_OUTPUT_FORMAT_CHANGED;
+                    }
+                    int index = mReadyOutputs.poll();
+                    Frame frame = mOutputFrames[index];
+                    info.set(0, frame.data.length, frame.presentationTimeUs, frame.flags);
+                    mOutputFrameCount++;
+                    return index;
+                }
+                if (!await(deadlineNs)) {
+                    mTryAgainCount++;
+                    return INFO_TRY_AGAIN_LATER;
+                }
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        synchronized (mLock) {
+            checkStarted();
+            ByteBuffer buffer = mOutputBuffers[index];
+            buffer.limit(mOutputFrames[index].data.length).position(0);
+            return buffer;
+        }
+    }
+
+    @Override
+    public TrackFormat getOutputFormat() {
+        return mOutputFormat;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        FakeFrameCodec target;
+        long presentationTimeUs;
+        synchronized (mLock) {
+            checkStarted();
+            Frame frame = mOutputFrames[index];
+            if (frame == null) {
+                throw new IllegalStateException("output buffer " + index + " is not dequeued");
+            }
+            mOutputFrames[index] = null;
+            mFreeOutputs.add(index);
+            mLock.notifyAll();
+            render &= frame.data.length > 0;
+            if (render) {
+                mRenderedFrames++;
+            }
+            target = render ? mRenderTarget : null;
+            presentationTimeUs = frame.presentationTimeUs;
+        }
+        // outside of our lock, the target takes its own
+        if (target != null) {
+            target.renderFrame(presentationTimeUs);
+        }
+    }
+
+    @Override
+    public void flush() {
+        synchronized (mLock) {
+            checkStarted();
+            mPending.clear();
+            mReadyOutputs.clear();
+            mFreeInputs.clear();
+            mFreeOutputs.clear();
+            for (int i = 0; i < mInputBufferCount; i++) {
+                mFreeInputs.add(i);
+            }
+            for (int i = 0; i < mOutputBufferCount; i++) {
+                mOutputFrames[i] = null;
+                mFreeOutputs.add(i);
+            }
+            mInputEnded = false;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void stop() {
+        synchronized (mLock) {
+            mStarted = false;
+            mPending.clear();
+            mReadyOutputs.clear();
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void release() {
+        synchronized (mLock) {
+            stop();
+            mReleased = true;
+            mInputBuffers = null;
+            mOutputBuffers = null;
+            mOutputFrames = null;
+        }
+    }
+
+    /**
+     * @return number of frames queued or rendered into this codec
+     */
+    public int getQueuedFrameCount() {
+        synchronized (mLock) {
+            return mQueuedFrames;
+        }
+    }
+
+    /**
+     * @return number of output buffers handed out, end of stream included
+     */
+    public int getOutputFrameCount() {
+        synchronized (mLock) {
+            return mOutputFrameCount;
+        }
+    }
+
+    public int getRenderedFrameCount() {
+        synchronized (mLock) {
+            return mRenderedFrames;
+        }
+    }
+
+    /**
+     * @return how often a dequeue call came back empty, i.e. the number of polling iterations a
+     * loop spent waiting
+     */
+    public long getTryAgainCount() {
+        synchronized (mLock) {
+            return mTryAgainCount;
+        }
+    }
+
+    /**
+     * Moves frames whose latency has elapsed into free output buffers, in queue order.
+     */
+    private void process() {
+        long now = System.nanoTime();
+        while (!mPending.isEmpty() && !mFreeOutputs.isEmpty()) {
+            Frame frame = mPending.peek();
+            if (frame.readyAtNs - now > 0) {
+                break;
+            }
+            mPending.poll();
+            if (frame.inputIndex >= 0) {
+                mFreeInputs.add(frame.inputIndex);
+            }
+            if ((frame.flags & BUFFER_FLAG_END_OF_STREAM) != 0 && frame.data.length == 0 && mDropEndOfStream) {
+                continue;
+            }
+            int index = mFreeOutputs.poll();
+            ByteBuffer buffer = mOutputBuffers[index];
+            if (frame.data.length > buffer.capacity()) {
+                throw new IllegalStateException("frame of " + frame.data.length + " bytes does not fit in "
+                        + buffer.capacity() + " byte output buffer");
+            }
+            buffer.clear();
+            buffer.put(frame.data);
+            mOutputFrames[index] = frame;
+            mReadyOutputs.add(index);
+        }
+    }
+
+    /**
+     * Waits for a state change or the next pending frame.
+     *
+     * @return false once the deadline has passed
+     */
+    private boolean await(long deadlineNs) {
+        long now = System.nanoTime();
+        if (deadlineNs != Long.MAX_VALUE && deadlineNs - now <= 0) {
+            return false;
+        }
+        long waitNs = deadlineNs == Long.MAX_VALUE ? Long.MAX_VALUE : deadlineNs - now;
+        if (!mPending.isEmpty() && !mFreeOutputs.isEmpty()) {
+            waitNs = Math.min(waitNs, Math.max(mPending.peek().readyAtNs - now, 0));
+        }
+        try {
+            if (waitNs == Long.MAX_VALUE) {
+                mLock.wait();
+            } else if (waitNs > 0) {
+                mLock.wait(waitNs / 1000000L, (int) (waitNs % 1000000L));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (!mStarted) {
+            throw new IllegalStateException("codec stopped while waiting");
+        }
+        return true;
+    }
+
+    private int countFrame() {
+        if (mFailAfterFrames >= 0 && mQueuedFrames >= mFailAfterFrames) {
+            throw new IllegalStateException("injected failure after " + mFailAfterFrames + " frames");
+        }
+        return ++mQueuedFrames;
+    }
+
+    private long readyAt() {
+        return System.nanoTime() + mLatencyUs * 1000L;
+    }
+
+    private static long deadline(long timeoutUs) {
+        return timeoutUs < 0 ? Long.MAX_VALUE : System.nanoTime() + timeoutUs * 1000L;
+    }
+
+    private void checkStarted() {
+        checkNotReleased();
+        if (!mStarted) {
+            throw new IllegalStateException("codec is not started");
+        }
+    }
+
+    private void checkNotReleased() {
+        if (mReleased) {
+            throw new IllegalStateException("codec is released");
+        }
+    }
+
+    private static final class Frame {
+        final int inputIndex;
+        final byte[] data;
+        final long presentationTimeUs;
+        final int flags;
+        final long readyAtNs;
+
+        Frame(int inputIndex, byte[] data, long presentationTimeUs, int flags, long readyAtNs) {
+            this.inputIndex = inputIndex;
+            this.data = data;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+            this.readyAtNs = readyAtNs;
+        }
+    }
+}
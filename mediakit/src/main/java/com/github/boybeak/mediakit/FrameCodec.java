@@ -0,0 +1,79 @@
+package com.github.boybeak.mediakit;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The synchronous buffer contract of android.media.MediaCodec, the part the decode / encode loops
+ * actually use. Return codes and flags have the MediaCodec values, so a loop written against
+ * MediaCodec keeps its shape, and it can be driven by {@link FakeFrameCodec} on a plain JVM.
+ */
+public interface FrameCodec {
+
+    int INFO_TRY_AGAIN_LATER = -1;
+    int INFO_OUTPUT_FORMAT_CHANGED = -2;
+    int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+
+    int BUFFER_FLAG_KEY_FRAME = 1;
+    int BUFFER_FLAG_CODEC_CONFIG = 2;
+    int BUFFER_FLAG_END_OF_STREAM = 4;
+
+    void start();
+
+    /**
+     * @param timeoutUs 0 returns immediately, negative waits forever
+     * @return an input buffer index or {@link #INFO_TRY_AGAIN_LATER}
+     */
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    /**
+     * Ends the input of an encoder fed through a surface.
+     */
+    void signalEndOfInputStream();
+
+    /**
+     * @return an output buffer index, {@link #INFO_TRY_AGAIN_LATER}, {@link #INFO_OUTPUT_FORMAT_CHANGED}
+     * or {@link #INFO_OUTPUT_BUFFERS_CHANGED}
+     */
+    int dequeueOutputBuffer(BufferInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    TrackFormat getOutputFormat();
+
+    /**
+     * @param render whether a decoder renders the buffer to its output surface
+     */
+    void releaseOutputBuffer(int index, boolean render);
+
+    /**
+     * Drops every queued input and pending output and clears end of stream, the codec stays
+     * started. Indices handed out before are no longer valid. Lets one codec decode from a new
+     * position after a seek instead of being recreated.
+     */
+    void flush();
+
+    void stop();
+
+    void release();
+
+    /**
+     * Plain-java MediaCodec.BufferInfo.
+     */
+    final class BufferInfo {
+        public int offset;
+        public int size;
+        public long presentationTimeUs;
+        public int flags;
+
+        public void set(int offset, int size, long presentationTimeUs, int flags) {
+            this.offset = offset;
+            this.size = size;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.github.boybeak.mediakit;
+
+import java.io.IOException;
+
+/**
+ * Where encoded samples end up. Follows the life cycle of android.media.MediaMuxer:
+ * addTrack... start, writeSampleData..., stop, release.
+ */
+public interface MuxerBackend extends SampleSink {
+
+    /**
+     * Same values as MediaCodec.BUFFER_FLAG_*, so BufferInfo.flags can be passed as is.
+     */
+    int FLAG_KEY_FRAME = 1;
+    int FLAG_CODEC_CONFIG = 2;
+    int FLAG_END_OF_STREAM = 4;
+
+    /**
+     * @return the index to pass to {@link #writeSampleData}
+     */
+    int addTrack(TrackFormat format);
+
+    /**
+     * Clockwise rotation for the video track(s), 0, 90, 180 or 270. Must be called before start.
+     */
+    void setOrientationHint(int degrees);
+
+    void start() throws IOException;
+
+    void stop() throws IOException;
+
+    /**
+     * Frees the backend, stopping it first if it is still started.
+     */
+    void release();
+
+    interface Factory {
+        MuxerBackend create(String outputPath) throws IOException;
+    }
+}
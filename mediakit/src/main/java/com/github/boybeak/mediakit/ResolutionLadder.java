@@ -0,0 +1,79 @@
+package com.github.boybeak.mediakit;
+
+/**
+ * Picks an output size a bitrate can actually carry. Bits per pixel per frame (bpp) is the bitrate
+ * divided by width * height * frame rate; below a floor the encoder smears detail and blocks no
+ * matter how many pixels it is given, while a smaller size at the same bitrate encodes faster and
+ * looks better once scaled up. Starting from the requested size, the size steps down a ladder of
+ * common short sides, keeping the aspect ratio, until the bpp reaches the floor.
+ */
+public final class ResolutionLadder {
+
+    public static final float DEFAULT_MIN_BITS_PER_PIXEL = 0.04f;
+    /**
+     * Short sides of the rungs, largest first.
+     */
+    public static final int[] DEFAULT_SHORT_SIDES = {2160, 1440, 1080, 720, 540, 480, 360, 240, 144};
+
+    private ResolutionLadder() {
+    }
+
+    /**
+     * Encoder limits beyond alignment, e.g. the supported width and height ranges.
+     */
+    public interface SizeFilter {
+        boolean isSupported(int width, int height);
+    }
+
+    public static float bitsPerPixel(int bitrate, int width, int height, float frameRate) {
+        if (width <= 0 || height <= 0 || frameRate <= 0) {
+            return 0;
+        }
+        return bitrate / (width * (float) height * frameRate);
+    }
+
+    /**
+     * @param alignment both sides are rounded down to a multiple of it, at least 2
+     * @param filter    sizes it rejects are skipped, null to accept every size
+     * @return {width, height}: the requested size if its bpp reaches {@code minBitsPerPixel}, else
+     * the largest rung that does, else the smallest supported rung
+     */
+    public static int[] choose(int width, int height, int bitrate, float frameRate, float minBitsPerPixel,
+                               int alignment, SizeFilter filter) {
+        alignment = Math.max(2, alignment);
+        int[] requested = {align(width, alignment), align(height, alignment)};
+        int[] fallback = null;
+        if (filter == null || filter.isSupported(requested[0], requested[1])) {
+            if (bitsPerPixel(bitrate, requested[0], requested[1], frameRate) >= minBitsPerPixel) {
+                return requested;
+            }
+            fallback = requested;
+        }
+        int shortSide = Math.min(width, height);
+        for (int rung : DEFAULT_SHORT_SIDES) {
+            if (rung >= shortSide) {
+                continue;
+            }
+            int[] size = scale(width, height, rung, alignment);
+            if (filter != null && !filter.isSupported(size[0], size[1])) {
+                continue;
+            }
+            fallback = size;
+            if (bitsPerPixel(bitrate, size[0], size[1], frameRate) >= minBitsPerPixel) {
+                return size;
+            }
+        }
+        return fallback != null ? fallback : requested;
+    }
+
+    private static int[] scale(int width, int height, int shortSide, int alignment) {
+        if (width <= height) {
+            return new int[]{align(shortSide, alignment), align(Math.round(height * (float) shortSide / width), alignment)};
+        }
+        return new int[]{align(Math.round(width * (float) shortSide / height), alignment), align(shortSide, alignment)};
+    }
+
+    private static int align(int value, int alignment) {
+        return Math.max(alignment, value / alignment * alignment);
+    }
+}
@@ -0,0 +1,442 @@
+package com.github.boybeak.mediakit;
+
+import com.github.boybeak.mediakit.mp4.Mp4Demuxer;
+import com.github.boybeak.mediakit.mp4.SampleTable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compact, serializable per-file index: track formats plus the presentation time, size, file offset
+ * and sync flag of every sample. Built once with a single pass over a {@link SampleSource} (or
+ * straight from the sample tables of an {@link Mp4Demuxer}) and then persisted, so frame rate
+ * estimates, seek targets and progress totals become binary searches instead of file scans.
+ * <p>
+ * Samples are kept in decode order, the same order a {@link SampleSource} delivers them.
+ */
+public final class SampleIndex {
+
+    private static final int MAGIC = 0x4d4b4958; // MKIX
+    private static final int VERSION = 1;
+
+    private final Track[] mTracks;
+
+    private SampleIndex(Track[] tracks) {
+        mTracks = tracks;
+    }
+
+    public int getTrackCount() {
+        return mTracks.length;
+    }
+
+    public Track getTrack(int index) {
+        return mTracks[index];
+    }
+
+    /**
+     * @return the first audio or video track, null if there is none
+     */
+    public Track findTrack(boolean audio) {
+        for (Track track : mTracks) {
+            if (audio ? track.format.isAudio() : track.format.isVideo()) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads every sample of every track once. The selection and read position of {@code source}
+     * are left undefined.
+     */
+    public static SampleIndex build(SampleSource source) throws IOException {
+        int trackCount = source.getTrackCount();
+        if (source instanceof Mp4Demuxer) {
+            Mp4Demuxer demuxer = (Mp4Demuxer) source;
+            Track[] tracks = new Track[trackCount];
+            for (int t = 0; t < trackCount; t++) {
+                tracks[t] = fromSampleTable(demuxer, t);
+            }
+            return new SampleIndex(tracks);
+        }
+        Builder[] builders = new Builder[trackCount];
+        for (int t = 0; t < trackCount; t++) {
+            builders[t] = new Builder();
+            source.selectTrack(t);
+        }
+        source.seekTo(0, SampleSource.SEEK_TO_PREVIOUS_SYNC);
+        while (true) {
+            int t = source.getSampleTrackIndex();
+            if (t < 0) {
+                break;
+            }
+            builders[t].add(source.getSampleTime(), Math.max(source.getSampleSize(), 0), -1,
+                    (source.getSampleFlags() & SampleSource.SAMPLE_FLAG_SYNC) != 0);
+            if (!source.advance()) {
+                break;
+            }
+        }
+        Track[] tracks = new Track[trackCount];
+        for (int t = 0; t < trackCount; t++) {
+            tracks[t] = builders[t].build(source.getTrackFormat(t).copy());
+        }
+        return new SampleIndex(tracks);
+    }
+
+    private static Track fromSampleTable(Mp4Demuxer demuxer, int index) {
+        SampleTable table = demuxer.getSampleTable(index);
+        int count = table.getSampleCount();
+        long[] presentationTimes = new long[count];
+        int[] sizes = new int[count];
+        long[] offsets = new long[count];
+        for (int i = 0; i < count; i++) {
+            presentationTimes[i] = demuxer.getPresentationTimeUs(index, i);
+            sizes[i] = table.getSize(i);
+            offsets[i] = table.getOffset(i);
+        }
+        int[] syncSamples = new int[table.getSyncSampleCount()];
+        for (int n = 0; n < syncSamples.length; n++) {
+            syncSamples[n] = table.getSyncSample(n);
+        }
+        return new Track(demuxer.getTrackFormat(index).copy(), presentationTimes, sizes, offsets, syncSamples);
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(mTracks.length);
+        for (Track track : mTracks) {
+            writeFormat(out, track.format);
+            int count = track.presentationTimes.length;
+            out.writeInt(count);
+            long previousTime = 0;
+            long previousOffset = 0;
+            for (int i = 0; i < count; i++) {
+                writeVarLong(out, track.presentationTimes[i] - previousTime);
+                writeVarLong(out, track.sizes[i]);
+                writeVarLong(out, track.offsets[i] - previousOffset);
+                previousTime = track.presentationTimes[i];
+                previousOffset = track.offsets[i];
+            }
+            out.writeInt(track.syncSamples.length);
+            int previousSync = 0;
+            for (int sync : track.syncSamples) {
+                writeVarLong(out, sync - previousSync);
+                previousSync = sync;
+            }
+        }
+    }
+
+    /**
+     * @throws IOException if the data is truncated or was written by another version
+     */
+    public static SampleIndex readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("not a sample index or unsupported version");
+        }
+        Track[] tracks = new Track[in.readInt()];
+        for (int t = 0; t < tracks.length; t++) {
+            TrackFormat format = readFormat(in);
+            int count = in.readInt();
+            long[] presentationTimes = new long[count];
+            int[] sizes = new int[count];
+            long[] offsets = new long[count];
+            long time = 0;
+            long offset = 0;
+            for (int i = 0; i < count; i++) {
+                time += readVarLong(in);
+                presentationTimes[i] = time;
+                sizes[i] = (int) readVarLong(in);
+                offset += readVarLong(in);
+                offsets[i] = offset;
+            }
+            int[] syncSamples = new int[in.readInt()];
+            int sync = 0;
+            for (int n = 0; n < syncSamples.length; n++) {
+                sync += (int) readVarLong(in);
+                syncSamples[n] = sync;
+            }
+            tracks[t] = new Track(format, presentationTimes, sizes, offsets, syncSamples);
+        }
+        return new SampleIndex(tracks);
+    }
+
+    private static void writeFormat(DataOutputStream out, TrackFormat format) throws IOException {
+        out.writeUTF(format.getMime());
+        out.writeInt(format.getTrackId());
+        out.writeInt(format.getTimescale());
+        out.writeLong(format.getDurationUs());
+        out.writeInt(format.getWidth());
+        out.writeInt(format.getHeight());
+        out.writeInt(format.getRotation());
+        out.writeInt(format.getSampleRate());
+        out.writeInt(format.getChannelCount());
+        out.writeInt(format.getMaxSampleSize());
+        out.writeInt(format.getBitrate());
+        out.writeFloat(format.getFrameRate());
+        out.writeUTF(format.getLanguage() == null ? "und" : format.getLanguage());
+        for (int i = 0; ; i++) {
+            byte[] csd = format.getCsd(i);
+            if (csd == null) {
+                out.writeInt(-1);
+                break;
+            }
+            out.writeInt(csd.length);
+            out.write(csd);
+        }
+    }
+
+    private static TrackFormat readFormat(DataInputStream in) throws IOException {
+        TrackFormat format = new TrackFormat(in.readUTF());
+        format.setTrackId(in.readInt());
+        format.setTimescale(in.readInt());
+        format.setDurationUs(in.readLong());
+        format.setWidth(in.readInt());
+        format.setHeight(in.readInt());
+        format.setRotation(in.readInt());
+        format.setSampleRate(in.readInt());
+        format.setChannelCount(in.readInt());
+        format.setMaxSampleSize(in.readInt());
+        format.setBitrate(in.readInt());
+        format.setFrameRate(in.readFloat());
+        format.setLanguage(in.readUTF());
+        for (int i = 0; ; i++) {
+            int length = in.readInt();
+            if (length < 0) {
+                break;
+            }
+            byte[] csd = new byte[length];
+            in.readFully(csd);
+            format.setCsd(i, csd);
+        }
+        return format;
+    }
+
+    /**
+     * Zigzag varint, neighbouring samples differ by a few hundred bytes / microseconds so most
+     * entries take 1-3 bytes.
+     */
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7fL) != 0) {
+            out.writeByte((int) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return (v >>> 1) ^ -(v & 1);
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    private static final class Builder {
+        private long[] presentationTimes = new long[1024];
+        private int[] sizes = new int[1024];
+        private long[] offsets = new long[1024];
+        private int[] syncSamples = new int[64];
+        private int count;
+        private int syncCount;
+
+        void add(long presentationTimeUs, int size, long offset, boolean sync) {
+            if (count == sizes.length) {
+                presentationTimes = Arrays.copyOf(presentationTimes, count * 2);
+                sizes = Arrays.copyOf(sizes, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            if (sync) {
+                if (syncCount == syncSamples.length) {
+                    syncSamples = Arrays.copyOf(syncSamples, syncCount * 2);
+                }
+                syncSamples[syncCount++] = count;
+            }
+            presentationTimes[count] = presentationTimeUs;
+            sizes[count] = size;
+            offsets[count] = offset;
+            count++;
+        }
+
+        Track build(TrackFormat format) {
+            return new Track(format, Arrays.copyOf(presentationTimes, count), Arrays.copyOf(sizes, count),
+                    Arrays.copyOf(offsets, count), Arrays.copyOf(syncSamples, syncCount));
+        }
+    }
+
+    public static final class Track {
+
+        private final TrackFormat format;
+        private final long[] presentationTimes;
+        private final int[] sizes;
+        /**
+         * -1 when the index was built from a source that does not expose file offsets
+         */
+        private final long[] offsets;
+        private final int[] syncSamples;
+        private final long totalBytes;
+        /**
+         * presentation times in display order, for range queries
+         */
+        private final long[] sortedTimes;
+        /**
+         * minimum presentation time of the samples from each index on in decode order, non-decreasing
+         */
+        private final long[] suffixMinTimes;
+
+        Track(TrackFormat format, long[] presentationTimes, int[] sizes, long[] offsets, int[] syncSamples) {
+            this.format = format;
+            this.presentationTimes = presentationTimes;
+            this.sizes = sizes;
+            this.offsets = offsets;
+            this.syncSamples = syncSamples;
+            long total = 0;
+            for (int size : sizes) {
+                total += size;
+            }
+            totalBytes = total;
+            sortedTimes = presentationTimes.clone();
+            Arrays.sort(sortedTimes);
+            suffixMinTimes = new long[presentationTimes.length];
+            long min = Long.MAX_VALUE;
+            for (int i = presentationTimes.length - 1; i >= 0; i--) {
+                min = Math.min(min, presentationTimes[i]);
+                suffixMinTimes[i] = min;
+            }
+        }
+
+        public TrackFormat getFormat() {
+            return format;
+        }
+
+        public int getSampleCount() {
+            return sizes.length;
+        }
+
+        public long getPresentationTimeUs(int sample) {
+            return presentationTimes[sample];
+        }
+
+        public int getSize(int sample) {
+            return sizes[sample];
+        }
+
+        public long getOffset(int sample) {
+            return offsets[sample];
+        }
+
+        public boolean isSync(int sample) {
+            return Arrays.binarySearch(syncSamples, sample) >= 0;
+        }
+
+        public int getSyncSampleCount() {
+            return syncSamples.length;
+        }
+
+        public int getSyncSample(int n) {
+            return syncSamples[n];
+        }
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        /**
+         * @return the last presentation time, 0 for an empty track
+         */
+        public long getLastPresentationTimeUs() {
+            return sortedTimes.length == 0 ? 0 : sortedTimes[sortedTimes.length - 1];
+        }
+
+        /**
+         * Same estimate MediaExtractor based code gets by walking every sample: frame count over
+         * the last presentation time.
+         */
+        public float getAverageFrameRate() {
+            long lastUs = getLastPresentationTimeUs();
+            return lastUs <= 0 ? 0 : sizes.length / (lastUs / 1000f / 1000f);
+        }
+
+        /**
+         * @return number of samples presented in [startUs, endUs)
+         */
+        public int countSamples(long startUs, long endUs) {
+            return lowerBound(sortedTimes, endUs) - lowerBound(sortedTimes, startUs);
+        }
+
+        /**
+         * @return the last sample in decode order presented before {@code timeUs}: decoding up to
+         * and including it yields every frame shown before {@code timeUs}, together with the
+         * frames they reference. -1 if no sample is presented before it.
+         */
+        public int findLastSampleBefore(long timeUs) {
+            // every sample after the result is presented at or after timeUs, the result itself before
+            return lowerBound(suffixMinTimes, timeUs) - 1;
+        }
+
+        /**
+         * Finds the sync sample a seek lands on, same modes as {@link SampleSource#seekTo(long, int)}.
+         *
+         * @return a sample index, -1 if there is no sync sample in that direction
+         */
+        public int findSyncSample(long timeUs, int mode) {
+            int count = syncSamples.length;
+            // last sync sample presented at or before timeUs
+            int low = 0;
+            int high = count - 1;
+            int previous = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (presentationTimes[syncSamples[mid]] <= timeUs) {
+                    previous = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            switch (mode) {
+                case SampleSource.SEEK_TO_NEXT_SYNC: {
+                    if (previous >= 0 && presentationTimes[syncSamples[previous]] == timeUs) {
+                        return syncSamples[previous];
+                    }
+                    return previous + 1 < count ? syncSamples[previous + 1] : -1;
+                }
+                case SampleSource.SEEK_TO_CLOSEST_SYNC: {
+                    if (count == 0) {
+                        return -1;
+                    }
+                    if (previous < 0 || previous + 1 >= count) {
+                        return syncSamples[Math.max(previous, 0)];
+                    }
+                    long before = timeUs - presentationTimes[syncSamples[previous]];
+                    long after = presentationTimes[syncSamples[previous + 1]] - timeUs;
+                    return syncSamples[after < before ? previous + 1 : previous];
+                }
+                case SampleSource.SEEK_TO_PREVIOUS_SYNC:
+                default:
+                    return count == 0 ? -1 : syncSamples[Math.max(previous, 0)];
+            }
+        }
+
+        private static int lowerBound(long[] array, long value) {
+            int low = 0;
+            int high = array.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (array[mid] < value) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
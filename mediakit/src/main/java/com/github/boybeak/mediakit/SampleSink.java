@@ -0,0 +1,21 @@
+package com.github.boybeak.mediakit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Something encoded samples can be written to, without the track setup and life cycle of a
+ * {@link MuxerBackend}. Copy and encode loops that only ever write take one of these, so the
+ * caller can hand them a muxer whose tracks it already added and started, or anything that
+ * forwards the samples somewhere else.
+ */
+public interface SampleSink {
+
+    /**
+     * Writes {@code size} bytes of {@code data} starting at {@code offset}. The buffer's position
+     * and limit are left untouched.
+     *
+     * @param flags {@link MuxerBackend#FLAG_KEY_FRAME} and friends
+     */
+    void writeSampleData(int trackIndex, ByteBuffer data, int offset, int size, long presentationTimeUs, int flags) throws IOException;
+}
@@ -0,0 +1,69 @@
+package com.github.boybeak.mediakit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A pull style source of compressed samples. The contract mirrors android.media.MediaExtractor
+ * (same flag and seek mode values), so copy loops written against the extractor can switch to it
+ * without changing their shape.
+ */
+public interface SampleSource extends Closeable {
+
+    int SAMPLE_FLAG_SYNC = 1;
+
+    int SEEK_TO_PREVIOUS_SYNC = 0;
+    int SEEK_TO_NEXT_SYNC = 1;
+    int SEEK_TO_CLOSEST_SYNC = 2;
+
+    int getTrackCount();
+
+    TrackFormat getTrackFormat(int index);
+
+    void selectTrack(int index);
+
+    void unselectTrack(int index);
+
+    void seekTo(long timeUs, int mode);
+
+    /**
+     * @return false if there are no more samples on the selected tracks
+     */
+    boolean advance();
+
+    /**
+     * @return the track index of the current sample, -1 at the end of stream
+     */
+    int getSampleTrackIndex();
+
+    /**
+     * @return presentation time of the current sample in microseconds, -1 at the end of stream
+     */
+    long getSampleTime();
+
+    int getSampleFlags();
+
+    /**
+     * @return size of the current sample in bytes, -1 at the end of stream
+     */
+    int getSampleSize();
+
+    /**
+     * Copies the current sample into {@code buffer} starting at {@code offset}.
+     * On return the buffer's position is {@code offset} and its limit is {@code offset + size}.
+     *
+     * @return the sample size, -1 at the end of stream
+     */
+    int readSampleData(ByteBuffer buffer, int offset) throws IOException;
+
+    /**
+     * Returns the current sample without copying when the implementation can, position 0 and limit
+     * the sample size. The buffer is only valid until the next call on this source.
+     *
+     * @return null at the end of stream
+     */
+    ByteBuffer getSampleData() throws IOException;
+
+    void release();
+}
@@ -0,0 +1,200 @@
+package com.github.boybeak.mediakit;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records which segments of a segmented job are finished, so a job killed halfway resumes at the
+ * first unfinished one instead of starting over.
+ * <p>
+ * A small text file: a header, the fingerprint of the job and one line per finished segment.
+ * Every line is synced to disk before {@link #append} returns. A line torn by a crash is dropped
+ * when the journal is opened again, and a journal written for different input or parameters
+ * (another fingerprint) is started over.
+ */
+public final class SegmentJournal {
+
+    private static final String HEADER = "mkjournal 1";
+    private static final String FINGERPRINT = "fingerprint ";
+    private static final String SEGMENT = "segment ";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private final String mFingerprint;
+    private final Map<Integer, Entry> mEntries = new TreeMap<>();
+
+    public static final class Entry {
+
+        private final int index;
+        private final long firstFrameUs;
+        private final long bytes;
+
+        Entry(int index, long firstFrameUs, long bytes) {
+            this.index = index;
+            this.firstFrameUs = firstFrameUs;
+            this.bytes = bytes;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return source presentation time of the first frame encoded into the segment
+         */
+        public long getFirstFrameUs() {
+            return firstFrameUs;
+        }
+
+        /**
+         * @return size of the segment file, a file of another size is not the one recorded
+         */
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    private SegmentJournal(File file, String fingerprint) {
+        mFile = file;
+        mFingerprint = fingerprint;
+    }
+
+    /**
+     * Reads the journal at {@code file}, or creates it. The file is rewritten without torn lines, or
+     * empty when its fingerprint differs.
+     *
+     * @param fingerprint identifies the input and every parameter that changes the encoded segments,
+     *                    single line
+     */
+    public static SegmentJournal open(File file, String fingerprint) throws IOException {
+        if (fingerprint.indexOf('\n') >= 0 || fingerprint.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("fingerprint must be a single line");
+        }
+        SegmentJournal journal = new SegmentJournal(file, fingerprint);
+        if (file.exists()) {
+            journal.read();
+        }
+        journal.rewrite();
+        return journal;
+    }
+
+    private void read() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), UTF_8))) {
+            if (!HEADER.equals(reader.readLine()) || !(FINGERPRINT + mFingerprint).equals(reader.readLine())) {
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Entry entry = parse(line);
+                if (entry != null) {
+                    mEntries.put(entry.index, entry);
+                }
+            }
+        }
+    }
+
+    private static Entry parse(String line) {
+        if (!line.startsWith(SEGMENT)) {
+            return null;
+        }
+        String[] fields = line.substring(SEGMENT.length()).split(" ");
+        // a torn last line is short, or cut inside a number; the trailing "." tells the two apart
+        if (fields.length != 4 || !".".equals(fields[3])) {
+            return null;
+        }
+        try {
+            return new Entry(Integer.parseInt(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void rewrite() throws IOException {
+        File temp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            Writer writer = new OutputStreamWriter(out, UTF_8);
+            writer.write(HEADER + "\n" + FINGERPRINT + mFingerprint + "\n");
+            for (Entry entry : mEntries.values()) {
+                writer.write(format(entry));
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(mFile)) {
+            // renameTo does not replace an existing file on every platform
+            if (!mFile.delete() || !temp.renameTo(mFile)) {
+                throw new IOException("can not replace " + mFile);
+            }
+        }
+    }
+
+    private static String format(Entry entry) {
+        return SEGMENT + entry.index + " " + entry.firstFrameUs + " " + entry.bytes + " .\n";
+    }
+
+    /**
+     * @return the finished segment with that index, null if it is not finished
+     */
+    public synchronized Entry get(int index) {
+        return mEntries.get(index);
+    }
+
+    /**
+     * @return the finished segment with that index if {@code file} is still the one recorded, null
+     * when the segment has to be encoded (again): it is not finished, or its file is missing or was
+     * cut short. A segment recorded without frames has no file to check.
+     */
+    public synchronized Entry getIntact(int index, File file) {
+        Entry entry = mEntries.get(index);
+        if (entry == null || (entry.firstFrameUs >= 0 && file.length() != entry.bytes)) {
+            return null;
+        }
+        return entry;
+    }
+
+    public synchronized int getFinishedCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * Marks a segment finished. Safe to call from the threads encoding different segments.
+     */
+    public synchronized void append(int index, long firstFrameUs, long bytes) throws IOException {
+        Entry entry = new Entry(index, firstFrameUs, bytes);
+        try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+            out.write(format(entry).getBytes(UTF_8));
+            out.getFD().sync();
+        }
+        mEntries.put(index, entry);
+    }
+
+    /**
+     * Drops a finished segment, e.g. one whose file went missing. Takes effect for this instance and
+     * the next {@link #open}.
+     */
+    public synchronized void remove(int index) throws IOException {
+        if (mEntries.remove(index) != null) {
+            rewrite();
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public synchronized void delete() {
+        mEntries.clear();
+        if (mFile.exists() && !mFile.delete()) {
+            mFile.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.github.boybeak.mediakit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits a video track into segments that start on sync samples, so every segment can be decoded
+ * on its own: a decoder seeked to {@link Segment#getStartUs()} needs nothing from the segment before.
+ * <p>
+ * The first segment starts at the requested start, which may lie inside a GOP; the decoder seeks
+ * to the sync sample before it and drops the frames in front, like an unsegmented trim does.
+ */
+public final class SegmentPlan {
+
+    private SegmentPlan() {
+    }
+
+    public static final class Segment {
+
+        private final int index;
+        private final long startUs;
+        private final long endUs;
+        private final boolean copy;
+
+        public Segment(int index, long startUs, long endUs) {
+            this(index, startUs, endUs, false);
+        }
+
+        public Segment(int index, long startUs, long endUs, boolean copy) {
+            this.index = index;
+            this.startUs = startUs;
+            this.endUs = endUs;
+            this.copy = copy;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return presentation time of the first frame of the segment, a sync sample except for
+         * the first segment
+         */
+        public long getStartUs() {
+            return startUs;
+        }
+
+        /**
+         * @return presentation time of the first frame after the segment, exclusive, -1 for a last
+         * segment that runs to the end of the track
+         */
+        public long getEndUs() {
+            return endUs;
+        }
+
+        public boolean isLast() {
+            return endUs < 0;
+        }
+
+        /**
+         * @return true when the compressed samples of the segment are copied instead of re-encoded,
+         * see {@link #splitForTrim}
+         */
+        public boolean isCopy() {
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return "Segment{" + index + ", [" + startUs + ", " + (endUs < 0 ? "end" : String.valueOf(endUs)) + ")"
+                    + (copy ? ", copy" : "") + "}";
+        }
+    }
+
+    /**
+     * Cuts at the first sync sample at least {@code targetDurationUs} after the previous cut.
+     *
+     * @param endUs end of the range, exclusive, -1 for the end of the track
+     */
+    public static List<Segment> split(SampleIndex.Track video, long startUs, long endUs, long targetDurationUs) {
+        if (targetDurationUs <= 0) {
+            throw new IllegalArgumentException("targetDurationUs must be > 0: " + targetDurationUs);
+        }
+        long[] syncTimes = syncTimes(video, startUs, endUs);
+        List<Long> cuts = new ArrayList<>();
+        long last = startUs;
+        for (long time : syncTimes) {
+            if (time - last >= targetDurationUs) {
+                cuts.add(time);
+                last = time;
+            }
+        }
+        return toSegments(startUs, endUs, cuts);
+    }
+
+    /**
+     * Cuts at the sync samples closest to {@code count} equal parts. Returns fewer segments when the
+     * range has fewer sync samples than that.
+     *
+     * @param endUs end of the range, exclusive, -1 for the end of the track
+     */
+    public static List<Segment> splitInto(SampleIndex.Track video, long startUs, long endUs, int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be >= 1: " + count);
+        }
+        long[] syncTimes = syncTimes(video, startUs, endUs);
+        long rangeEndUs = endUs < 0 ? video.getLastPresentationTimeUs() : endUs;
+        List<Long> cuts = new ArrayList<>();
+        long last = startUs;
+        for (int k = 1; k < count; k++) {
+            long target = startUs + (rangeEndUs - startUs) * k / count;
+            int i = Arrays.binarySearch(syncTimes, target);
+            if (i < 0) {
+                int insertion = -i - 1;
+                // nearest of the neighbours around the insertion point
+                if (insertion == syncTimes.length
+                        || (insertion > 0 && target - syncTimes[insertion - 1] <= syncTimes[insertion] - target)) {
+                    i = insertion - 1;
+                } else {
+                    i = insertion;
+                }
+            }
+            if (i < 0) {
+                continue;
+            }
+            long time = syncTimes[i];
+            if (time > last) {
+                cuts.add(time);
+                last = time;
+            }
+        }
+        return toSegments(startUs, endUs, cuts);
+    }
+
+    /**
+     * Plans a smart trim. Only the frames from {@code startUs} to the first sync sample at or after
+     * it, and from the last sync sample at or before {@code endUs} to {@code endUs}, have to be
+     * re-encoded. The whole GOPs in between are a {@link Segment#isCopy() copy} segment, taken over as
+     * compressed samples.
+     *
+     * @param endUs end of the range, exclusive, -1 for the end of the track, which leaves no tail to
+     *              re-encode
+     * @return a single re-encoded segment when no sync sample lies inside the range
+     */
+    public static List<Segment> splitForTrim(SampleIndex.Track video, long startUs, long endUs) {
+        int first = video.findSyncSample(startUs, SampleSource.SEEK_TO_NEXT_SYNC);
+        long copyStartUs = first < 0 ? -1 : video.getPresentationTimeUs(first);
+        long copyEndUs = endUs;
+        if (endUs >= 0) {
+            int last = video.findSyncSample(endUs, SampleSource.SEEK_TO_PREVIOUS_SYNC);
+            copyEndUs = last < 0 ? -1 : video.getPresentationTimeUs(last);
+        }
+        if (copyStartUs < 0 || (endUs >= 0 && (copyStartUs >= endUs || copyEndUs <= copyStartUs))) {
+            return Collections.singletonList(new Segment(0, startUs, endUs));
+        }
+        List<Segment> segments = new ArrayList<>(3);
+        if (copyStartUs > startUs) {
+            segments.add(new Segment(segments.size(), startUs, copyStartUs));
+        }
+        segments.add(new Segment(segments.size(), copyStartUs, copyEndUs, true));
+        if (endUs >= 0 && copyEndUs < endUs) {
+            segments.add(new Segment(segments.size(), copyEndUs, endUs));
+        }
+        return Collections.unmodifiableList(segments);
+    }
+
+    /**
+     * @return sorted presentation times of the sync samples strictly inside (startUs, endUs)
+     */
+    private static long[] syncTimes(SampleIndex.Track video, long startUs, long endUs) {
+        long[] times = new long[video.getSyncSampleCount()];
+        int count = 0;
+        for (int n = 0; n < times.length; n++) {
+            long time = video.getPresentationTimeUs(video.getSyncSample(n));
+            if (time > startUs && (endUs < 0 || time < endUs)) {
+                times[count++] = time;
+            }
+        }
+        times = Arrays.copyOf(times, count);
+        Arrays.sort(times);
+        return times;
+    }
+
+    private static List<Segment> toSegments(long startUs, long endUs, List<Long> cuts) {
+        List<Segment> segments = new ArrayList<>(cuts.size() + 1);
+        long start = startUs;
+        for (long cut : cuts) {
+            segments.add(new Segment(segments.size(), start, cut));
+            start = cut;
+        }
+        segments.add(new Segment(segments.size(), start, endUs));
+        return Collections.unmodifiableList(segments);
+    }
+}
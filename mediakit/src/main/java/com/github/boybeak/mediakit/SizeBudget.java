@@ -0,0 +1,102 @@
+package com.github.boybeak.mediakit;
+
+/**
+ * Steers a video encoder towards a byte budget for the whole output. The initial bitrate splits
+ * the budget evenly over the duration; after every GOP the bytes actually written are compared with
+ * the budget and the bitrate for the rest of the output is recomputed from what is left, so an
+ * encoder that overshoots on a complex scene spends less afterwards and vice versa.
+ * <p>
+ * Changes are limited to a factor of {@link #MAX_STEP} per GOP and to a band around the initial
+ * bitrate, encoders react to a new bitrate with a delay and a hard swing would make them oscillate.
+ */
+public final class SizeBudget {
+
+    /**
+     * Share of the target size kept for the container: sample tables and box headers.
+     */
+    static final float CONTAINER_OVERHEAD = 0.02f;
+    private static final float MAX_STEP = 1.5f;
+    private static final int MIN_BAND_DIVISOR = 4;
+    private static final int MAX_BAND_FACTOR = 2;
+    /**
+     * Changes smaller than this are not worth a setParameters call.
+     */
+    private static final float MIN_CHANGE = 0.05f;
+
+    private final long mVideoBytes;
+    private final long mDurationUs;
+    private final int mMinBitrate;
+    private final int mMaxBitrate;
+    private long mWrittenBytes;
+    private int mBitrate;
+
+    /**
+     * @param videoBytes     bytes the video samples may take, see {@link #videoBytes}
+     * @param durationUs     output duration
+     * @param initialBitrate the bitrate the encoder was configured with
+     * @param maxBitrate     upper limit of the encoder, {@link Integer#MAX_VALUE} if unknown
+     */
+    public SizeBudget(long videoBytes, long durationUs, int initialBitrate, int maxBitrate) {
+        mVideoBytes = videoBytes;
+        mDurationUs = durationUs;
+        mBitrate = initialBitrate;
+        mMinBitrate = Math.max(1, initialBitrate / MIN_BAND_DIVISOR);
+        mMaxBitrate = (int) Math.min(maxBitrate, (long) initialBitrate * MAX_BAND_FACTOR);
+    }
+
+    /**
+     * @return bytes left for the video samples once the audio and the container are paid for,
+     * 0 if nothing is left
+     */
+    public static long videoBytes(long targetBytes, long durationUs, int audioBitrate) {
+        long audioBytes = (long) audioBitrate * durationUs / 8 / 1000000;
+        return Math.max(0, (long) (targetBytes * (1 - CONTAINER_OVERHEAD)) - audioBytes);
+    }
+
+    /**
+     * @return the bitrate that spends {@code videoBytes} evenly over {@code durationUs}
+     */
+    public static int bitrateFor(long videoBytes, long durationUs) {
+        if (durationUs <= 0) {
+            return 0;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, videoBytes * 8 * 1000000 / durationUs);
+    }
+
+    /**
+     * Counts an encoded sample, codec config buffers included since they end up in the file too.
+     */
+    public void addBytes(int size) {
+        mWrittenBytes += size;
+    }
+
+    /**
+     * Called at every sync sample the encoder outputs.
+     *
+     * @param presentationTimeUs output time of the sync sample, measured from the start of the output
+     * @return the bitrate the encoder should switch to, -1 to keep the current one
+     */
+    public int onSyncSample(long presentationTimeUs) {
+        long remainingUs = mDurationUs - presentationTimeUs;
+        if (presentationTimeUs <= 0 || remainingUs <= 0) {
+            return -1;
+        }
+        int wanted = bitrateFor(Math.max(0, mVideoBytes - mWrittenBytes), remainingUs);
+        int bitrate = Math.max(wanted, (int) (mBitrate / MAX_STEP));
+        bitrate = (int) Math.min(bitrate, (long) (mBitrate * MAX_STEP));
+        bitrate = Math.max(mMinBitrate, Math.min(mMaxBitrate, bitrate));
+        if (Math.abs(bitrate - mBitrate) < mBitrate * MIN_CHANGE) {
+            return -1;
+        }
+        mBitrate = bitrate;
+        return bitrate;
+    }
+
+    public long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+    public int getBitrate() {
+        return mBitrate;
+    }
+}
@@ -0,0 +1,241 @@
+package com.github.boybeak.mediakit;
+
+/**
+ * Plain-java counterpart of android.media.MediaFormat for a single track.
+ * Only the keys the demuxer / muxer actually need are kept.
+ */
+public class TrackFormat {
+
+    public static final String MIMETYPE_VIDEO_AVC = "video/avc";
+    public static final String MIMETYPE_VIDEO_HEVC = "video/hevc";
+    public static final String MIMETYPE_VIDEO_MPEG4 = "video/mp4v-es";
+    public static final String MIMETYPE_VIDEO_H263 = "video/3gpp";
+    public static final String MIMETYPE_AUDIO_AAC = "audio/mp4a-latm";
+    public static final String MIMETYPE_AUDIO_OPUS = "audio/opus";
+    public static final String MIMETYPE_AUDIO_AMR_NB = "audio/3gpp";
+    public static final String MIMETYPE_AUDIO_AMR_WB = "audio/amr-wb";
+
+    private static final int MAX_CSD_COUNT = 3;
+
+    private String mime;
+    private int trackId;
+    private int timescale;
+    private long durationUs;
+    private int width;
+    private int height;
+    private int rotation;
+    private int sampleRate;
+    private int channelCount;
+    private int maxSampleSize;
+    private int bitrate;
+    private float frameRate;
+    private String language = "und";
+    private boolean inBandParameterSets;
+    private final byte[][] csd = new byte[MAX_CSD_COUNT][];
+
+    public TrackFormat(String mime) {
+        this.mime = mime;
+    }
+
+    public static TrackFormat createVideoFormat(String mime, int width, int height) {
+        TrackFormat format = new TrackFormat(mime);
+        format.width = width;
+        format.height = height;
+        return format;
+    }
+
+    public static TrackFormat createAudioFormat(String mime, int sampleRate, int channelCount) {
+        TrackFormat format = new TrackFormat(mime);
+        format.sampleRate = sampleRate;
+        format.channelCount = channelCount;
+        return format;
+    }
+
+    public boolean isVideo() {
+        return mime != null && mime.startsWith("video/");
+    }
+
+    public boolean isAudio() {
+        return mime != null && mime.startsWith("audio/");
+    }
+
+    public String getMime() {
+        return mime;
+    }
+
+    public void setMime(String mime) {
+        this.mime = mime;
+    }
+
+    public int getTrackId() {
+        return trackId;
+    }
+
+    public void setTrackId(int trackId) {
+        this.trackId = trackId;
+    }
+
+    /**
+     * Media timescale of the track in ticks per second, 0 if unknown.
+     */
+    public int getTimescale() {
+        return timescale;
+    }
+
+    public void setTimescale(int timescale) {
+        this.timescale = timescale;
+    }
+
+    public long getDurationUs() {
+        return durationUs;
+    }
+
+    public void setDurationUs(long durationUs) {
+        this.durationUs = durationUs;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public void setWidth(int width) {
+        this.width = width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void setHeight(int height) {
+        this.height = height;
+    }
+
+    /**
+     * Clockwise rotation in degrees, one of 0, 90, 180, 270.
+     */
+    public int getRotation() {
+        return rotation;
+    }
+
+    public void setRotation(int rotation) {
+        this.rotation = rotation;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    public void setChannelCount(int channelCount) {
+        this.channelCount = channelCount;
+    }
+
+    public int getMaxSampleSize() {
+        return maxSampleSize;
+    }
+
+    public void setMaxSampleSize(int maxSampleSize) {
+        this.maxSampleSize = maxSampleSize;
+    }
+
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    public void setBitrate(int bitrate) {
+        this.bitrate = bitrate;
+    }
+
+    public float getFrameRate() {
+        return frameRate;
+    }
+
+    public void setFrameRate(float frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    public String getLanguage() {
+        return language;
+    }
+
+    public void setLanguage(String language) {
+        this.language = language;
+    }
+
+    /**
+     * Whether samples may carry parameter sets (SPS/PPS, VPS) that replace the ones in the csd
+     * mid-stream. An mp4 muxer then writes an avc3/hev1 sample entry instead of avc1/hvc1, which
+     * tells players to take the in-band ones; android.media.MediaMuxer can only write avc1/hvc1.
+     */
+    public boolean isInBandParameterSets() {
+        return inBandParameterSets;
+    }
+
+    public void setInBandParameterSets(boolean inBandParameterSets) {
+        this.inBandParameterSets = inBandParameterSets;
+    }
+
+    /**
+     * Codec specific data, same layout MediaExtractor uses for "csd-0", "csd-1"...
+     * For AVC csd-0/csd-1 are SPS/PPS with Annex-B start codes, for AAC csd-0 is the AudioSpecificConfig.
+     */
+    public byte[] getCsd(int index) {
+        return index >= 0 && index < MAX_CSD_COUNT ? csd[index] : null;
+    }
+
+    public void setCsd(int index, byte[] data) {
+        if (index < 0 || index >= MAX_CSD_COUNT) {
+            throw new IllegalArgumentException("csd index must be in [0, " + MAX_CSD_COUNT + ")");
+        }
+        csd[index] = data;
+    }
+
+    public TrackFormat copy() {
+        TrackFormat format = new TrackFormat(mime);
+        format.trackId = trackId;
+        format.timescale = timescale;
+        format.durationUs = durationUs;
+        format.width = width;
+        format.height = height;
+        format.rotation = rotation;
+        format.sampleRate = sampleRate;
+        format.channelCount = channelCount;
+        format.maxSampleSize = maxSampleSize;
+        format.bitrate = bitrate;
+        format.frameRate = frameRate;
+        format.language = language;
+        format.inBandParameterSets = inBandParameterSets;
+        for (int i = 0; i < MAX_CSD_COUNT; i++) {
+            format.csd[i] = csd[i] == null ? null : csd[i].clone();
+        }
+        return format;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("TrackFormat{mime=").append(mime)
+                .append(", durationUs=").append(durationUs);
+        if (isVideo()) {
+            sb.append(", size=").append(width).append('x').append(height)
+                    .append(", rotation=").append(rotation)
+                    .append(", frameRate=").append(frameRate);
+        } else if (isAudio()) {
+            sb.append(", sampleRate=").append(sampleRate)
+                    .append(", channelCount=").append(channelCount);
+        }
+        sb.append(", bitrate=").append(bitrate);
+        for (int i = 0; i < MAX_CSD_COUNT; i++) {
+            if (csd[i] != null) {
+                sb.append(", csd-").append(i).append('=').append(csd[i].length).append(" bytes");
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,83 @@
+package com.github.boybeak.mediakit.aac;
+
+/**
+ * Builds the AudioSpecificConfig (csd-0 of an AAC track) for the plain, non SBR/PS profiles.
+ * {@link AudioSpecificConfig} parses any of them.
+ */
+public final class AacConfig {
+
+    public static final int PROFILE_LC = 2;
+    /**
+     * HE-AAC, LC with spectral band replication
+     */
+    public static final int PROFILE_SBR = 5;
+    /**
+     * HE-AAC v2, SBR with parametric stereo
+     */
+    public static final int PROFILE_PS = 29;
+
+    private static final int[] SAMPLING_FREQUENCIES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+    private static final int DEFAULT_FREQUENCY_INDEX = 4;
+
+    private AacConfig() {
+    }
+
+    /**
+     * @return the samplingFrequencyIndex of {@code sampleRate}, -1 if it is not one of the 13 standard rates
+     */
+    public static int samplingFrequencyIndex(int sampleRate) {
+        for (int i = 0; i < SAMPLING_FREQUENCIES.length; i++) {
+            if (SAMPLING_FREQUENCIES[i] == sampleRate) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the rate of a samplingFrequencyIndex, 0 for the reserved and escape values
+     */
+    public static int sampleRate(int samplingFrequencyIndex) {
+        return samplingFrequencyIndex >= 0 && samplingFrequencyIndex < SAMPLING_FREQUENCIES.length
+                ? SAMPLING_FREQUENCIES[samplingFrequencyIndex] : 0;
+    }
+
+    /**
+     * @return the audioObjectType an AudioSpecificConfig starts with, -1 if {@code csd} is too short.
+     * Explicitly signalled HE-AAC reports {@link #PROFILE_SBR} or {@link #PROFILE_PS}, implicit SBR
+     * can not be told from plain LC without decoding
+     */
+    public static int audioObjectType(byte[] csd) {
+        if (csd == null || csd.length < 1) {
+            return -1;
+        }
+        int type = (csd[0] & 0xff) >> 3;
+        if (type == 31) {
+            // escape: 6 more bits
+            if (csd.length < 2) {
+                return -1;
+            }
+            type = 32 + (((csd[0] & 0x07) << 3) | ((csd[1] & 0xff) >> 5));
+        }
+        return type;
+    }
+
+    /**
+     * Two byte AudioSpecificConfig. Non standard sample rates fall back to the 44.1kHz index, like
+     * the encoders this is written for do.
+     *
+     * @param profile audio object type, e.g. {@link #PROFILE_LC}
+     */
+    public static byte[] create(int profile, int sampleRate, int channelCount) {
+        int frequencyIndex = samplingFrequencyIndex(sampleRate);
+        if (frequencyIndex < 0) {
+            frequencyIndex = DEFAULT_FREQUENCY_INDEX;
+        }
+        return new byte[]{
+                (byte) (profile << 3 | frequencyIndex >> 1),
+                (byte) ((frequencyIndex & 0x01) << 7 | channelCount << 3)
+        };
+    }
+}
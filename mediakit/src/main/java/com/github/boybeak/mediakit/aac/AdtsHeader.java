@@ -0,0 +1,149 @@
+package com.github.boybeak.mediakit.aac;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes the ADTS header (ISO 13818-7 / 14496-3 1.A.2) in front of each AAC access unit
+ * in a raw .aac stream.
+ * <p>
+ * One instance is meant to be reused for every frame of a stream: {@link #parse} only overwrites
+ * its fields, and {@link #write} puts the 7 header bytes straight into the destination, so neither
+ * direction allocates per frame. Stripping a header is moving the buffer position by
+ * {@link #getHeaderSize()}, adding one is {@link #write} followed by the access unit.
+ */
+public final class AdtsHeader {
+
+    /**
+     * header without CRC, the only kind {@link #write} produces
+     */
+    public static final int HEADER_SIZE = 7;
+    public static final int HEADER_SIZE_CRC = 9;
+    /**
+     * largest frame the 13 bit frame_length can describe
+     */
+    public static final int MAX_FRAME_SIZE = (1 << 13) - 1;
+
+    private int mAudioObjectType;
+    private int mSamplingFrequencyIndex;
+    private int mChannelConfiguration;
+    private int mHeaderSize;
+    private int mFrameSize;
+    private int mRawDataBlocks;
+
+    /**
+     * @return whether a syncword starts at {@code offset}, at least 2 bytes must be available
+     */
+    public static boolean isSync(ByteBuffer buffer, int offset) {
+        return (buffer.get(offset) & 0xff) == 0xff && (buffer.get(offset + 1) & 0xf6) == 0xf0;
+    }
+
+    /**
+     * Reads the header at {@code offset} without moving the buffer's position.
+     *
+     * @return false when there is no valid header at {@code offset}, the fields are unchanged then
+     */
+    public boolean parse(ByteBuffer buffer, int offset) {
+        if (buffer.limit() - offset < HEADER_SIZE || !isSync(buffer, offset)) {
+            return false;
+        }
+        int b1 = buffer.get(offset + 1) & 0xff;
+        int b2 = buffer.get(offset + 2) & 0xff;
+        int b3 = buffer.get(offset + 3) & 0xff;
+        int b4 = buffer.get(offset + 4) & 0xff;
+        int b5 = buffer.get(offset + 5) & 0xff;
+        int b6 = buffer.get(offset + 6) & 0xff;
+        boolean protectionAbsent = (b1 & 0x01) == 1;
+        int frequencyIndex = (b2 >> 2) & 0x0f;
+        int frameSize = (b3 & 0x03) << 11 | b4 << 3 | b5 >> 5;
+        int headerSize = protectionAbsent ? HEADER_SIZE : HEADER_SIZE_CRC;
+        if (frequencyIndex >= 13 || frameSize < headerSize) {
+            return false;
+        }
+        mAudioObjectType = (b2 >> 6) + 1;
+        mSamplingFrequencyIndex = frequencyIndex;
+        mChannelConfiguration = (b2 & 0x01) << 2 | b3 >> 6;
+        mHeaderSize = headerSize;
+        mFrameSize = frameSize;
+        mRawDataBlocks = (b6 & 0x03) + 1;
+        return true;
+    }
+
+    /**
+     * Puts a 7 byte header for an access unit of {@code payloadSize} bytes at the buffer's position
+     * and advances it.
+     *
+     * @param audioObjectType 1 to 4, for HE-AAC the core type with the core sample rate
+     */
+    public static void write(ByteBuffer out, int audioObjectType, int samplingFrequencyIndex,
+                             int channelConfiguration, int payloadSize) {
+        int frameSize = payloadSize + HEADER_SIZE;
+        if (audioObjectType < 1 || audioObjectType > 4) {
+            throw new IllegalArgumentException("ADTS can not carry audio object type " + audioObjectType);
+        }
+        if (frameSize > MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("access unit of " + payloadSize + " bytes is too large for ADTS");
+        }
+        out.put((byte) 0xff)
+                // MPEG-4, layer 0, no CRC
+                .put((byte) 0xf1)
+                .put((byte) ((audioObjectType - 1) << 6 | samplingFrequencyIndex << 2 | channelConfiguration >> 2))
+                .put((byte) ((channelConfiguration & 0x03) << 6 | frameSize >> 11))
+                .put((byte) (frameSize >> 3))
+                // buffer fullness 0x7ff: variable bit rate
+                .put((byte) ((frameSize & 0x07) << 5 | 0x1f))
+                .put((byte) 0xfc);
+    }
+
+    /**
+     * {@link #write(ByteBuffer, int, int, int, int)} with the core parameters of {@code config}
+     */
+    public static void write(ByteBuffer out, AudioSpecificConfig config, int payloadSize) {
+        write(out, config.getAudioObjectType(), config.getSamplingFrequencyIndex(), config.getChannelConfiguration(), payloadSize);
+    }
+
+    public int getAudioObjectType() {
+        return mAudioObjectType;
+    }
+
+    public int getSamplingFrequencyIndex() {
+        return mSamplingFrequencyIndex;
+    }
+
+    public int getSampleRate() {
+        return AacConfig.sampleRate(mSamplingFrequencyIndex);
+    }
+
+    public int getChannelConfiguration() {
+        return mChannelConfiguration;
+    }
+
+    public int getHeaderSize() {
+        return mHeaderSize;
+    }
+
+    /**
+     * @return header plus access unit
+     */
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    public int getPayloadSize() {
+        return mFrameSize - mHeaderSize;
+    }
+
+    /**
+     * @return raw data blocks in the frame, almost always 1; MediaCodec decoders only take frames
+     * with one
+     */
+    public int getRawDataBlocks() {
+        return mRawDataBlocks;
+    }
+
+    /**
+     * @return the csd-0 equivalent of this header
+     */
+    public byte[] toAudioSpecificConfig() {
+        return AacConfig.create(mAudioObjectType, getSampleRate(), mChannelConfiguration);
+    }
+}
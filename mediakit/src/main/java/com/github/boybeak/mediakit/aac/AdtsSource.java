@@ -0,0 +1,274 @@
+package com.github.boybeak.mediakit.aac;
+
+import com.github.boybeak.mediakit.SampleSource;
+import com.github.boybeak.mediakit.TrackFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a raw .aac (ADTS) file as a single track {@link SampleSource}, without MediaExtractor.
+ * <p>
+ * The file is memory mapped and the frame offsets are indexed once on open; samples are the access
+ * units without their ADTS headers, the same thing an mp4 would hold, handed out as slices of the
+ * mapping. Every frame is a sync sample and lasts 1024 samples at the header's rate, so seeking is
+ * arithmetic. A leading ID3v2 tag is skipped; indexing stops at the first bytes that are not an
+ * ADTS frame, like a trailing ID3v1 tag.
+ */
+public class AdtsSource implements SampleSource {
+
+    private static final int ID3_HEADER_SIZE = 10;
+
+    private final FileChannel mChannel;
+    private final boolean mOwnsChannel;
+    private final MappedByteBuffer mMapped;
+    /**
+     * reused for copies in {@link #readSampleData}
+     */
+    private final ByteBuffer mView;
+    private final AdtsHeader mHeader = new AdtsHeader();
+    private final TrackFormat mFormat;
+    private final int mFrameLength;
+    private int[] mOffsets;
+    private int mFrameCount;
+    private boolean mSelected;
+    private int mCursor;
+    private boolean mReleased;
+
+    public AdtsSource(String path) throws IOException {
+        this(new File(path));
+    }
+
+    public AdtsSource(File file) throws IOException {
+        this(new RandomAccessFile(file, "r").getChannel(), true);
+    }
+
+    /**
+     * @param ownsChannel whether {@link #release()} closes the channel
+     * @throws IOException when the file does not start with an ADTS frame (after an optional ID3v2
+     *                     tag) or uses frames with several raw data blocks, which decoders don't take
+     */
+    public AdtsSource(FileChannel channel, boolean ownsChannel) throws IOException {
+        mChannel = channel;
+        mOwnsChannel = ownsChannel;
+        try {
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("ADTS file too large: " + length);
+            }
+            mMapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            mView = mMapped.duplicate();
+            mFormat = index();
+            mFrameLength = AudioSpecificConfig.parse(mFormat.getCsd(0)).getFrameLength();
+            mFormat.setDurationUs(frameTimeUs(mFrameCount));
+            if (mFormat.getDurationUs() > 0) {
+                mFormat.setBitrate((int) ((mMapped.limit() - mOffsets[0]) * 8L * 1000000 / mFormat.getDurationUs()));
+            }
+        } catch (IOException | RuntimeException e) {
+            if (ownsChannel) {
+                channel.close();
+            }
+            throw e;
+        }
+    }
+
+    private TrackFormat index() throws IOException {
+        int position = skipId3(mMapped);
+        if (!mHeader.parse(mMapped, position)) {
+            throw new IOException("no ADTS frame at " + position);
+        }
+        int sampleRate = mHeader.getSampleRate();
+        byte[] csd = mHeader.toAudioSpecificConfig();
+        AudioSpecificConfig config = AudioSpecificConfig.parse(csd);
+        TrackFormat format = TrackFormat.createAudioFormat(TrackFormat.MIMETYPE_AUDIO_AAC, sampleRate, config.getChannelCount());
+        format.setCsd(0, csd);
+        int maxPayload = 0;
+        // ~20kB/s at 160kbps, 1024 frames are a bit over 20 seconds
+        mOffsets = new int[1024];
+        int limit = mMapped.limit();
+        while (position < limit && mHeader.parse(mMapped, position) && position + mHeader.getFrameSize() <= limit) {
+            if (mHeader.getRawDataBlocks() != 1) {
+                throw new IOException("ADTS frame at " + position + " holds " + mHeader.getRawDataBlocks() + " raw data blocks");
+            }
+            if (mFrameCount == mOffsets.length) {
+                int[] offsets = new int[mOffsets.length * 2];
+                System.arraycopy(mOffsets, 0, offsets, 0, mFrameCount);
+                mOffsets = offsets;
+            }
+            mOffsets[mFrameCount++] = position;
+            maxPayload = Math.max(maxPayload, mHeader.getPayloadSize());
+            position += mHeader.getFrameSize();
+        }
+        format.setMaxSampleSize(maxPayload);
+        return format;
+    }
+
+    /**
+     * @return the offset after an ID3v2 tag at the start of {@code buffer}, 0 without one
+     */
+    private static int skipId3(ByteBuffer buffer) {
+        if (buffer.limit() < ID3_HEADER_SIZE || buffer.get(0) != 'I' || buffer.get(1) != 'D' || buffer.get(2) != '3') {
+            return 0;
+        }
+        // syncsafe integer, 7 bits per byte
+        int size = (buffer.get(6) & 0x7f) << 21 | (buffer.get(7) & 0x7f) << 14
+                | (buffer.get(8) & 0x7f) << 7 | (buffer.get(9) & 0x7f);
+        boolean footer = (buffer.get(5) & 0x10) != 0;
+        return ID3_HEADER_SIZE + size + (footer ? ID3_HEADER_SIZE : 0);
+    }
+
+    private long frameTimeUs(int frame) {
+        return frame * (long) mFrameLength * 1000000 / mFormat.getSampleRate();
+    }
+
+    /**
+     * @return the number of access units in the file
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    @Override
+    public int getTrackCount() {
+        return 1;
+    }
+
+    @Override
+    public TrackFormat getTrackFormat(int index) {
+        checkTrack(index);
+        return mFormat;
+    }
+
+    @Override
+    public void selectTrack(int index) {
+        checkTrack(index);
+        mSelected = true;
+    }
+
+    @Override
+    public void unselectTrack(int index) {
+        checkTrack(index);
+        mSelected = false;
+    }
+
+    private static void checkTrack(int index) {
+        if (index != 0) {
+            throw new IllegalArgumentException("track index out of range: " + index);
+        }
+    }
+
+    /**
+     * Frame times are rounded down to whole microseconds, so the frames are found against those
+     * rounded times: seeking to a time {@link #getSampleTime()} reported lands on that frame.
+     */
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        long frameUs = (long) mFrameLength * 1000000;
+        long sampleRate = mFormat.getSampleRate();
+        timeUs = Math.max(timeUs, 0);
+        // last frame whose rounded time is <= timeUs, first frame whose rounded time is >= timeUs
+        int previous = (int) Math.min(((timeUs + 1) * sampleRate - 1) / frameUs, mFrameCount);
+        int next = (int) Math.min((timeUs * sampleRate + frameUs - 1) / frameUs, mFrameCount);
+        if (mode == SEEK_TO_PREVIOUS_SYNC) {
+            mCursor = previous;
+        } else if (mode == SEEK_TO_NEXT_SYNC) {
+            mCursor = next;
+        } else {
+            mCursor = frameTimeUs(next) - timeUs <= timeUs - frameTimeUs(previous) ? next : previous;
+        }
+    }
+
+    @Override
+    public boolean advance() {
+        if (!hasSample()) {
+            return false;
+        }
+        mCursor++;
+        return hasSample();
+    }
+
+    private boolean hasSample() {
+        return mSelected && mCursor < mFrameCount;
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        return hasSample() ? 0 : -1;
+    }
+
+    @Override
+    public long getSampleTime() {
+        return hasSample() ? frameTimeUs(mCursor) : -1;
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return hasSample() ? SAMPLE_FLAG_SYNC : 0;
+    }
+
+    @Override
+    public int getSampleSize() {
+        if (!hasSample()) {
+            return -1;
+        }
+        mHeader.parse(mMapped, mOffsets[mCursor]);
+        return mHeader.getPayloadSize();
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        if (!hasSample()) {
+            return -1;
+        }
+        int frame = mOffsets[mCursor];
+        mHeader.parse(mMapped, frame);
+        int size = mHeader.getPayloadSize();
+        if (buffer.capacity() - offset < size) {
+            throw new IllegalArgumentException("sample of " + size + " bytes does not fit in buffer of "
+                    + buffer.capacity() + " at offset " + offset);
+        }
+        mView.limit(frame + mHeader.getFrameSize()).position(frame + mHeader.getHeaderSize());
+        buffer.clear();
+        buffer.position(offset);
+        buffer.put(mView);
+        buffer.limit(offset + size);
+        buffer.position(offset);
+        return size;
+    }
+
+    @Override
+    public ByteBuffer getSampleData() {
+        if (!hasSample()) {
+            return null;
+        }
+        int frame = mOffsets[mCursor];
+        mHeader.parse(mMapped, frame);
+        ByteBuffer view = mMapped.duplicate();
+        view.limit(frame + mHeader.getFrameSize()).position(frame + mHeader.getHeaderSize());
+        return view.slice();
+    }
+
+    @Override
+    public void release() {
+        if (mReleased) {
+            return;
+        }
+        mReleased = true;
+        if (mOwnsChannel) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+}
@@ -0,0 +1,157 @@
+package com.github.boybeak.mediakit.aac;
+
+import com.github.boybeak.mediakit.MuxerBackend;
+import com.github.boybeak.mediakit.TrackFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a single AAC track as a raw .aac (ADTS) stream: every access unit gets a 7 byte header
+ * built from the track's AudioSpecificConfig. Frames are collected in one direct buffer and written
+ * in batches, nothing is allocated per frame.
+ * <p>
+ * ADTS can only describe the core of HE-AAC: the header carries the LC object type and the core
+ * sample rate, decoders find the SBR/PS data in the stream themselves (implicit signalling).
+ * Timestamps are implied by the frame count, gaps are not representable.
+ */
+public class AdtsWriter implements MuxerBackend {
+
+    private static final int STATE_INITIALIZED = 0;
+    private static final int STATE_STARTED = 1;
+    private static final int STATE_STOPPED = 2;
+    private static final int STATE_RELEASED = 3;
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final ByteBuffer mWriteBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private AudioSpecificConfig mConfig;
+    private int mState = STATE_INITIALIZED;
+
+    public AdtsWriter(String path) throws IOException {
+        this(new File(path));
+    }
+
+    public AdtsWriter(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+    }
+
+    /**
+     * @param format an AAC track with csd-0
+     * @throws IllegalArgumentException for other codecs, a missing csd or a config ADTS can't carry
+     */
+    @Override
+    public synchronized int addTrack(TrackFormat format) {
+        checkState(STATE_INITIALIZED);
+        if (mConfig != null) {
+            throw new IllegalStateException("ADTS holds a single track");
+        }
+        if (!TrackFormat.MIMETYPE_AUDIO_AAC.equals(format.getMime())) {
+            throw new IllegalArgumentException("ADTS only carries AAC, not " + format.getMime());
+        }
+        AudioSpecificConfig config = AudioSpecificConfig.parse(format.getCsd(0));
+        if (config == null) {
+            throw new IllegalArgumentException("AAC track without a valid csd-0");
+        }
+        if (config.getAudioObjectType() < 1 || config.getAudioObjectType() > 4
+                || config.getSamplingFrequencyIndex() < 0 || config.getChannelConfiguration() == 0) {
+            throw new IllegalArgumentException("ADTS can not describe " + config);
+        }
+        mConfig = config;
+        return 0;
+    }
+
+    /**
+     * Audio only, ignored.
+     */
+    @Override
+    public void setOrientationHint(int degrees) {
+    }
+
+    @Override
+    public synchronized void start() {
+        checkState(STATE_INITIALIZED);
+        if (mConfig == null) {
+            throw new IllegalStateException("no track added");
+        }
+        mState = STATE_STARTED;
+    }
+
+    @Override
+    public synchronized void writeSampleData(int trackIndex, ByteBuffer data, int offset, int size,
+                                             long presentationTimeUs, int flags) throws IOException {
+        checkState(STATE_STARTED);
+        if (trackIndex != 0) {
+            throw new IllegalArgumentException("trackIndex is invalid: " + trackIndex);
+        }
+        if ((flags & FLAG_CODEC_CONFIG) != 0 || size <= 0) {
+            return;
+        }
+        if (mWriteBuffer.remaining() < AdtsHeader.HEADER_SIZE + size) {
+            flush();
+        }
+        AdtsHeader.write(mWriteBuffer, mConfig, size);
+        int position = data.position();
+        int limit = data.limit();
+        data.limit(offset + size).position(offset);
+        mWriteBuffer.put(data);
+        data.limit(limit).position(position);
+    }
+
+    private void flush() throws IOException {
+        mWriteBuffer.flip();
+        while (mWriteBuffer.hasRemaining()) {
+            mChannel.write(mWriteBuffer);
+        }
+        mWriteBuffer.clear();
+    }
+
+    @Override
+    public synchronized void stop() throws IOException {
+        checkState(STATE_STARTED);
+        mState = STATE_STOPPED;
+        try {
+            flush();
+        } finally {
+            closeFile();
+        }
+    }
+
+    private void closeFile() {
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public synchronized void release() {
+        if (mState == STATE_RELEASED) {
+            return;
+        }
+        if (mState == STATE_STARTED) {
+            try {
+                stop();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else if (mState == STATE_INITIALIZED) {
+            closeFile();
+        }
+        mState = STATE_RELEASED;
+    }
+
+    private void checkState(int expected) {
+        if (mState != expected) {
+            throw new IllegalStateException("AdtsWriter is in state " + mState + ", expected " + expected);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.github.boybeak.mediakit.aac;
+
+/**
+ * A parsed AudioSpecificConfig (ISO 14496-3 1.6.2.1), the csd-0 of an AAC track.
+ * <p>
+ * Both ways of signalling HE-AAC are understood: explicit hierarchical signalling, where the config
+ * starts with audioObjectType 5 or 29, and backward compatible signalling, where a sync extension
+ * follows the GASpecificConfig. Implicit SBR, which is not signalled at all, looks like plain LC.
+ * A program_config_element is not parsed; such configs report channel configuration 0.
+ */
+public final class AudioSpecificConfig {
+
+    /**
+     * channels of channelConfiguration 0..15, 0 where it is signalled elsewhere or reserved
+     */
+    private static final int[] CHANNEL_COUNTS = {0, 1, 2, 3, 4, 5, 6, 8, 0, 0, 0, 7, 8, 0, 8, 0};
+
+    private static final int SYNC_EXTENSION_SBR = 0x2b7;
+    private static final int SYNC_EXTENSION_PS = 0x548;
+
+    private final int mAudioObjectType;
+    private final int mSampleRate;
+    private final int mChannelConfiguration;
+    private final int mExtensionAudioObjectType;
+    private final int mExtensionSampleRate;
+    private final boolean mSbr;
+    private final boolean mPs;
+    private final boolean mShortFrame;
+
+    private AudioSpecificConfig(int audioObjectType, int sampleRate, int channelConfiguration,
+                                int extensionAudioObjectType, int extensionSampleRate, boolean sbr, boolean ps,
+                                boolean shortFrame) {
+        mAudioObjectType = audioObjectType;
+        mSampleRate = sampleRate;
+        mChannelConfiguration = channelConfiguration;
+        mExtensionAudioObjectType = extensionAudioObjectType;
+        mExtensionSampleRate = extensionSampleRate;
+        mSbr = sbr;
+        mPs = ps;
+        mShortFrame = shortFrame;
+    }
+
+    /**
+     * @return null when {@code csd} is missing or too short to be an AudioSpecificConfig
+     */
+    public static AudioSpecificConfig parse(byte[] csd) {
+        if (csd == null || csd.length < 2) {
+            return null;
+        }
+        BitReader in = new BitReader(csd);
+        try {
+            int audioObjectType = readAudioObjectType(in);
+            int sampleRate = readSampleRate(in);
+            int channelConfiguration = in.read(4);
+            int extensionAudioObjectType = 0;
+            int extensionSampleRate = 0;
+            boolean sbr = false;
+            boolean ps = false;
+            if (audioObjectType == AacConfig.PROFILE_SBR || audioObjectType == AacConfig.PROFILE_PS) {
+                // explicit hierarchical signalling, the core object type follows
+                extensionAudioObjectType = AacConfig.PROFILE_SBR;
+                sbr = true;
+                ps = audioObjectType == AacConfig.PROFILE_PS;
+                extensionSampleRate = readSampleRate(in);
+                audioObjectType = readAudioObjectType(in);
+                if (audioObjectType == 22) {
+                    // extensionChannelConfiguration
+                    in.read(4);
+                }
+            }
+            boolean shortFrame = false;
+            if (isGeneralAudio(audioObjectType)) {
+                shortFrame = in.read(1) == 1;
+                if (in.read(1) == 1) {
+                    // coreCoderDelay
+                    in.read(14);
+                }
+                int extensionFlag = in.read(1);
+                if (channelConfiguration == 0) {
+                    // program_config_element, the sync extension can not be located past it
+                    return new AudioSpecificConfig(audioObjectType, sampleRate, 0,
+                            extensionAudioObjectType, extensionSampleRate, sbr, ps, shortFrame);
+                }
+                if (audioObjectType == 6 || audioObjectType == 20) {
+                    // layerNr
+                    in.read(3);
+                }
+                if (extensionFlag == 1) {
+                    if (audioObjectType == 22) {
+                        // numOfSubFrame, layer_length
+                        in.read(16);
+                    }
+                    if (audioObjectType == 17 || audioObjectType == 19 || audioObjectType == 20 || audioObjectType == 23) {
+                        // aacSectionDataResilienceFlag, aacScalefactorDataResilienceFlag, aacSpectralDataResilienceFlag
+                        in.read(3);
+                    }
+                    // extensionFlag3
+                    in.read(1);
+                }
+                if (audioObjectType >= 17) {
+                    // epConfig of the error resilient types
+                    in.read(2);
+                }
+            }
+            if (extensionAudioObjectType != AacConfig.PROFILE_SBR && in.remaining() >= 16
+                    && in.read(11) == SYNC_EXTENSION_SBR) {
+                // backward compatible signalling
+                extensionAudioObjectType = readAudioObjectType(in);
+                if (extensionAudioObjectType == AacConfig.PROFILE_SBR) {
+                    sbr = in.read(1) == 1;
+                    if (sbr) {
+                        extensionSampleRate = readSampleRate(in);
+                        if (in.remaining() >= 12 && in.read(11) == SYNC_EXTENSION_PS) {
+                            ps = in.read(1) == 1;
+                        }
+                    }
+                }
+            }
+            return new AudioSpecificConfig(audioObjectType, sampleRate, channelConfiguration,
+                    extensionAudioObjectType, extensionSampleRate, sbr, ps, shortFrame);
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static boolean isGeneralAudio(int audioObjectType) {
+        switch (audioObjectType) {
+            case 1:
+            case 2:
+            case 3:
+            case 4:
+            case 6:
+            case 7:
+            case 17:
+            case 19:
+            case 20:
+            case 21:
+            case 22:
+            case 23:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static int readAudioObjectType(BitReader in) {
+        int type = in.read(5);
+        return type == 31 ? 32 + in.read(6) : type;
+    }
+
+    private static int readSampleRate(BitReader in) {
+        int index = in.read(4);
+        if (index == 0x0f) {
+            return in.read(24);
+        }
+        return AacConfig.sampleRate(index);
+    }
+
+    /**
+     * @return the core object type, {@link AacConfig#PROFILE_LC} for HE-AAC
+     */
+    public int getAudioObjectType() {
+        return mAudioObjectType;
+    }
+
+    /**
+     * @return {@link AacConfig#PROFILE_SBR} when an extension is signalled, 0 otherwise
+     */
+    public int getExtensionAudioObjectType() {
+        return mExtensionAudioObjectType;
+    }
+
+    public boolean isSbrPresent() {
+        return mSbr;
+    }
+
+    public boolean isPsPresent() {
+        return mPs;
+    }
+
+    /**
+     * @return the sample rate of the core, half the output rate for dual rate HE-AAC
+     */
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * @return the rate a decoder outputs: the SBR rate for HE-AAC
+     */
+    public int getOutputSampleRate() {
+        return mSbr && mExtensionSampleRate > 0 ? mExtensionSampleRate : mSampleRate;
+    }
+
+    public int getChannelConfiguration() {
+        return mChannelConfiguration;
+    }
+
+    /**
+     * @return channels of the core, 0 when they are described by a program_config_element
+     */
+    public int getChannelCount() {
+        return CHANNEL_COUNTS[mChannelConfiguration];
+    }
+
+    /**
+     * @return channels a decoder outputs: parametric stereo turns a mono core into stereo
+     */
+    public int getOutputChannelCount() {
+        int channels = getChannelCount();
+        return mPs && channels == 1 ? 2 : channels;
+    }
+
+    /**
+     * @return samples per channel in one access unit of the core, 1024 or 960
+     */
+    public int getFrameLength() {
+        return mShortFrame ? 960 : 1024;
+    }
+
+    /**
+     * @return the samplingFrequencyIndex of the core rate, -1 when it is not a standard rate and
+     * can't be put into an ADTS header
+     */
+    public int getSamplingFrequencyIndex() {
+        return AacConfig.samplingFrequencyIndex(mSampleRate);
+    }
+
+    @Override
+    public String toString() {
+        return "AudioSpecificConfig{aot=" + mAudioObjectType + ", " + mSampleRate + "Hz, channelConfiguration="
+                + mChannelConfiguration + (mSbr ? ", sbr " + mExtensionSampleRate + "Hz" : "") + (mPs ? ", ps" : "") + "}";
+    }
+
+    private static final class BitReader {
+
+        private final byte[] mData;
+        private int mBitPosition;
+
+        BitReader(byte[] data) {
+            mData = data;
+        }
+
+        int read(int bits) {
+            if (bits > remaining()) {
+                throw new IndexOutOfBoundsException("needs " + bits + " bits, " + remaining() + " left");
+            }
+            int value = 0;
+            for (int i = 0; i < bits; i++) {
+                int bit = (mData[mBitPosition >> 3] >> (7 - (mBitPosition & 7))) & 1;
+                value = value << 1 | bit;
+                mBitPosition++;
+            }
+            return value;
+        }
+
+        int remaining() {
+            return mData.length * 8 - mBitPosition;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.github.boybeak.mediakit.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Builds the codec specific data of an Opus track (RFC 7845), in the layout MediaCodec and
+ * MediaMuxer use: csd-0 is the OpusHead, csd-1 the pre-skip and csd-2 the seek pre-roll, both in
+ * nanoseconds as 64 bit little endian.
+ */
+public final class OpusHead {
+
+    /**
+     * Pre-skip of libopus at 48kHz, what the Android encoder reports
+     */
+    public static final int DEFAULT_PRE_SKIP = 312;
+    /**
+     * 80ms, recommended by RFC 7845
+     */
+    public static final long DEFAULT_SEEK_PRE_ROLL_NS = 80000000L;
+
+    private OpusHead() {
+    }
+
+    /**
+     * @param channelCount 1 or 2, channel mapping family 0
+     * @param preSkip      samples at 48kHz to drop at the start
+     * @param inputSampleRate informational, the rate the source was recorded at
+     */
+    public static byte[] create(int channelCount, int preSkip, int inputSampleRate) {
+        if (channelCount < 1 || channelCount > 2) {
+            throw new IllegalArgumentException("mapping family 0 supports 1 or 2 channels: " + channelCount);
+        }
+        ByteBuffer head = ByteBuffer.allocate(19).order(ByteOrder.LITTLE_ENDIAN);
+        head.put(new byte[]{'O', 'p', 'u', 's', 'H', 'e', 'a', 'd'})
+                .put((byte) 1)
+                .put((byte) channelCount)
+                .putShort((short) preSkip)
+                .putInt(inputSampleRate)
+                .putShort((short) 0)     // output gain
+                .put((byte) 0);          // channel mapping family
+        return head.array();
+    }
+
+    /**
+     * @return csd-1 or csd-2, a duration in nanoseconds
+     */
+    public static byte[] nanos(long nanos) {
+        return ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(nanos).array();
+    }
+
+    public static long preSkipNanos(int preSkip) {
+        return preSkip * 1000000000L / 48000;
+    }
+}
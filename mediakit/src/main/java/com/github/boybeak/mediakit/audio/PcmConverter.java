@@ -0,0 +1,237 @@
+package com.github.boybeak.mediakit.audio;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Converts interleaved 16 bit PCM between channel layouts and sample rates, block by block, the
+ * way decoder output arrives. Nothing is allocated per block: downmixed frames go into a ring that
+ * only grows when a block is larger than any before it, and the resampler keeps its position
+ * across blocks.
+ * <p>
+ * Downmix: mono is duplicated to stereo; stereo is averaged to mono; more channels are folded
+ * with the usual -3dB center and surround coefficients, in the MediaCodec channel order of each
+ * count: 3 is FL, FR, C; 4 (quad) is FL, FR, BL, BR; 5 is FL, FR, C, BL, BR; 6 (5.1) is
+ * FL, FR, C, LFE, BL, BR. The LFE channel is dropped, and so is every channel after the sixth of
+ * a 7 or 8 channel layout.
+ * <p>
+ * Resampling interpolates linearly between neighbouring frames. That is transparent for speech and
+ * typical music at the 32-48kHz rates involved here; it is not meant for large downsampling
+ * ratios, which would need a low-pass filter first.
+ */
+public final class PcmConverter {
+
+    private static final int FRAC_BITS = 32;
+    private static final long FRAC_ONE = 1L << FRAC_BITS;
+    private static final long FRAC_MASK = FRAC_ONE - 1;
+    /**
+     * -3dB, in 1/32768
+     */
+    private static final int MINUS_3DB = 23170;
+
+    private final int mInputSampleRate;
+    private final int mInputChannels;
+    private final int mOutputSampleRate;
+    private final int mOutputChannels;
+    /**
+     * input frames per output frame, 32.32 fixed point
+     */
+    private final long mStep;
+
+    /**
+     * downmixed frames waiting to be resampled, mOutputChannels samples per frame
+     */
+    private short[] mRing = new short[0];
+    private int mRingFrames;
+    private int mRingHead;
+    private int mRingCount;
+    /**
+     * position of the next output frame, relative to the ring head, 32.32 fixed point
+     */
+    private long mPosition;
+
+    public PcmConverter(int inputSampleRate, int inputChannels, int outputSampleRate, int outputChannels) {
+        if (inputSampleRate <= 0 || outputSampleRate <= 0) {
+            throw new IllegalArgumentException("sample rates must be > 0");
+        }
+        if (inputChannels <= 0 || outputChannels < 1 || outputChannels > 2) {
+            throw new IllegalArgumentException("can not convert " + inputChannels + " channels to " + outputChannels);
+        }
+        mInputSampleRate = inputSampleRate;
+        mInputChannels = inputChannels;
+        mOutputSampleRate = outputSampleRate;
+        mOutputChannels = outputChannels;
+        mStep = (long) inputSampleRate * FRAC_ONE / outputSampleRate;
+    }
+
+    public boolean isPassThrough() {
+        return mInputSampleRate == mOutputSampleRate && mInputChannels == mOutputChannels;
+    }
+
+    public int getOutputSampleRate() {
+        return mOutputSampleRate;
+    }
+
+    public int getOutputChannels() {
+        return mOutputChannels;
+    }
+
+    /**
+     * @return the most samples (not frames) one {@link #convert} call can write for
+     * {@code inputSamples} input samples
+     */
+    public int getMaxOutputSamples(int inputSamples) {
+        long frames = (long) (inputSamples / mInputChannels + mRingCount + 1) * mOutputSampleRate / mInputSampleRate + 2;
+        return (int) frames * mOutputChannels;
+    }
+
+    /**
+     * Consumes every sample remaining in {@code input}.
+     *
+     * @param output needs room for {@link #getMaxOutputSamples(int)} samples from {@code offset}
+     * @return number of samples written to {@code output}
+     */
+    public int convert(ShortBuffer input, short[] output, int offset) {
+        int frames = input.remaining() / mInputChannels;
+        ensureRing(mRingCount + frames);
+        for (int i = 0; i < frames; i++) {
+            int tail = (mRingHead + mRingCount) % mRingFrames * mOutputChannels;
+            downmix(input, mRing, tail);
+            mRingCount++;
+        }
+        // a trailing partial frame can not be converted
+        input.position(input.limit());
+        return resample(output, offset, false);
+    }
+
+    /**
+     * Writes the frames still held back for interpolation, at the end of the stream.
+     *
+     * @return number of samples written to {@code output}
+     */
+    public int flush(short[] output, int offset) {
+        int written = resample(output, offset, true);
+        mRingCount = 0;
+        mRingHead = 0;
+        mPosition = 0;
+        return written;
+    }
+
+    private void downmix(ShortBuffer input, short[] ring, int at) {
+        int channels = mInputChannels;
+        if (channels == mOutputChannels) {
+            for (int c = 0; c < channels; c++) {
+                ring[at + c] = input.get();
+            }
+            return;
+        }
+        int left;
+        int right;
+        if (channels == 1) {
+            left = input.get();
+            right = left;
+        } else if (channels == 2) {
+            left = input.get();
+            right = input.get();
+        } else {
+            int fl = input.get();
+            int fr = input.get();
+            int center = 0;
+            int bl = 0;
+            int br = 0;
+            switch (channels) {
+                case 3:
+                    center = input.get();
+                    break;
+                case 4:
+                    bl = input.get();
+                    br = input.get();
+                    break;
+                case 5:
+                    center = input.get();
+                    bl = input.get();
+                    br = input.get();
+                    break;
+                default:
+                    center = input.get();
+                    // LFE
+                    input.get();
+                    bl = input.get();
+                    br = input.get();
+                    for (int c = 6; c < channels; c++) {
+                        input.get();
+                    }
+                    break;
+            }
+            left = fl + ((center + bl) * MINUS_3DB >> 15);
+            right = fr + ((center + br) * MINUS_3DB >> 15);
+        }
+        if (mOutputChannels == 1) {
+            ring[at] = clip((left + right) >> 1);
+        } else {
+            ring[at] = clip(left);
+            ring[at + 1] = clip(right);
+        }
+    }
+
+    private int resample(short[] output, int offset, boolean flush) {
+        int channels = mOutputChannels;
+        int out = offset;
+        if (mInputSampleRate == mOutputSampleRate) {
+            for (; mRingCount > 0; mRingCount--) {
+                System.arraycopy(mRing, mRingHead * channels, output, out, channels);
+                out += channels;
+                mRingHead = (mRingHead + 1) % mRingFrames;
+            }
+            return out - offset;
+        }
+        while (true) {
+            int index = (int) (mPosition >>> FRAC_BITS);
+            // interpolation needs the frame after this one, at the end of stream the last frame repeats
+            if (index + 1 >= mRingCount && !(flush && index < mRingCount)) {
+                break;
+            }
+            long frac = mPosition & FRAC_MASK;
+            int a = (mRingHead + index) % mRingFrames * channels;
+            int b = index + 1 < mRingCount ? (mRingHead + index + 1) % mRingFrames * channels : a;
+            for (int c = 0; c < channels; c++) {
+                int from = mRing[a + c];
+                int to = mRing[b + c];
+                output[out++] = (short) (from + ((to - from) * frac >> FRAC_BITS));
+            }
+            mPosition += mStep;
+        }
+        // drop the frames the position moved past
+        int consumed = Math.min((int) (mPosition >>> FRAC_BITS), mRingCount);
+        mRingHead = (mRingHead + consumed) % Math.max(mRingFrames, 1);
+        mRingCount -= consumed;
+        mPosition -= (long) consumed << FRAC_BITS;
+        return out - offset;
+    }
+
+    private void ensureRing(int frames) {
+        if (frames <= mRingFrames) {
+            return;
+        }
+        // the resampler holds back at most one frame between blocks, keep room for it so the next
+        // block of the same size fits without growing again
+        frames++;
+        short[] ring = new short[frames * mOutputChannels];
+        for (int i = 0; i < mRingCount; i++) {
+            System.arraycopy(mRing, (mRingHead + i) % mRingFrames * mOutputChannels, ring, i * mOutputChannels, mOutputChannels);
+        }
+        mRing = ring;
+        mRingFrames = frames;
+        mRingHead = 0;
+    }
+
+    /**
+     * @return capacity of the ring in frames, for tests
+     */
+    int getRingFrames() {
+        return mRingFrames;
+    }
+
+    private static short clip(int sample) {
+        return (short) (sample > Short.MAX_VALUE ? Short.MAX_VALUE : sample < Short.MIN_VALUE ? Short.MIN_VALUE : sample);
+    }
+}
@@ -0,0 +1,75 @@
+package com.github.boybeak.mediakit.audio;
+
+/**
+ * Mixes two interleaved 16 bit PCM streams of the same layout, one block at a time, with a gain
+ * per stream.
+ * <p>
+ * Sums that would clip are pulled back by a limiter instead of being cut off: a block whose peak
+ * exceeds full scale lowers the limiter gain right away, and the gain recovers slowly over the
+ * following blocks. The gain is ramped across each block, so it never jumps between samples.
+ */
+public final class PcmMixer {
+
+    private static final int FULL_SCALE = Short.MAX_VALUE;
+    /**
+     * how much the limiter gain may recover per block, about 0.2s from -6dB back to 0dB with
+     * 1024 frame blocks at 44.1kHz
+     */
+    private static final float RELEASE_PER_BLOCK = 0.05f;
+
+    private final float mGain;
+    private final float mMixGain;
+    private float mLimiterGain = 1f;
+
+    /**
+     * @param gain    applied to the first stream
+     * @param mixGain applied to the second stream
+     */
+    public PcmMixer(float gain, float mixGain) {
+        if (gain < 0 || mixGain < 0) {
+            throw new IllegalArgumentException("gains must be >= 0");
+        }
+        mGain = gain;
+        mMixGain = mixGain;
+    }
+
+    /**
+     * Mixes {@code samples} samples of {@code mix} into {@code main}, in place.
+     *
+     * @param mix null or shorter streams count as silence
+     */
+    public void mix(short[] main, int mainOffset, short[] mix, int mixOffset, int samples) {
+        int peak = 0;
+        for (int i = 0; i < samples; i++) {
+            int sum = sum(main[mainOffset + i], mix == null ? 0 : mix[mixOffset + i]);
+            int magnitude = sum < 0 ? -sum : sum;
+            if (magnitude > peak) {
+                peak = magnitude;
+            }
+        }
+        float target = peak > FULL_SCALE ? FULL_SCALE / (float) peak : 1f;
+        // instant attack, slow release
+        float end = target < mLimiterGain ? target : Math.min(target, mLimiterGain + RELEASE_PER_BLOCK);
+        float start = Math.min(mLimiterGain, end);
+        float step = samples > 1 ? (end - start) / (samples - 1) : 0;
+        float gain = start;
+        for (int i = 0; i < samples; i++) {
+            int sum = sum(main[mainOffset + i], mix == null ? 0 : mix[mixOffset + i]);
+            int value = Math.round(sum * gain);
+            main[mainOffset + i] = (short) (value > FULL_SCALE ? FULL_SCALE : value < -FULL_SCALE - 1 ? -FULL_SCALE - 1 : value);
+            gain += step;
+        }
+        mLimiterGain = end;
+    }
+
+    private int sum(short main, short mix) {
+        return Math.round(main * mGain + mix * mMixGain);
+    }
+
+    /**
+     * @return the limiter gain after the last block, 1 when nothing was clipping
+     */
+    public float getLimiterGain() {
+        return mLimiterGain;
+    }
+}
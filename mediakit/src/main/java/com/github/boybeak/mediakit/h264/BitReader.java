@@ -0,0 +1,141 @@
+package com.github.boybeak.mediakit.h264;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the RBSP of a NAL unit bit by bit, including the Exp-Golomb codes H.264 headers are made
+ * of. Emulation prevention bytes (the 03 in 00 00 03) are skipped while reading, so the NAL unit
+ * is never copied, and one instance can be {@link #reset} for every NAL unit of a stream.
+ */
+public final class BitReader {
+
+    private ByteBuffer mBuffer;
+    private int mPosition;
+    private int mEnd;
+    /**
+     * the byte bits are currently taken from, and how many of its bits are left
+     */
+    private int mCurrent;
+    private int mBitsLeft;
+    private int mZeros;
+
+    public BitReader() {
+    }
+
+    public BitReader(byte[] data, int offset, int length) {
+        reset(ByteBuffer.wrap(data), offset, length);
+    }
+
+    /**
+     * @param offset first byte to read, usually right after the NAL unit header
+     */
+    public BitReader reset(ByteBuffer buffer, int offset, int length) {
+        mBuffer = buffer;
+        mPosition = offset;
+        mEnd = offset + length;
+        mBitsLeft = 0;
+        mZeros = 0;
+        return this;
+    }
+
+    private void nextByte() {
+        if (mPosition >= mEnd) {
+            throw new IndexOutOfBoundsException("read past the end of the NAL unit");
+        }
+        int b = mBuffer.get(mPosition++) & 0xff;
+        if (mZeros >= 2 && b == 3) {
+            // emulation prevention byte
+            mZeros = 0;
+            if (mPosition >= mEnd) {
+                throw new IndexOutOfBoundsException("read past the end of the NAL unit");
+            }
+            b = mBuffer.get(mPosition++) & 0xff;
+        }
+        mZeros = b == 0 ? mZeros + 1 : 0;
+        mCurrent = b;
+        mBitsLeft = 8;
+    }
+
+    public boolean readBit() {
+        if (mBitsLeft == 0) {
+            nextByte();
+        }
+        mBitsLeft--;
+        return ((mCurrent >> mBitsLeft) & 1) == 1;
+    }
+
+    /**
+     * @param count up to 32
+     */
+    public int readBits(int count) {
+        int value = 0;
+        while (count > 0) {
+            if (mBitsLeft == 0) {
+                nextByte();
+            }
+            int take = Math.min(count, mBitsLeft);
+            mBitsLeft -= take;
+            value = value << take | (mCurrent >> mBitsLeft) & ((1 << take) - 1);
+            count -= take;
+        }
+        return value;
+    }
+
+    public void skipBits(int count) {
+        while (count > 0) {
+            int take = Math.min(count, 32);
+            readBits(take);
+            count -= take;
+        }
+    }
+
+    /**
+     * ue(v)
+     */
+    public int readUe() {
+        int leadingZeros = 0;
+        while (!readBit()) {
+            leadingZeros++;
+            if (leadingZeros > 31) {
+                throw new IllegalStateException("invalid Exp-Golomb code");
+            }
+        }
+        if (leadingZeros == 0) {
+            return 0;
+        }
+        return (int) ((1L << leadingZeros) - 1 + (readBits(leadingZeros) & 0xffffffffL));
+    }
+
+    /**
+     * se(v)
+     */
+    public int readSe() {
+        int codeNum = readUe();
+        return (codeNum & 1) == 1 ? (codeNum + 1) >>> 1 : -(codeNum >>> 1);
+    }
+
+    /**
+     * @return whether more bits follow before the rbsp_trailing_bits
+     */
+    public boolean hasMoreRbspData() {
+        // the rbsp_stop_one_bit is the last set bit, only cabac_zero_words (00 00 03) may follow it
+        int last = mEnd - 1;
+        while (last >= mPosition && (mBuffer.get(last) == 0 || isEmulationPrevention(last))) {
+            last--;
+        }
+        if (last >= mPosition) {
+            // the stop bit is in a later byte: anything in front of it is data
+            return mBitsLeft > 0 || last > mPosition || (mBuffer.get(last) & 0xff) != 0x80;
+        }
+        if (mBitsLeft == 0) {
+            return false;
+        }
+        // the stop bit is the last set bit of the current byte, data is whatever comes before it
+        int remaining = mCurrent & ((1 << mBitsLeft) - 1);
+        return remaining != 0 && Integer.lowestOneBit(remaining) != 1 << (mBitsLeft - 1);
+    }
+
+    private boolean isEmulationPrevention(int index) {
+        return mBuffer.get(index) == 3 && index >= 2 && mBuffer.get(index - 1) == 0 && mBuffer.get(index - 2) == 0;
+    }
+}
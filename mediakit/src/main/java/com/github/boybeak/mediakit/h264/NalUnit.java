@@ -0,0 +1,159 @@
+package com.github.boybeak.mediakit.h264;
+
+import java.nio.ByteBuffer;
+
+/**
+ * H.264 NAL unit header fields and conversions between Annex-B (start codes, what MediaCodec and
+ * MediaExtractor use) and AVCC (length prefixes, what mp4 stores).
+ * <p>
+ * With 4 byte start codes and 4 byte lengths both forms have the same size, so the conversions
+ * can work in place; the copying variants handle 3 byte start codes and 1/2 byte lengths.
+ */
+public final class NalUnit {
+
+    public static final int TYPE_SLICE = 1;
+    public static final int TYPE_DPA = 2;
+    public static final int TYPE_IDR = 5;
+    public static final int TYPE_SEI = 6;
+    public static final int TYPE_SPS = 7;
+    public static final int TYPE_PPS = 8;
+    public static final int TYPE_AUD = 9;
+    public static final int TYPE_FILLER = 12;
+
+    private NalUnit() {
+    }
+
+    /**
+     * @param header the first byte of the NAL unit
+     */
+    public static int type(int header) {
+        return header & 0x1f;
+    }
+
+    /**
+     * @return nal_ref_idc, 0 for frames nothing else is predicted from
+     */
+    public static int refIdc(int header) {
+        return (header >> 5) & 0x03;
+    }
+
+    public static boolean isSlice(int type) {
+        return type >= TYPE_SLICE && type <= TYPE_IDR;
+    }
+
+    /**
+     * @return the position of the next 00 00 01 in [from, end), -1 if there is none. A 4 byte
+     * start code is found one byte later, at its 00 00 01.
+     */
+    public static int findStartCode(ByteBuffer buffer, int from, int end) {
+        int i = from;
+        while (i + 3 <= end) {
+            int third = buffer.get(i + 2) & 0xff;
+            if (third > 1) {
+                // cannot be part of a start code, skip ahead
+                i += 3;
+            } else if (third == 1 && buffer.get(i + 1) == 0 && buffer.get(i) == 0) {
+                return i;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return where the NAL unit that starts at {@code nalStart} ends: the next start code, not
+     * counting the leading zero of a 4 byte one, or {@code end}
+     */
+    public static int findNalEnd(ByteBuffer buffer, int nalStart, int end) {
+        int next = findStartCode(buffer, nalStart, end);
+        if (next < 0) {
+            return end;
+        }
+        return next > nalStart && buffer.get(next - 1) == 0 ? next - 1 : next;
+    }
+
+    /**
+     * Replaces each 4 byte start code of an Annex-B access unit with the big endian length of the
+     * NAL unit that follows it.
+     *
+     * @return false, leaving the buffer untouched, when a start code is not 4 bytes long
+     */
+    public static boolean annexBToAvccInPlace(ByteBuffer buffer, int offset, int size) {
+        int end = offset + size;
+        // validate first so a failure leaves the data as it was
+        for (int start = offset; start < end; ) {
+            if (start + 4 > end || buffer.getInt(start) != 1) {
+                return false;
+            }
+            start = findNalEnd(buffer, start + 4, end);
+        }
+        for (int start = offset; start < end; ) {
+            int nalEnd = findNalEnd(buffer, start + 4, end);
+            buffer.putInt(start, nalEnd - start - 4);
+            start = nalEnd;
+        }
+        return true;
+    }
+
+    /**
+     * Replaces each 4 byte length prefix with a start code.
+     */
+    public static void avccToAnnexBInPlace(ByteBuffer buffer, int offset, int size) {
+        int end = offset + size;
+        for (int position = offset; position + 4 <= end; ) {
+            int length = buffer.getInt(position);
+            buffer.putInt(position, 1);
+            position += 4 + length;
+        }
+    }
+
+    /**
+     * Copies the NAL units of an Annex-B buffer to {@code dst} at its position, each with a 4 byte
+     * length prefix. Leading bytes before the first start code are dropped.
+     *
+     * @return the number of bytes written
+     */
+    public static int annexBToAvcc(ByteBuffer src, int offset, int size, ByteBuffer dst) {
+        int end = offset + size;
+        int begin = dst.position();
+        ByteBuffer view = src.duplicate();
+        int startCode = findStartCode(src, offset, end);
+        while (startCode >= 0) {
+            int nalStart = startCode + 3;
+            int nalEnd = findNalEnd(src, nalStart, end);
+            dst.putInt(nalEnd - nalStart);
+            view.limit(nalEnd).position(nalStart);
+            dst.put(view);
+            startCode = findStartCode(src, nalEnd, end);
+        }
+        return dst.position() - begin;
+    }
+
+    /**
+     * Copies length prefixed NAL units to {@code dst} at its position, each behind a 4 byte start
+     * code.
+     *
+     * @param nalLengthSize 1, 2 or 4, from the avcC box
+     * @return the number of bytes written
+     */
+    public static int avccToAnnexB(ByteBuffer src, int offset, int size, int nalLengthSize, ByteBuffer dst) {
+        int end = offset + size;
+        int begin = dst.position();
+        ByteBuffer view = src.duplicate();
+        int position = offset;
+        while (position + nalLengthSize <= end) {
+            int length = 0;
+            for (int i = 0; i < nalLengthSize; i++) {
+                length = length << 8 | (src.get(position + i) & 0xff);
+            }
+            int payload = position + nalLengthSize;
+            int payloadEnd = Math.min(payload + length, end);
+            dst.putInt(1);
+            view.limit(payloadEnd).position(payload);
+            dst.put(view);
+            position = payloadEnd;
+        }
+        return dst.position() - begin;
+    }
+}
@@ -0,0 +1,40 @@
+package com.github.boybeak.mediakit.h264;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Splits the codec config buffer an AVC encoder emits (SPS and PPS with Annex-B start codes) into
+ * the csd-0 / csd-1 pair MediaFormat wants.
+ */
+public final class ParameterSets {
+
+    private ParameterSets() {
+    }
+
+    /**
+     * Cuts {@code csd} in front of its first PPS, found by NAL unit type: everything before it is
+     * csd-0 (SPS, and SPS extensions if any), the rest including the start code is csd-1 (PPS).
+     * 3 and 4 byte start codes both work, and so do several PPS.
+     *
+     * @return {csd-0, csd-1}, or null when there is no PPS after an SPS
+     */
+    public static byte[][] split(byte[] csd, int offset, int size) {
+        int end = offset + size;
+        ByteBuffer buffer = ByteBuffer.wrap(csd);
+        boolean sps = false;
+        int startCode = NalUnit.findStartCode(buffer, offset, end);
+        while (startCode >= 0 && startCode + 3 < end) {
+            int type = NalUnit.type(csd[startCode + 3]);
+            if (type == NalUnit.TYPE_SPS) {
+                sps = true;
+            } else if (type == NalUnit.TYPE_PPS && sps) {
+                // keep the leading zero of a 4 byte start code with the PPS
+                int cut = startCode > offset && csd[startCode - 1] == 0 ? startCode - 1 : startCode;
+                return new byte[][]{Arrays.copyOfRange(csd, offset, cut), Arrays.copyOfRange(csd, cut, end)};
+            }
+            startCode = NalUnit.findStartCode(buffer, startCode + 3, end);
+        }
+        return null;
+    }
+}
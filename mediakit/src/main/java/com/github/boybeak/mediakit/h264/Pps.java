@@ -0,0 +1,137 @@
+package com.github.boybeak.mediakit.h264;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The fields of an H.264 picture parameter set (7.3.2.2) that the slice header syntax depends on,
+ * plus the entropy coder, which tells CAVLC (Baseline) from CABAC (Main and up) streams.
+ */
+public final class Pps {
+
+    int id;
+    int spsId;
+    boolean entropyCodingMode;
+    boolean bottomFieldPicOrderInFramePresent;
+    int numSliceGroups;
+    int numRefIdxL0DefaultActive;
+    int numRefIdxL1DefaultActive;
+    boolean weightedPred;
+    int weightedBipredIdc;
+    boolean deblockingFilterControlPresent;
+    boolean redundantPicCntPresent;
+
+    private Pps() {
+    }
+
+    /**
+     * @param nal one PPS NAL unit, starting with its header byte, without start code
+     * @return null when it is not a PPS or can't be parsed
+     */
+    public static Pps parse(byte[] nal, int offset, int length) {
+        return parse(ByteBuffer.wrap(nal), offset, length);
+    }
+
+    public static Pps parse(ByteBuffer nal, int offset, int length) {
+        if (length < 2 || NalUnit.type(nal.get(offset)) != NalUnit.TYPE_PPS) {
+            return null;
+        }
+        BitReader in = new BitReader().reset(nal, offset + 1, length - 1);
+        Pps pps = new Pps();
+        try {
+            pps.id = in.readUe();
+            pps.spsId = in.readUe();
+            pps.entropyCodingMode = in.readBit();
+            pps.bottomFieldPicOrderInFramePresent = in.readBit();
+            pps.numSliceGroups = in.readUe() + 1;
+            if (pps.numSliceGroups > 1) {
+                skipSliceGroups(in, pps.numSliceGroups);
+            }
+            pps.numRefIdxL0DefaultActive = in.readUe() + 1;
+            pps.numRefIdxL1DefaultActive = in.readUe() + 1;
+            pps.weightedPred = in.readBit();
+            pps.weightedBipredIdc = in.readBits(2);
+            // pic_init_qp_minus26, pic_init_qs_minus26, chroma_qp_index_offset
+            in.readSe();
+            in.readSe();
+            in.readSe();
+            pps.deblockingFilterControlPresent = in.readBit();
+            // constrained_intra_pred_flag
+            in.readBit();
+            pps.redundantPicCntPresent = in.readBit();
+        } catch (IndexOutOfBoundsException | IllegalStateException e) {
+            return null;
+        }
+        return pps;
+    }
+
+    private static void skipSliceGroups(BitReader in, int numSliceGroups) {
+        int mapType = in.readUe();
+        if (mapType == 0) {
+            for (int i = 0; i < numSliceGroups; i++) {
+                // run_length_minus1
+                in.readUe();
+            }
+        } else if (mapType == 2) {
+            for (int i = 0; i < numSliceGroups - 1; i++) {
+                // top_left, bottom_right
+                in.readUe();
+                in.readUe();
+            }
+        } else if (mapType >= 3 && mapType <= 5) {
+            // slice_group_change_direction_flag, slice_group_change_rate_minus1
+            in.readBit();
+            in.readUe();
+        } else if (mapType == 6) {
+            int units = in.readUe() + 1;
+            int bits = 32 - Integer.numberOfLeadingZeros(numSliceGroups - 1);
+            in.skipBits(units * bits);
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getSpsId() {
+        return spsId;
+    }
+
+    /**
+     * @return true for CABAC, false for CAVLC
+     */
+    public boolean isEntropyCodingMode() {
+        return entropyCodingMode;
+    }
+
+    public boolean isBottomFieldPicOrderInFramePresent() {
+        return bottomFieldPicOrderInFramePresent;
+    }
+
+    public int getNumSliceGroups() {
+        return numSliceGroups;
+    }
+
+    public int getNumRefIdxL0DefaultActive() {
+        return numRefIdxL0DefaultActive;
+    }
+
+    public int getNumRefIdxL1DefaultActive() {
+        return numRefIdxL1DefaultActive;
+    }
+
+    public boolean isWeightedPred() {
+        return weightedPred;
+    }
+
+    public int getWeightedBipredIdc() {
+        return weightedBipredIdc;
+    }
+
+    public boolean isDeblockingFilterControlPresent() {
+        return deblockingFilterControlPresent;
+    }
+
+    public boolean isRedundantPicCntPresent() {
+        return redundantPicCntPresent;
+    }
+}
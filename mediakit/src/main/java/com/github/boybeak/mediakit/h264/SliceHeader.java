@@ -0,0 +1,147 @@
+package com.github.boybeak.mediakit.h264;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The leading fields of an H.264 slice header (7.3.3): enough to tell the frame type, whether the
+ * frame is a reference for others and where it sits in decode and presentation order, without
+ * decoding it.
+ * <p>
+ * One instance is meant to be reused for every slice of a stream, {@link #parse} only overwrites
+ * its fields.
+ */
+public final class SliceHeader {
+
+    public static final int TYPE_P = 0;
+    public static final int TYPE_B = 1;
+    public static final int TYPE_I = 2;
+    public static final int TYPE_SP = 3;
+    public static final int TYPE_SI = 4;
+
+    private final BitReader mReader = new BitReader();
+    private int mNalUnitType;
+    private int mNalRefIdc;
+    private int mFirstMbInSlice;
+    private int mSliceType;
+    private int mPpsId;
+    private int mFrameNum;
+    private boolean mFieldPic;
+    private boolean mBottomField;
+    private int mIdrPicId;
+    private int mPicOrderCntLsb;
+
+    /**
+     * @param nal a slice NAL unit, starting with its header byte, without start code
+     * @param sps the active SPS, needed for the widths of frame_num and pic_order_cnt_lsb
+     * @param pps the active PPS
+     * @return false when it is not a slice, refers to another PPS or is truncated
+     */
+    public boolean parse(ByteBuffer nal, int offset, int length, Sps sps, Pps pps) {
+        if (length < 2) {
+            return false;
+        }
+        int header = nal.get(offset) & 0xff;
+        int type = NalUnit.type(header);
+        if (!NalUnit.isSlice(type)) {
+            return false;
+        }
+        BitReader in = mReader.reset(nal, offset + 1, length - 1);
+        try {
+            int firstMbInSlice = in.readUe();
+            int sliceType = in.readUe() % 5;
+            int ppsId = in.readUe();
+            if (ppsId != pps.id) {
+                return false;
+            }
+            if (sps.separateColourPlane) {
+                // colour_plane_id
+                in.readBits(2);
+            }
+            int frameNum = in.readBits(sps.log2MaxFrameNum);
+            boolean fieldPic = false;
+            boolean bottomField = false;
+            if (!sps.frameMbsOnly) {
+                fieldPic = in.readBit();
+                if (fieldPic) {
+                    bottomField = in.readBit();
+                }
+            }
+            int idrPicId = type == NalUnit.TYPE_IDR ? in.readUe() : -1;
+            int picOrderCntLsb = sps.picOrderCntType == 0 ? in.readBits(sps.log2MaxPicOrderCntLsb) : -1;
+            mNalUnitType = type;
+            mNalRefIdc = NalUnit.refIdc(header);
+            mFirstMbInSlice = firstMbInSlice;
+            mSliceType = sliceType;
+            mPpsId = ppsId;
+            mFrameNum = frameNum;
+            mFieldPic = fieldPic;
+            mBottomField = bottomField;
+            mIdrPicId = idrPicId;
+            mPicOrderCntLsb = picOrderCntLsb;
+            return true;
+        } catch (IndexOutOfBoundsException | IllegalStateException e) {
+            return false;
+        }
+    }
+
+    public int getNalUnitType() {
+        return mNalUnitType;
+    }
+
+    /**
+     * @return nal_ref_idc, 0 when no other frame references this one, so it can be dropped
+     * without breaking decoding
+     */
+    public int getNalRefIdc() {
+        return mNalRefIdc;
+    }
+
+    public boolean isReference() {
+        return mNalRefIdc != 0;
+    }
+
+    public boolean isIdr() {
+        return mNalUnitType == NalUnit.TYPE_IDR;
+    }
+
+    public int getFirstMbInSlice() {
+        return mFirstMbInSlice;
+    }
+
+    /**
+     * @return one of {@link #TYPE_P}, {@link #TYPE_B}, {@link #TYPE_I}, {@link #TYPE_SP}, {@link #TYPE_SI}
+     */
+    public int getSliceType() {
+        return mSliceType;
+    }
+
+    public int getPpsId() {
+        return mPpsId;
+    }
+
+    public int getFrameNum() {
+        return mFrameNum;
+    }
+
+    public boolean isFieldPic() {
+        return mFieldPic;
+    }
+
+    public boolean isBottomField() {
+        return mBottomField;
+    }
+
+    /**
+     * @return idr_pic_id, -1 for non IDR slices
+     */
+    public int getIdrPicId() {
+        return mIdrPicId;
+    }
+
+    /**
+     * @return pic_order_cnt_lsb, -1 when the SPS uses picture order count type 1 or 2
+     */
+    public int getPicOrderCntLsb() {
+        return mPicOrderCntLsb;
+    }
+}
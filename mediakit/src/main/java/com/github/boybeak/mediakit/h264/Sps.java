@@ -0,0 +1,368 @@
+package com.github.boybeak.mediakit.h264;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The fields of an H.264 sequence parameter set (7.3.2.1) needed to size a decoder, describe a
+ * track and parse slice headers: profile and level, coded and cropped resolution, the frame_num and
+ * picture order count layout, and the VUI sample aspect ratio and timing.
+ */
+public final class Sps {
+
+    private static final int EXTENDED_SAR = 255;
+    private static final int[][] ASPECT_RATIOS = {
+            {0, 0}, {1, 1}, {12, 11}, {10, 11}, {16, 11}, {40, 33}, {24, 11}, {20, 11}, {32, 11},
+            {80, 33}, {18, 11}, {15, 11}, {64, 33}, {160, 99}, {4, 3}, {3, 2}, {2, 1}
+    };
+
+    int profileIdc;
+    int constraintFlags;
+    int levelIdc;
+    int id;
+    int chromaFormatIdc = 1;
+    boolean separateColourPlane;
+    int bitDepthLuma = 8;
+    int bitDepthChroma = 8;
+    int log2MaxFrameNum;
+    int picOrderCntType;
+    int log2MaxPicOrderCntLsb;
+    boolean deltaPicOrderAlwaysZero;
+    int maxNumRefFrames;
+    boolean frameMbsOnly;
+    int codedWidth;
+    int codedHeight;
+    int cropLeft;
+    int cropRight;
+    int cropTop;
+    int cropBottom;
+    int sarWidth = 1;
+    int sarHeight = 1;
+    boolean timingInfoPresent;
+    long numUnitsInTick;
+    long timeScale;
+    boolean fixedFrameRate;
+
+    private Sps() {
+    }
+
+    /**
+     * @param nal one SPS NAL unit, starting with its header byte, without start code
+     * @return null when it is not an SPS or can't be parsed
+     */
+    public static Sps parse(byte[] nal, int offset, int length) {
+        return parse(ByteBuffer.wrap(nal), offset, length);
+    }
+
+    public static Sps parse(ByteBuffer nal, int offset, int length) {
+        if (length < 4 || NalUnit.type(nal.get(offset)) != NalUnit.TYPE_SPS) {
+            return null;
+        }
+        BitReader in = new BitReader().reset(nal, offset + 1, length - 1);
+        Sps sps = new Sps();
+        try {
+            sps.profileIdc = in.readBits(8);
+            sps.constraintFlags = in.readBits(8);
+            sps.levelIdc = in.readBits(8);
+            sps.id = in.readUe();
+            if (hasChromaInfo(sps.profileIdc)) {
+                sps.chromaFormatIdc = in.readUe();
+                if (sps.chromaFormatIdc == 3) {
+                    sps.separateColourPlane = in.readBit();
+                }
+                sps.bitDepthLuma = in.readUe() + 8;
+                sps.bitDepthChroma = in.readUe() + 8;
+                // qpprime_y_zero_transform_bypass_flag
+                in.readBit();
+                if (in.readBit()) {
+                    skipScalingLists(in, sps.chromaFormatIdc != 3 ? 8 : 12);
+                }
+            }
+            sps.log2MaxFrameNum = in.readUe() + 4;
+            sps.picOrderCntType = in.readUe();
+            if (sps.picOrderCntType == 0) {
+                sps.log2MaxPicOrderCntLsb = in.readUe() + 4;
+            } else if (sps.picOrderCntType == 1) {
+                sps.deltaPicOrderAlwaysZero = in.readBit();
+                // offset_for_non_ref_pic, offset_for_top_to_bottom_field
+                in.readSe();
+                in.readSe();
+                int cycle = in.readUe();
+                for (int i = 0; i < cycle; i++) {
+                    in.readSe();
+                }
+            }
+            sps.maxNumRefFrames = in.readUe();
+            // gaps_in_frame_num_value_allowed_flag
+            in.readBit();
+            int widthInMbs = in.readUe() + 1;
+            int heightInMapUnits = in.readUe() + 1;
+            sps.frameMbsOnly = in.readBit();
+            if (!sps.frameMbsOnly) {
+                // mb_adaptive_frame_field_flag
+                in.readBit();
+            }
+            // direct_8x8_inference_flag
+            in.readBit();
+            sps.codedWidth = widthInMbs * 16;
+            sps.codedHeight = heightInMapUnits * 16 * (sps.frameMbsOnly ? 1 : 2);
+            if (in.readBit()) {
+                sps.cropLeft = in.readUe();
+                sps.cropRight = in.readUe();
+                sps.cropTop = in.readUe();
+                sps.cropBottom = in.readUe();
+            }
+            if (in.readBit()) {
+                sps.parseVui(in);
+            }
+        } catch (IndexOutOfBoundsException | IllegalStateException e) {
+            // a truncated VUI still leaves the resolution usable
+            if (sps.codedWidth == 0) {
+                return null;
+            }
+        }
+        return sps;
+    }
+
+    /**
+     * Finds the first SPS in codec specific data: Annex-B (csd-0 from MediaExtractor or an
+     * encoder) or a bare NAL unit.
+     *
+     * @return null when there is none
+     */
+    public static Sps fromCsd(byte[] csd) {
+        if (csd == null || csd.length == 0) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(csd);
+        int startCode = NalUnit.findStartCode(buffer, 0, csd.length);
+        if (startCode < 0) {
+            return parse(buffer, 0, csd.length);
+        }
+        while (startCode >= 0) {
+            int nalStart = startCode + 3;
+            int nalEnd = NalUnit.findNalEnd(buffer, nalStart, csd.length);
+            if (nalEnd > nalStart && NalUnit.type(csd[nalStart]) == NalUnit.TYPE_SPS) {
+                return parse(buffer, nalStart, nalEnd - nalStart);
+            }
+            startCode = NalUnit.findStartCode(buffer, nalEnd, csd.length);
+        }
+        return null;
+    }
+
+    private static boolean hasChromaInfo(int profileIdc) {
+        switch (profileIdc) {
+            case 100:
+            case 110:
+            case 122:
+            case 244:
+            case 44:
+            case 83:
+            case 86:
+            case 118:
+            case 128:
+            case 138:
+            case 139:
+            case 134:
+            case 135:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void skipScalingLists(BitReader in, int count) {
+        for (int i = 0; i < count; i++) {
+            if (!in.readBit()) {
+                continue;
+            }
+            int size = i < 6 ? 16 : 64;
+            int last = 8;
+            int next = 8;
+            for (int j = 0; j < size; j++) {
+                if (next != 0) {
+                    next = (last + in.readSe() + 256) % 256;
+                }
+                last = next == 0 ? last : next;
+            }
+        }
+    }
+
+    private void parseVui(BitReader in) {
+        if (in.readBit()) {
+            int aspectRatioIdc = in.readBits(8);
+            if (aspectRatioIdc == EXTENDED_SAR) {
+                sarWidth = in.readBits(16);
+                sarHeight = in.readBits(16);
+            } else if (aspectRatioIdc < ASPECT_RATIOS.length && aspectRatioIdc > 0) {
+                sarWidth = ASPECT_RATIOS[aspectRatioIdc][0];
+                sarHeight = ASPECT_RATIOS[aspectRatioIdc][1];
+            }
+        }
+        if (in.readBit()) {
+            // overscan_appropriate_flag
+            in.readBit();
+        }
+        if (in.readBit()) {
+            // video_format, video_full_range_flag
+            in.readBits(4);
+            if (in.readBit()) {
+                // colour_primaries, transfer_characteristics, matrix_coefficients
+                in.readBits(24);
+            }
+        }
+        if (in.readBit()) {
+            // chroma_sample_loc_type_top_field, bottom_field
+            in.readUe();
+            in.readUe();
+        }
+        timingInfoPresent = in.readBit();
+        if (timingInfoPresent) {
+            numUnitsInTick = in.readBits(32) & 0xffffffffL;
+            timeScale = in.readBits(32) & 0xffffffffL;
+            fixedFrameRate = in.readBit();
+        }
+    }
+
+    public int getProfileIdc() {
+        return profileIdc;
+    }
+
+    /**
+     * @return constraint_set0..5 flags and the 2 reserved bits, as the byte following profile_idc
+     */
+    public int getConstraintFlags() {
+        return constraintFlags;
+    }
+
+    /**
+     * @return level_idc, ten times the level, e.g. 31 for 3.1
+     */
+    public int getLevelIdc() {
+        return levelIdc;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getChromaFormatIdc() {
+        return chromaFormatIdc;
+    }
+
+    public int getBitDepthLuma() {
+        return bitDepthLuma;
+    }
+
+    public int getBitDepthChroma() {
+        return bitDepthChroma;
+    }
+
+    public int getLog2MaxFrameNum() {
+        return log2MaxFrameNum;
+    }
+
+    public int getPicOrderCntType() {
+        return picOrderCntType;
+    }
+
+    public int getLog2MaxPicOrderCntLsb() {
+        return log2MaxPicOrderCntLsb;
+    }
+
+    public boolean isDeltaPicOrderAlwaysZero() {
+        return deltaPicOrderAlwaysZero;
+    }
+
+    public int getMaxNumRefFrames() {
+        return maxNumRefFrames;
+    }
+
+    public boolean isFrameMbsOnly() {
+        return frameMbsOnly;
+    }
+
+    public boolean isSeparateColourPlane() {
+        return separateColourPlane;
+    }
+
+    /**
+     * @return width in whole macroblocks, before cropping
+     */
+    public int getCodedWidth() {
+        return codedWidth;
+    }
+
+    public int getCodedHeight() {
+        return codedHeight;
+    }
+
+    /**
+     * @return the frame_crop offsets in luma samples: left, right, top, bottom
+     */
+    public int[] getCropRect() {
+        int unitX = cropUnitX();
+        int unitY = cropUnitY();
+        return new int[]{cropLeft * unitX, cropRight * unitX, cropTop * unitY, cropBottom * unitY};
+    }
+
+    /**
+     * @return the width after cropping, what players show and MediaMetadataRetriever reports
+     */
+    public int getWidth() {
+        return codedWidth - (cropLeft + cropRight) * cropUnitX();
+    }
+
+    public int getHeight() {
+        return codedHeight - (cropTop + cropBottom) * cropUnitY();
+    }
+
+    private int cropUnitX() {
+        return chromaFormatIdc == 1 || chromaFormatIdc == 2 ? (separateColourPlane ? 1 : 2) : 1;
+    }
+
+    private int cropUnitY() {
+        int subHeight = chromaFormatIdc == 1 && !separateColourPlane ? 2 : 1;
+        return subHeight * (frameMbsOnly ? 1 : 2);
+    }
+
+    public int getSarWidth() {
+        return sarWidth;
+    }
+
+    public int getSarHeight() {
+        return sarHeight;
+    }
+
+    public boolean isTimingInfoPresent() {
+        return timingInfoPresent;
+    }
+
+    public long getNumUnitsInTick() {
+        return numUnitsInTick;
+    }
+
+    public long getTimeScale() {
+        return timeScale;
+    }
+
+    public boolean isFixedFrameRate() {
+        return fixedFrameRate;
+    }
+
+    /**
+     * @return time_scale / (2 * num_units_in_tick), the frame rate the VUI declares, 0 without
+     * timing info. For variable frame rate streams it is only an upper bound.
+     */
+    public float getFrameRate() {
+        if (!timingInfoPresent || numUnitsInTick == 0) {
+            return 0;
+        }
+        return timeScale / (2f * numUnitsInTick);
+    }
+
+    @Override
+    public String toString() {
+        return "Sps{profile=" + profileIdc + ", level=" + levelIdc + ", " + getWidth() + "x" + getHeight()
+                + (timingInfoPresent ? ", " + getFrameRate() + "fps" : "") + "}";
+    }
+}
@@ -0,0 +1,132 @@
+package com.github.boybeak.mediakit.mp4;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Big-endian box builder backed by a growable heap buffer. Boxes are opened with
+ * {@link #start(int)} and their 32 bit size is patched in by {@link #end()}.
+ */
+final class BoxWriter {
+
+    private ByteBuffer mBuffer;
+    private int[] mStarts = new int[16];
+    private int mDepth;
+
+    BoxWriter(int capacity) {
+        mBuffer = ByteBuffer.allocate(capacity);
+    }
+
+    BoxWriter start(int type) {
+        if (mDepth == mStarts.length) {
+            mStarts = Arrays.copyOf(mStarts, mDepth * 2);
+        }
+        mStarts[mDepth++] = mBuffer.position();
+        putInt(0);
+        putInt(type);
+        return this;
+    }
+
+    BoxWriter startFull(int type, int version, int flags) {
+        start(type);
+        putInt((version << 24) | (flags & 0xffffff));
+        return this;
+    }
+
+    BoxWriter end() {
+        int start = mStarts[--mDepth];
+        mBuffer.putInt(start, mBuffer.position() - start);
+        return this;
+    }
+
+    BoxWriter putByte(int value) {
+        ensure(1);
+        mBuffer.put((byte) value);
+        return this;
+    }
+
+    BoxWriter putShort(int value) {
+        ensure(2);
+        mBuffer.putShort((short) value);
+        return this;
+    }
+
+    BoxWriter putInt(int value) {
+        ensure(4);
+        mBuffer.putInt(value);
+        return this;
+    }
+
+    BoxWriter putLong(long value) {
+        ensure(8);
+        mBuffer.putLong(value);
+        return this;
+    }
+
+    BoxWriter putBytes(byte[] value) {
+        return putBytes(value, 0, value.length);
+    }
+
+    BoxWriter putBytes(byte[] value, int offset, int length) {
+        ensure(length);
+        mBuffer.put(value, offset, length);
+        return this;
+    }
+
+    BoxWriter putZeros(int count) {
+        ensure(count);
+        for (int i = 0; i < count; i++) {
+            mBuffer.put((byte) 0);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a NUL terminated string, as used by hdlr.
+     */
+    BoxWriter putCString(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            putByte(value.charAt(i));
+        }
+        return putByte(0);
+    }
+
+    int position() {
+        return mBuffer.position();
+    }
+
+    /**
+     * Overwrites an int written earlier, for offsets that are only known later (trun data_offset).
+     */
+    void setInt(int position, int value) {
+        mBuffer.putInt(position, value);
+    }
+
+    void reset() {
+        mBuffer.clear();
+        mDepth = 0;
+    }
+
+    /**
+     * @return a read-only view of what has been written so far
+     */
+    ByteBuffer toBuffer() {
+        if (mDepth != 0) {
+            throw new IllegalStateException(mDepth + " boxes are still open");
+        }
+        ByteBuffer view = mBuffer.duplicate();
+        view.flip();
+        return view.asReadOnlyBuffer();
+    }
+
+    private void ensure(int count) {
+        if (mBuffer.remaining() >= count) {
+            return;
+        }
+        int capacity = Math.max(mBuffer.capacity() * 2, mBuffer.position() + count);
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        mBuffer.flip();
+        bigger.put(mBuffer);
+        mBuffer = bigger;
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.boybeak.mediakit.mp4;
+
+/**
+ * ISO-BMFF box types used by the demuxer and the muxers, as big-endian ints.
+ */
+final class Boxes {
+
+    static final int FTYP = fourcc("ftyp");
+    static final int MOOV = fourcc("moov");
+    static final int MVHD = fourcc("mvhd");
+    static final int MVEX = fourcc("mvex");
+    static final int TREX = fourcc("trex");
+    static final int TRAK = fourcc("trak");
+    static final int TKHD = fourcc("tkhd");
+    static final int EDTS = fourcc("edts");
+    static final int ELST = fourcc("elst");
+    static final int MDIA = fourcc("mdia");
+    static final int MDHD = fourcc("mdhd");
+    static final int HDLR = fourcc("hdlr");
+    static final int MINF = fourcc("minf");
+    static final int VMHD = fourcc("vmhd");
+    static final int SMHD = fourcc("smhd");
+    static final int DINF = fourcc("dinf");
+    static final int DREF = fourcc("dref");
+    static final int URL = fourcc("url ");
+    static final int STBL = fourcc("stbl");
+    static final int STSD = fourcc("stsd");
+    static final int STTS = fourcc("stts");
+    static final int CTTS = fourcc("ctts");
+    static final int STSS = fourcc("stss");
+    static final int STSC = fourcc("stsc");
+    static final int STSZ = fourcc("stsz");
+    static final int STZ2 = fourcc("stz2");
+    static final int STCO = fourcc("stco");
+    static final int CO64 = fourcc("co64");
+    static final int MDAT = fourcc("mdat");
+    static final int FREE = fourcc("free");
+    static final int MOOF = fourcc("moof");
+    static final int MFHD = fourcc("mfhd");
+    static final int TRAF = fourcc("traf");
+    static final int TFHD = fourcc("tfhd");
+    static final int TFDT = fourcc("tfdt");
+    static final int TRUN = fourcc("trun");
+
+    static final int AVC1 = fourcc("avc1");
+    static final int AVC3 = fourcc("avc3");
+    static final int AVCC = fourcc("avcC");
+    static final int HVC1 = fourcc("hvc1");
+    static final int HEV1 = fourcc("hev1");
+    static final int HVCC = fourcc("hvcC");
+    static final int MP4V = fourcc("mp4v");
+    static final int S263 = fourcc("s263");
+    static final int MP4A = fourcc("mp4a");
+    static final int ESDS = fourcc("esds");
+    static final int OPUS = fourcc("Opus");
+    static final int DOPS = fourcc("dOps");
+    static final int SAMR = fourcc("samr");
+    static final int SAWB = fourcc("sawb");
+    static final int DAMR = fourcc("damr");
+    static final int WAVE = fourcc("wave");
+
+    static final int VIDE = fourcc("vide");
+    static final int SOUN = fourcc("soun");
+
+    static final int ISOM = fourcc("isom");
+    static final int ISO2 = fourcc("iso2");
+    static final int MP41 = fourcc("mp41");
+
+    private Boxes() {
+    }
+
+    static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    static String name(int type) {
+        return new String(new char[]{
+                (char) ((type >>> 24) & 0xff), (char) ((type >>> 16) & 0xff),
+                (char) ((type >>> 8) & 0xff), (char) (type & 0xff)});
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.boybeak.mediakit.mp4;
+
+import java.util.Arrays;
+
+/**
+ * Append-only long array stored as an int delta against a long base every {@link #BLOCK_SIZE} entries.
+ * Offsets and timestamps of neighbouring samples are close to each other, so this keeps multi-hour
+ * tables at ~4 bytes per entry while still giving O(1) random access. Falls back to a plain long[]
+ * the first time a delta does not fit in an int.
+ */
+final class DeltaLongArray {
+
+    private static final int BLOCK_SHIFT = 6;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+    private long[] mBases;
+    private int[] mDeltas;
+    private long[] mWide;
+    private int mSize;
+
+    DeltaLongArray(int capacity) {
+        capacity = Math.max(capacity, 1);
+        mDeltas = new int[capacity];
+        mBases = new long[(capacity >> BLOCK_SHIFT) + 1];
+    }
+
+    void add(long value) {
+        int index = mSize;
+        if (mWide != null) {
+            if (index == mWide.length) {
+                mWide = Arrays.copyOf(mWide, index * 2);
+            }
+            mWide[index] = value;
+            mSize++;
+            return;
+        }
+        if (index == mDeltas.length) {
+            mDeltas = Arrays.copyOf(mDeltas, index * 2);
+            mBases = Arrays.copyOf(mBases, (mDeltas.length >> BLOCK_SHIFT) + 1);
+        }
+        int block = index >> BLOCK_SHIFT;
+        if ((index & BLOCK_MASK) == 0) {
+            mBases[block] = value;
+        }
+        long delta = value - mBases[block];
+        if (delta < Integer.MIN_VALUE || delta > Integer.MAX_VALUE) {
+            widen();
+            add(value);
+            return;
+        }
+        mDeltas[index] = (int) delta;
+        mSize++;
+    }
+
+    long get(int index) {
+        if (mWide != null) {
+            return mWide[index];
+        }
+        return mBases[index >> BLOCK_SHIFT] + mDeltas[index];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Releases the unused tail once the table is complete.
+     */
+    void trim() {
+        if (mWide != null) {
+            mWide = Arrays.copyOf(mWide, Math.max(mSize, 1));
+        } else if (mDeltas.length > mSize) {
+            mDeltas = Arrays.copyOf(mDeltas, Math.max(mSize, 1));
+            mBases = Arrays.copyOf(mBases, (mDeltas.length >> BLOCK_SHIFT) + 1);
+        }
+    }
+
+    private void widen() {
+        long[] wide = new long[Math.max(mDeltas.length, 1)];
+        for (int i = 0; i < mSize; i++) {
+            wide[i] = get(i);
+        }
+        mWide = wide;
+        mDeltas = null;
+        mBases = null;
+    }
+}
@@ -0,0 +1,436 @@
+package com.github.boybeak.mediakit.mp4;
+
+import com.github.boybeak.mediakit.MuxerBackend;
+import com.github.boybeak.mediakit.TrackFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fragmented mp4 (fMP4 / CMAF style) muxer. An init segment (ftyp + moov with mvex) is written
+ * before the first fragment, then the buffered samples are flushed as a moof + mdat pair every
+ * {@link #setFragmentDurationUs(long)} or every {@link #setKeyFramesPerFragment(int)} video key
+ * frames. Everything written so far is playable, and a crash loses at most the fragment in memory.
+ * <p>
+ * Fragments are cut right before a video key frame, or before any sample when there is no video
+ * track. Like {@link Mp4Muxer} calls are synchronized and AVC/HEVC samples may be Annex-B.
+ */
+public class FragmentedMp4Muxer implements MuxerBackend {
+
+    /**
+     * Told about each segment once it is completely written to the file.
+     */
+    public interface FragmentListener {
+        /**
+         * @param sequenceNumber 0 for the init segment (ftyp + moov), then 1, 2, 3... for fragments
+         * @param offset         file offset of the segment
+         * @param size           size of the segment in bytes
+         */
+        void onFragmentWritten(int sequenceNumber, long offset, long size);
+    }
+
+    public static final long DEFAULT_FRAGMENT_DURATION_US = 2000000L;
+
+    private static final int STATE_INITIALIZED = 0;
+    private static final int STATE_STARTED = 1;
+    private static final int STATE_STOPPED = 2;
+    private static final int STATE_RELEASED = 3;
+
+    /**
+     * Flush once this much sample data is buffered even if the duration or key frame count is not
+     * reached yet, so a track that runs ahead (audio is copied much faster than video is encoded)
+     * can't pile up in memory. With a video track the cut still waits for the next video key frame,
+     * so a long GOP at a high bitrate can buffer more than this.
+     */
+    private static final int MAX_FRAGMENT_BYTES = 8 * 1024 * 1024;
+
+    // trun flags: data-offset, sample duration, size, flags and composition time offset present
+    private static final int TRUN_FLAGS = 0x000001 | 0x000100 | 0x000200 | 0x000400 | 0x000800;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final List<FragmentTrack> mTracks = new ArrayList<>();
+    private final List<MuxerTrack> mMuxerTracks = new ArrayList<>();
+    private int mState = STATE_INITIALIZED;
+    private int mOrientation;
+    private long mFragmentDurationUs = DEFAULT_FRAGMENT_DURATION_US;
+    private int mKeyFramesPerFragment;
+    private FragmentListener mListener;
+    /**
+     * {@link #MAX_FRAGMENT_BYTES}, package-private so tests can hit the cap without buffering 8 MB.
+     */
+    int mMaxFragmentBytes = MAX_FRAGMENT_BYTES;
+
+    private boolean mInitWritten;
+    private long mPosition;
+    private int mSequenceNumber;
+    private int mBufferedBytes;
+    private int mKeyFramesInFragment;
+    private long mFragmentStartUs = -1;
+    private final BoxWriter mMoof = new BoxWriter(4096);
+    private final IntArray mNalRanges = new IntArray(32);
+
+    public FragmentedMp4Muxer(String path) throws IOException {
+        this(new File(path));
+    }
+
+    public FragmentedMp4Muxer(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+    }
+
+    /**
+     * Cut a fragment once it is at least this long, 2 seconds by default, 0 to only cut on key frames.
+     */
+    public void setFragmentDurationUs(long fragmentDurationUs) {
+        checkState(STATE_INITIALIZED);
+        mFragmentDurationUs = fragmentDurationUs;
+    }
+
+    /**
+     * Cut a fragment every {@code keyFrames} video key frames, 0 (default) to only cut on duration.
+     */
+    public void setKeyFramesPerFragment(int keyFrames) {
+        checkState(STATE_INITIALIZED);
+        mKeyFramesPerFragment = keyFrames;
+    }
+
+    public void setFragmentListener(FragmentListener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public synchronized int addTrack(TrackFormat format) {
+        checkState(STATE_INITIALIZED);
+        SampleEntries.checkSupported(format);
+        MuxerTrack track = new MuxerTrack(mTracks.size() + 1, format.copy());
+        mMuxerTracks.add(track);
+        mTracks.add(new FragmentTrack(track));
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        checkState(STATE_INITIALIZED);
+        if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270) {
+            throw new IllegalArgumentException("Unsupported angle: " + degrees);
+        }
+        mOrientation = degrees;
+    }
+
+    @Override
+    public synchronized void start() {
+        checkState(STATE_INITIALIZED);
+        if (mTracks.isEmpty()) {
+            throw new IllegalStateException("no track added");
+        }
+        // the init segment waits for the first fragment, codec config buffers may still fill in csd
+        mState = STATE_STARTED;
+    }
+
+    @Override
+    public synchronized void writeSampleData(int trackIndex, ByteBuffer data, int offset, int size,
+                                             long presentationTimeUs, int flags) throws IOException {
+        checkState(STATE_STARTED);
+        if (trackIndex < 0 || trackIndex >= mTracks.size()) {
+            throw new IllegalArgumentException("trackIndex is invalid: " + trackIndex);
+        }
+        FragmentTrack track = mTracks.get(trackIndex);
+        if ((flags & FLAG_CODEC_CONFIG) != 0) {
+            byte[] config = new byte[size];
+            ByteBuffer view = data.duplicate();
+            view.limit(offset + size).position(offset);
+            view.get(config);
+            SampleEntries.applyCodecConfig(track.track.format, config);
+            return;
+        }
+        if (size <= 0) {
+            return;
+        }
+        boolean video = track.track.format.isVideo();
+        boolean sync = (flags & FLAG_KEY_FRAME) != 0 || !video;
+        if (shouldFlush(video, sync, presentationTimeUs)) {
+            flushFragment();
+        }
+        if (mFragmentStartUs < 0) {
+            mFragmentStartUs = presentationTimeUs;
+        }
+        if (video && sync) {
+            mKeyFramesInFragment++;
+        }
+        int before = track.data.position();
+        track.append(data, offset, size, mNalRanges);
+        mBufferedBytes += track.data.position() - before;
+        track.addSample(track.data.position() - before, track.track.toTicks(presentationTimeUs), sync);
+    }
+
+    private boolean shouldFlush(boolean video, boolean sync, long presentationTimeUs) {
+        if (mBufferedBytes == 0 || !sync) {
+            return false;
+        }
+        // every fragment has to start with a video key frame, audio samples never cut one
+        if (!video && hasVideoTrack()) {
+            return false;
+        }
+        if (mBufferedBytes >= mMaxFragmentBytes) {
+            return true;
+        }
+        if (mKeyFramesPerFragment > 0 && mKeyFramesInFragment >= mKeyFramesPerFragment) {
+            return true;
+        }
+        return mFragmentDurationUs > 0 && presentationTimeUs - mFragmentStartUs >= mFragmentDurationUs;
+    }
+
+    private boolean hasVideoTrack() {
+        for (MuxerTrack track : mMuxerTracks) {
+            if (track.format.isVideo()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeInitSegment() throws IOException {
+        BoxWriter w = new BoxWriter(4096);
+        MoovWriter.writeFtyp(w, true);
+        long creationTime = MoovWriter.now();
+        w.start(Boxes.MOOV);
+        MoovWriter.writeMvhd(w, creationTime, 0, mTracks.size() + 1);
+        for (MuxerTrack track : mMuxerTracks) {
+            MoovWriter.writeTrak(w, track, creationTime, mOrientation, false);
+        }
+        MoovWriter.writeMvex(w, mMuxerTracks);
+        w.end();
+        writeSegment(w.toBuffer());
+        mInitWritten = true;
+    }
+
+    private void flushFragment() throws IOException {
+        if (!mInitWritten) {
+            writeInitSegment();
+        }
+        if (mBufferedBytes == 0) {
+            return;
+        }
+        mSequenceNumber++;
+        BoxWriter w = mMoof;
+        w.reset();
+        w.start(Boxes.MOOF);
+        w.startFull(Boxes.MFHD, 0, 0).putInt(mSequenceNumber).end();
+        List<Integer> dataOffsetPositions = new ArrayList<>();
+        for (FragmentTrack track : mTracks) {
+            if (track.sizes.size() == 0) {
+                continue;
+            }
+            track.computeTiming();
+            w.start(Boxes.TRAF);
+            w.startFull(Boxes.TFHD, 0, TFHD_DEFAULT_BASE_IS_MOOF).putInt(track.track.trackId).end();
+            w.startFull(Boxes.TFDT, 1, 0).putLong(track.baseDecodeTime).end();
+            w.startFull(Boxes.TRUN, 1, TRUN_FLAGS).putInt(track.sizes.size());
+            dataOffsetPositions.add(w.position());
+            w.putInt(0);
+            for (int i = 0; i < track.sizes.size(); i++) {
+                w.putInt(track.durations.get(i))
+                        .putInt(track.sizes.get(i))
+                        .putInt(track.syncs.get(i) != 0 ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC)
+                        .putInt(track.compositionOffsets.get(i));
+            }
+            w.end();    // trun
+            w.end();    // traf
+        }
+        w.end();        // moof
+        int moofSize = w.position();
+        // data offsets are relative to the start of the moof, samples start after the 8 byte mdat header
+        int dataOffset = moofSize + 8;
+        int n = 0;
+        for (FragmentTrack track : mTracks) {
+            if (track.sizes.size() == 0) {
+                continue;
+            }
+            w.setInt(dataOffsetPositions.get(n++), dataOffset);
+            dataOffset += track.data.position();
+        }
+        w.putInt(8 + mBufferedBytes).putInt(Boxes.MDAT);
+        ByteBuffer header = w.toBuffer();
+        long fragmentOffset = mPosition;
+        writeFully(header);
+        for (FragmentTrack track : mTracks) {
+            if (track.sizes.size() == 0) {
+                continue;
+            }
+            track.data.flip();
+            writeFully(track.data);
+            track.clear();
+        }
+        mBufferedBytes = 0;
+        mKeyFramesInFragment = 0;
+        mFragmentStartUs = -1;
+        if (mListener != null) {
+            mListener.onFragmentWritten(mSequenceNumber, fragmentOffset, mPosition - fragmentOffset);
+        }
+    }
+
+    private void writeSegment(ByteBuffer segment) throws IOException {
+        long offset = mPosition;
+        writeFully(segment);
+        if (mListener != null) {
+            mListener.onFragmentWritten(0, offset, mPosition - offset);
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mPosition += mChannel.write(buffer, mPosition);
+        }
+    }
+
+    @Override
+    public synchronized void stop() throws IOException {
+        checkState(STATE_STARTED);
+        mState = STATE_STOPPED;
+        try {
+            flushFragment();
+            mChannel.truncate(mPosition);
+        } finally {
+            closeFile();
+        }
+    }
+
+    /**
+     * Flushes the last fragment first if {@link #stop()} was not called, like MediaMuxer.release() does.
+     */
+    @Override
+    public synchronized void release() {
+        if (mState == STATE_RELEASED) {
+            return;
+        }
+        if (mState == STATE_STARTED) {
+            try {
+                stop();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else if (mState == STATE_INITIALIZED) {
+            closeFile();
+        }
+        mState = STATE_RELEASED;
+    }
+
+    private void closeFile() {
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void checkState(int expected) {
+        if (mState != expected) {
+            throw new IllegalStateException("FragmentedMp4Muxer is in state " + mState + ", expected " + expected);
+        }
+    }
+
+    /**
+     * Samples of one track buffered for the current fragment.
+     */
+    private static final class FragmentTrack {
+        final MuxerTrack track;
+        ByteBuffer data = ByteBuffer.allocate(64 * 1024);
+        final IntArray sizes = new IntArray(64);
+        final LongArray presentationTimes = new LongArray(64);
+        final IntArray syncs = new IntArray(64);
+        final IntArray durations = new IntArray(64);
+        final IntArray compositionOffsets = new IntArray(64);
+        long baseDecodeTime;
+        private long mLastDecodeTime = Long.MIN_VALUE;
+        private int mLastDuration;
+        private long[] mSorted = new long[64];
+
+        FragmentTrack(MuxerTrack track) {
+            this.track = track;
+        }
+
+        void append(ByteBuffer src, int offset, int size, IntArray nalRanges) {
+            ByteBuffer sample = src.duplicate();
+            sample.limit(offset + size).position(offset);
+            if (track.nalFormat && NalUnits.startCodeLength(sample, offset, offset + size) > 0) {
+                NalUnits.find(sample, offset, size, nalRanges);
+                ensure(NalUnits.lengthPrefixedSize(nalRanges));
+                NalUnits.writeLengthPrefixed(sample, nalRanges, data);
+            } else {
+                ensure(size);
+                data.put(sample);
+            }
+        }
+
+        private void ensure(int count) {
+            if (data.remaining() >= count) {
+                return;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(data.capacity() * 2, data.position() + count));
+            data.flip();
+            bigger.put(data);
+            data = bigger;
+        }
+
+        void addSample(int size, long ptsTicks, boolean sync) {
+            sizes.add(size);
+            presentationTimes.add(ptsTicks);
+            syncs.add(sync ? 1 : 0);
+        }
+
+        /**
+         * Decode times are the sorted presentation times of the fragment, kept strictly increasing
+         * across fragments; composition offsets are signed (trun version 1).
+         */
+        void computeTiming() {
+            int count = sizes.size();
+            if (mSorted.length < count) {
+                mSorted = new long[count * 2];
+            }
+            for (int i = 0; i < count; i++) {
+                mSorted[i] = presentationTimes.get(i);
+            }
+            Arrays.sort(mSorted, 0, count);
+            long previous = mLastDecodeTime;
+            for (int i = 0; i < count; i++) {
+                long dts = Math.max(mSorted[i], previous + 1);
+                mSorted[i] = dts;
+                previous = dts;
+            }
+            baseDecodeTime = Math.max(0, mSorted[0]);
+            durations.clear();
+            compositionOffsets.clear();
+            for (int i = 0; i < count; i++) {
+                int duration = i + 1 < count ? (int) (mSorted[i + 1] - mSorted[i]) : mLastDuration;
+                if (i + 1 < count) {
+                    mLastDuration = duration;
+                }
+                durations.add(duration);
+                compositionOffsets.add((int) (presentationTimes.get(i) - mSorted[i]));
+            }
+            if (count == 1 || durations.get(count - 1) == 0) {
+                // single sample fragment before any delta is known, the next tfdt corrects it
+                durations.set(count - 1, Math.max(1, mLastDuration));
+            }
+            mLastDecodeTime = mSorted[count - 1];
+        }
+
+        void clear() {
+            data.clear();
+            sizes.clear();
+            presentationTimes.clear();
+            syncs.clear();
+        }
+    }
+}
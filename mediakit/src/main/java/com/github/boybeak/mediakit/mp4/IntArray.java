@@ -0,0 +1,39 @@
+package com.github.boybeak.mediakit.mp4;
+
+import java.util.Arrays;
+
+/**
+ * Growable int[] for sample tables that are built while writing.
+ */
+final class IntArray {
+
+    private int[] mValues;
+    private int mSize;
+
+    IntArray(int capacity) {
+        mValues = new int[Math.max(capacity, 4)];
+    }
+
+    void add(int value) {
+        if (mSize == mValues.length) {
+            mValues = Arrays.copyOf(mValues, mSize + (mSize >> 1));
+        }
+        mValues[mSize++] = value;
+    }
+
+    int get(int index) {
+        return mValues[index];
+    }
+
+    void set(int index, int value) {
+        mValues[index] = value;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    void clear() {
+        mSize = 0;
+    }
+}
@@ -0,0 +1,39 @@
+package com.github.boybeak.mediakit.mp4;
+
+import java.util.Arrays;
+
+/**
+ * Growable long[] for sample tables that are built while writing.
+ */
+final class LongArray {
+
+    private long[] mValues;
+    private int mSize;
+
+    LongArray(int capacity) {
+        mValues = new long[Math.max(capacity, 4)];
+    }
+
+    void add(long value) {
+        if (mSize == mValues.length) {
+            mValues = Arrays.copyOf(mValues, mSize + (mSize >> 1));
+        }
+        mValues[mSize++] = value;
+    }
+
+    long get(int index) {
+        return mValues[index];
+    }
+
+    void set(int index, long value) {
+        mValues[index] = value;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    void clear() {
+        mSize = 0;
+    }
+}
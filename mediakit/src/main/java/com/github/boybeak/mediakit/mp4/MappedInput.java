@@ -0,0 +1,84 @@
+package com.github.boybeak.mediakit.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only memory mapping of a whole file. A single mapping can't exceed 2 GB, so the file is
+ * mapped lazily in 1 GB regions that overlap by {@link #OVERLAP} bytes; any sample smaller than
+ * that is always fully inside one region and can be handed out as a slice without copying.
+ */
+final class MappedInput {
+
+    private static final int REGION_SHIFT = 30;
+    private static final long OVERLAP = 64L * 1024 * 1024;
+
+    private final FileChannel mChannel;
+    private final int mRegionShift;
+    private final long mRegionSize;
+    private final long mOverlap;
+    private final long mLength;
+    private final MappedByteBuffer[] mRegions;
+    private ByteBuffer mStraddle;
+
+    MappedInput(FileChannel channel) throws IOException {
+        this(channel, REGION_SHIFT, OVERLAP);
+    }
+
+    /**
+     * Smaller regions let tests reach the region boundaries without gigabyte files.
+     */
+    MappedInput(FileChannel channel, int regionShift, long overlap) throws IOException {
+        mChannel = channel;
+        mRegionShift = regionShift;
+        mRegionSize = 1L << regionShift;
+        mOverlap = overlap;
+        mLength = channel.size();
+        mRegions = new MappedByteBuffer[(int) ((mLength + mRegionSize - 1) >>> regionShift) + 1];
+    }
+
+    long length() {
+        return mLength;
+    }
+
+    /**
+     * @return a buffer holding [position, position + size) with position 0 and limit size. It is
+     * only valid until the next call.
+     */
+    ByteBuffer slice(long position, int size) throws IOException {
+        if (position < 0 || size < 0 || position + size > mLength) {
+            throw new IOException("range " + position + "+" + size + " outside of file length " + mLength);
+        }
+        int region = (int) (position >>> mRegionShift);
+        long relative = position - ((long) region << mRegionShift);
+        if (relative + size <= mRegionSize + mOverlap) {
+            ByteBuffer view = region(region).duplicate();
+            view.limit((int) relative + size).position((int) relative);
+            return view.slice();
+        }
+        if (mStraddle == null || mStraddle.capacity() < size) {
+            mStraddle = ByteBuffer.allocateDirect(size);
+        }
+        mStraddle.clear().limit(size);
+        while (mStraddle.hasRemaining()) {
+            if (mChannel.read(mStraddle, position + mStraddle.position()) < 0) {
+                throw new IOException("unexpected end of file at " + (position + mStraddle.position()));
+            }
+        }
+        mStraddle.flip();
+        return mStraddle;
+    }
+
+    private MappedByteBuffer region(int index) throws IOException {
+        MappedByteBuffer mapped = mRegions[index];
+        if (mapped == null) {
+            long start = (long) index << mRegionShift;
+            long size = Math.min(mRegionSize + mOverlap, mLength - start);
+            mapped = mChannel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            mRegions[index] = mapped;
+        }
+        return mapped;
+    }
+}
@@ -0,0 +1,556 @@
+package com.github.boybeak.mediakit.mp4;
+
+import com.github.boybeak.mediakit.TrackFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns a moov box into {@link Mp4Track}s. Only audio and video tracks are kept.
+ */
+final class MoovParser {
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private int mMovieTimescale = 1000;
+
+    List<Mp4Track> parse(ByteBuffer moov) throws IOException {
+        List<Mp4Track> tracks = new ArrayList<>();
+        int end = moov.limit();
+        int position = moov.position();
+        while (position + 8 <= end) {
+            int size = boxSize(moov, position, end);
+            int type = moov.getInt(position + 4);
+            int payload = position + headerSize(moov, position);
+            if (type == Boxes.MVHD) {
+                parseMvhd(moov, payload);
+            } else if (type == Boxes.TRAK) {
+                Mp4Track track = parseTrak(moov, payload, position + size);
+                if (track != null) {
+                    tracks.add(track);
+                }
+            }
+            position += size;
+        }
+        return tracks;
+    }
+
+    private void parseMvhd(ByteBuffer buf, int position) {
+        int version = buf.get(position) & 0xff;
+        mMovieTimescale = buf.getInt(position + (version == 1 ? 20 : 12));
+    }
+
+    private Mp4Track parseTrak(ByteBuffer buf, int start, int end) throws IOException {
+        Mp4Track track = new Mp4Track();
+        int handler = 0;
+        int mdia = -1;
+        int mdiaEnd = -1;
+        for (int position = start; position + 8 <= end; ) {
+            int size = boxSize(buf, position, end);
+            int type = buf.getInt(position + 4);
+            int payload = position + headerSize(buf, position);
+            if (type == Boxes.TKHD) {
+                parseTkhd(buf, payload, track);
+            } else if (type == Boxes.EDTS) {
+                parseEdts(buf, payload, position + size, track);
+            } else if (type == Boxes.MDIA) {
+                mdia = payload;
+                mdiaEnd = position + size;
+                handler = findHandler(buf, payload, mdiaEnd);
+            }
+            position += size;
+        }
+        if (mdia < 0 || (handler != Boxes.VIDE && handler != Boxes.SOUN)) {
+            return null;
+        }
+        parseMdia(buf, mdia, mdiaEnd, track);
+        if (track.format == null || track.table == null) {
+            return null;
+        }
+        return track;
+    }
+
+    private void parseTkhd(ByteBuffer buf, int position, Mp4Track track) {
+        int version = buf.get(position) & 0xff;
+        int p = position + 4;
+        p += version == 1 ? 16 : 8;
+        track.trackId = buf.getInt(p);
+        // track_ID, reserved, duration, reserved[2], layer, alternate_group, volume, reserved
+        p += 4 + 4 + (version == 1 ? 8 : 4) + 8 + 2 + 2 + 2 + 2;
+        int a = buf.getInt(p);
+        int b = buf.getInt(p + 4);
+        int c = buf.getInt(p + 12);
+        int d = buf.getInt(p + 16);
+        final int one = 0x10000;
+        if (a == 0 && b == one && c == -one && d == 0) {
+            track.rotation = 90;
+        } else if (a == -one && b == 0 && c == 0 && d == -one) {
+            track.rotation = 180;
+        } else if (a == 0 && b == -one && c == one && d == 0) {
+            track.rotation = 270;
+        }
+    }
+
+    private void parseEdts(ByteBuffer buf, int start, int end, Mp4Track track) {
+        for (int position = start; position + 8 <= end; ) {
+            int size = boxSize(buf, position, end);
+            if (buf.getInt(position + 4) == Boxes.ELST) {
+                int p = position + headerSize(buf, position);
+                int version = buf.get(p) & 0xff;
+                int count = buf.getInt(p + 4);
+                p += 8;
+                long emptyDuration = 0;
+                for (int i = 0; i < count; i++) {
+                    long segmentDuration = version == 1 ? buf.getLong(p) : buf.getInt(p) & 0xffffffffL;
+                    long mediaTime = version == 1 ? buf.getLong(p + 8) : buf.getInt(p + 4);
+                    p += version == 1 ? 20 : 12;
+                    if (mediaTime == -1) {
+                        emptyDuration += segmentDuration;
+                    } else {
+                        track.editMediaTime = mediaTime;
+                        break;
+                    }
+                }
+                track.editDelayUs = emptyDuration * 1000000L / mMovieTimescale;
+            }
+            position += size;
+        }
+    }
+
+    private int findHandler(ByteBuffer buf, int start, int end) {
+        for (int position = start; position + 8 <= end; ) {
+            int size = boxSize(buf, position, end);
+            if (buf.getInt(position + 4) == Boxes.HDLR) {
+                return buf.getInt(position + headerSize(buf, position) + 8);
+            }
+            position += size;
+        }
+        return 0;
+    }
+
+    private void parseMdia(ByteBuffer buf, int start, int end, Mp4Track track) throws IOException {
+        int timescale = 0;
+        long duration = 0;
+        String language = "und";
+        int stbl = -1;
+        int stblEnd = -1;
+        for (int position = start; position + 8 <= end; ) {
+            int size = boxSize(buf, position, end);
+            int type = buf.getInt(position + 4);
+            int payload = position + headerSize(buf, position);
+            if (type == Boxes.MDHD) {
+                int version = buf.get(payload) & 0xff;
+                int p = payload + 4 + (version == 1 ? 16 : 8);
+                timescale = buf.getInt(p);
+                duration = version == 1 ? buf.getLong(p + 4) : buf.getInt(p + 4) & 0xffffffffL;
+                int lang = buf.getShort(p + (version == 1 ? 12 : 8)) & 0x7fff;
+                if (lang != 0) {
+                    language = new String(new char[]{
+                            (char) (((lang >> 10) & 0x1f) + 0x60),
+                            (char) (((lang >> 5) & 0x1f) + 0x60),
+                            (char) ((lang & 0x1f) + 0x60)});
+                }
+            } else if (type == Boxes.MINF) {
+                for (int q = payload; q + 8 <= position + size; ) {
+                    int childSize = boxSize(buf, q, position + size);
+                    if (buf.getInt(q + 4) == Boxes.STBL) {
+                        stbl = q + headerSize(buf, q);
+                        stblEnd = q + childSize;
+                    }
+                    q += childSize;
+                }
+            }
+            position += size;
+        }
+        if (stbl < 0 || timescale <= 0) {
+            return;
+        }
+        parseStbl(buf, stbl, stblEnd, timescale, track);
+        if (track.format == null) {
+            return;
+        }
+        TrackFormat format = track.format;
+        SampleTable table = track.table;
+        format.setTrackId(track.trackId);
+        format.setTimescale(timescale);
+        format.setLanguage(language);
+        format.setRotation(track.rotation);
+        long durationUs = duration > 0 ? duration * 1000000L / timescale : table.toUs(table.getEndTime());
+        format.setDurationUs(durationUs);
+        format.setMaxSampleSize(table.getMaxSampleSize());
+        if (durationUs > 0) {
+            format.setBitrate((int) (table.getTotalBytes() * 8L * 1000000L / durationUs));
+            if (format.isVideo()) {
+                format.setFrameRate(table.getSampleCount() * 1000000f / durationUs);
+            }
+        }
+        track.ptsOffsetUs = track.editDelayUs - table.toUs(track.editMediaTime);
+    }
+
+    private void parseStbl(ByteBuffer buf, int start, int end, int timescale, Mp4Track track) throws IOException {
+        int stsd = -1, stts = -1, ctts = -1, stss = -1, stsc = -1, stsz = -1, stz2 = -1, stco = -1, co64 = -1;
+        int stsdEnd = -1;
+        for (int position = start; position + 8 <= end; ) {
+            int size = boxSize(buf, position, end);
+            int type = buf.getInt(position + 4);
+            int payload = position + headerSize(buf, position);
+            if (type == Boxes.STSD) {
+                stsd = payload;
+                stsdEnd = position + size;
+            } else if (type == Boxes.STTS) {
+                stts = payload;
+            } else if (type == Boxes.CTTS) {
+                ctts = payload;
+            } else if (type == Boxes.STSS) {
+                stss = payload;
+            } else if (type == Boxes.STSC) {
+                stsc = payload;
+            } else if (type == Boxes.STSZ) {
+                stsz = payload;
+            } else if (type == Boxes.STZ2) {
+                stz2 = payload;
+            } else if (type == Boxes.STCO) {
+                stco = payload;
+            } else if (type == Boxes.CO64) {
+                co64 = payload;
+            }
+            position += size;
+        }
+        if (stsd < 0 || stts < 0 || stsc < 0 || (stsz < 0 && stz2 < 0) || (stco < 0 && co64 < 0)) {
+            throw new IOException("incomplete stbl in track " + track.trackId);
+        }
+        track.format = parseStsd(buf, stsd, stsdEnd, track);
+        if (track.format == null) {
+            return;
+        }
+
+        int[] sizes = stsz >= 0 ? readStsz(buf, stsz) : readStz2(buf, stz2);
+        int sampleCount = sizes.length;
+
+        long[] chunkOffsets;
+        if (stco >= 0) {
+            int count = buf.getInt(stco + 4);
+            chunkOffsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                chunkOffsets[i] = buf.getInt(stco + 8 + i * 4) & 0xffffffffL;
+            }
+        } else {
+            int count = buf.getInt(co64 + 4);
+            chunkOffsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                chunkOffsets[i] = buf.getLong(co64 + 8 + i * 8);
+            }
+        }
+
+        // stsc: run length of samples per chunk
+        int stscCount = buf.getInt(stsc + 4);
+        int[] chunkFirstSamples = new int[chunkOffsets.length];
+        DeltaLongArray offsets = new DeltaLongArray(sampleCount);
+        int sample = 0;
+        for (int entry = 0; entry < stscCount; entry++) {
+            int p = stsc + 8 + entry * 12;
+            int firstChunk = buf.getInt(p) - 1;
+            int samplesPerChunk = buf.getInt(p + 4);
+            int lastChunk = entry + 1 < stscCount ? buf.getInt(p + 12) - 1 : chunkOffsets.length;
+            for (int chunk = firstChunk; chunk < lastChunk && chunk < chunkOffsets.length; chunk++) {
+                chunkFirstSamples[chunk] = sample;
+                long offset = chunkOffsets[chunk];
+                for (int i = 0; i < samplesPerChunk && sample < sampleCount; i++) {
+                    offsets.add(offset);
+                    offset += sizes[sample];
+                    sample++;
+                }
+            }
+        }
+        if (sample != sampleCount) {
+            throw new IOException("stsc/stco cover " + sample + " of " + sampleCount + " samples");
+        }
+        offsets.trim();
+
+        DeltaLongArray decodeTimes = new DeltaLongArray(sampleCount);
+        int sttsCount = buf.getInt(stts + 4);
+        long dts = 0;
+        long lastDelta = 0;
+        for (int entry = 0; entry < sttsCount && decodeTimes.size() < sampleCount; entry++) {
+            int count = buf.getInt(stts + 8 + entry * 8);
+            lastDelta = buf.getInt(stts + 12 + entry * 8) & 0xffffffffL;
+            for (int i = 0; i < count && decodeTimes.size() < sampleCount; i++) {
+                decodeTimes.add(dts);
+                dts += lastDelta;
+            }
+        }
+        while (decodeTimes.size() < sampleCount) {
+            decodeTimes.add(dts);
+            dts += lastDelta;
+        }
+        decodeTimes.trim();
+
+        int[] compositionOffsets = null;
+        if (ctts >= 0) {
+            compositionOffsets = new int[sampleCount];
+            int cttsCount = buf.getInt(ctts + 4);
+            boolean nonZero = false;
+            int index = 0;
+            for (int entry = 0; entry < cttsCount && index < sampleCount; entry++) {
+                int count = buf.getInt(ctts + 8 + entry * 8);
+                int offset = buf.getInt(ctts + 12 + entry * 8);
+                nonZero |= offset != 0;
+                for (int i = 0; i < count && index < sampleCount; i++) {
+                    compositionOffsets[index++] = offset;
+                }
+            }
+            if (!nonZero) {
+                compositionOffsets = null;
+            }
+        }
+
+        int[] syncSamples = null;
+        if (stss >= 0) {
+            int count = buf.getInt(stss + 4);
+            syncSamples = new int[count];
+            for (int i = 0; i < count; i++) {
+                syncSamples[i] = buf.getInt(stss + 8 + i * 4) - 1;
+            }
+        }
+
+        track.table = new SampleTable(timescale, sizes, offsets, decodeTimes, compositionOffsets, syncSamples,
+                chunkOffsets, chunkFirstSamples, lastDelta);
+    }
+
+    private int[] readStsz(ByteBuffer buf, int p) {
+        int sampleSize = buf.getInt(p + 4);
+        int count = buf.getInt(p + 8);
+        int[] sizes = new int[count];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = sampleSize != 0 ? sampleSize : buf.getInt(p + 12 + i * 4);
+        }
+        return sizes;
+    }
+
+    private int[] readStz2(ByteBuffer buf, int p) {
+        int fieldSize = buf.get(p + 7) & 0xff;
+        int count = buf.getInt(p + 8);
+        int[] sizes = new int[count];
+        int base = p + 12;
+        for (int i = 0; i < count; i++) {
+            if (fieldSize == 4) {
+                int b = buf.get(base + i / 2) & 0xff;
+                sizes[i] = (i & 1) == 0 ? b >> 4 : b & 0x0f;
+            } else if (fieldSize == 8) {
+                sizes[i] = buf.get(base + i) & 0xff;
+            } else {
+                sizes[i] = buf.getShort(base + i * 2) & 0xffff;
+            }
+        }
+        return sizes;
+    }
+
+    private TrackFormat parseStsd(ByteBuffer buf, int start, int end, Mp4Track track) {
+        int count = buf.getInt(start + 4);
+        if (count <= 0) {
+            return null;
+        }
+        // only the first sample description is used, like MediaExtractor
+        int entry = start + 8;
+        int entrySize = boxSize(buf, entry, end);
+        int type = buf.getInt(entry + 4);
+        int entryEnd = entry + entrySize;
+        if (type == Boxes.AVC1 || type == Boxes.AVC3 || type == Boxes.HVC1 || type == Boxes.HEV1
+                || type == Boxes.MP4V || type == Boxes.S263) {
+            int width = buf.getShort(entry + 32) & 0xffff;
+            int height = buf.getShort(entry + 34) & 0xffff;
+            String mime;
+            if (type == Boxes.AVC1 || type == Boxes.AVC3) {
+                mime = TrackFormat.MIMETYPE_VIDEO_AVC;
+            } else if (type == Boxes.HVC1 || type == Boxes.HEV1) {
+                mime = TrackFormat.MIMETYPE_VIDEO_HEVC;
+            } else if (type == Boxes.MP4V) {
+                mime = TrackFormat.MIMETYPE_VIDEO_MPEG4;
+            } else {
+                mime = TrackFormat.MIMETYPE_VIDEO_H263;
+            }
+            TrackFormat format = TrackFormat.createVideoFormat(mime, width, height);
+            format.setInBandParameterSets(type == Boxes.AVC3 || type == Boxes.HEV1);
+            parseSampleEntryChildren(buf, entry + 86, entryEnd, format, track);
+            return format;
+        } else if (type == Boxes.MP4A || type == Boxes.OPUS || type == Boxes.SAMR || type == Boxes.SAWB) {
+            int version = buf.getShort(entry + 16) & 0xffff;
+            int channelCount = buf.getShort(entry + 24) & 0xffff;
+            int sampleRate = buf.getInt(entry + 32) >>> 16;
+            int children = entry + 36;
+            if (version == 1) {
+                children += 16;
+            } else if (version == 2) {
+                children += 36;
+                sampleRate = (int) Double.longBitsToDouble(buf.getLong(entry + 40));
+                channelCount = buf.getInt(entry + 48);
+            }
+            String mime;
+            if (type == Boxes.MP4A) {
+                mime = TrackFormat.MIMETYPE_AUDIO_AAC;
+            } else if (type == Boxes.OPUS) {
+                mime = TrackFormat.MIMETYPE_AUDIO_OPUS;
+            } else if (type == Boxes.SAMR) {
+                mime = TrackFormat.MIMETYPE_AUDIO_AMR_NB;
+            } else {
+                mime = TrackFormat.MIMETYPE_AUDIO_AMR_WB;
+            }
+            TrackFormat format = TrackFormat.createAudioFormat(mime, sampleRate, channelCount);
+            parseSampleEntryChildren(buf, children, entryEnd, format, track);
+            return format;
+        }
+        return null;
+    }
+
+    private void parseSampleEntryChildren(ByteBuffer buf, int start, int end, TrackFormat format, Mp4Track track) {
+        for (int position = start; position + 8 <= end; ) {
+            int size = boxSize(buf, position, end);
+            int type = buf.getInt(position + 4);
+            int payload = position + headerSize(buf, position);
+            if (type == Boxes.AVCC) {
+                parseAvcC(buf, payload, format, track);
+            } else if (type == Boxes.HVCC) {
+                parseHvcC(buf, payload, format, track);
+            } else if (type == Boxes.ESDS) {
+                parseEsds(buf, payload + 4, position + size, format);
+            } else if (type == Boxes.DOPS) {
+                parseDops(buf, payload, format);
+            } else if (type == Boxes.WAVE) {
+                // QuickTime style mp4a keeps its esds inside a wave box
+                parseSampleEntryChildren(buf, payload, position + size, format, track);
+            }
+            position += size;
+        }
+    }
+
+    private void parseAvcC(ByteBuffer buf, int p, TrackFormat format, Mp4Track track) {
+        track.nalLengthSize = (buf.get(p + 4) & 0x03) + 1;
+        int spsCount = buf.get(p + 5) & 0x1f;
+        p += 6;
+        ByteArrayOutputStream sps = new ByteArrayOutputStream();
+        for (int i = 0; i < spsCount; i++) {
+            int length = buf.getShort(p) & 0xffff;
+            appendNal(buf, p + 2, length, sps);
+            p += 2 + length;
+        }
+        int ppsCount = buf.get(p) & 0xff;
+        p += 1;
+        ByteArrayOutputStream pps = new ByteArrayOutputStream();
+        for (int i = 0; i < ppsCount; i++) {
+            int length = buf.getShort(p) & 0xffff;
+            appendNal(buf, p + 2, length, pps);
+            p += 2 + length;
+        }
+        format.setCsd(0, sps.toByteArray());
+        format.setCsd(1, pps.toByteArray());
+    }
+
+    private void parseHvcC(ByteBuffer buf, int p, TrackFormat format, Mp4Track track) {
+        track.nalLengthSize = (buf.get(p + 21) & 0x03) + 1;
+        int arrays = buf.get(p + 22) & 0xff;
+        p += 23;
+        ByteArrayOutputStream csd = new ByteArrayOutputStream();
+        for (int i = 0; i < arrays; i++) {
+            int nalCount = buf.getShort(p + 1) & 0xffff;
+            p += 3;
+            for (int j = 0; j < nalCount; j++) {
+                int length = buf.getShort(p) & 0xffff;
+                appendNal(buf, p + 2, length, csd);
+                p += 2 + length;
+            }
+        }
+        format.setCsd(0, csd.toByteArray());
+    }
+
+    private void parseEsds(ByteBuffer buf, int p, int end, TrackFormat format) {
+        while (p < end) {
+            int tag = buf.get(p++) & 0xff;
+            int length = 0;
+            for (int i = 0; i < 4 && p < end; i++) {
+                int b = buf.get(p++) & 0xff;
+                length = (length << 7) | (b & 0x7f);
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            if (tag == 0x03) {
+                // ES_Descriptor: ES_ID, flags and the optional fields they announce
+                int flags = buf.get(p + 2) & 0xff;
+                p += 3;
+                if ((flags & 0x80) != 0) {
+                    p += 2;
+                }
+                if ((flags & 0x40) != 0) {
+                    p += 1 + (buf.get(p) & 0xff);
+                }
+                if ((flags & 0x20) != 0) {
+                    p += 2;
+                }
+            } else if (tag == 0x04) {
+                // DecoderConfigDescriptor, the DecoderSpecificInfo follows inside it
+                int avgBitrate = buf.getInt(p + 9);
+                if (avgBitrate > 0) {
+                    format.setBitrate(avgBitrate);
+                }
+                p += 13;
+            } else if (tag == 0x05) {
+                byte[] csd = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    csd[i] = buf.get(p + i);
+                }
+                format.setCsd(0, csd);
+                return;
+            } else {
+                p += length;
+            }
+        }
+    }
+
+    private void parseDops(ByteBuffer buf, int p, TrackFormat format) {
+        // rebuild the OpusHead MediaCodec expects; dOps is big-endian, OpusHead little-endian
+        int channels = buf.get(p + 1) & 0xff;
+        int preSkip = buf.getShort(p + 2) & 0xffff;
+        int inputSampleRate = buf.getInt(p + 4);
+        int gain = buf.getShort(p + 8);
+        int mappingFamily = buf.get(p + 10) & 0xff;
+        ByteBuffer head = ByteBuffer.allocate(19).order(ByteOrder.LITTLE_ENDIAN);
+        head.put(new byte[]{'O', 'p', 'u', 's', 'H', 'e', 'a', 'd'});
+        head.put((byte) 1).put((byte) channels).putShort((short) preSkip).putInt(inputSampleRate)
+                .putShort((short) gain).put((byte) mappingFamily);
+        format.setCsd(0, head.array());
+        long codecDelayNs = preSkip * 1000000000L / 48000;
+        format.setCsd(1, ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(codecDelayNs).array());
+        format.setCsd(2, ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(80000000L).array());
+    }
+
+    private static void appendNal(ByteBuffer buf, int position, int length, ByteArrayOutputStream out) {
+        out.write(START_CODE, 0, START_CODE.length);
+        for (int i = 0; i < length; i++) {
+            out.write(buf.get(position + i));
+        }
+    }
+
+    static int headerSize(ByteBuffer buf, int position) {
+        return buf.getInt(position) == 1 ? 16 : 8;
+    }
+
+    /**
+     * @return the box size clamped to its parent, 0 size meaning "until the end"
+     */
+    static int boxSize(ByteBuffer buf, int position, int end) {
+        long size = buf.getInt(position) & 0xffffffffL;
+        if (size == 1) {
+            size = buf.getLong(position + 8);
+        } else if (size == 0) {
+            size = end - position;
+        }
+        if (size < 8 || position + size > end) {
+            return end - position;
+        }
+        return (int) size;
+    }
+}
@@ -0,0 +1,238 @@
+package com.github.boybeak.mediakit.mp4;
+
+import com.github.boybeak.mediakit.TrackFormat;
+
+/**
+ * Writes moov level boxes for the muxers from {@link MuxerTrack} state.
+ */
+final class MoovWriter {
+
+    static final int MOVIE_TIMESCALE = 1000;
+    /**
+     * Seconds between 1904-01-01, the mp4 epoch, and 1970-01-01.
+     */
+    private static final long EPOCH_OFFSET = 2082844800L;
+
+    private MoovWriter() {
+    }
+
+    static long now() {
+        return System.currentTimeMillis() / 1000 + EPOCH_OFFSET;
+    }
+
+    static void writeFtyp(BoxWriter w, boolean fragmented) {
+        w.start(Boxes.FTYP).putInt(Boxes.ISOM).putInt(0x200)
+                .putInt(Boxes.ISOM).putInt(Boxes.ISO2);
+        if (fragmented) {
+            w.putInt(Boxes.fourcc("iso6"));
+        }
+        w.putInt(Boxes.fourcc("avc1")).putInt(Boxes.MP41).end();
+    }
+
+    static void writeMvhd(BoxWriter w, long creationTime, long duration, int nextTrackId) {
+        boolean large = duration > 0xffffffffL;
+        w.startFull(Boxes.MVHD, large ? 1 : 0, 0);
+        putTimes(w, large, creationTime);
+        w.putInt(MOVIE_TIMESCALE);
+        putDuration(w, large, duration);
+        w.putInt(0x00010000).putShort(0x0100)       // rate 1.0, volume 1.0
+                .putZeros(10);
+        putMatrix(w, 0);
+        w.putZeros(24).putInt(nextTrackId).end();
+    }
+
+    /**
+     * @return the track duration in the movie timescale, including the initial empty edit
+     */
+    static long movieDuration(MuxerTrack track) {
+        return (track.getStartOffset() + track.getPresentedDuration()) * MOVIE_TIMESCALE / track.timescale;
+    }
+
+    static void writeTrak(BoxWriter w, MuxerTrack track, long creationTime, int rotation, boolean co64) {
+        TrackFormat format = track.format;
+        boolean video = format.isVideo();
+        long duration = movieDuration(track);
+        boolean large = duration > 0xffffffffL;
+        w.start(Boxes.TRAK);
+
+        w.startFull(Boxes.TKHD, large ? 1 : 0, 0x7);   // enabled, in movie, in preview
+        putTimes(w, large, creationTime);
+        w.putInt(track.trackId).putInt(0);
+        putDuration(w, large, duration);
+        w.putZeros(8).putShort(0).putShort(0)           // reserved, layer, alternate_group
+                .putShort(video ? 0 : 0x0100).putShort(0);
+        putMatrix(w, video ? rotation : 0);
+        w.putInt(video ? format.getWidth() << 16 : 0).putInt(video ? format.getHeight() << 16 : 0).end();
+
+        writeEdts(w, track);
+
+        w.start(Boxes.MDIA);
+        long mediaDuration = track.getMediaDuration();
+        boolean largeMedia = mediaDuration > 0xffffffffL;
+        w.startFull(Boxes.MDHD, largeMedia ? 1 : 0, 0);
+        putTimes(w, largeMedia, creationTime);
+        w.putInt(track.timescale);
+        putDuration(w, largeMedia, mediaDuration);
+        w.putShort(packLanguage(format.getLanguage())).putShort(0).end();
+
+        w.startFull(Boxes.HDLR, 0, 0).putInt(0).putInt(video ? Boxes.VIDE : Boxes.SOUN).putZeros(12)
+                .putCString(video ? "VideoHandle" : "SoundHandle").end();
+
+        w.start(Boxes.MINF);
+        if (video) {
+            w.startFull(Boxes.VMHD, 0, 1).putZeros(8).end();
+        } else {
+            w.startFull(Boxes.SMHD, 0, 0).putZeros(4).end();
+        }
+        w.start(Boxes.DINF).startFull(Boxes.DREF, 0, 0).putInt(1)
+                .startFull(Boxes.URL, 0, 1).end()       // self contained
+                .end().end();
+        writeStbl(w, track, co64);
+        w.end();    // minf
+        w.end();    // mdia
+        w.end();    // trak
+    }
+
+    /**
+     * Writes mvex with one trex per track, announcing that samples follow in movie fragments.
+     */
+    static void writeMvex(BoxWriter w, Iterable<MuxerTrack> tracks) {
+        w.start(Boxes.MVEX);
+        for (MuxerTrack track : tracks) {
+            // track_ID, default_sample_description_index, default duration, size and flags
+            w.startFull(Boxes.TREX, 0, 0).putInt(track.trackId).putInt(1).putInt(0).putInt(0).putInt(0).end();
+        }
+        w.end();
+    }
+
+    private static void writeEdts(BoxWriter w, MuxerTrack track) {
+        long emptyTicks = track.getStartOffset();
+        long mediaTime = track.getMediaStartTime();
+        long presentedTicks = track.getPresentedDuration();
+        if (emptyTicks == 0 && mediaTime == 0 && presentedTicks == track.getMediaDuration()) {
+            return;
+        }
+        long empty = emptyTicks * MOVIE_TIMESCALE / track.timescale;
+        long presented = presentedTicks * MOVIE_TIMESCALE / track.timescale;
+        boolean large = presented > 0xffffffffL || mediaTime > Integer.MAX_VALUE;
+        w.start(Boxes.EDTS).startFull(Boxes.ELST, large ? 1 : 0, 0).putInt(empty > 0 ? 2 : 1);
+        if (empty > 0) {
+            putEdit(w, large, empty, -1);
+        }
+        putEdit(w, large, presented, mediaTime);
+        w.end().end();
+    }
+
+    private static void putEdit(BoxWriter w, boolean large, long duration, long mediaTime) {
+        if (large) {
+            w.putLong(duration).putLong(mediaTime);
+        } else {
+            w.putInt((int) duration).putInt((int) mediaTime);
+        }
+        w.putShort(1).putShort(0);                      // media_rate 1.0
+    }
+
+    private static void writeStbl(BoxWriter w, MuxerTrack track, boolean co64) {
+        w.start(Boxes.STBL);
+        long seconds = Math.max(1, track.getMediaDuration() / track.timescale);
+        int avgBitrate = (int) Math.min(Integer.MAX_VALUE, track.getTotalBytes() * 8 / seconds);
+        SampleEntries.writeStsd(w, track.format, track.getMaxSampleSize(), avgBitrate);
+
+        writeRuns(w, Boxes.STTS, track.timeToSample);
+        if (track.hasCompositionOffsets()) {
+            writeRuns(w, Boxes.CTTS, track.compositionOffsets);
+        }
+        if (!track.isAllSync()) {
+            IntArray sync = track.syncSamples;
+            w.startFull(Boxes.STSS, 0, 0).putInt(sync.size());
+            for (int i = 0; i < sync.size(); i++) {
+                w.putInt(sync.get(i));
+            }
+            w.end();
+        }
+
+        IntArray runs = track.chunkRuns;
+        w.startFull(Boxes.STSC, 0, 0).putInt(runs.size() / 2);
+        for (int i = 0; i < runs.size(); i += 2) {
+            w.putInt(runs.get(i)).putInt(runs.get(i + 1)).putInt(1);
+        }
+        w.end();
+
+        IntArray sizes = track.sizes;
+        w.startFull(Boxes.STSZ, 0, 0).putInt(0).putInt(sizes.size());
+        for (int i = 0; i < sizes.size(); i++) {
+            w.putInt(sizes.get(i));
+        }
+        w.end();
+
+        LongArray offsets = track.chunkOffsets;
+        w.startFull(co64 ? Boxes.CO64 : Boxes.STCO, 0, 0).putInt(offsets.size());
+        for (int i = 0; i < offsets.size(); i++) {
+            if (co64) {
+                w.putLong(offsets.get(i));
+            } else {
+                w.putInt((int) offsets.get(i));
+            }
+        }
+        w.end();
+        w.end();
+    }
+
+    private static void writeRuns(BoxWriter w, int type, IntArray runs) {
+        w.startFull(type, 0, 0).putInt(runs.size() / 2);
+        for (int i = 0; i < runs.size(); i++) {
+            w.putInt(runs.get(i));
+        }
+        w.end();
+    }
+
+    private static void putTimes(BoxWriter w, boolean large, long time) {
+        if (large) {
+            w.putLong(time).putLong(time);
+        } else {
+            w.putInt((int) time).putInt((int) time);
+        }
+    }
+
+    private static void putDuration(BoxWriter w, boolean large, long duration) {
+        if (large) {
+            w.putLong(duration);
+        } else {
+            w.putInt((int) duration);
+        }
+    }
+
+    /**
+     * Writes the 3x3 transformation matrix for a clockwise rotation, the inverse of what
+     * {@link MoovParser} recognises.
+     */
+    private static void putMatrix(BoxWriter w, int rotation) {
+        final int one = 0x10000;
+        int a = one, b = 0, c = 0, d = one;
+        switch (rotation) {
+            case 90:
+                a = 0; b = one; c = -one; d = 0;
+                break;
+            case 180:
+                a = -one; d = -one;
+                break;
+            case 270:
+                a = 0; b = -one; c = one; d = 0;
+                break;
+            default:
+                break;
+        }
+        w.putInt(a).putInt(b).putInt(0)
+                .putInt(c).putInt(d).putInt(0)
+                .putInt(0).putInt(0).putInt(0x40000000);
+    }
+
+    private static int packLanguage(String language) {
+        if (language == null || language.length() != 3) {
+            language = "und";
+        }
+        return ((language.charAt(0) - 0x60) & 0x1f) << 10
+                | ((language.charAt(1) - 0x60) & 0x1f) << 5
+                | ((language.charAt(2) - 0x60) & 0x1f);
+    }
+}
@@ -0,0 +1,368 @@
+package com.github.boybeak.mediakit.mp4;
+
+import com.github.boybeak.mediakit.SampleSource;
+import com.github.boybeak.mediakit.TrackFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Pure-java ISO-BMFF (mp4/3gp/mov) demuxer. The moov is parsed once into {@link SampleTable}s and
+ * samples are served straight from a memory mapping of the file, so reading a sample is an array
+ * lookup plus a slice instead of a JNI call into MediaExtractor.
+ * <p>
+ * By default AVC/HEVC samples are rewritten from length prefixed NAL units to Annex-B start codes,
+ * which is what MediaExtractor hands out and what MediaMuxer / MediaCodec expect. Turn it off with
+ * {@link #setAnnexB(boolean)} to get zero-copy slices for video too.
+ * <p>
+ * Fragmented mp4 (moof) is not supported.
+ */
+public class Mp4Demuxer implements SampleSource {
+
+    private final FileChannel mChannel;
+    private final boolean mOwnsChannel;
+    private final MappedInput mInput;
+    private final Mp4Track[] mTracks;
+    private int mCurrentTrack = -1;
+    private boolean mAnnexB = true;
+    private ByteBuffer mScratch;
+    private boolean mReleased;
+
+    public Mp4Demuxer(String path) throws IOException {
+        this(new File(path));
+    }
+
+    public Mp4Demuxer(File file) throws IOException {
+        this(new RandomAccessFile(file, "r").getChannel(), true);
+    }
+
+    /**
+     * @param ownsChannel whether {@link #release()} closes the channel
+     */
+    public Mp4Demuxer(FileChannel channel, boolean ownsChannel) throws IOException {
+        mChannel = channel;
+        mOwnsChannel = ownsChannel;
+        try {
+            mInput = new MappedInput(channel);
+            List<Mp4Track> tracks = new MoovParser().parse(readMoov());
+            mTracks = tracks.toArray(new Mp4Track[0]);
+        } catch (IOException | RuntimeException e) {
+            if (ownsChannel) {
+                channel.close();
+            }
+            throw e;
+        }
+    }
+
+    private ByteBuffer readMoov() throws IOException {
+        long length = mInput.length();
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long position = 0;
+        while (position + 8 <= length) {
+            header.clear();
+            readFully(header, position);
+            long size = header.getInt(0) & 0xffffffffL;
+            int type = header.getInt(4);
+            int headerSize = 8;
+            if (size == 1) {
+                size = header.getLong(8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = length - position;
+            }
+            if (size < headerSize) {
+                throw new IOException("broken box " + Boxes.name(type) + " at " + position);
+            }
+            if (type == Boxes.MOOV) {
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("moov too large: " + size);
+                }
+                ByteBuffer moov = ByteBuffer.allocate((int) (size - headerSize));
+                readFully(moov, position + headerSize);
+                moov.flip();
+                return moov;
+            } else if (type == Boxes.MOOF) {
+                throw new IOException("fragmented mp4 is not supported");
+            }
+            position += size;
+        }
+        throw new IOException("no moov box found");
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Whether AVC/HEVC samples are converted to Annex-B, true by default to match MediaExtractor.
+     */
+    public void setAnnexB(boolean annexB) {
+        mAnnexB = annexB;
+    }
+
+    /**
+     * @return the parsed sample table of a track, exposed for remuxing, indexing and analysis
+     */
+    public SampleTable getSampleTable(int index) {
+        return mTracks[index].table;
+    }
+
+    /**
+     * @return the NAL length prefix size of an AVC/HEVC track, 0 for other codecs
+     */
+    public int getNalLengthSize(int index) {
+        return mTracks[index].nalLengthSize;
+    }
+
+    /**
+     * @return the offset added to the track's presentation times by its edit list
+     */
+    public long getPresentationOffsetUs(int index) {
+        return mTracks[index].ptsOffsetUs;
+    }
+
+    /**
+     * @return presentation time of a sample of a track with the edit list applied, the same value
+     * {@link #getSampleTime()} reports when the cursor is on it
+     */
+    public long getPresentationTimeUs(int index, int sample) {
+        return mTracks[index].presentationTimeUs(sample);
+    }
+
+    Mp4Track getTrack(int index) {
+        return mTracks[index];
+    }
+
+    public FileChannel getChannel() {
+        return mChannel;
+    }
+
+    @Override
+    public int getTrackCount() {
+        return mTracks.length;
+    }
+
+    @Override
+    public TrackFormat getTrackFormat(int index) {
+        return mTracks[index].format;
+    }
+
+    @Override
+    public void selectTrack(int index) {
+        mTracks[index].selected = true;
+        updateCurrentTrack();
+    }
+
+    @Override
+    public void unselectTrack(int index) {
+        mTracks[index].selected = false;
+        updateCurrentTrack();
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        for (Mp4Track track : mTracks) {
+            if (track.selected) {
+                SampleTable table = track.table;
+                track.cursor = table.findSyncSample(table.toSeekTicks(timeUs - track.editDelayUs) + track.editMediaTime, mode);
+            }
+        }
+        updateCurrentTrack();
+    }
+
+    @Override
+    public boolean advance() {
+        if (mCurrentTrack < 0) {
+            return false;
+        }
+        mTracks[mCurrentTrack].cursor++;
+        updateCurrentTrack();
+        return mCurrentTrack >= 0;
+    }
+
+    /**
+     * Picks the selected track whose next sample has the smallest decode time, the same
+     * interleaving MediaExtractor uses.
+     */
+    private void updateCurrentTrack() {
+        int current = -1;
+        long currentTimeUs = Long.MAX_VALUE;
+        for (int i = 0; i < mTracks.length; i++) {
+            Mp4Track track = mTracks[i];
+            if (!track.selected || track.cursor >= track.table.getSampleCount()) {
+                continue;
+            }
+            long timeUs = track.decodeTimeUs(track.cursor);
+            if (timeUs < currentTimeUs) {
+                current = i;
+                currentTimeUs = timeUs;
+            }
+        }
+        mCurrentTrack = current;
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        return mCurrentTrack;
+    }
+
+    /**
+     * @return the index of the current sample inside its track's {@link SampleTable}, -1 at the end of stream
+     */
+    public int getSampleIndex() {
+        return mCurrentTrack < 0 ? -1 : mTracks[mCurrentTrack].cursor;
+    }
+
+    @Override
+    public long getSampleTime() {
+        if (mCurrentTrack < 0) {
+            return -1;
+        }
+        Mp4Track track = mTracks[mCurrentTrack];
+        return track.presentationTimeUs(track.cursor);
+    }
+
+    @Override
+    public int getSampleFlags() {
+        if (mCurrentTrack < 0) {
+            return 0;
+        }
+        Mp4Track track = mTracks[mCurrentTrack];
+        return track.table.isSync(track.cursor) ? SAMPLE_FLAG_SYNC : 0;
+    }
+
+    @Override
+    public int getSampleSize() {
+        if (mCurrentTrack < 0) {
+            return -1;
+        }
+        Mp4Track track = mTracks[mCurrentTrack];
+        int size = track.table.getSize(track.cursor);
+        if (!needsAnnexB(track) || track.nalLengthSize == 4) {
+            return size;
+        }
+        try {
+            ByteBuffer src = mInput.slice(track.table.getOffset(track.cursor), size);
+            return annexBSize(src, track.nalLengthSize);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) throws IOException {
+        if (mCurrentTrack < 0) {
+            return -1;
+        }
+        Mp4Track track = mTracks[mCurrentTrack];
+        ByteBuffer src = mInput.slice(track.table.getOffset(track.cursor), track.table.getSize(track.cursor));
+        int size = needsAnnexB(track) ? annexBSize(src, track.nalLengthSize) : src.remaining();
+        if (buffer.capacity() - offset < size) {
+            throw new IllegalArgumentException("sample of " + size + " bytes does not fit in buffer of "
+                    + buffer.capacity() + " at offset " + offset);
+        }
+        buffer.clear();
+        buffer.position(offset);
+        if (needsAnnexB(track)) {
+            toAnnexB(src, buffer, track.nalLengthSize);
+        } else {
+            buffer.put(src);
+        }
+        buffer.limit(offset + size);
+        buffer.position(offset);
+        return size;
+    }
+
+    @Override
+    public ByteBuffer getSampleData() throws IOException {
+        if (mCurrentTrack < 0) {
+            return null;
+        }
+        Mp4Track track = mTracks[mCurrentTrack];
+        ByteBuffer src = mInput.slice(track.table.getOffset(track.cursor), track.table.getSize(track.cursor));
+        if (!needsAnnexB(track)) {
+            return src;
+        }
+        int size = annexBSize(src, track.nalLengthSize);
+        if (mScratch == null || mScratch.capacity() < size) {
+            mScratch = ByteBuffer.allocateDirect(Math.max(size, track.table.getMaxSampleSize() + 1024));
+        }
+        mScratch.clear();
+        toAnnexB(src, mScratch, track.nalLengthSize);
+        mScratch.flip();
+        return mScratch;
+    }
+
+    private boolean needsAnnexB(Mp4Track track) {
+        return mAnnexB && track.nalLengthSize > 0;
+    }
+
+    private static int annexBSize(ByteBuffer src, int nalLengthSize) {
+        if (nalLengthSize == 4) {
+            return src.remaining();
+        }
+        int size = 0;
+        int position = src.position();
+        int end = src.limit();
+        while (position + nalLengthSize <= end) {
+            int length = Math.min(readNalLength(src, position, nalLengthSize), end - position - nalLengthSize);
+            size += 4 + length;
+            position += nalLengthSize + length;
+        }
+        return size;
+    }
+
+    /**
+     * Copies length prefixed NAL units from {@code src} to {@code dst} replacing each prefix with a
+     * 4 byte start code. {@code src} is consumed.
+     */
+    private static void toAnnexB(ByteBuffer src, ByteBuffer dst, int nalLengthSize) {
+        int end = src.limit();
+        while (src.position() + nalLengthSize <= end) {
+            int length = readNalLength(src, src.position(), nalLengthSize);
+            int payload = src.position() + nalLengthSize;
+            int payloadEnd = Math.min(payload + length, end);
+            dst.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1);
+            src.limit(payloadEnd).position(payload);
+            dst.put(src);
+            src.limit(end);
+        }
+    }
+
+    private static int readNalLength(ByteBuffer src, int position, int nalLengthSize) {
+        int length = 0;
+        for (int i = 0; i < nalLengthSize; i++) {
+            length = (length << 8) | (src.get(position + i) & 0xff);
+        }
+        return length;
+    }
+
+    @Override
+    public void release() {
+        if (mReleased) {
+            return;
+        }
+        mReleased = true;
+        if (mOwnsChannel) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+}
@@ -0,0 +1,337 @@
+package com.github.boybeak.mediakit.mp4;
+
+import com.github.boybeak.mediakit.MuxerBackend;
+import com.github.boybeak.mediakit.TrackFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pure-java mp4 muxer. Samples are appended to the mdat through a {@link FileChannel} as they
+ * arrive, only the sample tables are kept in memory, as primitive arrays, and the moov is written
+ * at the end.
+ * <p>
+ * The mdat header reserves 16 bytes (a free box followed by a 32 bit mdat header) so that it can
+ * be turned into a 64 bit largesize box without moving any data, and chunk offsets switch from stco
+ * to co64 on their own once the file passes 4 GB.
+ * <p>
+ * AVC/HEVC samples may be Annex-B (what MediaCodec outputs) or 4 byte length prefixed.
+ * Calls are synchronized so audio and video can be written from different threads, like
+ * MediaMuxer allows.
+ */
+public class Mp4Muxer implements MuxerBackend {
+
+    private static final int STATE_INITIALIZED = 0;
+    private static final int STATE_STARTED = 1;
+    private static final int STATE_STOPPED = 2;
+    private static final int STATE_RELEASED = 3;
+
+    private static final int WRITE_BUFFER_SIZE = 512 * 1024;
+    private static final long MAX_CHUNK_DURATION_US = 1000000L;
+    private static final int MAX_CHUNK_SAMPLES = 256;
+    private static final long MAX_32 = 0xffffffffL;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final List<MuxerTrack> mTracks = new ArrayList<>();
+    private int mState = STATE_INITIALIZED;
+    private int mOrientation;
+    private long mPreallocateBytes;
+    private long mCreationTime;
+    private long mDurationUs = -1;
+
+    private final ByteBuffer mWriteBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    /**
+     * File position of the first byte in {@link #mWriteBuffer}.
+     */
+    private long mFlushedPosition;
+    private long mMdatHeaderPosition;
+    private int mLastTrack = -1;
+
+    /**
+     * mdat sizes and chunk offsets above it need 64 bit fields. Package-private so tests can force
+     * a largesize mdat and co64 without writing 4 GB.
+     */
+    long mLargeSizeThreshold = MAX_32;
+
+    private final IntArray mNalRanges = new IntArray(32);
+    private ByteBuffer mScratch;
+
+    public Mp4Muxer(String path) throws IOException {
+        this(new File(path));
+    }
+
+    public Mp4Muxer(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+    }
+
+    /**
+     * Grows the file to the expected output size once before writing instead of extending it with
+     * every append; the file is truncated to its real size on {@link #stop()}. Must be called
+     * before {@link #start()}.
+     */
+    public void setPreallocateBytes(long bytes) {
+        checkState(STATE_INITIALIZED);
+        mPreallocateBytes = bytes;
+    }
+
+    /**
+     * Ends the presentation of every track at {@code durationUs} of output time through the edit
+     * lists. Samples written past it stay in the file, e.g. as references of frames before it, but
+     * are not played. Must be called before {@link #stop()}.
+     *
+     * @param durationUs -1 to play every sample
+     */
+    public synchronized void setDurationUs(long durationUs) {
+        if (mState != STATE_INITIALIZED && mState != STATE_STARTED) {
+            throw new IllegalStateException("Mp4Muxer is in state " + mState);
+        }
+        mDurationUs = durationUs;
+    }
+
+    @Override
+    public synchronized int addTrack(TrackFormat format) {
+        checkState(STATE_INITIALIZED);
+        SampleEntries.checkSupported(format);
+        mTracks.add(new MuxerTrack(mTracks.size() + 1, format.copy()));
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        checkState(STATE_INITIALIZED);
+        if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270) {
+            throw new IllegalArgumentException("Unsupported angle: " + degrees);
+        }
+        mOrientation = degrees;
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        checkState(STATE_INITIALIZED);
+        if (mTracks.isEmpty()) {
+            throw new IllegalStateException("no track added");
+        }
+        if (mPreallocateBytes > 0) {
+            mFile.setLength(mPreallocateBytes);
+        }
+        mCreationTime = MoovWriter.now();
+        BoxWriter header = new BoxWriter(64);
+        MoovWriter.writeFtyp(header, false);
+        mMdatHeaderPosition = header.position();
+        // free box to be swallowed by a largesize mdat header if needed, then the mdat header
+        header.putInt(8).putInt(Boxes.FREE).putInt(0).putInt(Boxes.MDAT);
+        ByteBuffer bytes = header.toBuffer();
+        mFlushedPosition = bytes.remaining();
+        writeFully(bytes, 0);
+        mState = STATE_STARTED;
+    }
+
+    @Override
+    public synchronized void writeSampleData(int trackIndex, ByteBuffer data, int offset, int size,
+                                             long presentationTimeUs, int flags) throws IOException {
+        checkState(STATE_STARTED);
+        if (trackIndex < 0 || trackIndex >= mTracks.size()) {
+            throw new IllegalArgumentException("trackIndex is invalid: " + trackIndex);
+        }
+        MuxerTrack track = mTracks.get(trackIndex);
+        if ((flags & FLAG_CODEC_CONFIG) != 0) {
+            byte[] config = new byte[size];
+            ByteBuffer view = data.duplicate();
+            view.limit(offset + size).position(offset);
+            view.get(config);
+            SampleEntries.applyCodecConfig(track.format, config);
+            return;
+        }
+        if (size <= 0) {
+            // end of stream buffers come without payload
+            return;
+        }
+        ByteBuffer sample = data.duplicate();
+        sample.limit(offset + size).position(offset);
+        if (track.nalFormat && NalUnits.startCodeLength(sample, offset, offset + size) > 0) {
+            sample = toLengthPrefixed(sample, offset, size);
+        }
+        long position = mFlushedPosition + mWriteBuffer.position();
+        if (trackIndex != mLastTrack
+                || track.getChunkSamples() >= MAX_CHUNK_SAMPLES
+                || track.getChunkDurationUs(presentationTimeUs) >= MAX_CHUNK_DURATION_US) {
+            track.startChunk(position, presentationTimeUs);
+            mLastTrack = trackIndex;
+        }
+        int sampleSize = sample.remaining();
+        append(sample);
+        track.addSample(sampleSize, presentationTimeUs, (flags & FLAG_KEY_FRAME) != 0 || !track.format.isVideo());
+    }
+
+    /**
+     * Appends {@code count} samples that lie back to back in {@code source} starting at
+     * {@code position} as one chunk, copied with FileChannel.transferTo so the bytes never enter
+     * the java heap. The samples must already be in mp4 form, i.e. 4 byte length prefixed NAL
+     * units for AVC/HEVC.
+     *
+     * @param sizes               sample sizes, read from index {@code from}
+     * @param presentationTimesUs sample presentation times, read from index {@code from}
+     * @param flags               sample flags ({@link #FLAG_KEY_FRAME}), read from index {@code from}
+     */
+    public synchronized void writeChunk(int trackIndex, FileChannel source, long position,
+                                        int[] sizes, long[] presentationTimesUs, int[] flags,
+                                        int from, int count) throws IOException {
+        checkState(STATE_STARTED);
+        if (trackIndex < 0 || trackIndex >= mTracks.size()) {
+            throw new IllegalArgumentException("trackIndex is invalid: " + trackIndex);
+        }
+        if (count <= 0) {
+            return;
+        }
+        MuxerTrack track = mTracks.get(trackIndex);
+        flush();
+        long bytes = 0;
+        for (int i = from; i < from + count; i++) {
+            bytes += sizes[i];
+        }
+        track.startChunk(mFlushedPosition, presentationTimesUs[from]);
+        mLastTrack = trackIndex;
+        mChannel.position(mFlushedPosition);
+        long transferred = 0;
+        while (transferred < bytes) {
+            long n = source.transferTo(position + transferred, bytes - transferred, mChannel);
+            if (n <= 0) {
+                throw new IOException("unexpected end of source at " + (position + transferred));
+            }
+            transferred += n;
+        }
+        mFlushedPosition += bytes;
+        boolean video = track.format.isVideo();
+        for (int i = from; i < from + count; i++) {
+            track.addSample(sizes[i], presentationTimesUs[i], (flags[i] & FLAG_KEY_FRAME) != 0 || !video);
+        }
+    }
+
+    private ByteBuffer toLengthPrefixed(ByteBuffer sample, int offset, int size) {
+        NalUnits.find(sample, offset, size, mNalRanges);
+        int converted = NalUnits.lengthPrefixedSize(mNalRanges);
+        if (mScratch == null || mScratch.capacity() < converted) {
+            mScratch = ByteBuffer.allocateDirect(converted + converted / 4);
+        }
+        mScratch.clear();
+        NalUnits.writeLengthPrefixed(sample, mNalRanges, mScratch);
+        mScratch.flip();
+        return mScratch;
+    }
+
+    private void append(ByteBuffer sample) throws IOException {
+        if (sample.remaining() > mWriteBuffer.remaining()) {
+            flush();
+        }
+        if (sample.remaining() > mWriteBuffer.capacity()) {
+            long position = mFlushedPosition;
+            mFlushedPosition += sample.remaining();
+            writeFully(sample, position);
+        } else {
+            mWriteBuffer.put(sample);
+        }
+    }
+
+    private void flush() throws IOException {
+        mWriteBuffer.flip();
+        long position = mFlushedPosition;
+        mFlushedPosition += mWriteBuffer.remaining();
+        writeFully(mWriteBuffer, position);
+        mWriteBuffer.clear();
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+
+    @Override
+    public synchronized void stop() throws IOException {
+        checkState(STATE_STARTED);
+        mState = STATE_STOPPED;
+        try {
+            flush();
+            long mdatEnd = mFlushedPosition;
+            long mdatSize = mdatEnd - mMdatHeaderPosition;
+            ByteBuffer mdatHeader = ByteBuffer.allocate(16);
+            if (mdatSize - 8 > mLargeSizeThreshold) {
+                mdatHeader.putInt(1).putInt(Boxes.MDAT).putLong(mdatSize);
+            } else {
+                mdatHeader.putInt(8).putInt(Boxes.FREE).putInt((int) (mdatSize - 8)).putInt(Boxes.MDAT);
+            }
+            mdatHeader.flip();
+            writeFully(mdatHeader, mMdatHeaderPosition);
+
+            BoxWriter moov = new BoxWriter(64 * 1024);
+            writeMoov(moov);
+            ByteBuffer bytes = moov.toBuffer();
+            long end = mdatEnd + bytes.remaining();
+            writeFully(bytes, mdatEnd);
+            mChannel.truncate(end);
+        } finally {
+            closeFile();
+        }
+    }
+
+    private void writeMoov(BoxWriter w) {
+        long duration = 0;
+        boolean co64 = false;
+        for (MuxerTrack track : mTracks) {
+            track.finish();
+            track.setPresentationEndUs(mDurationUs);
+            duration = Math.max(duration, MoovWriter.movieDuration(track));
+            co64 |= track.getMaxChunkOffset() > mLargeSizeThreshold;
+        }
+        w.start(Boxes.MOOV);
+        MoovWriter.writeMvhd(w, mCreationTime, duration, mTracks.size() + 1);
+        for (MuxerTrack track : mTracks) {
+            if (track.getSampleCount() > 0) {
+                MoovWriter.writeTrak(w, track, mCreationTime, mOrientation, co64);
+            }
+        }
+        w.end();
+    }
+
+    private void closeFile() {
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Finishes the file first if {@link #stop()} was not called, like MediaMuxer.release() does.
+     */
+    @Override
+    public synchronized void release() {
+        if (mState == STATE_RELEASED) {
+            return;
+        }
+        if (mState == STATE_STARTED) {
+            try {
+                stop();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else if (mState == STATE_INITIALIZED) {
+            closeFile();
+        }
+        mState = STATE_RELEASED;
+    }
+
+    private void checkState(int expected) {
+        if (mState != expected) {
+            throw new IllegalStateException("Mp4Muxer is in state " + mState + ", expected " + expected);
+        }
+    }
+}
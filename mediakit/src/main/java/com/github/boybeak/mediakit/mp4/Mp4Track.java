@@ -0,0 +1,34 @@
+package com.github.boybeak.mediakit.mp4;
+
+import com.github.boybeak.mediakit.TrackFormat;
+
+/**
+ * What {@link MoovParser} knows about one trak, plus the read cursor used by {@link Mp4Demuxer}.
+ */
+final class Mp4Track {
+    int trackId;
+    int rotation;
+    TrackFormat format;
+    SampleTable table;
+    /**
+     * Size of the NAL length prefix for AVC/HEVC samples, 0 for other codecs.
+     */
+    int nalLengthSize;
+    long editMediaTime;
+    long editDelayUs;
+    /**
+     * Added to every presentation time so the edit list is honoured, like MediaExtractor does.
+     */
+    long ptsOffsetUs;
+
+    boolean selected;
+    int cursor;
+
+    long presentationTimeUs(int sample) {
+        return table.toUs(table.getPresentationTime(sample) - editMediaTime) + editDelayUs;
+    }
+
+    long decodeTimeUs(int sample) {
+        return table.toUs(table.getDecodeTime(sample) - editMediaTime) + editDelayUs;
+    }
+}
@@ -0,0 +1,287 @@
+package com.github.boybeak.mediakit.mp4;
+
+import com.github.boybeak.mediakit.TrackFormat;
+
+/**
+ * Per track state of {@link Mp4Muxer}. Sample tables are kept as run-length / primitive arrays so
+ * memory grows by a few bytes per sample, never with the sample data itself.
+ * <p>
+ * Only presentation times are handed to a muxer, decode times are recovered by sorting the
+ * presentation times inside a small reorder window, which covers B-frame pyramids of any encoder.
+ */
+final class MuxerTrack {
+
+    static final int VIDEO_TIMESCALE = 90000;
+    private static final int REORDER_DEPTH = 16;
+
+    final int trackId;
+    final TrackFormat format;
+    final int timescale;
+    final boolean nalFormat;
+
+    final IntArray sizes = new IntArray(1024);
+    final IntArray syncSamples = new IntArray(64);
+    final LongArray chunkOffsets = new LongArray(256);
+    /**
+     * stsc runs as (first_chunk, samples_per_chunk) pairs, first_chunk 1 based
+     */
+    final IntArray chunkRuns = new IntArray(16);
+    /**
+     * stts runs as (sample_count, sample_delta) pairs
+     */
+    final IntArray timeToSample = new IntArray(16);
+    /**
+     * ctts runs as (sample_count, sample_offset) pairs
+     */
+    final IntArray compositionOffsets = new IntArray(16);
+
+    private int mChunkSamples;
+    private long mChunkStartUs = Long.MIN_VALUE;
+
+    // reorder window: arrival order ring and sorted pending presentation times
+    private final long[] mArrivals = new long[REORDER_DEPTH + 1];
+    private int mArrivalHead;
+    private final long[] mWindow = new long[REORDER_DEPTH + 1];
+    private int mPending;
+
+    private long mFirstDts = Long.MIN_VALUE;
+    private long mLastDts;
+    private long mMinPts = Long.MAX_VALUE;
+    private long mMaxPtsEnd = Long.MIN_VALUE;
+    private long mLastPts = Long.MIN_VALUE;
+    private boolean mHasCompositionOffsets;
+    private long mMinCompositionOffset;
+    private long mTotalBytes;
+    private int mMaxSampleSize;
+    private boolean mFinished;
+    private long mPresentationEnd = -1;
+
+    MuxerTrack(int trackId, TrackFormat format) {
+        this.trackId = trackId;
+        this.format = format;
+        if (format.getTimescale() > 0) {
+            timescale = format.getTimescale();
+        } else if (format.isAudio() && format.getSampleRate() > 0) {
+            timescale = TrackFormat.MIMETYPE_AUDIO_OPUS.equals(format.getMime()) ? 48000 : format.getSampleRate();
+        } else {
+            timescale = VIDEO_TIMESCALE;
+        }
+        nalFormat = SampleEntries.isNalFormat(format.getMime());
+    }
+
+    long toTicks(long timeUs) {
+        return Math.floorDiv(timeUs * timescale + 500000L, 1000000L);
+    }
+
+    long toUs(long ticks) {
+        return ticks * 1000000L / timescale;
+    }
+
+    int getSampleCount() {
+        return sizes.size();
+    }
+
+    long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    int getMaxSampleSize() {
+        return mMaxSampleSize;
+    }
+
+    /**
+     * @return duration of the chunk being filled, in microseconds
+     */
+    long getChunkDurationUs(long ptsUs) {
+        return mChunkStartUs == Long.MIN_VALUE ? 0 : ptsUs - mChunkStartUs;
+    }
+
+    int getChunkSamples() {
+        return mChunkSamples;
+    }
+
+    void startChunk(long offset, long ptsUs) {
+        closeChunk();
+        chunkOffsets.add(offset);
+        mChunkStartUs = ptsUs;
+    }
+
+    private void closeChunk() {
+        if (mChunkSamples == 0) {
+            return;
+        }
+        int runs = chunkRuns.size();
+        if (runs == 0 || chunkRuns.get(runs - 1) != mChunkSamples) {
+            // the chunk being closed is the last one added, chunk numbers are 1 based
+            chunkRuns.add(chunkOffsets.size());
+            chunkRuns.add(mChunkSamples);
+        }
+        mChunkSamples = 0;
+    }
+
+    void addSample(int size, long ptsUs, boolean sync) {
+        if (sync) {
+            syncSamples.add(sizes.size() + 1);
+        }
+        sizes.add(size);
+        mChunkSamples++;
+        mTotalBytes += size;
+        mMaxSampleSize = Math.max(mMaxSampleSize, size);
+
+        long pts = toTicks(ptsUs);
+        if (pts < mLastPts) {
+            mHasCompositionOffsets = true;
+        }
+        mLastPts = pts;
+        mMinPts = Math.min(mMinPts, pts);
+        mArrivals[(mArrivalHead + mPending) % mArrivals.length] = pts;
+        int i = mPending++;
+        while (i > 0 && mWindow[i - 1] > pts) {
+            mWindow[i] = mWindow[i - 1];
+            i--;
+        }
+        mWindow[i] = pts;
+        if (mPending > REORDER_DEPTH) {
+            emitTiming();
+        }
+    }
+
+    private void emitTiming() {
+        long pts = mArrivals[mArrivalHead];
+        mArrivalHead = (mArrivalHead + 1) % mArrivals.length;
+        long dts = mWindow[0];
+        System.arraycopy(mWindow, 1, mWindow, 0, --mPending);
+        if (mFirstDts == Long.MIN_VALUE) {
+            mFirstDts = dts;
+        } else {
+            // a deeper reorder than the window would make dts go backwards, keep it monotonic
+            dts = Math.max(dts, mLastDts + 1);
+            addRun(timeToSample, (int) (dts - mLastDts));
+        }
+        mLastDts = dts;
+        long offset = pts - dts;
+        mMinCompositionOffset = Math.min(mMinCompositionOffset, offset);
+        addRun(compositionOffsets, (int) offset);
+        mMaxPtsEnd = Math.max(mMaxPtsEnd, pts);
+    }
+
+    private static void addRun(IntArray runs, int value) {
+        int size = runs.size();
+        if (size > 0 && runs.get(size - 1) == value) {
+            runs.set(size - 2, runs.get(size - 2) + 1);
+        } else {
+            runs.add(1);
+            runs.add(value);
+        }
+    }
+
+    /**
+     * Flushes the reorder window and closes the last chunk, no sample may be added afterwards.
+     */
+    void finish() {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        while (mPending > 0) {
+            emitTiming();
+        }
+        closeChunk();
+        if (mMinCompositionOffset < 0) {
+            // move decode times back so no composition offset is negative, the edit list then
+            // skips the shift and playback still starts at the first presented frame
+            for (int i = 1; i < compositionOffsets.size(); i += 2) {
+                compositionOffsets.set(i, (int) (compositionOffsets.get(i) - mMinCompositionOffset));
+            }
+            mFirstDts += mMinCompositionOffset;
+        }
+        if (sizes.size() > 0) {
+            // the last sample lasts as long as the one before it
+            int runs = timeToSample.size();
+            int lastDelta = runs > 0 ? timeToSample.get(runs - 1) : defaultDuration();
+            addRun(timeToSample, lastDelta);
+        }
+    }
+
+    private int defaultDuration() {
+        if (format.isAudio()) {
+            return TrackFormat.MIMETYPE_AUDIO_AAC.equals(format.getMime()) ? 1024 : timescale / 50;
+        }
+        float frameRate = format.getFrameRate() > 0 ? format.getFrameRate() : 30;
+        return Math.max(1, Math.round(timescale / frameRate));
+    }
+
+    /**
+     * @return media duration in ticks, the sum of all sample durations
+     */
+    long getMediaDuration() {
+        long duration = 0;
+        for (int i = 0; i < timeToSample.size(); i += 2) {
+            duration += (long) timeToSample.get(i) * timeToSample.get(i + 1);
+        }
+        return duration;
+    }
+
+    /**
+     * @return the presentation time of the earliest sample in ticks, shifted into an empty edit
+     */
+    long getStartOffset() {
+        return sizes.size() == 0 ? 0 : Math.max(0, mMinPts);
+    }
+
+    /**
+     * @return decode time of the first sample in ticks, which becomes media time 0
+     */
+    long getFirstDts() {
+        return mFirstDts == Long.MIN_VALUE ? 0 : mFirstDts;
+    }
+
+    /**
+     * @return media time of the first presented sample, where the edit list starts playing
+     */
+    long getMediaStartTime() {
+        return Math.max(0, getStartOffset() - getFirstDts());
+    }
+
+    /**
+     * @param endUs output time where presentation stops, -1 to present every sample
+     */
+    void setPresentationEndUs(long endUs) {
+        mPresentationEnd = endUs < 0 ? -1 : toTicks(endUs);
+    }
+
+    /**
+     * @return ticks the edit list plays from the media start time on: every sample, unless
+     * {@link #setPresentationEndUs} stops earlier
+     */
+    long getPresentedDuration() {
+        if (sizes.size() == 0) {
+            return 0;
+        }
+        // up to the end of the last presented sample, which lies past the end of the decode
+        // timeline when frames are reordered
+        int runs = timeToSample.size();
+        long presentationEnd = mMaxPtsEnd + (runs > 0 ? timeToSample.get(runs - 1) : 0);
+        long presented = Math.max(0, presentationEnd - getStartOffset());
+        if (mPresentationEnd >= 0) {
+            presented = Math.min(presented, Math.max(0, mPresentationEnd - getStartOffset()));
+        }
+        return presented;
+    }
+
+    boolean hasCompositionOffsets() {
+        return mHasCompositionOffsets;
+    }
+
+    boolean isAllSync() {
+        return syncSamples.size() == sizes.size();
+    }
+
+    long getMaxChunkOffset() {
+        long max = 0;
+        for (int i = 0; i < chunkOffsets.size(); i++) {
+            max = Math.max(max, chunkOffsets.get(i));
+        }
+        return max;
+    }
+}
@@ -0,0 +1,144 @@
+package com.github.boybeak.mediakit.mp4;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Annex-B (start code) / length prefixed NAL unit helpers for AVC and HEVC.
+ */
+final class NalUnits {
+
+    private NalUnits() {
+    }
+
+    /**
+     * @return 3 or 4 if a start code begins at {@code position}, 0 otherwise
+     */
+    static int startCodeLength(ByteBuffer buf, int position, int end) {
+        if (position + 3 <= end && buf.get(position) == 0 && buf.get(position + 1) == 0) {
+            byte third = buf.get(position + 2);
+            if (third == 1) {
+                return 3;
+            }
+            if (third == 0 && position + 4 <= end && buf.get(position + 3) == 1) {
+                return 4;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Collects the [start, end) ranges of the NAL units of an Annex-B buffer into {@code out}, two
+     * ints per unit. Bytes before the first start code are ignored.
+     *
+     * @return the number of NAL units
+     */
+    static int find(ByteBuffer buf, int offset, int size, IntArray out) {
+        out.clear();
+        int end = offset + size;
+        int nalStart = -1;
+        int i = offset;
+        while (i + 3 <= end) {
+            if ((buf.get(i + 2) & 0xff) > 1) {
+                // cannot be part of a start code, skip ahead
+                i += 3;
+            } else if (buf.get(i) == 0 && buf.get(i + 1) == 0 && buf.get(i + 2) == 1) {
+                if (nalStart >= 0) {
+                    int nalEnd = i;
+                    if (nalEnd > nalStart && buf.get(nalEnd - 1) == 0) {
+                        nalEnd--;
+                    }
+                    out.add(nalStart);
+                    out.add(nalEnd);
+                }
+                i += 3;
+                nalStart = i;
+            } else {
+                i++;
+            }
+        }
+        if (nalStart >= 0 && nalStart < end) {
+            out.add(nalStart);
+            out.add(end);
+        }
+        return out.size() / 2;
+    }
+
+    /**
+     * @return the size of the NAL units found by {@link #find} once each gets a 4 byte length prefix
+     */
+    static int lengthPrefixedSize(IntArray nals) {
+        int size = 0;
+        for (int i = 0; i < nals.size(); i += 2) {
+            size += 4 + nals.get(i + 1) - nals.get(i);
+        }
+        return size;
+    }
+
+    /**
+     * Writes the NAL units found by {@link #find} to {@code dst}, each with a 4 byte length prefix.
+     */
+    static void writeLengthPrefixed(ByteBuffer src, IntArray nals, ByteBuffer dst) {
+        ByteBuffer view = src.duplicate();
+        for (int i = 0; i < nals.size(); i += 2) {
+            int start = nals.get(i);
+            int end = nals.get(i + 1);
+            dst.putInt(end - start);
+            view.limit(end).position(start);
+            dst.put(view);
+        }
+    }
+
+    /**
+     * Splits Annex-B codec specific data into its NAL units, e.g. csd-0 of an HEVC track holding
+     * VPS, SPS and PPS.
+     */
+    static List<byte[]> split(byte[] annexB) {
+        List<byte[]> units = new ArrayList<>();
+        if (annexB == null) {
+            return units;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(annexB);
+        IntArray ranges = new IntArray(8);
+        if (find(buf, 0, annexB.length, ranges) == 0) {
+            // no start code at all, treat it as a single bare NAL unit
+            units.add(annexB);
+            return units;
+        }
+        for (int i = 0; i < ranges.size(); i += 2) {
+            int start = ranges.get(i);
+            byte[] unit = new byte[ranges.get(i + 1) - start];
+            System.arraycopy(annexB, start, unit, 0, unit.length);
+            units.add(unit);
+        }
+        return units;
+    }
+
+    static int avcType(byte[] nal) {
+        return nal[0] & 0x1f;
+    }
+
+    static int hevcType(byte[] nal) {
+        return (nal[0] >> 1) & 0x3f;
+    }
+
+    /**
+     * Removes emulation prevention bytes (00 00 03) from the first {@code max} payload bytes.
+     */
+    static byte[] unescape(byte[] nal, int offset, int max) {
+        byte[] out = new byte[max];
+        int count = 0;
+        int zeros = 0;
+        for (int i = offset; i < nal.length && count < max; i++) {
+            int b = nal[i] & 0xff;
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = b == 0 ? zeros + 1 : 0;
+            out[count++] = (byte) b;
+        }
+        return out;
+    }
+}
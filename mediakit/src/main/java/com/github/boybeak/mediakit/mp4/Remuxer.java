@@ -0,0 +1,270 @@
+package com.github.boybeak.mediakit.mp4;
+
+import com.github.boybeak.mediakit.CancellationToken;
+import com.github.boybeak.mediakit.MuxerBackend;
+import com.github.boybeak.mediakit.SampleIndex;
+import com.github.boybeak.mediakit.SampleSource;
+import com.github.boybeak.mediakit.TrackFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Copies the compressed samples of the first video and the first audio track of a
+ * {@link SampleSource} into a {@link MuxerBackend} without decoding anything.
+ * <p>
+ * From an {@link Mp4Demuxer} into an {@link Mp4Muxer} whole chunks are copied with
+ * FileChannel.transferTo in file order, which keeps the source interleaving; any other
+ * combination goes sample by sample.
+ */
+public final class Remuxer {
+
+    public interface ProgressListener {
+        void onProgress(float progress);
+    }
+
+    private Remuxer() {
+    }
+
+    /**
+     * Adds the tracks, starts and stops the muxer; the source is left open.
+     */
+    public static void remux(SampleSource source, MuxerBackend muxer, ProgressListener listener) throws IOException {
+        remux(source, muxer, listener, new CancellationToken());
+    }
+
+    /**
+     * @param token checked before every chunk or sample, a cancelled remux throws CancellationException
+     *              and leaves the muxer unstopped
+     */
+    public static void remux(SampleSource source, MuxerBackend muxer, ProgressListener listener,
+                             CancellationToken token) throws IOException {
+        int[] sourceTracks = pickTracks(source);
+        int[] muxerTracks = new int[sourceTracks.length];
+        boolean chunked = source instanceof Mp4Demuxer && muxer instanceof Mp4Muxer
+                && canCopyChunks((Mp4Demuxer) source, sourceTracks);
+        for (int i = 0; i < sourceTracks.length; i++) {
+            TrackFormat format = source.getTrackFormat(sourceTracks[i]).copy();
+            if (format.isVideo() && format.getRotation() != 0) {
+                muxer.setOrientationHint(format.getRotation());
+            }
+            if (chunked) {
+                // same timescale as the source, so sample times survive without rounding
+                format.setTimescale(((Mp4Demuxer) source).getSampleTable(sourceTracks[i]).getTimescale());
+            }
+            muxerTracks[i] = muxer.addTrack(format);
+        }
+        muxer.start();
+        if (chunked) {
+            copyChunks((Mp4Demuxer) source, sourceTracks, (Mp4Muxer) muxer, muxerTracks, listener, token);
+        } else {
+            copySamples(source, sourceTracks, muxer, muxerTracks, listener, token);
+        }
+        muxer.stop();
+        if (listener != null) {
+            listener.onProgress(1);
+        }
+    }
+
+    /**
+     * Trims without decoding anything. Video is copied from the sync sample before {@code startUs},
+     * audio from the frame that contains it. Every sample keeps its time minus {@code startUs}, so
+     * the lead-in frames get negative times, which the muxer hides behind an edit list.
+     * {@link Mp4Muxer#setDurationUs} ends the edit at {@code endUs}. Players that honor edit lists
+     * start and stop exactly on the cut points, and the frames outside them are only decoded as
+     * references.
+     *
+     * @param index the sample index of {@code source}, to stop after the last frame in decode order
+     *              that is presented before {@code endUs}
+     * @param endUs exclusive, -1 for the end of the source
+     * @param token checked before every sample, a cancelled trim throws CancellationException and
+     *              leaves the muxer unstopped
+     */
+    public static void trim(SampleSource source, SampleIndex index, Mp4Muxer muxer, long startUs, long endUs,
+                            ProgressListener listener, CancellationToken token) throws IOException {
+        int[] sourceTracks = pickTracks(source);
+        int[] muxerTracks = new int[sourceTracks.length];
+        // decode order number of the current sample of each track, and of the last one to copy
+        int[] current = new int[sourceTracks.length];
+        int[] last = new int[sourceTracks.length];
+        long lastUs = 0;
+        for (int i = 0; i < sourceTracks.length; i++) {
+            TrackFormat format = source.getTrackFormat(sourceTracks[i]).copy();
+            if (format.isVideo() && format.getRotation() != 0) {
+                muxer.setOrientationHint(format.getRotation());
+            }
+            muxerTracks[i] = muxer.addTrack(format);
+            SampleIndex.Track track = index.getTrack(sourceTracks[i]);
+            current[i] = Math.max(0, track.findSyncSample(startUs, SampleSource.SEEK_TO_PREVIOUS_SYNC));
+            last[i] = endUs < 0 ? track.getSampleCount() - 1 : track.findLastSampleBefore(endUs);
+            lastUs = Math.max(lastUs, track.getLastPresentationTimeUs());
+            if (current[i] <= last[i]) {
+                source.selectTrack(sourceTracks[i]);
+            }
+        }
+        long durationUs = Math.max((endUs < 0 ? lastUs : endUs) - startUs, 1);
+        if (endUs >= 0) {
+            muxer.setDurationUs(endUs - startUs);
+        }
+        muxer.start();
+        source.seekTo(startUs, SampleSource.SEEK_TO_PREVIOUS_SYNC);
+        while (true) {
+            token.throwIfCancelled();
+            int trackIndex = source.getSampleTrackIndex();
+            if (trackIndex < 0) {
+                break;
+            }
+            int i = 0;
+            while (sourceTracks[i] != trackIndex) {
+                i++;
+            }
+            ByteBuffer sample = source.getSampleData();
+            if (sample == null) {
+                break;
+            }
+            long timeUs = source.getSampleTime();
+            int flags = (source.getSampleFlags() & SampleSource.SAMPLE_FLAG_SYNC) != 0 ? MuxerBackend.FLAG_KEY_FRAME : 0;
+            muxer.writeSampleData(muxerTracks[i], sample, sample.position(), sample.remaining(), timeUs - startUs, flags);
+            if (listener != null) {
+                listener.onProgress(Math.max(0f, Math.min(1f, (timeUs - startUs) / (float) durationUs)));
+            }
+            boolean trackDone = current[i]++ == last[i];
+            source.advance();
+            if (trackDone) {
+                // later samples of this track are neither shown nor referenced
+                source.unselectTrack(trackIndex);
+            }
+        }
+        muxer.stop();
+        if (listener != null) {
+            listener.onProgress(1);
+        }
+    }
+
+    private static int[] pickTracks(SampleSource source) {
+        int video = -1;
+        int audio = -1;
+        for (int i = 0; i < source.getTrackCount(); i++) {
+            TrackFormat format = source.getTrackFormat(i);
+            if (video < 0 && format.isVideo()) {
+                video = i;
+            } else if (audio < 0 && format.isAudio()) {
+                audio = i;
+            }
+        }
+        if (video < 0 && audio < 0) {
+            throw new IllegalArgumentException("no audio or video track to remux");
+        }
+        if (video < 0) {
+            return new int[]{audio};
+        }
+        return audio < 0 ? new int[]{video} : new int[]{video, audio};
+    }
+
+    private static boolean canCopyChunks(Mp4Demuxer demuxer, int[] tracks) {
+        for (int track : tracks) {
+            int nalLengthSize = demuxer.getNalLengthSize(track);
+            if (nalLengthSize != 0 && nalLengthSize != 4) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void copyChunks(Mp4Demuxer demuxer, int[] sourceTracks, Mp4Muxer muxer, int[] muxerTracks,
+                                   ProgressListener listener, CancellationToken token) throws IOException {
+        int trackCount = sourceTracks.length;
+        SampleTable[] tables = new SampleTable[trackCount];
+        int[][] sizes = new int[trackCount][];
+        long[][] times = new long[trackCount][];
+        int[][] flags = new int[trackCount][];
+        long totalBytes = 0;
+        int totalChunks = 0;
+        for (int t = 0; t < trackCount; t++) {
+            SampleTable table = demuxer.getSampleTable(sourceTracks[t]);
+            Mp4Track track = demuxer.getTrack(sourceTracks[t]);
+            int count = table.getSampleCount();
+            tables[t] = table;
+            sizes[t] = new int[count];
+            times[t] = new long[count];
+            flags[t] = new int[count];
+            for (int i = 0; i < count; i++) {
+                sizes[t][i] = table.getSize(i);
+                times[t][i] = track.presentationTimeUs(i);
+                flags[t][i] = table.isSync(i) ? MuxerBackend.FLAG_KEY_FRAME : 0;
+            }
+            totalBytes += table.getTotalBytes();
+            totalChunks += table.getChunkCount();
+        }
+        // every chunk of every track as (track << 32 | chunk), ordered by file offset
+        Long[] chunks = new Long[totalChunks];
+        int n = 0;
+        for (int t = 0; t < trackCount; t++) {
+            for (int c = 0; c < tables[t].getChunkCount(); c++) {
+                chunks[n++] = ((long) t << 32) | c;
+            }
+        }
+        Arrays.sort(chunks, (a, b) -> Long.compare(chunkOffset(tables, a), chunkOffset(tables, b)));
+
+        long copied = 0;
+        for (long key : chunks) {
+            token.throwIfCancelled();
+            int t = (int) (key >>> 32);
+            int c = (int) key;
+            SampleTable table = tables[t];
+            int count = table.getChunkSampleCount(c);
+            if (count == 0) {
+                continue;
+            }
+            int first = table.getChunkFirstSample(c);
+            muxer.writeChunk(muxerTracks[t], demuxer.getChannel(), table.getChunkOffset(c),
+                    sizes[t], times[t], flags[t], first, count);
+            for (int i = first; i < first + count; i++) {
+                copied += sizes[t][i];
+            }
+            if (listener != null && totalBytes > 0) {
+                listener.onProgress(copied / (float) totalBytes);
+            }
+        }
+    }
+
+    private static long chunkOffset(SampleTable[] tables, long key) {
+        return tables[(int) (key >>> 32)].getChunkOffset((int) key);
+    }
+
+    private static void copySamples(SampleSource source, int[] sourceTracks, MuxerBackend muxer, int[] muxerTracks,
+                                    ProgressListener listener, CancellationToken token) throws IOException {
+        long durationUs = 0;
+        for (int track : sourceTracks) {
+            source.selectTrack(track);
+            durationUs = Math.max(durationUs, source.getTrackFormat(track).getDurationUs());
+        }
+        source.seekTo(0, SampleSource.SEEK_TO_PREVIOUS_SYNC);
+        while (true) {
+            token.throwIfCancelled();
+            int index = source.getSampleTrackIndex();
+            if (index < 0) {
+                break;
+            }
+            ByteBuffer sample = source.getSampleData();
+            if (sample == null) {
+                break;
+            }
+            long timeUs = source.getSampleTime();
+            int flags = (source.getSampleFlags() & SampleSource.SAMPLE_FLAG_SYNC) != 0 ? MuxerBackend.FLAG_KEY_FRAME : 0;
+            for (int i = 0; i < sourceTracks.length; i++) {
+                if (sourceTracks[i] == index) {
+                    muxer.writeSampleData(muxerTracks[i], sample, sample.position(), sample.remaining(), timeUs, flags);
+                    break;
+                }
+            }
+            if (listener != null && durationUs > 0) {
+                listener.onProgress(Math.min(1f, timeUs / (float) durationUs));
+            }
+            if (!source.advance()) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.github.boybeak.mediakit.mp4;
+
+import com.github.boybeak.mediakit.TrackFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the stsd sample entry of a track from its {@link TrackFormat}, the inverse of what
+ * {@link MoovParser} reads.
+ */
+final class SampleEntries {
+
+    private SampleEntries() {
+    }
+
+    /**
+     * @return whether samples of this mime are AVC/HEVC NAL units that need length prefixes
+     */
+    static boolean isNalFormat(String mime) {
+        return TrackFormat.MIMETYPE_VIDEO_AVC.equals(mime) || TrackFormat.MIMETYPE_VIDEO_HEVC.equals(mime);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the mime type cannot be stored in mp4
+     */
+    static void checkSupported(TrackFormat format) {
+        String mime = format.getMime();
+        if (!isNalFormat(mime)
+                && !TrackFormat.MIMETYPE_VIDEO_MPEG4.equals(mime)
+                && !TrackFormat.MIMETYPE_AUDIO_AAC.equals(mime)
+                && !TrackFormat.MIMETYPE_AUDIO_OPUS.equals(mime)
+                && !TrackFormat.MIMETYPE_AUDIO_AMR_NB.equals(mime)
+                && !TrackFormat.MIMETYPE_AUDIO_AMR_WB.equals(mime)) {
+            throw new IllegalArgumentException("unsupported mime type for mp4: " + mime);
+        }
+    }
+
+    /**
+     * Fills missing codec specific data from a BUFFER_FLAG_CODEC_CONFIG buffer, like MediaMuxer does
+     * when the encoder output format came without csd.
+     */
+    static void applyCodecConfig(TrackFormat format, byte[] config) {
+        if (format.getCsd(0) != null) {
+            return;
+        }
+        if (TrackFormat.MIMETYPE_VIDEO_AVC.equals(format.getMime())) {
+            ByteBuffer sps = ByteBuffer.allocate(config.length + 4);
+            ByteBuffer pps = ByteBuffer.allocate(config.length + 4);
+            for (byte[] nal : NalUnits.split(config)) {
+                ByteBuffer target = NalUnits.avcType(nal) == 8 ? pps : sps;
+                target.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1).put(nal);
+            }
+            format.setCsd(0, toArray(sps));
+            if (pps.position() > 0) {
+                format.setCsd(1, toArray(pps));
+            }
+        } else {
+            format.setCsd(0, config);
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes a complete stsd box with a single sample entry, avc3/hev1 instead of avc1/hvc1 for
+     * {@link TrackFormat#isInBandParameterSets()}.
+     *
+     * @param maxSampleSize  largest sample in bytes, for the esds buffer size
+     * @param avgBitrate     in bits per second, 0 if unknown
+     */
+    static void writeStsd(BoxWriter w, TrackFormat format, int maxSampleSize, int avgBitrate) {
+        w.startFull(Boxes.STSD, 0, 0).putInt(1);
+        String mime = format.getMime();
+        if (TrackFormat.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            startVisualEntry(w, format.isInBandParameterSets() ? Boxes.AVC3 : Boxes.AVC1, format);
+            writeAvcC(w, format);
+            w.end();
+        } else if (TrackFormat.MIMETYPE_VIDEO_HEVC.equals(mime)) {
+            startVisualEntry(w, format.isInBandParameterSets() ? Boxes.HEV1 : Boxes.HVC1, format);
+            writeHvcC(w, format);
+            w.end();
+        } else if (TrackFormat.MIMETYPE_VIDEO_MPEG4.equals(mime)) {
+            startVisualEntry(w, Boxes.MP4V, format);
+            writeEsds(w, 0x20, 0x04, format.getCsd(0), maxSampleSize, avgBitrate);
+            w.end();
+        } else if (TrackFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            startAudioEntry(w, Boxes.MP4A, format.getChannelCount(), format.getSampleRate());
+            writeEsds(w, 0x40, 0x05, format.getCsd(0), maxSampleSize, avgBitrate);
+            w.end();
+        } else if (TrackFormat.MIMETYPE_AUDIO_OPUS.equals(mime)) {
+            startAudioEntry(w, Boxes.OPUS, format.getChannelCount(), 48000);
+            writeDops(w, format);
+            w.end();
+        } else if (TrackFormat.MIMETYPE_AUDIO_AMR_NB.equals(mime) || TrackFormat.MIMETYPE_AUDIO_AMR_WB.equals(mime)) {
+            boolean wide = TrackFormat.MIMETYPE_AUDIO_AMR_WB.equals(mime);
+            startAudioEntry(w, wide ? Boxes.SAWB : Boxes.SAMR, 1, wide ? 16000 : 8000);
+            // vendor, decoder_version, mode_set (all modes), mode_change_period, frames_per_sample
+            w.start(Boxes.DAMR).putInt(0).putByte(0).putShort(wide ? 0x01ff : 0x00ff).putByte(0).putByte(1).end();
+            w.end();
+        } else {
+            throw new IllegalArgumentException("unsupported mime type for mp4: " + mime);
+        }
+        w.end();
+    }
+
+    private static void startVisualEntry(BoxWriter w, int type, TrackFormat format) {
+        w.start(type)
+                .putZeros(6).putShort(1)            // reserved, data_reference_index
+                .putZeros(16)                       // pre_defined, reserved
+                .putShort(format.getWidth()).putShort(format.getHeight())
+                .putInt(0x00480000).putInt(0x00480000) // 72 dpi
+                .putInt(0).putShort(1)              // reserved, frame_count
+                .putZeros(32)                       // compressorname
+                .putShort(0x0018).putShort(-1);     // depth, pre_defined
+    }
+
+    private static void startAudioEntry(BoxWriter w, int type, int channelCount, int sampleRate) {
+        w.start(type)
+                .putZeros(6).putShort(1)            // reserved, data_reference_index
+                .putZeros(8)                        // version 0, reserved
+                .putShort(channelCount).putShort(16)
+                .putShort(0).putShort(0)
+                .putInt(sampleRate > 0xffff ? 0 : sampleRate << 16);
+    }
+
+    private static void writeAvcC(BoxWriter w, TrackFormat format) {
+        List<byte[]> sps = new ArrayList<>();
+        List<byte[]> pps = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            for (byte[] nal : NalUnits.split(format.getCsd(i))) {
+                (NalUnits.avcType(nal) == 8 ? pps : sps).add(nal);
+            }
+        }
+        if (sps.isEmpty() || sps.get(0).length < 4) {
+            throw new IllegalArgumentException("AVC track without SPS: " + format);
+        }
+        byte[] first = sps.get(0);
+        w.start(Boxes.AVCC)
+                .putByte(1).putByte(first[1]).putByte(first[2]).putByte(first[3])
+                .putByte(0xff)                      // 4 byte NAL lengths
+                .putByte(0xe0 | sps.size());
+        for (byte[] nal : sps) {
+            w.putShort(nal.length).putBytes(nal);
+        }
+        w.putByte(pps.size());
+        for (byte[] nal : pps) {
+            w.putShort(nal.length).putBytes(nal);
+        }
+        w.end();
+    }
+
+    private static void writeHvcC(BoxWriter w, TrackFormat format) {
+        List<byte[]> units = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            units.addAll(NalUnits.split(format.getCsd(i)));
+        }
+        byte[] profileTierLevel = new byte[12];
+        for (byte[] nal : units) {
+            if (NalUnits.hevcType(nal) == 33 && nal.length > 3) {
+                // 2 byte NAL header, then vps_id/max_sub_layers/nesting, then profile_tier_level
+                byte[] rbsp = NalUnits.unescape(nal, 2, 13);
+                System.arraycopy(rbsp, 1, profileTierLevel, 0, 12);
+                break;
+            }
+        }
+        int[] types = {32, 33, 34};
+        int arrays = 0;
+        for (int type : types) {
+            if (count(units, type) > 0) {
+                arrays++;
+            }
+        }
+        w.start(Boxes.HVCC).putByte(1).putBytes(profileTierLevel)
+                .putShort(0xf000)                   // min_spatial_segmentation_idc
+                .putByte(0xfc)                      // parallelismType
+                .putByte(0xfd)                      // chroma_format_idc 4:2:0
+                .putByte(0xf8).putByte(0xf8)        // 8 bit luma / chroma
+                .putShort(0)                        // avgFrameRate
+                .putByte(0x0f)                      // 1 temporal layer, nested, 4 byte NAL lengths
+                .putByte(arrays);
+        for (int type : types) {
+            int count = count(units, type);
+            if (count == 0) {
+                continue;
+            }
+            w.putByte(0x80 | type).putShort(count);
+            for (byte[] nal : units) {
+                if (NalUnits.hevcType(nal) == type) {
+                    w.putShort(nal.length).putBytes(nal);
+                }
+            }
+        }
+        w.end();
+    }
+
+    private static int count(List<byte[]> units, int hevcType) {
+        int count = 0;
+        for (byte[] nal : units) {
+            if (NalUnits.hevcType(nal) == hevcType) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void writeEsds(BoxWriter w, int objectType, int streamType, byte[] csd,
+                                  int maxSampleSize, int avgBitrate) {
+        int csdLength = csd == null ? 0 : csd.length;
+        int decoderSpecificInfo = csd == null ? 0 : 1 + descriptorLengthSize(csdLength) + csdLength;
+        int decoderConfig = 13 + decoderSpecificInfo;
+        int esDescriptor = 3 + 1 + descriptorLengthSize(decoderConfig) + decoderConfig + 3;
+        w.startFull(Boxes.ESDS, 0, 0);
+        w.putByte(0x03);
+        putDescriptorLength(w, esDescriptor);
+        w.putShort(0).putByte(0);                   // ES_ID, flags
+        w.putByte(0x04);
+        putDescriptorLength(w, decoderConfig);
+        w.putByte(objectType).putByte((streamType << 2) | 1)
+                .putByte(maxSampleSize >> 16).putShort(maxSampleSize) // bufferSizeDB
+                .putInt(avgBitrate).putInt(avgBitrate);
+        if (csd != null) {
+            w.putByte(0x05);
+            putDescriptorLength(w, csdLength);
+            w.putBytes(csd);
+        }
+        // SLConfigDescriptor, predefined 2 (mp4)
+        w.putByte(0x06).putByte(1).putByte(2);
+        w.end();
+    }
+
+    private static int descriptorLengthSize(int length) {
+        int size = 1;
+        while ((length >>= 7) > 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static void putDescriptorLength(BoxWriter w, int length) {
+        for (int shift = 7 * (descriptorLengthSize(length) - 1); shift > 0; shift -= 7) {
+            w.putByte(0x80 | ((length >> shift) & 0x7f));
+        }
+        w.putByte(length & 0x7f);
+    }
+
+    private static void writeDops(BoxWriter w, TrackFormat format) {
+        byte[] csd = format.getCsd(0);
+        if (csd == null || csd.length < 19) {
+            throw new IllegalArgumentException("Opus track without OpusHead: " + format);
+        }
+        ByteBuffer head = ByteBuffer.wrap(csd).order(ByteOrder.LITTLE_ENDIAN);
+        int channels = head.get(9) & 0xff;
+        int mappingFamily = head.get(18) & 0xff;
+        w.start(Boxes.DOPS).putByte(0).putByte(channels)
+                .putShort(head.getShort(10)).putInt(head.getInt(12))
+                .putShort(head.getShort(16)).putByte(mappingFamily);
+        if (mappingFamily != 0 && csd.length >= 21 + channels) {
+            w.putBytes(csd, 19, 2 + channels);
+        }
+        w.end();
+    }
+}
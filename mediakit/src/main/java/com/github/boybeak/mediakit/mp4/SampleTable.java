@@ -0,0 +1,216 @@
+package com.github.boybeak.mediakit.mp4;
+
+import com.github.boybeak.mediakit.SampleSource;
+
+import java.util.Arrays;
+
+/**
+ * Flattened stbl of one track. Built once when the moov is parsed, read-only afterwards.
+ * Times are in the track's media timescale, sample indices are 0 based.
+ */
+public final class SampleTable {
+
+    private final int mTimescale;
+    private final int mSampleCount;
+    private final int[] mSizes;
+    private final DeltaLongArray mOffsets;
+    private final DeltaLongArray mDecodeTimes;
+    /**
+     * null when the track has no ctts, i.e. pts == dts
+     */
+    private final int[] mCompositionOffsets;
+    /**
+     * Sorted indices of sync samples, null when every sample is a sync sample.
+     */
+    private final int[] mSyncSamples;
+    private final long[] mChunkOffsets;
+    private final int[] mChunkFirstSamples;
+    private final long mLastSampleDuration;
+    private final long mTotalBytes;
+    private final int mMaxSampleSize;
+
+    SampleTable(int timescale, int[] sizes, DeltaLongArray offsets, DeltaLongArray decodeTimes,
+                int[] compositionOffsets, int[] syncSamples, long[] chunkOffsets, int[] chunkFirstSamples,
+                long lastSampleDuration) {
+        mTimescale = timescale;
+        mSampleCount = sizes.length;
+        mSizes = sizes;
+        mOffsets = offsets;
+        mDecodeTimes = decodeTimes;
+        mCompositionOffsets = compositionOffsets;
+        mSyncSamples = syncSamples;
+        mChunkOffsets = chunkOffsets;
+        mChunkFirstSamples = chunkFirstSamples;
+        mLastSampleDuration = lastSampleDuration;
+        long total = 0;
+        int max = 0;
+        for (int size : sizes) {
+            total += size;
+            max = Math.max(max, size);
+        }
+        mTotalBytes = total;
+        mMaxSampleSize = max;
+    }
+
+    public int getTimescale() {
+        return mTimescale;
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    public int getSize(int sample) {
+        return mSizes[sample];
+    }
+
+    public long getOffset(int sample) {
+        return mOffsets.get(sample);
+    }
+
+    public long getDecodeTime(int sample) {
+        return mDecodeTimes.get(sample);
+    }
+
+    public long getPresentationTime(int sample) {
+        long dts = mDecodeTimes.get(sample);
+        return mCompositionOffsets == null ? dts : dts + mCompositionOffsets[sample];
+    }
+
+    public int getCompositionOffset(int sample) {
+        return mCompositionOffsets == null ? 0 : mCompositionOffsets[sample];
+    }
+
+    public boolean hasCompositionOffsets() {
+        return mCompositionOffsets != null;
+    }
+
+    /**
+     * @return duration of the sample in ticks, the last sample reuses the previous delta
+     */
+    public long getDuration(int sample) {
+        if (sample + 1 < mSampleCount) {
+            return mDecodeTimes.get(sample + 1) - mDecodeTimes.get(sample);
+        }
+        return mLastSampleDuration;
+    }
+
+    /**
+     * @return decode time right after the last sample, i.e. the media duration in ticks
+     */
+    public long getEndTime() {
+        return mSampleCount == 0 ? 0 : mDecodeTimes.get(mSampleCount - 1) + mLastSampleDuration;
+    }
+
+    public boolean isSync(int sample) {
+        return mSyncSamples == null || Arrays.binarySearch(mSyncSamples, sample) >= 0;
+    }
+
+    public int getSyncSampleCount() {
+        return mSyncSamples == null ? mSampleCount : mSyncSamples.length;
+    }
+
+    /**
+     * @param n index into the sync samples, 0 until {@link #getSyncSampleCount()}
+     * @return the sample index of the n-th sync sample
+     */
+    public int getSyncSample(int n) {
+        return mSyncSamples == null ? n : mSyncSamples[n];
+    }
+
+    public int getChunkCount() {
+        return mChunkOffsets.length;
+    }
+
+    public long getChunkOffset(int chunk) {
+        return mChunkOffsets[chunk];
+    }
+
+    public int getChunkFirstSample(int chunk) {
+        return mChunkFirstSamples[chunk];
+    }
+
+    /**
+     * @return number of samples in the chunk, samples of a chunk are contiguous in the file
+     */
+    public int getChunkSampleCount(int chunk) {
+        int end = chunk + 1 < mChunkFirstSamples.length ? mChunkFirstSamples[chunk + 1] : mSampleCount;
+        return end - mChunkFirstSamples[chunk];
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    public int getMaxSampleSize() {
+        return mMaxSampleSize;
+    }
+
+    public long toUs(long ticks) {
+        return ticks * 1000000L / mTimescale;
+    }
+
+    public long toTicks(long timeUs) {
+        return timeUs * mTimescale / 1000000L;
+    }
+
+    /**
+     * @return the largest tick count whose {@link #toUs(long)} is still <= timeUs, so seeking to a
+     * time a sample was reported with lands on that sample despite the rounding
+     */
+    public long toSeekTicks(long timeUs) {
+        if (timeUs < 0) {
+            return toTicks(timeUs);
+        }
+        return ((timeUs + 1) * mTimescale + 999999L) / 1000000L - 1;
+    }
+
+    /**
+     * Finds the sync sample for a seek, same modes as {@link SampleSource#seekTo(long, int)}.
+     *
+     * @param ptsTicks target presentation time in ticks
+     * @return a sample index, or {@link #getSampleCount()} when seeking past the last sync sample
+     */
+    public int findSyncSample(long ptsTicks, int mode) {
+        int count = getSyncSampleCount();
+        if (count == 0) {
+            return mSampleCount;
+        }
+        // last sync sample whose pts <= target
+        int low = 0;
+        int high = count - 1;
+        int previous = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (getPresentationTime(getSyncSample(mid)) <= ptsTicks) {
+                previous = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        switch (mode) {
+            case SampleSource.SEEK_TO_NEXT_SYNC: {
+                if (previous >= 0 && getPresentationTime(getSyncSample(previous)) == ptsTicks) {
+                    return getSyncSample(previous);
+                }
+                int next = previous + 1;
+                return next < count ? getSyncSample(next) : mSampleCount;
+            }
+            case SampleSource.SEEK_TO_CLOSEST_SYNC: {
+                if (previous < 0) {
+                    return getSyncSample(0);
+                }
+                if (previous + 1 >= count) {
+                    return getSyncSample(previous);
+                }
+                long before = ptsTicks - getPresentationTime(getSyncSample(previous));
+                long after = getPresentationTime(getSyncSample(previous + 1)) - ptsTicks;
+                return getSyncSample(after < before ? previous + 1 : previous);
+            }
+            case SampleSource.SEEK_TO_PREVIOUS_SYNC:
+            default:
+                return getSyncSample(previous < 0 ? 0 : previous);
+        }
+    }
+}
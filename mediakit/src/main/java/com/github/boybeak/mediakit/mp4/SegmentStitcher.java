@@ -0,0 +1,361 @@
+package com.github.boybeak.mediakit.mp4;
+
+import com.github.boybeak.mediakit.CancellationToken;
+import com.github.boybeak.mediakit.MuxerBackend;
+import com.github.boybeak.mediakit.SampleSource;
+import com.github.boybeak.mediakit.TrackFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Joins video-only mp4 segments, encoded separately from consecutive ranges of one source, into a
+ * single output, optionally together with an audio track copied from the source. Ranges of the
+ * source video itself can sit between the segments, copied as compressed samples.
+ * <p>
+ * Every segment is shifted by its own offset, so segments whose timestamps each start at 0 line up
+ * again. The output uses the sample description (csd) of the first segment. A later segment whose
+ * parameter sets differ from the ones before it gets its SPS/PPS in-band in front of its first
+ * frame, and the video track is then marked {@link TrackFormat#isInBandParameterSets()}, so an mp4
+ * muxer writes an avc3/hev1 sample entry that lets players use them. Check
+ * {@link #hasParameterSetChanges()} before choosing a muxer: android.media.MediaMuxer can only write
+ * avc1/hvc1, whose players may keep decoding with the first parameter sets.
+ * <p>
+ * Audio samples are interleaved with the video by presentation time, the way a muxer fed by two
+ * threads would have received them. Audio can be joined from several parts as well, which then
+ * must share the sample description of the first one.
+ */
+public class SegmentStitcher {
+
+    private MuxerBackend mMuxer;
+    private final List<Part> mParts = new ArrayList<>();
+    private int mOrientation;
+    private final List<Part> mAudioParts = new ArrayList<>();
+    private int mAudioPart = -1;
+    private SampleSource mAudioSource;
+
+    public SegmentStitcher() {
+    }
+
+    /**
+     * @param offsetUs added to every presentation time of the segment
+     */
+    public SegmentStitcher addSegment(File segment, long offsetUs) {
+        mParts.add(new Part(segment, null, 0, -1, offsetUs));
+        return this;
+    }
+
+    /**
+     * Adds the samples of the first video track of {@code source} in decode order, from the sync
+     * sample at {@code startUs} up to the sync sample at {@code endUs}. Cutting at sync samples keeps
+     * every copied frame decodable, reordered frames included. The source is left open.
+     *
+     * @param endUs exclusive, -1 for the end of the track
+     * @param offsetUs added to every presentation time of the source
+     */
+    public SegmentStitcher addSource(SampleSource source, long startUs, long endUs, long offsetUs) {
+        mParts.add(new Part(null, source, startUs, endUs, offsetUs));
+        return this;
+    }
+
+    public SegmentStitcher setOrientationHint(int degrees) {
+        mOrientation = degrees;
+        return this;
+    }
+
+    /**
+     * Copies the first audio track of {@code source} from {@code startUs} to {@code endUs}, shifted so
+     * that {@code startUs} becomes 0. The source is left open.
+     *
+     * @param endUs inclusive, -1 for the end of the track
+     */
+    public SegmentStitcher setAudio(SampleSource source, long startUs, long endUs) {
+        mAudioParts.clear();
+        return addAudio(source, startUs, endUs, -startUs);
+    }
+
+    /**
+     * Appends the first audio track of {@code source} from {@code startUs} to {@code endUs}. Audio
+     * parts are written one after the other, each shifted by its own offset. The source is left open.
+     *
+     * @param endUs    inclusive, -1 for the end of the track
+     * @param offsetUs added to every presentation time of the part
+     */
+    public SegmentStitcher addAudio(SampleSource source, long startUs, long endUs, long offsetUs) {
+        mAudioParts.add(new Part(null, source, startUs, endUs, offsetUs));
+        return this;
+    }
+
+    /**
+     * Appends the audio track of an audio-only mp4, e.g. audio transcoded separately, like
+     * {@link #addAudio(SampleSource, long, long, long)} for its whole length.
+     */
+    public SegmentStitcher addAudio(File file, long offsetUs) {
+        mAudioParts.add(new Part(file, null, 0, -1, offsetUs));
+        return this;
+    }
+
+    /**
+     * Opens every video part to compare its sample description with the first one's.
+     *
+     * @return true when a later part uses other parameter sets, the output then needs a muxer that
+     * writes avc3/hev1
+     */
+    public boolean hasParameterSetChanges() throws IOException {
+        if (mParts.isEmpty()) {
+            return false;
+        }
+        TrackFormat first = videoFormat(mParts.get(0));
+        for (int s = 1; s < mParts.size(); s++) {
+            if (!sameParameterSets(first, videoFormat(mParts.get(s)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static TrackFormat videoFormat(Part part) throws IOException {
+        SampleSource source = part.open();
+        try {
+            return source.getTrackFormat(videoTrack(source, part)).copy();
+        } finally {
+            part.close(source);
+        }
+    }
+
+    /**
+     * Adds the tracks, starts and stops the muxer.
+     *
+     * @param muxer not started yet, left unreleased
+     * @param token checked before every sample, a cancelled stitch throws CancellationException and
+     *              leaves the muxer unstopped
+     */
+    public void stitch(MuxerBackend muxer, Remuxer.ProgressListener listener, CancellationToken token) throws IOException {
+        if (mParts.isEmpty()) {
+            throw new IllegalStateException("no segment added");
+        }
+        mMuxer = muxer;
+        TrackFormat videoFormat = videoFormat(mParts.get(0));
+        if (hasParameterSetChanges()) {
+            videoFormat.setInBandParameterSets(true);
+        }
+        if (mOrientation != 0) {
+            mMuxer.setOrientationHint(mOrientation);
+        }
+        int muxerVideoTrack = mMuxer.addTrack(videoFormat);
+        int muxerAudioTrack = -1;
+        // the first part with audio decides the format, parts without are skipped
+        if (nextAudioPart()) {
+            muxerAudioTrack = mMuxer.addTrack(mAudioSource.getTrackFormat(audioTrack(mAudioSource)));
+        }
+        try {
+            mMuxer.start();
+            writeVideo(muxerVideoTrack, videoFormat, muxerAudioTrack, listener, token);
+            if (muxerAudioTrack >= 0) {
+                writeAudio(muxerAudioTrack, Long.MAX_VALUE, token);
+            }
+        } finally {
+            closeAudioPart();
+        }
+        mMuxer.stop();
+    }
+
+    private void writeVideo(int muxerVideoTrack, TrackFormat videoFormat, int muxerAudioTrack,
+                            Remuxer.ProgressListener listener, CancellationToken token) throws IOException {
+        // the parameter sets the decoder holds when the current part begins
+        TrackFormat active = videoFormat;
+        for (int s = 0; s < mParts.size(); s++) {
+            Part part = mParts.get(s);
+            SampleSource source = part.open();
+            try {
+                int track = videoTrack(source, part);
+                TrackFormat format = source.getTrackFormat(track);
+                byte[] parameterSets = changedParameterSets(active, format);
+                active = format;
+                source.selectTrack(track);
+                source.seekTo(part.startUs, SampleSource.SEEK_TO_PREVIOUS_SYNC);
+                while (source.getSampleTrackIndex() >= 0) {
+                    token.throwIfCancelled();
+                    boolean sync = (source.getSampleFlags() & SampleSource.SAMPLE_FLAG_SYNC) != 0;
+                    long sampleTimeUs = source.getSampleTime();
+                    if (part.endUs >= 0 && sync && sampleTimeUs >= part.endUs) {
+                        break;
+                    }
+                    ByteBuffer sample = source.getSampleData();
+                    if (sample == null) {
+                        break;
+                    }
+                    long timeUs = sampleTimeUs + part.offsetUs;
+                    if (muxerAudioTrack >= 0) {
+                        writeAudio(muxerAudioTrack, timeUs, token);
+                    }
+                    if (parameterSets != null) {
+                        sample = prepend(parameterSets, sample);
+                        parameterSets = null;
+                    }
+                    int flags = sync ? MuxerBackend.FLAG_KEY_FRAME : 0;
+                    mMuxer.writeSampleData(muxerVideoTrack, sample, sample.position(), sample.remaining(), timeUs, flags);
+                    if (!source.advance()) {
+                        break;
+                    }
+                }
+            } finally {
+                part.close(source);
+            }
+            if (listener != null) {
+                listener.onProgress((s + 1) / (float) mParts.size());
+            }
+        }
+    }
+
+    /**
+     * Writes the audio samples presented up to {@code untilUs}, output time.
+     */
+    private void writeAudio(int muxerTrack, long untilUs, CancellationToken token) throws IOException {
+        while (mAudioSource != null) {
+            token.throwIfCancelled();
+            SampleSource source = mAudioSource;
+            Part part = mAudioParts.get(mAudioPart);
+            long sampleTimeUs = source.getSampleTrackIndex() < 0 ? -1 : source.getSampleTime();
+            if (sampleTimeUs < 0 || (part.endUs >= 0 && sampleTimeUs > part.endUs)) {
+                nextAudioPart();
+                continue;
+            }
+            if (sampleTimeUs < part.startUs) {
+                source.advance();
+                continue;
+            }
+            long timeUs = sampleTimeUs + part.offsetUs;
+            if (timeUs > untilUs) {
+                return;
+            }
+            ByteBuffer sample = source.getSampleData();
+            if (sample == null) {
+                nextAudioPart();
+                continue;
+            }
+            mMuxer.writeSampleData(muxerTrack, sample, sample.position(), sample.remaining(), timeUs, source.getSampleFlags());
+            source.advance();
+        }
+    }
+
+    /**
+     * Closes the current audio part and opens the next one that has an audio track, positioned at
+     * its start.
+     *
+     * @return false when there is none left
+     */
+    private boolean nextAudioPart() throws IOException {
+        closeAudioPart();
+        while (++mAudioPart < mAudioParts.size()) {
+            Part part = mAudioParts.get(mAudioPart);
+            SampleSource source = part.open();
+            int track = audioTrack(source);
+            if (track < 0) {
+                part.close(source);
+                continue;
+            }
+            source.selectTrack(track);
+            source.seekTo(part.startUs, SampleSource.SEEK_TO_CLOSEST_SYNC);
+            mAudioSource = source;
+            return true;
+        }
+        return false;
+    }
+
+    private void closeAudioPart() {
+        if (mAudioSource != null) {
+            mAudioParts.get(mAudioPart).close(mAudioSource);
+            mAudioSource = null;
+        }
+    }
+
+    private static int videoTrack(SampleSource source, Part part) throws IOException {
+        for (int i = 0; i < source.getTrackCount(); i++) {
+            if (source.getTrackFormat(i).isVideo()) {
+                return i;
+            }
+        }
+        throw new IOException("no video track in " + (part.file != null ? part.file : "source"));
+    }
+
+    private static int audioTrack(SampleSource source) {
+        for (int i = 0; i < source.getTrackCount(); i++) {
+            if (source.getTrackFormat(i).isAudio()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the Annex-B csd of {@code format} if it differs from {@code output}'s, null if it is the same
+     */
+    private static byte[] changedParameterSets(TrackFormat output, TrackFormat format) {
+        if (sameParameterSets(output, format)) {
+            return null;
+        }
+        byte[] csd0 = format.getCsd(0);
+        byte[] csd1 = format.getCsd(1);
+        int length = (csd0 == null ? 0 : csd0.length) + (csd1 == null ? 0 : csd1.length);
+        if (length == 0) {
+            return null;
+        }
+        ByteBuffer parameterSets = ByteBuffer.allocate(length);
+        if (csd0 != null) {
+            parameterSets.put(csd0);
+        }
+        if (csd1 != null) {
+            parameterSets.put(csd1);
+        }
+        return parameterSets.array();
+    }
+
+    private static boolean sameParameterSets(TrackFormat a, TrackFormat b) {
+        return Arrays.equals(a.getCsd(0), b.getCsd(0)) && Arrays.equals(a.getCsd(1), b.getCsd(1));
+    }
+
+    private static ByteBuffer prepend(byte[] parameterSets, ByteBuffer sample) {
+        ByteBuffer joined = ByteBuffer.allocate(parameterSets.length + sample.remaining());
+        joined.put(parameterSets).put(sample.duplicate());
+        joined.flip();
+        return joined;
+    }
+
+    /**
+     * An encoded segment file, or a range of the source.
+     */
+    private static final class Part {
+
+        final File file;
+        final SampleSource source;
+        final long startUs;
+        final long endUs;
+        final long offsetUs;
+
+        Part(File file, SampleSource source, long startUs, long endUs, long offsetUs) {
+            this.file = file;
+            this.source = source;
+            this.startUs = startUs;
+            this.endUs = endUs;
+            this.offsetUs = offsetUs;
+        }
+
+        SampleSource open() throws IOException {
+            return file != null ? new Mp4Demuxer(file) : source;
+        }
+
+        /**
+         * Releases what {@link #open()} opened, the caller's source stays open.
+         */
+        void close(SampleSource opened) {
+            if (file != null) {
+                opened.release();
+            }
+        }
+    }
+}
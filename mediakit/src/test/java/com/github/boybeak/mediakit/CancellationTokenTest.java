@@ -0,0 +1,152 @@
+package com.github.boybeak.mediakit;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CancellationTokenTest {
+
+    private static final int RACES = 2000;
+
+    /**
+     * Runs {@code a} and {@code b} on two threads released at the same moment.
+     */
+    private static void race(Runnable a, Runnable b) throws InterruptedException {
+        CountDownLatch go = new CountDownLatch(1);
+        Thread other = new Thread(() -> {
+            try {
+                go.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            b.run();
+        });
+        other.start();
+        go.countDown();
+        a.run();
+        other.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(other.isAlive());
+    }
+
+    @Test
+    public void throwIfCancelledThrowsOnlyAfterCancel() {
+        CancellationToken token = new CancellationToken();
+        token.throwIfCancelled();
+        assertFalse(token.isCancelled());
+        assertNull(token.getReason());
+
+        assertTrue(token.cancel());
+        assertTrue(token.isCancelled());
+        assertTrue(token.isCancelledByUser());
+        try {
+            token.throwIfCancelled();
+            fail();
+        } catch (CancellationException e) {
+            assertSame(token.getReason(), e);
+        }
+    }
+
+    @Test
+    public void throwIfCancelledCarriesTheFailure() {
+        CancellationToken token = new CancellationToken();
+        IOException cause = new IOException("encoder died");
+        assertTrue(token.fail(cause));
+        assertFalse(token.isCancelledByUser());
+        try {
+            token.throwIfCancelled();
+            fail();
+        } catch (CancellationException e) {
+            assertSame(cause, e.getCause());
+        }
+    }
+
+    @Test
+    public void firstReasonWins() {
+        CancellationToken failed = new CancellationToken();
+        IOException cause = new IOException();
+        assertTrue(failed.fail(cause));
+        assertFalse(failed.cancel());
+        assertFalse(failed.fail(new IllegalStateException()));
+        assertSame(cause, failed.getReason());
+
+        CancellationToken cancelled = new CancellationToken();
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.fail(cause));
+        assertTrue(cancelled.isCancelledByUser());
+        assertTrue(cancelled.getReason() instanceof CancellationException);
+    }
+
+    @Test
+    public void listenerRunsOnceOnCancel() {
+        CancellationToken token = new CancellationToken();
+        AtomicInteger runs = new AtomicInteger();
+        AtomicInteger removedRuns = new AtomicInteger();
+        Runnable removed = removedRuns::incrementAndGet;
+        token.addListener(runs::incrementAndGet);
+        token.addListener(removed);
+        token.removeListener(removed);
+        assertEquals(0, runs.get());
+
+        token.cancel();
+        token.cancel();
+        token.fail(new IOException());
+        assertEquals(1, runs.get());
+        assertEquals(0, removedRuns.get());
+    }
+
+    @Test
+    public void listenerAddedAfterCancelRunsRightAway() {
+        CancellationToken token = new CancellationToken();
+        token.cancel();
+        AtomicInteger runs = new AtomicInteger();
+        Thread[] ranOn = new Thread[1];
+        token.addListener(() -> {
+            runs.incrementAndGet();
+            ranOn[0] = Thread.currentThread();
+        });
+        assertEquals(1, runs.get());
+        assertSame(Thread.currentThread(), ranOn[0]);
+        // and only once
+        token.cancel();
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void failRacingCancelKeepsTheWinnersReason() throws InterruptedException {
+        for (int i = 0; i < RACES; i++) {
+            CancellationToken token = new CancellationToken();
+            IOException cause = new IOException();
+            AtomicInteger listenerRuns = new AtomicInteger();
+            token.addListener(listenerRuns::incrementAndGet);
+            AtomicBoolean failWon = new AtomicBoolean();
+            AtomicBoolean cancelWon = new AtomicBoolean();
+            race(() -> failWon.set(token.fail(cause)), () -> cancelWon.set(token.cancel()));
+
+            assertTrue("race " + i, failWon.get() ^ cancelWon.get());
+            if (failWon.get()) {
+                assertSame(cause, token.getReason());
+                assertFalse(token.isCancelledByUser());
+            } else {
+                assertTrue(token.isCancelledByUser());
+            }
+            assertEquals("race " + i, 1, listenerRuns.get());
+        }
+    }
+
+    @Test
+    public void listenerAddedWhileCancellingRunsExactlyOnce() throws InterruptedException {
+        for (int i = 0; i < RACES; i++) {
+            CancellationToken token = new CancellationToken();
+            AtomicInteger runs = new AtomicInteger();
+            race(token::cancel, () -> token.addListener(runs::incrementAndGet));
+            assertEquals("race " + i, 1, runs.get());
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.github.boybeak.mediakit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CompressionSchedulerTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private CompressionScheduler mScheduler;
+
+    @After
+    public void tearDown() {
+        if (mScheduler != null) {
+            mScheduler.shutdownNow();
+        }
+    }
+
+    private static void await(CountDownLatch latch) throws InterruptedException {
+        assertTrue("timed out", latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Submits a job that holds the only worker until {@code release} opens, and waits until it runs,
+     * so everything submitted after it queues up.
+     */
+    private CompressionScheduler.Job<Void> occupy(CountDownLatch release) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CompressionScheduler.Job<Void> job = mScheduler.submit(CompressionScheduler.Priority.BACKGROUND, () -> {
+            started.countDown();
+            await(release);
+            return null;
+        });
+        await(started);
+        return job;
+    }
+
+    private CompressionScheduler.Job<Void> record(CompressionScheduler.Priority priority, List<String> order,
+                                                  String name) {
+        return mScheduler.submit(priority, () -> {
+            order.add(name);
+        });
+    }
+
+    @Test
+    public void higherPriorityClassesRunFirst() throws Exception {
+        mScheduler = new CompressionScheduler(1);
+        CountDownLatch release = new CountDownLatch(1);
+        occupy(release);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<CompressionScheduler.Job<Void>> jobs = Arrays.asList(
+                record(CompressionScheduler.Priority.BACKGROUND, order, "background"),
+                record(CompressionScheduler.Priority.DEFAULT, order, "default"),
+                record(CompressionScheduler.Priority.USER_INITIATED, order, "user"));
+        assertEquals(3, mScheduler.getQueuedCount());
+        release.countDown();
+        for (CompressionScheduler.Job<Void> job : jobs) {
+            job.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        assertEquals(Arrays.asList("user", "default", "background"), order);
+    }
+
+    @Test
+    public void samePriorityRunsInSubmissionOrder() throws Exception {
+        mScheduler = new CompressionScheduler(1);
+        CountDownLatch release = new CountDownLatch(1);
+        occupy(release);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<String> expected = new ArrayList<>();
+        List<CompressionScheduler.Job<Void>> jobs = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            // interleaved classes, each one must still come out first in first out
+            CompressionScheduler.Priority priority = i % 2 == 0
+                    ? CompressionScheduler.Priority.DEFAULT : CompressionScheduler.Priority.USER_INITIATED;
+            String name = priority + "-" + i;
+            jobs.add(record(priority, order, name));
+        }
+        for (int i = 1; i < 20; i += 2) {
+            expected.add(CompressionScheduler.Priority.USER_INITIATED + "-" + i);
+        }
+        for (int i = 0; i < 20; i += 2) {
+            expected.add(CompressionScheduler.Priority.DEFAULT + "-" + i);
+        }
+        release.countDown();
+        for (CompressionScheduler.Job<Void> job : jobs) {
+            job.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        assertEquals(expected, order);
+    }
+
+    @Test
+    public void neverRunsMoreJobsThanWorkers() throws Exception {
+        mScheduler = new CompressionScheduler(2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch firstTwo = new CountDownLatch(2);
+        CountDownLatch third = new CountDownLatch(3);
+        CountDownLatch release = new CountDownLatch(1);
+        List<CompressionScheduler.Job<Void>> jobs = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            jobs.add(mScheduler.submit(CompressionScheduler.Priority.DEFAULT, () -> {
+                int now = running.incrementAndGet();
+                maxRunning.accumulateAndGet(now, Math::max);
+                firstTwo.countDown();
+                third.countDown();
+                await(release);
+                running.decrementAndGet();
+                return null;
+            }));
+        }
+        await(firstTwo);
+        // both workers are blocked, nothing else can have started
+        assertEquals(2, mScheduler.getRunningCount());
+        assertEquals(3, mScheduler.getQueuedCount());
+        assertTrue(jobs.get(0).isStarted());
+        assertTrue(jobs.get(1).isStarted());
+        for (int i = 2; i < 5; i++) {
+            assertFalse(jobs.get(i).isStarted());
+        }
+
+        // a third worker takes the next queued job right away
+        mScheduler.setWorkerCount(3);
+        assertEquals(3, mScheduler.getWorkerCount());
+        await(third);
+        assertTrue(jobs.get(2).isStarted());
+        assertEquals(2, mScheduler.getQueuedCount());
+
+        release.countDown();
+        for (CompressionScheduler.Job<Void> job : jobs) {
+            job.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        assertEquals(3, maxRunning.get());
+        assertEquals(0, running.get());
+    }
+
+    @Test
+    public void reportsQueueWaitAndRunTimeSeparately() throws Exception {
+        mScheduler = new CompressionScheduler(1);
+        CountDownLatch release = new CountDownLatch(1);
+        occupy(release);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        CompressionScheduler.Job<String> job = mScheduler.submit(CompressionScheduler.Priority.DEFAULT, () -> {
+            started.countDown();
+            await(finish);
+            return "done";
+        });
+
+        Thread.sleep(100);
+        assertFalse(job.isStarted());
+        assertEquals(0, job.getRunTimeMs());
+        // still waiting, so the wait keeps growing
+        assertTrue(job.getQueueWaitMs() >= 100);
+
+        release.countDown();
+        await(started);
+        long queueWait = job.getQueueWaitMs();
+        assertTrue(queueWait >= 100);
+        Thread.sleep(100);
+        // the wait stopped when it started running, the run time now grows
+        assertEquals(queueWait, job.getQueueWaitMs());
+        assertTrue(job.getRunTimeMs() >= 100);
+
+        finish.countDown();
+        assertEquals("done", job.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        long runTime = job.getRunTimeMs();
+        assertTrue(runTime >= 100);
+        Thread.sleep(50);
+        // both are final once the job is done
+        assertEquals(queueWait, job.getQueueWaitMs());
+        assertEquals(runTime, job.getRunTimeMs());
+    }
+
+    @Test
+    public void cancelledQueuedJobNeverRuns() throws Exception {
+        mScheduler = new CompressionScheduler(1);
+        CountDownLatch release = new CountDownLatch(1);
+        occupy(release);
+        AtomicInteger runs = new AtomicInteger();
+        CompressionScheduler.Job<Integer> cancelled = mScheduler.submit(CompressionScheduler.Priority.DEFAULT,
+                runs::incrementAndGet);
+        Thread.sleep(50);
+        assertTrue(cancelled.cancel(false));
+        long queueWait = cancelled.getQueueWaitMs();
+        assertTrue(queueWait >= 50);
+        CompressionScheduler.Job<Integer> next = mScheduler.submit(CompressionScheduler.Priority.BACKGROUND,
+                runs::incrementAndGet);
+
+        release.countDown();
+        next.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(1, runs.get());
+        assertFalse(cancelled.isStarted());
+        assertEquals(0, cancelled.getRunTimeMs());
+        // the wait ended with the cancellation
+        assertEquals(queueWait, cancelled.getQueueWaitMs());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroWorkers() {
+        new CompressionScheduler(0);
+    }
+}
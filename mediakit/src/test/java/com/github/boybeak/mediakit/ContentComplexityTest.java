@@ -0,0 +1,94 @@
+package com.github.boybeak.mediakit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ContentComplexityTest {
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int GOP_FRAMES = 30;
+    private static final int GOPS = 8;
+
+    /**
+     * Regular GOPs of {@link #GOP_FRAMES}, every key frame {@code intraSize} bytes and every other
+     * frame {@code interSize} bytes.
+     */
+    private static SampleIndex.Track track(int intraSize, int interSize, int gopFrames) {
+        int frames = GOP_FRAMES * GOPS;
+        long[] times = new long[frames];
+        int[] sizes = new int[frames];
+        long[] offsets = new long[frames];
+        int[] syncSamples = new int[(frames + gopFrames - 1) / gopFrames];
+        for (int i = 0; i < frames; i++) {
+            times[i] = i * 1000000L / 30;
+            sizes[i] = i % gopFrames == 0 ? intraSize : interSize;
+            offsets[i] = -1;
+            if (i % gopFrames == 0) {
+                syncSamples[i / gopFrames] = i;
+            }
+        }
+        TrackFormat format = TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, WIDTH, HEIGHT);
+        return new SampleIndex.Track(format, times, sizes, offsets, syncSamples);
+    }
+
+    private static ContentComplexity analyze(SampleIndex.Track track) {
+        return ContentComplexity.analyze(track, WIDTH, HEIGHT, ContentComplexity.DEFAULT_SAMPLED_GOPS);
+    }
+
+    @Test
+    public void staticShotGetsTheEasyBpp() {
+        // key frames at 0.087 bpp, inter frames 3% of them: both below the easy end
+        ContentComplexity complexity = analyze(track(10000, 300, GOP_FRAMES));
+        assertEquals(0.03f, complexity.getInterToIntraRatio(), 1e-4f);
+        assertEquals(10000 * 8f / (WIDTH * HEIGHT), complexity.getIntraBitsPerPixel(), 1e-6f);
+        assertEquals(GOP_FRAMES, complexity.getAverageGopFrames(), 0);
+        assertEquals(0, complexity.getScore(), 0);
+        assertEquals(0.025f, complexity.getBitsPerPixel(), 1e-6f);
+        assertEquals((int) (0.025f * WIDTH * HEIGHT * 30), complexity.suggestBitrate(WIDTH, HEIGHT, 30));
+        assertEquals(20, complexity.suggestFrameRate(30, 20, 25));
+    }
+
+    @Test
+    public void busyDetailedShotGetsCloseToTheHardBpp() {
+        // key frames at 1.3 bpp, inter frames half of them: both past the hard end
+        ContentComplexity complexity = analyze(track(150000, 75000, GOP_FRAMES));
+        assertEquals(0.5f, complexity.getInterToIntraRatio(), 1e-4f);
+        // no scene cuts, so the cut weight is left out
+        assertEquals(0.85f, complexity.getScore(), 1e-5f);
+        assertEquals(0.025f + (0.09f - 0.025f) * 0.85f, complexity.getBitsPerPixel(), 1e-6f);
+        assertTrue(complexity.getBitsPerPixel() < 0.09f);
+        assertEquals(24, complexity.suggestFrameRate(30, 20, 25));
+        assertEquals(22, complexity.suggestFrameRate(22, 20, 25));
+        assertEquals(24, complexity.suggestFrameRate(0, 20, 25));
+    }
+
+    @Test
+    public void bppStaysBetweenTheThresholds() {
+        int[][] sizes = {{1000, 10}, {10000, 300}, {30000, 3000}, {60000, 15000}, {150000, 75000}, {300000, 300000}};
+        float previous = 0;
+        for (int[] size : sizes) {
+            float bpp = analyze(track(size[0], size[1], GOP_FRAMES)).getBitsPerPixel();
+            assertTrue(bpp + " for " + size[0] + "/" + size[1], bpp >= 0.025f && bpp <= 0.09f);
+            assertTrue("bpp dropped to " + bpp + " for " + size[0] + "/" + size[1], bpp >= previous);
+            previous = bpp;
+        }
+    }
+
+    @Test
+    public void allIntraCountsAsAverageMotion() {
+        ContentComplexity complexity = analyze(track(10000, 10000, 1));
+        assertEquals(-1, complexity.getInterToIntraRatio(), 0);
+        assertEquals(0.6f * 0.5f, complexity.getScore(), 1e-5f);
+    }
+
+    @Test
+    public void noSyncSampleOrSizeGivesNoAnswer() {
+        SampleIndex.Track track = track(10000, 300, GOP_FRAMES);
+        assertNull(ContentComplexity.analyze(track, 0, HEIGHT, ContentComplexity.DEFAULT_SAMPLED_GOPS));
+        TrackFormat format = TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, WIDTH, HEIGHT);
+        SampleIndex.Track noSync = new SampleIndex.Track(format, new long[]{0}, new int[]{100}, new long[]{-1}, new int[0]);
+        assertNull(analyze(noSync));
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.boybeak.mediakit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ResolutionLadderTest {
+
+    private static final float MIN_BPP = ResolutionLadder.DEFAULT_MIN_BITS_PER_PIXEL;
+
+    @Test
+    public void bitsPerPixel() {
+        assertEquals(2000000 / (1280 * 720 * 30f), ResolutionLadder.bitsPerPixel(2000000, 1280, 720, 30), 1e-7f);
+        assertEquals(0, ResolutionLadder.bitsPerPixel(2000000, 0, 720, 30), 0);
+        assertEquals(0, ResolutionLadder.bitsPerPixel(2000000, 1280, 720, 0), 0);
+    }
+
+    @Test
+    public void keepsTheRequestedSizeWhenTheBitrateCarriesIt() {
+        assertArrayEquals(new int[]{1280, 720}, ResolutionLadder.choose(1280, 720, 2000000, 30, MIN_BPP, 2, null));
+    }
+
+    @Test
+    public void alignsTheRequestedSize() {
+        assertArrayEquals(new int[]{1264, 720}, ResolutionLadder.choose(1279, 721, 2000000, 30, MIN_BPP, 16, null));
+        // alignment below 2 still gives even sides
+        assertArrayEquals(new int[]{640, 360}, ResolutionLadder.choose(641, 361, 2000000, 30, MIN_BPP, 0, null));
+    }
+
+    @Test
+    public void stepsDownToTheFirstRungAboveTheFloor() {
+        // 720x1280 only gets 0.025 bpp out of 700kbps, 540x960 gets 0.045
+        int[] size = ResolutionLadder.choose(1080, 1920, 700000, 30, MIN_BPP, 2, null);
+        assertArrayEquals(new int[]{540, 960}, size);
+        assertTrue(ResolutionLadder.bitsPerPixel(700000, size[0], size[1], 30) >= MIN_BPP);
+        assertTrue(ResolutionLadder.bitsPerPixel(700000, 720, 1280, 30) < MIN_BPP);
+    }
+
+    @Test
+    public void rungsAreAlignedAndKeepTheAspectRatio() {
+        assertArrayEquals(new int[]{528, 960}, ResolutionLadder.choose(1080, 1920, 700000, 30, MIN_BPP, 16, null));
+        assertArrayEquals(new int[]{960, 528}, ResolutionLadder.choose(1920, 1080, 700000, 30, MIN_BPP, 16, null));
+    }
+
+    @Test
+    public void rungsAtOrAboveTheSourceAreSkipped() {
+        // 640x360 misses the floor at 100kbps, 480 and 540 are larger than the source
+        assertArrayEquals(new int[]{256, 144}, ResolutionLadder.choose(640, 360, 100000, 30, MIN_BPP, 2, null));
+        assertArrayEquals(new int[]{426, 240}, ResolutionLadder.choose(640, 360, 150000, 30, MIN_BPP, 2, null));
+    }
+
+    @Test
+    public void fallsBackToTheSmallestRungBelowTheFloor() {
+        assertArrayEquals(new int[]{256, 144}, ResolutionLadder.choose(1920, 1080, 10000, 30, MIN_BPP, 2, null));
+    }
+
+    @Test
+    public void skipsSizesTheFilterRejects() {
+        ResolutionLadder.SizeFilter upTo1280 = (width, height) -> width <= 1280 && height <= 1280;
+        assertArrayEquals(new int[]{1280, 720}, ResolutionLadder.choose(1920, 1080, 20000000, 30, MIN_BPP, 2, upTo1280));
+        assertArrayEquals(new int[]{960, 540}, ResolutionLadder.choose(1920, 1080, 700000, 30, MIN_BPP, 2, upTo1280));
+        // the smallest supported rung when none reaches the floor
+        ResolutionLadder.SizeFilter atLeast360 = (width, height) -> Math.min(width, height) >= 360;
+        assertArrayEquals(new int[]{640, 360}, ResolutionLadder.choose(1920, 1080, 10000, 30, MIN_BPP, 2, atLeast360));
+    }
+
+    @Test
+    public void keepsTheRequestedSizeWhenTheFilterRejectsEverything() {
+        ResolutionLadder.SizeFilter none = (width, height) -> false;
+        assertArrayEquals(new int[]{1920, 1080}, ResolutionLadder.choose(1920, 1080, 700000, 30, MIN_BPP, 2, none));
+    }
+}
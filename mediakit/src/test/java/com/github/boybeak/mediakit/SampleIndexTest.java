@@ -0,0 +1,146 @@
+package com.github.boybeak.mediakit;
+
+import com.github.boybeak.mediakit.mp4.Mp4Demuxer;
+import com.github.boybeak.mediakit.mp4.Mp4Muxer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SampleIndexTest {
+
+    /**
+     * Decode order of two GOPs of I P B B with a B pyramid in the second one.
+     */
+    private static final int[] ORDER = {0, 3, 1, 2, 4, 8, 6, 5, 7, 9, 10, 11};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static long frameUs(int frame) {
+        return frame * 1000000L / 30;
+    }
+
+    private SampleIndex index() throws IOException {
+        File file = folder.newFile();
+        Mp4Muxer muxer = new Mp4Muxer(file);
+        TrackFormat video = TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 640, 360);
+        video.setCsd(0, new byte[]{0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1e});
+        video.setCsd(1, new byte[]{0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80});
+        TrackFormat audio = TrackFormat.createAudioFormat(TrackFormat.MIMETYPE_AUDIO_AAC, 48000, 2);
+        audio.setCsd(0, new byte[]{0x11, (byte) 0x90});
+        int videoTrack = muxer.addTrack(video);
+        int audioTrack = muxer.addTrack(audio);
+        muxer.start();
+        long audioUs = 0;
+        for (int i = 0; i < ORDER.length; i++) {
+            ByteBuffer frame = ByteBuffer.allocate(4 + 100 + i * 10);
+            frame.putInt(1).put((byte) (i == 0 || i == 4 ? 0x65 : 0x41)).rewind();
+            muxer.writeSampleData(videoTrack, frame, 0, frame.remaining(), frameUs(ORDER[i]),
+                    i == 0 || i == 4 ? Mp4Muxer.FLAG_KEY_FRAME : 0);
+            while (audioUs <= frameUs(i)) {
+                ByteBuffer samples = ByteBuffer.allocate(200);
+                muxer.writeSampleData(audioTrack, samples, 0, samples.remaining(), audioUs, 0);
+                audioUs += 1024 * 1000000L / 48000;
+            }
+        }
+        muxer.release();
+        Mp4Demuxer demuxer = new Mp4Demuxer(file);
+        try {
+            return SampleIndex.build(demuxer);
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void serializationRoundTrip() throws IOException {
+        SampleIndex index = index();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.writeTo(new DataOutputStream(bytes));
+        SampleIndex read = SampleIndex.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(index.getTrackCount(), read.getTrackCount());
+        for (int t = 0; t < index.getTrackCount(); t++) {
+            SampleIndex.Track expected = index.getTrack(t);
+            SampleIndex.Track actual = read.getTrack(t);
+            assertEquals(expected.getFormat().toString(), actual.getFormat().toString());
+            for (int i = 0; i < 3 && expected.getFormat().getCsd(i) != null; i++) {
+                assertArrayEquals(expected.getFormat().getCsd(i), actual.getFormat().getCsd(i));
+            }
+            assertEquals(expected.getSampleCount(), actual.getSampleCount());
+            for (int i = 0; i < expected.getSampleCount(); i++) {
+                assertEquals(expected.getPresentationTimeUs(i), actual.getPresentationTimeUs(i));
+                assertEquals(expected.getSize(i), actual.getSize(i));
+                assertEquals(expected.getOffset(i), actual.getOffset(i));
+                assertEquals(expected.isSync(i), actual.isSync(i));
+            }
+            assertEquals(expected.getSyncSampleCount(), actual.getSyncSampleCount());
+            assertEquals(expected.getTotalBytes(), actual.getTotalBytes());
+        }
+    }
+
+    @Test
+    public void varintsAreCompact() throws IOException {
+        SampleIndex index = index();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.writeTo(new DataOutputStream(bytes));
+        int samples = index.getTrack(0).getSampleCount() + index.getTrack(1).getSampleCount();
+        // formats are about 100 bytes each, samples at most 3 + 2 + 3 bytes
+        assertTrue(bytes.size() < 400 + samples * 8);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherData() throws IOException {
+        SampleIndex.readFrom(new DataInputStream(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 0, 0, 0, 1})));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedData() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index().writeTo(new DataOutputStream(bytes));
+        byte[] truncated = new byte[bytes.size() - 5];
+        System.arraycopy(bytes.toByteArray(), 0, truncated, 0, truncated.length);
+        SampleIndex.readFrom(new DataInputStream(new ByteArrayInputStream(truncated)));
+    }
+
+    @Test
+    public void findLastSampleBefore() throws IOException {
+        SampleIndex.Track track = index().findTrack(false);
+        for (long timeUs = -1000; timeUs < frameUs(13); timeUs += 1000) {
+            int expected = -1;
+            for (int i = ORDER.length - 1; i >= 0; i--) {
+                if (track.getPresentationTimeUs(i) < timeUs) {
+                    expected = i;
+                    break;
+                }
+            }
+            assertEquals("at " + timeUs, expected, track.findLastSampleBefore(timeUs));
+        }
+        // frame 5 is decoded after frames 8 and 6 of the pyramid
+        assertEquals(7, track.findLastSampleBefore(frameUs(5) + 1));
+        assertEquals(-1, track.findLastSampleBefore(0));
+    }
+
+    @Test
+    public void rangeQueries() throws IOException {
+        SampleIndex.Track track = index().findTrack(false);
+        assertEquals(frameUs(11), track.getLastPresentationTimeUs(), 1);
+        assertEquals(ORDER.length, track.countSamples(0, Long.MAX_VALUE));
+        assertEquals(3, track.countSamples(frameUs(5) - 1, frameUs(8) - 1));
+        assertEquals(4, track.findSyncSample(frameUs(6), SampleSource.SEEK_TO_PREVIOUS_SYNC));
+        assertEquals(4, track.findSyncSample(frameUs(2), SampleSource.SEEK_TO_NEXT_SYNC));
+        assertEquals(0, track.findSyncSample(frameUs(1), SampleSource.SEEK_TO_CLOSEST_SYNC));
+        assertEquals(-1, track.findSyncSample(frameUs(6), SampleSource.SEEK_TO_NEXT_SYNC));
+    }
+}
@@ -0,0 +1,128 @@
+package com.github.boybeak.mediakit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+public class SegmentJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File journalFile() {
+        return new File(folder.getRoot(), "out.mp4.journal");
+    }
+
+    private File segmentFile(int index, int bytes) throws IOException {
+        File file = new File(folder.getRoot(), "segment-" + index + ".mp4");
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(bytes);
+        }
+        return file;
+    }
+
+    @Test
+    public void reopenKeepsFinishedSegments() throws IOException {
+        SegmentJournal journal = SegmentJournal.open(journalFile(), "input 1000 720p");
+        journal.append(0, 0, 1000);
+        journal.append(2, 4000000, 3000);
+
+        SegmentJournal reopened = SegmentJournal.open(journalFile(), "input 1000 720p");
+        assertEquals(2, reopened.getFinishedCount());
+        assertEquals(0, reopened.get(0).getFirstFrameUs());
+        assertEquals(1000, reopened.get(0).getBytes());
+        assertNull(reopened.get(1));
+        assertEquals(4000000, reopened.get(2).getFirstFrameUs());
+        assertEquals(3000, reopened.get(2).getBytes());
+    }
+
+    @Test
+    public void fingerprintMismatchStartsOver() throws IOException {
+        SegmentJournal journal = SegmentJournal.open(journalFile(), "input 1000 720p");
+        journal.append(0, 0, 1000);
+        journal.append(1, 2000000, 2000);
+
+        SegmentJournal other = SegmentJournal.open(journalFile(), "input 1000 480p");
+        assertEquals(0, other.getFinishedCount());
+        assertNull(other.get(0));
+
+        // the old entries are gone from the file too, not just hidden from the other fingerprint
+        assertEquals(0, SegmentJournal.open(journalFile(), "input 1000 720p").getFinishedCount());
+    }
+
+    @Test
+    public void tornLineIsDropped() throws IOException {
+        SegmentJournal journal = SegmentJournal.open(journalFile(), "fp");
+        journal.append(0, 0, 1000);
+        journal.append(1, 2000000, 2000);
+        try (FileOutputStream out = new FileOutputStream(journalFile(), true)) {
+            out.write("segment 2 4000000 30".getBytes(Charset.forName("UTF-8")));
+        }
+
+        SegmentJournal reopened = SegmentJournal.open(journalFile(), "fp");
+        assertEquals(2, reopened.getFinishedCount());
+        assertNull(reopened.get(2));
+
+        // the torn line was rewritten away, so the next append starts on a line of its own
+        reopened.append(2, 4000000, 3000);
+        SegmentJournal again = SegmentJournal.open(journalFile(), "fp");
+        assertEquals(3, again.getFinishedCount());
+        assertEquals(3000, again.get(2).getBytes());
+    }
+
+    @Test
+    public void partiallyWrittenSegmentIsReencoded() throws IOException {
+        SegmentJournal journal = SegmentJournal.open(journalFile(), "fp");
+        File first = segmentFile(0, 1000);
+        File second = segmentFile(1, 2000);
+        journal.append(0, 0, first.length());
+        journal.append(1, 2000000, second.length());
+
+        assertNotNull(journal.getIntact(0, first));
+        assertNotNull(journal.getIntact(1, second));
+
+        try (RandomAccessFile out = new RandomAccessFile(second, "rw")) {
+            out.setLength(1200);
+        }
+        assertNotNull(journal.getIntact(0, first));
+        assertNull(journal.getIntact(1, second));
+
+        assertTrue(first.delete());
+        assertNull(journal.getIntact(0, first));
+        // never finished at all
+        assertNull(journal.getIntact(2, segmentFile(2, 500)));
+    }
+
+    @Test
+    public void segmentWithoutFramesNeedsNoFile() throws IOException {
+        SegmentJournal journal = SegmentJournal.open(journalFile(), "fp");
+        journal.append(3, -1, 0);
+        assertNotNull(journal.getIntact(3, new File(folder.getRoot(), "missing.mp4")));
+    }
+
+    @Test
+    public void removeTakesEffectOnReopen() throws IOException {
+        SegmentJournal journal = SegmentJournal.open(journalFile(), "fp");
+        journal.append(0, 0, 1000);
+        journal.append(1, 2000000, 2000);
+        journal.remove(0);
+
+        assertNull(journal.get(0));
+        SegmentJournal reopened = SegmentJournal.open(journalFile(), "fp");
+        assertEquals(1, reopened.getFinishedCount());
+        assertNotNull(reopened.get(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void multiLineFingerprintIsRejected() throws IOException {
+        SegmentJournal.open(journalFile(), "input\n720p");
+    }
+}
@@ -0,0 +1,132 @@
+package com.github.boybeak.mediakit;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SegmentPlanTest {
+
+    private static final int FRAMES = 60;
+    /**
+     * Irregular GOPs, as a scene-cut aware encoder writes them.
+     */
+    private static final int[] SYNC_FRAMES = {0, 8, 20, 27, 45};
+
+    private static long frameUs(int frame) {
+        return frame * 1000000L / 30;
+    }
+
+    private static SampleIndex.Track track() {
+        long[] times = new long[FRAMES];
+        int[] sizes = new int[FRAMES];
+        long[] offsets = new long[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            times[i] = frameUs(i);
+            sizes[i] = 1000;
+            offsets[i] = -1;
+        }
+        TrackFormat format = TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 1280, 720);
+        return new SampleIndex.Track(format, times, sizes, offsets, SYNC_FRAMES.clone());
+    }
+
+    private static void assertStartsOnSync(SampleIndex.Track track, List<SegmentPlan.Segment> segments) {
+        for (SegmentPlan.Segment segment : segments) {
+            if (segment.getIndex() == 0 && !segment.isCopy()) {
+                continue;
+            }
+            int sample = track.findSyncSample(segment.getStartUs(), SampleSource.SEEK_TO_PREVIOUS_SYNC);
+            assertEquals(segment + " does not start on a sync sample",
+                    segment.getStartUs(), track.getPresentationTimeUs(sample));
+        }
+    }
+
+    private static void assertSegments(List<SegmentPlan.Segment> segments, long... bounds) {
+        assertEquals(segments.toString(), bounds.length / 2, segments.size());
+        for (int i = 0; i < segments.size(); i++) {
+            SegmentPlan.Segment segment = segments.get(i);
+            assertEquals(i, segment.getIndex());
+            assertEquals(segments.toString(), bounds[i * 2], segment.getStartUs());
+            assertEquals(segments.toString(), bounds[i * 2 + 1], segment.getEndUs());
+        }
+        for (int i = 1; i < segments.size(); i++) {
+            assertEquals(segments.get(i - 1).getEndUs(), segments.get(i).getStartUs());
+        }
+    }
+
+    @Test
+    public void splitCutsOnFirstSyncAfterTarget() {
+        SampleIndex.Track track = track();
+        List<SegmentPlan.Segment> segments = SegmentPlan.split(track, 0, -1, frameUs(15));
+
+        assertSegments(segments, 0, frameUs(20), frameUs(20), frameUs(45), frameUs(45), -1);
+        assertStartsOnSync(track, segments);
+        assertTrue(segments.get(2).isLast());
+    }
+
+    @Test
+    public void splitFromInsideGop() {
+        SampleIndex.Track track = track();
+        List<SegmentPlan.Segment> segments = SegmentPlan.split(track, frameUs(10), frameUs(50), frameUs(15));
+
+        // the first segment starts where asked, the others on the sync samples 27 and 45
+        assertSegments(segments, frameUs(10), frameUs(27), frameUs(27), frameUs(45), frameUs(45), frameUs(50));
+        assertStartsOnSync(track, segments);
+    }
+
+    @Test
+    public void splitIntoPicksNearestSync() {
+        SampleIndex.Track track = track();
+        List<SegmentPlan.Segment> segments = SegmentPlan.splitInto(track, 0, -1, 3);
+
+        // targets are frames 19.7 and 39.3, nearest sync samples 20 and 45
+        assertSegments(segments, 0, frameUs(20), frameUs(20), frameUs(45), frameUs(45), -1);
+        assertStartsOnSync(track, segments);
+    }
+
+    @Test
+    public void splitIntoReturnsFewerSegmentsWithoutEnoughSyncSamples() {
+        SampleIndex.Track track = track();
+        List<SegmentPlan.Segment> segments = SegmentPlan.splitInto(track, frameUs(9), frameUs(26), 4);
+
+        // only frame 20 is a sync sample inside the range
+        assertSegments(segments, frameUs(9), frameUs(20), frameUs(20), frameUs(26));
+        assertStartsOnSync(track, segments);
+    }
+
+    @Test
+    public void splitForTrimCopiesWholeGops() {
+        SampleIndex.Track track = track();
+        List<SegmentPlan.Segment> segments = SegmentPlan.splitForTrim(track, frameUs(3), frameUs(50));
+
+        assertSegments(segments, frameUs(3), frameUs(8), frameUs(8), frameUs(45), frameUs(45), frameUs(50));
+        assertEquals(Arrays.asList(false, true, false),
+                Arrays.asList(segments.get(0).isCopy(), segments.get(1).isCopy(), segments.get(2).isCopy()));
+        assertStartsOnSync(track, segments);
+    }
+
+    @Test
+    public void splitForTrimOnSyncSamplesIsOneCopy() {
+        SampleIndex.Track track = track();
+        List<SegmentPlan.Segment> segments = SegmentPlan.splitForTrim(track, frameUs(8), frameUs(45));
+
+        assertSegments(segments, frameUs(8), frameUs(45));
+        assertTrue(segments.get(0).isCopy());
+    }
+
+    @Test
+    public void splitForTrimWithoutSyncInsideReencodes() {
+        SampleIndex.Track track = track();
+        List<SegmentPlan.Segment> segments = SegmentPlan.splitForTrim(track, frameUs(9), frameUs(19));
+
+        assertSegments(segments, frameUs(9), frameUs(19));
+        assertFalse(segments.get(0).isCopy());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void splitRejectsNonPositiveTarget() {
+        SegmentPlan.split(track(), 0, -1, 0);
+    }
+}
@@ -0,0 +1,143 @@
+package com.github.boybeak.mediakit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SizeBudgetTest {
+
+    private static final long SECOND_US = 1000000;
+    private static final int INITIAL_BITRATE = 1000000;
+    private static final long DURATION_US = 10 * SECOND_US;
+    /**
+     * Exactly what {@link #INITIAL_BITRATE} spends over {@link #DURATION_US}.
+     */
+    private static final long VIDEO_BYTES = INITIAL_BITRATE / 8 * 10;
+
+    private static SizeBudget budget() {
+        return new SizeBudget(VIDEO_BYTES, DURATION_US, INITIAL_BITRATE, Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void videoBytesPaysForAudioAndContainer() {
+        long durationUs = 10 * SECOND_US;
+        assertEquals(980000 - 160000, SizeBudget.videoBytes(1000000, durationUs, 128000));
+        assertEquals(980000, SizeBudget.videoBytes(1000000, durationUs, 0));
+        assertEquals(0, SizeBudget.videoBytes(100000, durationUs, 128000));
+    }
+
+    @Test
+    public void bitrateForSpreadsBytesEvenly() {
+        assertEquals(656000, SizeBudget.bitrateFor(820000, 10 * SECOND_US));
+        assertEquals(0, SizeBudget.bitrateFor(820000, 0));
+        assertEquals(Integer.MAX_VALUE, SizeBudget.bitrateFor(4000000000L, SECOND_US));
+    }
+
+    @Test
+    public void ignoresSyncSamplesOutsideTheOutput() {
+        SizeBudget budget = budget();
+        budget.addBytes((int) VIDEO_BYTES);
+        assertEquals(-1, budget.onSyncSample(0));
+        assertEquals(-1, budget.onSyncSample(DURATION_US));
+        assertEquals(-1, budget.onSyncSample(DURATION_US + SECOND_US));
+        assertEquals(INITIAL_BITRATE, budget.getBitrate());
+    }
+
+    @Test
+    public void stepDownIsLimited() {
+        SizeBudget budget = budget();
+        // 80% of the budget is gone after the first second, the rest only carries 222kbps
+        budget.addBytes(1000000);
+        assertEquals(666666, budget.onSyncSample(SECOND_US));
+        assertEquals(444444, budget.onSyncSample(2 * SECOND_US));
+        assertEquals(296296, budget.onSyncSample(3 * SECOND_US));
+    }
+
+    @Test
+    public void stepUpIsLimited() {
+        SizeBudget budget = budget();
+        // the first half spent next to nothing, the rest could take 2Mbps
+        budget.addBytes(1000);
+        assertEquals(1500000, budget.onSyncSample(5 * SECOND_US));
+    }
+
+    @Test
+    public void staysInsideTheBandAroundTheInitialBitrate() {
+        SizeBudget budget = budget();
+        budget.addBytes((int) VIDEO_BYTES);
+        int bitrate = INITIAL_BITRATE;
+        for (int second = 1; second < 10; second++) {
+            int next = budget.onSyncSample(second * SECOND_US);
+            if (next > 0) {
+                bitrate = next;
+            }
+        }
+        assertEquals(INITIAL_BITRATE / 4, bitrate);
+        assertEquals(INITIAL_BITRATE / 4, budget.getBitrate());
+
+        budget = budget();
+        for (int second = 1; second < 10; second++) {
+            budget.onSyncSample(second * SECOND_US);
+        }
+        assertEquals(INITIAL_BITRATE * 2, budget.getBitrate());
+    }
+
+    @Test
+    public void maxBitrateCapsTheBand() {
+        SizeBudget budget = new SizeBudget(VIDEO_BYTES, DURATION_US, INITIAL_BITRATE, 1200000);
+        assertEquals(1200000, budget.onSyncSample(5 * SECOND_US));
+    }
+
+    @Test
+    public void smallChangesAreIgnored() {
+        SizeBudget budget = budget();
+        // the rest of the budget asks for 955555bps, 4.4% less
+        budget.addBytes(175000);
+        assertEquals(-1, budget.onSyncSample(SECOND_US));
+        assertEquals(INITIAL_BITRATE, budget.getBitrate());
+
+        budget = budget();
+        // 946666bps, 5.3% less
+        budget.addBytes(185000);
+        assertEquals(946666, budget.onSyncSample(SECOND_US));
+        assertEquals(946666, budget.getBitrate());
+    }
+
+    @Test
+    public void convergesAfterAComplexScene() {
+        assertConverges(1.5f);
+    }
+
+    @Test
+    public void convergesAfterASimpleScene() {
+        assertConverges(0.5f);
+    }
+
+    /**
+     * One minute with 1s GOPs. For the first 10s the encoder writes {@code complexity} times its
+     * bitrate, then exactly its bitrate. The bitrate must move in one direction only, settle once
+     * the scene is over and land on the budget.
+     */
+    private static void assertConverges(float complexity) {
+        int seconds = 60;
+        long videoBytes = (long) INITIAL_BITRATE / 8 * seconds;
+        SizeBudget budget = new SizeBudget(videoBytes, seconds * SECOND_US, INITIAL_BITRATE, Integer.MAX_VALUE);
+        int bitrate = INITIAL_BITRATE;
+        int lastChange = 0;
+        for (int second = 0; second < seconds; second++) {
+            if (second > 0) {
+                int next = budget.onSyncSample(second * SECOND_US);
+                if (next > 0) {
+                    assertEquals("bitrate turned from " + bitrate + " to " + next + " at " + second + "s",
+                            complexity > 1, next < bitrate);
+                    bitrate = next;
+                    lastChange = second;
+                }
+            }
+            budget.addBytes((int) (bitrate / 8 * (second < 10 ? complexity : 1)));
+        }
+        assertTrue("still changing at " + lastChange + "s", lastChange > 0 && lastChange <= 30);
+        assertEquals(bitrate, budget.getBitrate());
+        assertEquals(videoBytes, budget.getWrittenBytes(), videoBytes * 0.01);
+    }
+}
@@ -0,0 +1,125 @@
+package com.github.boybeak.mediakit.aac;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class AdtsHeaderTest {
+
+    @Test
+    public void writeThenParse() {
+        int[] payloadSizes = {0, 1, 371, 2048, AdtsHeader.MAX_FRAME_SIZE - AdtsHeader.HEADER_SIZE};
+        AdtsHeader header = new AdtsHeader();
+        ByteBuffer buffer = ByteBuffer.allocate(AdtsHeader.HEADER_SIZE);
+        for (int aot = 1; aot <= 4; aot++) {
+            for (int index = 0; index < 13; index++) {
+                for (int channels = 0; channels < 8; channels++) {
+                    for (int payloadSize : payloadSizes) {
+                        buffer.clear();
+                        AdtsHeader.write(buffer, aot, index, channels, payloadSize);
+                        assertEquals(AdtsHeader.HEADER_SIZE, buffer.position());
+                        buffer.flip();
+
+                        assertTrue(AdtsHeader.isSync(buffer, 0));
+                        assertTrue(header.parse(buffer, 0));
+                        assertEquals(0, buffer.position());
+                        assertEquals(aot, header.getAudioObjectType());
+                        assertEquals(index, header.getSamplingFrequencyIndex());
+                        assertEquals(AacConfig.sampleRate(index), header.getSampleRate());
+                        assertEquals(channels, header.getChannelConfiguration());
+                        assertEquals(AdtsHeader.HEADER_SIZE, header.getHeaderSize());
+                        assertEquals(payloadSize + AdtsHeader.HEADER_SIZE, header.getFrameSize());
+                        assertEquals(payloadSize, header.getPayloadSize());
+                        assertEquals(1, header.getRawDataBlocks());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void parseThenWriteGivesSameBytes() {
+        // a header as an encoder writes it: LC, 44.1kHz, stereo, 380 bytes, VBR, one block
+        byte[] bytes = {(byte) 0xff, (byte) 0xf1, 0x50, (byte) 0x80, 0x2f, (byte) 0x9f, (byte) 0xfc};
+        AdtsHeader header = new AdtsHeader();
+        assertTrue(header.parse(ByteBuffer.wrap(bytes), 0));
+        assertEquals(380, header.getFrameSize());
+
+        ByteBuffer out = ByteBuffer.allocate(AdtsHeader.HEADER_SIZE);
+        AdtsHeader.write(out, header.getAudioObjectType(), header.getSamplingFrequencyIndex(),
+                header.getChannelConfiguration(), header.getPayloadSize());
+        assertArrayEquals(bytes, out.array());
+        assertArrayEquals(new byte[]{0x12, 0x10}, header.toAudioSpecificConfig());
+    }
+
+    @Test
+    public void writeWithConfigUsesTheCore() {
+        AudioSpecificConfig config = AudioSpecificConfig.parse(new byte[]{0x2b, (byte) 0x92, 0x08, 0x00});
+        ByteBuffer buffer = ByteBuffer.allocate(AdtsHeader.HEADER_SIZE);
+        AdtsHeader.write(buffer, config, 100);
+        buffer.flip();
+
+        AdtsHeader header = new AdtsHeader();
+        assertTrue(header.parse(buffer, 0));
+        assertEquals(AacConfig.PROFILE_LC, header.getAudioObjectType());
+        assertEquals(22050, header.getSampleRate());
+        assertEquals(2, header.getChannelConfiguration());
+    }
+
+    @Test
+    public void parseAtOffsetWithCrc() {
+        ByteBuffer buffer = ByteBuffer.allocate(5 + AdtsHeader.HEADER_SIZE);
+        buffer.position(5);
+        AdtsHeader.write(buffer, AacConfig.PROFILE_LC, 3, 2, 200);
+        // protection_absent 0: two CRC bytes follow the header and count towards frame_length
+        buffer.put(6, (byte) 0xf0);
+        buffer.position(0);
+
+        AdtsHeader header = new AdtsHeader();
+        assertTrue(header.parse(buffer, 5));
+        assertEquals(AdtsHeader.HEADER_SIZE_CRC, header.getHeaderSize());
+        assertEquals(207, header.getFrameSize());
+        assertEquals(198, header.getPayloadSize());
+    }
+
+    @Test
+    public void invalidHeadersLeaveFieldsUnchanged() {
+        AdtsHeader header = new AdtsHeader();
+        ByteBuffer valid = ByteBuffer.allocate(AdtsHeader.HEADER_SIZE);
+        AdtsHeader.write(valid, AacConfig.PROFILE_LC, 4, 2, 300);
+        assertTrue(header.parse(valid, 0));
+
+        ByteBuffer noSync = ByteBuffer.wrap(valid.array().clone());
+        noSync.put(1, (byte) 0xe1);
+        assertFalse(AdtsHeader.isSync(noSync, 0));
+        assertFalse(header.parse(noSync, 0));
+
+        ByteBuffer reservedRate = ByteBuffer.wrap(valid.array().clone());
+        reservedRate.put(2, (byte) (reservedRate.get(2) | 0x3c));
+        assertFalse(header.parse(reservedRate, 0));
+
+        ByteBuffer tooShortFrame = ByteBuffer.allocate(AdtsHeader.HEADER_SIZE);
+        AdtsHeader.write(tooShortFrame, AacConfig.PROFILE_LC, 4, 2, 0);
+        // frame_length 3, less than the header
+        tooShortFrame.put(4, (byte) 0).put(5, (byte) (3 << 5 | 0x1f));
+        assertFalse(header.parse(tooShortFrame, 0));
+
+        assertFalse(header.parse(ByteBuffer.wrap(new byte[]{(byte) 0xff, (byte) 0xf1, 0x50}), 0));
+
+        assertEquals(4, header.getSamplingFrequencyIndex());
+        assertEquals(307, header.getFrameSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void writeRejectsSbrObjectType() {
+        AdtsHeader.write(ByteBuffer.allocate(AdtsHeader.HEADER_SIZE), AacConfig.PROFILE_SBR, 4, 2, 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void writeRejectsOversizedFrame() {
+        AdtsHeader.write(ByteBuffer.allocate(AdtsHeader.HEADER_SIZE), AacConfig.PROFILE_LC, 4, 2,
+                AdtsHeader.MAX_FRAME_SIZE - AdtsHeader.HEADER_SIZE + 1);
+    }
+}
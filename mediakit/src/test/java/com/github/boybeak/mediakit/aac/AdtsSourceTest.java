@@ -0,0 +1,186 @@
+package com.github.boybeak.mediakit.aac;
+
+import com.github.boybeak.mediakit.SampleSource;
+import com.github.boybeak.mediakit.TrackFormat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class AdtsSourceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] payload(int frame, int size) {
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) (frame * 31 + i);
+        }
+        return payload;
+    }
+
+    /**
+     * @param id3Size size of a leading ID3v2 tag body, -1 for none
+     * @param tail    bytes appended after the frames
+     */
+    private File write(int frequencyIndex, int frames, int id3Size, boolean id3Footer, byte[] tail) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        if (id3Size >= 0) {
+            buffer.put(new byte[]{'I', 'D', '3', 4, 0, (byte) (id3Footer ? 0x10 : 0)});
+            buffer.put((byte) (id3Size >> 21 & 0x7f)).put((byte) (id3Size >> 14 & 0x7f))
+                    .put((byte) (id3Size >> 7 & 0x7f)).put((byte) (id3Size & 0x7f));
+            for (int i = 0; i < id3Size; i++) {
+                // looks like ADTS sync words, must be skipped rather than scanned
+                buffer.put((byte) (i % 2 == 0 ? 0xff : 0xf1));
+            }
+            if (id3Footer) {
+                buffer.put(new byte[]{'3', 'D', 'I', 4, 0, 0x10, 0, 0, 0, 0});
+            }
+        }
+        for (int frame = 0; frame < frames; frame++) {
+            byte[] payload = payload(frame, 100 + frame);
+            AdtsHeader.write(buffer, AacConfig.PROFILE_LC, frequencyIndex, 2, payload.length);
+            buffer.put(payload);
+        }
+        buffer.put(tail);
+        File file = folder.newFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(buffer.array(), 0, buffer.position());
+        }
+        return file;
+    }
+
+    private static byte[] id3v1() {
+        byte[] tag = new byte[128];
+        tag[0] = 'T';
+        tag[1] = 'A';
+        tag[2] = 'G';
+        return tag;
+    }
+
+    @Test
+    public void skipsId3AndStopsAtTrailingTag() throws IOException {
+        AdtsSource source = new AdtsSource(write(4, 20, 300, false, id3v1()));
+        try {
+            assertEquals(20, source.getFrameCount());
+            TrackFormat format = source.getTrackFormat(0);
+            assertEquals(44100, format.getSampleRate());
+            assertEquals(2, format.getChannelCount());
+            assertEquals(119, format.getMaxSampleSize());
+            assertArrayEquals(new byte[]{0x12, 0x10}, format.getCsd(0));
+            assertEquals(20 * 1024 * 1000000L / 44100, format.getDurationUs());
+
+            source.selectTrack(0);
+            ByteBuffer copy = ByteBuffer.allocate(200);
+            for (int frame = 0; frame < 20; frame++) {
+                assertEquals(0, source.getSampleTrackIndex());
+                assertEquals(frame * 1024 * 1000000L / 44100, source.getSampleTime());
+                assertEquals(SampleSource.SAMPLE_FLAG_SYNC, source.getSampleFlags());
+                assertEquals(100 + frame, source.getSampleSize());
+
+                ByteBuffer data = source.getSampleData();
+                byte[] bytes = new byte[data.remaining()];
+                data.get(bytes);
+                assertArrayEquals(payload(frame, 100 + frame), bytes);
+
+                assertEquals(100 + frame, source.readSampleData(copy, 10));
+                assertEquals(10, copy.position());
+                assertEquals(110 + frame, copy.limit());
+                assertEquals(payload(frame, 1)[0], copy.get(10));
+
+                assertEquals(frame < 19, source.advance());
+            }
+            assertEquals(-1, source.getSampleTrackIndex());
+            assertEquals(-1, source.getSampleTime());
+            assertNull(source.getSampleData());
+        } finally {
+            source.release();
+        }
+    }
+
+    @Test
+    public void skipsId3WithFooter() throws IOException {
+        AdtsSource source = new AdtsSource(write(3, 5, 64, true, new byte[0]));
+        try {
+            assertEquals(5, source.getFrameCount());
+            assertEquals(48000, source.getTrackFormat(0).getSampleRate());
+        } finally {
+            source.release();
+        }
+    }
+
+    @Test
+    public void dropsTruncatedLastFrame() throws IOException {
+        ByteBuffer truncated = ByteBuffer.allocate(AdtsHeader.HEADER_SIZE + 50);
+        AdtsHeader.write(truncated, AacConfig.PROFILE_LC, 4, 2, 200);
+        AdtsSource source = new AdtsSource(write(4, 8, -1, false, truncated.array()));
+        try {
+            assertEquals(8, source.getFrameCount());
+        } finally {
+            source.release();
+        }
+    }
+
+    @Test
+    public void seekArithmetic() throws IOException {
+        // 48kHz: a frame lasts 21333.33us, so the reported times are rounded
+        AdtsSource source = new AdtsSource(write(3, 50, -1, false, new byte[0]));
+        try {
+            source.selectTrack(0);
+            long[] times = new long[50];
+            for (int frame = 0; frame < 50; frame++) {
+                times[frame] = source.getSampleTime();
+                source.advance();
+            }
+            for (int frame = 0; frame < 50; frame++) {
+                for (int mode : new int[]{SampleSource.SEEK_TO_PREVIOUS_SYNC, SampleSource.SEEK_TO_NEXT_SYNC,
+                        SampleSource.SEEK_TO_CLOSEST_SYNC}) {
+                    source.seekTo(times[frame], mode);
+                    assertEquals("frame " + frame + " mode " + mode, times[frame], source.getSampleTime());
+                }
+            }
+            source.seekTo(times[10] + 1, SampleSource.SEEK_TO_PREVIOUS_SYNC);
+            assertEquals(times[10], source.getSampleTime());
+            source.seekTo(times[10] + 1, SampleSource.SEEK_TO_NEXT_SYNC);
+            assertEquals(times[11], source.getSampleTime());
+            source.seekTo(times[11] - 1, SampleSource.SEEK_TO_PREVIOUS_SYNC);
+            assertEquals(times[10], source.getSampleTime());
+            source.seekTo(times[10] + 10000, SampleSource.SEEK_TO_CLOSEST_SYNC);
+            assertEquals(times[10], source.getSampleTime());
+            source.seekTo(times[10] + 12000, SampleSource.SEEK_TO_CLOSEST_SYNC);
+            assertEquals(times[11], source.getSampleTime());
+
+            source.seekTo(-5000, SampleSource.SEEK_TO_NEXT_SYNC);
+            assertEquals(0, source.getSampleTime());
+            source.seekTo(times[49] + 1, SampleSource.SEEK_TO_NEXT_SYNC);
+            assertEquals(-1, source.getSampleTrackIndex());
+            source.seekTo(60000000, SampleSource.SEEK_TO_PREVIOUS_SYNC);
+            assertEquals(-1, source.getSampleTrackIndex());
+        } finally {
+            source.release();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNonAdts() throws IOException {
+        new AdtsSource(write(4, 0, -1, false, new byte[]{0x00, 0x00, 0x00, 0x18, 'f', 't', 'y', 'p', 0, 0}));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsSeveralRawDataBlocks() throws IOException {
+        File file = write(4, 3, -1, false, new byte[0]);
+        try (java.io.RandomAccessFile out = new java.io.RandomAccessFile(file, "rw")) {
+            out.seek(6);
+            out.write(0xfd);
+        }
+        new AdtsSource(file);
+    }
+}
@@ -0,0 +1,169 @@
+package com.github.boybeak.mediakit.aac;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AudioSpecificConfigTest {
+
+    /**
+     * Packs a string of 0 and 1, spaces ignored, into bytes padded with zero bits.
+     */
+    static byte[] bits(String bits) {
+        bits = bits.replace(" ", "");
+        byte[] bytes = new byte[(bits.length() + 7) / 8];
+        for (int i = 0; i < bits.length(); i++) {
+            if (bits.charAt(i) == '1') {
+                bytes[i / 8] |= 0x80 >> (i % 8);
+            }
+        }
+        return bytes;
+    }
+
+    @Test
+    public void lc() {
+        AudioSpecificConfig config = AudioSpecificConfig.parse(new byte[]{0x12, 0x10});
+
+        assertEquals(AacConfig.PROFILE_LC, config.getAudioObjectType());
+        assertEquals(0, config.getExtensionAudioObjectType());
+        assertFalse(config.isSbrPresent());
+        assertFalse(config.isPsPresent());
+        assertEquals(44100, config.getSampleRate());
+        assertEquals(44100, config.getOutputSampleRate());
+        assertEquals(4, config.getSamplingFrequencyIndex());
+        assertEquals(2, config.getChannelConfiguration());
+        assertEquals(2, config.getChannelCount());
+        assertEquals(1024, config.getFrameLength());
+    }
+
+    @Test
+    public void explicitSbr() {
+        // aot 5, 22050Hz, stereo, extension 44100Hz, core aot 2
+        AudioSpecificConfig config = AudioSpecificConfig.parse(new byte[]{0x2b, (byte) 0x92, 0x08, 0x00});
+
+        assertEquals(AacConfig.PROFILE_LC, config.getAudioObjectType());
+        assertEquals(AacConfig.PROFILE_SBR, config.getExtensionAudioObjectType());
+        assertTrue(config.isSbrPresent());
+        assertFalse(config.isPsPresent());
+        assertEquals(22050, config.getSampleRate());
+        assertEquals(44100, config.getOutputSampleRate());
+        assertEquals(7, config.getSamplingFrequencyIndex());
+        assertEquals(2, config.getOutputChannelCount());
+    }
+
+    @Test
+    public void explicitPs() {
+        AudioSpecificConfig config = AudioSpecificConfig.parse(bits("11101 0111 0001 0100 00010 000"));
+
+        assertEquals(AacConfig.PROFILE_LC, config.getAudioObjectType());
+        assertTrue(config.isSbrPresent());
+        assertTrue(config.isPsPresent());
+        assertEquals(22050, config.getSampleRate());
+        assertEquals(44100, config.getOutputSampleRate());
+        assertEquals(1, config.getChannelCount());
+        assertEquals(2, config.getOutputChannelCount());
+    }
+
+    @Test
+    public void backwardCompatibleSbr() {
+        // LC 22050Hz stereo, sync extension 0x2b7, aot 5, sbrPresentFlag, extension 44100Hz
+        AudioSpecificConfig config = AudioSpecificConfig.parse(bits("00010 0111 0010 000 01010110111 00101 1 0100"));
+
+        assertEquals(AacConfig.PROFILE_LC, config.getAudioObjectType());
+        assertEquals(AacConfig.PROFILE_SBR, config.getExtensionAudioObjectType());
+        assertTrue(config.isSbrPresent());
+        assertFalse(config.isPsPresent());
+        assertEquals(22050, config.getSampleRate());
+        assertEquals(44100, config.getOutputSampleRate());
+    }
+
+    @Test
+    public void backwardCompatiblePs() {
+        // as above with a mono core, followed by sync extension 0x548 and psPresentFlag
+        AudioSpecificConfig config = AudioSpecificConfig.parse(
+                bits("00010 0111 0001 000 01010110111 00101 1 0100 10101001000 1"));
+
+        assertTrue(config.isSbrPresent());
+        assertTrue(config.isPsPresent());
+        assertEquals(44100, config.getOutputSampleRate());
+        assertEquals(1, config.getChannelCount());
+        assertEquals(2, config.getOutputChannelCount());
+    }
+
+    @Test
+    public void backwardCompatibleSbrAbsent() {
+        AudioSpecificConfig config = AudioSpecificConfig.parse(bits("00010 0111 0010 000 01010110111 00101 0"));
+
+        assertEquals(AacConfig.PROFILE_SBR, config.getExtensionAudioObjectType());
+        assertFalse(config.isSbrPresent());
+        assertEquals(22050, config.getOutputSampleRate());
+    }
+
+    @Test
+    public void implicitSbrLooksLikeLc() {
+        // an HE-AAC stream whose config does not signal SBR at all
+        AudioSpecificConfig config = AudioSpecificConfig.parse(new byte[]{0x13, (byte) 0x90});
+
+        assertEquals(AacConfig.PROFILE_LC, config.getAudioObjectType());
+        assertFalse(config.isSbrPresent());
+        assertEquals(22050, config.getSampleRate());
+        assertEquals(22050, config.getOutputSampleRate());
+    }
+
+    @Test
+    public void escapeSampleRate() {
+        // samplingFrequencyIndex 15 followed by the rate in 24 bits: 37800 = 0x0093a8
+        AudioSpecificConfig config = AudioSpecificConfig.parse(
+                bits("00010 1111 0000 0000 1001 0011 1010 1000 0010 000"));
+
+        assertEquals(37800, config.getSampleRate());
+        assertEquals(-1, config.getSamplingFrequencyIndex());
+        assertEquals(2, config.getChannelCount());
+    }
+
+    @Test
+    public void escapeAudioObjectType() {
+        // 31 followed by 6 bits: 32 + 7 = 39 (ER AAC ELD), not general audio, no GASpecificConfig
+        AudioSpecificConfig config = AudioSpecificConfig.parse(bits("11111 000111 0011 0010"));
+
+        assertEquals(39, config.getAudioObjectType());
+        assertEquals(48000, config.getSampleRate());
+    }
+
+    @Test
+    public void shortFrame() {
+        AudioSpecificConfig config = AudioSpecificConfig.parse(bits("00010 0100 0010 100"));
+
+        assertEquals(960, config.getFrameLength());
+    }
+
+    @Test
+    public void programConfigElement() {
+        AudioSpecificConfig config = AudioSpecificConfig.parse(bits("00010 0011 0000 000 0000 0000"));
+
+        assertEquals(0, config.getChannelConfiguration());
+        assertEquals(0, config.getChannelCount());
+    }
+
+    @Test
+    public void tooShortIsNull() {
+        assertNull(AudioSpecificConfig.parse(null));
+        assertNull(AudioSpecificConfig.parse(new byte[]{0x12}));
+        // explicit SBR cut off before the core object type
+        assertNull(AudioSpecificConfig.parse(new byte[]{0x2b, (byte) 0x92}));
+    }
+
+    @Test
+    public void matchesAacConfig() {
+        int[] rates = {96000, 48000, 44100, 32000, 24000, 16000, 8000};
+        for (int rate : rates) {
+            for (int channels = 1; channels <= 2; channels++) {
+                byte[] csd = AacConfig.create(AacConfig.PROFILE_LC, rate, channels);
+                AudioSpecificConfig config = AudioSpecificConfig.parse(csd);
+                assertEquals(AacConfig.PROFILE_LC, AacConfig.audioObjectType(csd));
+                assertEquals(rate, config.getSampleRate());
+                assertEquals(channels, config.getChannelCount());
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.github.boybeak.mediakit.audio;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class PcmConverterTest {
+
+    /**
+     * -3dB as the converter applies it: x * 23170 >> 15.
+     */
+    private static int minus3db(int sample) {
+        return sample * 23170 >> 15;
+    }
+
+    private static short[] convertAll(PcmConverter converter, short[] input) {
+        short[] output = new short[converter.getMaxOutputSamples(input.length) + 16];
+        int written = converter.convert(ShortBuffer.wrap(input), output, 0);
+        written += converter.flush(output, written);
+        return Arrays.copyOf(output, written);
+    }
+
+    /**
+     * Feeds {@code input} in blocks of {@code blockFrames}, then flushes.
+     */
+    private static short[] convertInBlocks(PcmConverter converter, short[] input, int channels, int blockFrames) {
+        short[] result = new short[0];
+        short[] output = new short[converter.getMaxOutputSamples(blockFrames * channels) + 16];
+        for (int start = 0; start < input.length; start += blockFrames * channels) {
+            int end = Math.min(input.length, start + blockFrames * channels);
+            int written = converter.convert(ShortBuffer.wrap(input, start, end - start), output, 0);
+            result = append(result, output, written);
+        }
+        int written = converter.flush(output, 0);
+        return append(result, output, written);
+    }
+
+    private static short[] append(short[] result, short[] output, int count) {
+        short[] bigger = Arrays.copyOf(result, result.length + count);
+        System.arraycopy(output, 0, bigger, result.length, count);
+        return bigger;
+    }
+
+    /**
+     * A ramp that differs between channels, so a swapped or misplaced channel shows up.
+     */
+    private static short[] ramp(int frames, int channels) {
+        short[] samples = new short[frames * channels];
+        for (int i = 0; i < frames; i++) {
+            for (int c = 0; c < channels; c++) {
+                samples[i * channels + c] = (short) ((i * 37 + c * 1000) % 20000 - 10000);
+            }
+        }
+        return samples;
+    }
+
+    @Test
+    public void monoToStereoDuplicates() {
+        PcmConverter converter = new PcmConverter(44100, 1, 44100, 2);
+        assertFalse(converter.isPassThrough());
+        assertArrayEquals(new short[]{100, 100, -200, -200, 32767, 32767},
+                convertAll(converter, new short[]{100, -200, 32767}));
+    }
+
+    @Test
+    public void stereoToMonoAverages() {
+        PcmConverter converter = new PcmConverter(44100, 2, 44100, 1);
+        assertArrayEquals(new short[]{150, -1, 32767, -32768},
+                convertAll(converter, new short[]{100, 200, 1, -2, 32767, 32767, -32768, -32768}));
+    }
+
+    @Test
+    public void sameLayoutPassesThrough() {
+        PcmConverter converter = new PcmConverter(48000, 2, 48000, 2);
+        assertTrue(converter.isPassThrough());
+        short[] input = ramp(100, 2);
+        assertArrayEquals(input, convertAll(converter, input));
+    }
+
+    @Test
+    public void fivePointOneFoldsCenterAndSurroundsAtMinus3db() {
+        PcmConverter converter = new PcmConverter(48000, 6, 48000, 2);
+        // FL, FR, C, LFE, BL, BR
+        short[] input = {1000, 2000, 4000, 30000, 800, -800};
+        assertArrayEquals(new short[]{(short) (1000 + minus3db(4800)), (short) (2000 + minus3db(3200))},
+                convertAll(converter, input));
+        assertArrayEquals(new short[]{4394, 4262}, convertAll(new PcmConverter(48000, 6, 48000, 2), input));
+    }
+
+    @Test
+    public void fivePointOneClips() {
+        PcmConverter converter = new PcmConverter(48000, 6, 48000, 2);
+        short[] input = {32767, -32768, 32767, 0, 32767, -32768};
+        assertArrayEquals(new short[]{32767, -32768}, convertAll(converter, input));
+    }
+
+    @Test
+    public void fivePointOneToMonoAveragesTheFold() {
+        PcmConverter converter = new PcmConverter(48000, 6, 48000, 1);
+        short[] input = {1000, 2000, 4000, 0, 800, -800};
+        int left = 1000 + minus3db(4800);
+        int right = 2000 + minus3db(3200);
+        assertArrayEquals(new short[]{(short) ((left + right) >> 1)}, convertAll(converter, input));
+    }
+
+    @Test
+    public void quadHasNoCenter() {
+        PcmConverter converter = new PcmConverter(48000, 4, 48000, 2);
+        // FL, FR, BL, BR
+        short[] input = {1000, 2000, 3000, -3000};
+        assertArrayEquals(new short[]{(short) (1000 + minus3db(3000)), (short) (2000 + minus3db(-3000))},
+                convertAll(converter, input));
+    }
+
+    @Test
+    public void fiveChannelsHaveNoLfe() {
+        PcmConverter converter = new PcmConverter(48000, 5, 48000, 2);
+        // FL, FR, C, BL, BR
+        short[] input = {1000, 2000, 4000, 800, -800};
+        assertArrayEquals(new short[]{(short) (1000 + minus3db(4800)), (short) (2000 + minus3db(3200))},
+                convertAll(converter, input));
+    }
+
+    @Test
+    public void upsamplesAcrossBlocks() {
+        short[] input = ramp(44100, 2);
+        short[] whole = convertAll(new PcmConverter(44100, 2, 48000, 2), input);
+        assertEquals(48000, whole.length / 2, 1);
+        // block sizes that do not divide the rate, so every block boundary lands mid step
+        for (int block : new int[]{1, 7, 1024, 4410, 44100}) {
+            assertArrayEquals("block of " + block, whole,
+                    convertInBlocks(new PcmConverter(44100, 2, 48000, 2), input, 2, block));
+        }
+    }
+
+    @Test
+    public void downsamplesAcrossBlocks() {
+        short[] input = ramp(48000, 2);
+        short[] whole = convertAll(new PcmConverter(48000, 2, 22050, 2), input);
+        assertEquals(22050, whole.length / 2, 1);
+        for (int block : new int[]{1, 3, 1024, 4800}) {
+            assertArrayEquals("block of " + block, whole,
+                    convertInBlocks(new PcmConverter(48000, 2, 22050, 2), input, 2, block));
+        }
+    }
+
+    @Test
+    public void flushWritesTheHeldBackFrame() {
+        PcmConverter converter = new PcmConverter(44100, 1, 48000, 1);
+        short[] output = new short[converter.getMaxOutputSamples(441) + 16];
+        int written = converter.convert(ShortBuffer.wrap(ramp(441, 1)), output, 0);
+        int flushed = converter.flush(output, written);
+        assertTrue(flushed > 0);
+        assertEquals(480, written + flushed, 1);
+        // the converter starts over after a flush
+        assertEquals(written, converter.convert(ShortBuffer.wrap(ramp(441, 1)), output, 0));
+    }
+
+    @Test
+    public void interpolatesBetweenFrames() {
+        PcmConverter converter = new PcmConverter(1, 1, 2, 1);
+        assertArrayEquals(new short[]{0, 50, 100, 150, 200, 200}, convertAll(converter, new short[]{0, 100, 200}));
+    }
+
+    @Test
+    public void ringWrapsWithoutGrowingAfterTheFirstBlock() {
+        int block = 1024;
+        short[] input = ramp(block * 20, 2);
+        short[] whole = convertAll(new PcmConverter(44100, 2, 48000, 2), input);
+
+        PcmConverter converter = new PcmConverter(44100, 2, 48000, 2);
+        short[] result = new short[0];
+        short[] output = new short[converter.getMaxOutputSamples(block * 2) + 16];
+        int ringFrames = -1;
+        for (int start = 0; start < input.length; start += block * 2) {
+            int written = converter.convert(ShortBuffer.wrap(input, start, block * 2), output, 0);
+            if (ringFrames < 0) {
+                ringFrames = converter.getRingFrames();
+            }
+            assertEquals("ring grew at frame " + start / 2, ringFrames, converter.getRingFrames());
+            result = append(result, output, written);
+        }
+        result = append(result, output, converter.flush(output, 0));
+        assertArrayEquals(whole, result);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMoreThanTwoOutputChannels() {
+        new PcmConverter(48000, 6, 48000, 6);
+    }
+}
@@ -0,0 +1,137 @@
+package com.github.boybeak.mediakit.audio;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class PcmMixerTest {
+
+    private static final int BLOCK = 1024;
+
+    private static short[] filled(int value) {
+        short[] block = new short[BLOCK];
+        Arrays.fill(block, (short) value);
+        return block;
+    }
+
+    private static short[] sine(int amplitude, int period) {
+        short[] block = new short[BLOCK];
+        for (int i = 0; i < BLOCK; i++) {
+            block[i] = (short) Math.round(amplitude * Math.sin(2 * Math.PI * i / period));
+        }
+        return block;
+    }
+
+    @Test
+    public void unityGainPassesThrough() {
+        short[] main = sine(30000, 100);
+        short[] expected = main.clone();
+        PcmMixer mixer = new PcmMixer(1, 1);
+        mixer.mix(main, 0, new short[BLOCK], 0, BLOCK);
+        assertArrayEquals(expected, main);
+        mixer.mix(main, 0, null, 0, BLOCK);
+        assertArrayEquals(expected, main);
+        assertEquals(1, mixer.getLimiterGain(), 0);
+    }
+
+    @Test
+    public void appliesGainPerStream() {
+        short[] main = {1000, -1000, 0};
+        short[] mix = {100, 100, -300};
+        new PcmMixer(0.5f, 2f).mix(main, 0, mix, 0, 3);
+        assertArrayEquals(new short[]{700, -300, -600}, main);
+    }
+
+    @Test
+    public void mixesAtOffsets() {
+        short[] main = {1, 2, 3, 4, 5};
+        short[] mix = {10, 20, 30, 40, 50};
+        new PcmMixer(1, 1).mix(main, 2, mix, 1, 2);
+        assertArrayEquals(new short[]{1, 2, 23, 34, 5}, main);
+    }
+
+    @Test
+    public void fullScaleInputsAreLimitedNotWrapped() {
+        short[] main = filled(Short.MAX_VALUE);
+        PcmMixer mixer = new PcmMixer(1, 1);
+        mixer.mix(main, 0, filled(Short.MAX_VALUE), 0, BLOCK);
+        for (short sample : main) {
+            assertEquals(Short.MAX_VALUE, sample);
+        }
+        assertEquals(0.5f, mixer.getLimiterGain(), 1e-6f);
+
+        // both signs at full scale keep their sign and stay in range
+        short[] a = sine(Short.MAX_VALUE, 64);
+        short[] b = sine(Short.MAX_VALUE, 64);
+        short[] original = a.clone();
+        new PcmMixer(1, 1).mix(a, 0, b, 0, BLOCK);
+        for (int i = 0; i < BLOCK; i++) {
+            assertEquals("sample " + i, Integer.signum(original[i]), Integer.signum(a[i]));
+            assertEquals("sample " + i, original[i], a[i], 1);
+        }
+    }
+
+    @Test
+    public void attackIsInstantWithinTheBlock() {
+        PcmMixer mixer = new PcmMixer(1, 1);
+        short[] main = filled(20000);
+        mixer.mix(main, 0, filled(20000), 0, BLOCK);
+        // the whole clipping block is scaled, including its first sample
+        float gain = Short.MAX_VALUE / 40000f;
+        assertEquals(gain, mixer.getLimiterGain(), 1e-6f);
+        for (short sample : main) {
+            assertEquals(Math.round(40000 * gain), sample);
+        }
+    }
+
+    @Test
+    public void releaseRampsBackOverFollowingBlocks() {
+        PcmMixer mixer = new PcmMixer(1, 1);
+        mixer.mix(filled(Short.MAX_VALUE), 0, filled(Short.MAX_VALUE), 0, BLOCK);
+        assertEquals(0.5f, mixer.getLimiterGain(), 1e-6f);
+
+        float previousEnd = 0.5f;
+        int blocks = 0;
+        while (mixer.getLimiterGain() < 1f) {
+            short[] quiet = filled(1000);
+            mixer.mix(quiet, 0, null, 0, BLOCK);
+            blocks++;
+            float end = mixer.getLimiterGain();
+            assertEquals(Math.min(1f, previousEnd + 0.05f), end, 1e-5f);
+            // ramped from the previous gain to the new one, no jump between samples
+            assertEquals(Math.round(1000 * previousEnd), quiet[0], 1);
+            assertEquals(Math.round(1000 * end), quiet[BLOCK - 1], 1);
+            for (int i = 1; i < BLOCK; i++) {
+                assertTrue(quiet[i] >= quiet[i - 1]);
+            }
+            previousEnd = end;
+            assertTrue("limiter never released", blocks <= 10);
+        }
+        assertEquals(10, blocks);
+
+        short[] quiet = filled(1000);
+        mixer.mix(quiet, 0, null, 0, BLOCK);
+        assertArrayEquals(filled(1000), quiet);
+    }
+
+    @Test
+    public void releaseStopsWhereTheBlockWouldClip() {
+        PcmMixer mixer = new PcmMixer(1, 1);
+        mixer.mix(filled(Short.MAX_VALUE), 0, filled(Short.MAX_VALUE), 0, BLOCK);
+        // a block that needs 0.52 may only recover to that, not to 0.55
+        short[] main = filled(31500);
+        mixer.mix(main, 0, filled(31500), 0, BLOCK);
+        assertEquals(Short.MAX_VALUE / 63000f, mixer.getLimiterGain(), 1e-6f);
+        for (short sample : main) {
+            assertTrue(sample <= Short.MAX_VALUE);
+            assertTrue(sample > 0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeGain() {
+        new PcmMixer(-1, 1);
+    }
+}
@@ -0,0 +1,159 @@
+package com.github.boybeak.mediakit.h264;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static com.github.boybeak.mediakit.h264.H264Vectors.bytes;
+import static org.junit.Assert.*;
+
+public class BitReaderTest {
+
+    private static BitReader reader(String hex) {
+        byte[] data = bytes(hex);
+        return new BitReader(data, 0, data.length);
+    }
+
+    @Test
+    public void skipsEmulationPrevention() {
+        BitReader in = reader("00 00 03 01 00 00 03 00 00 03 02");
+
+        assertEquals(0x00000100, in.readBits(32));
+        assertEquals(0x00000002, in.readBits(32));
+    }
+
+    @Test
+    public void keepsThreeNotAfterTwoZeros() {
+        BitReader in = reader("00 03 03 00 00 03 03");
+
+        assertEquals(0x000303, in.readBits(24));
+        // the first 03 after 00 00 is dropped, the second one is data
+        assertEquals(0x000003, in.readBits(24));
+    }
+
+    @Test
+    public void expGolomb() {
+        // ue 0, 1, 2, 3, 4, 7, then se of codeNum 1, 2, 3, 4
+        BitReader in = reader("a6 42 88 4c 85");
+        assertEquals(0, in.readUe());
+        assertEquals(1, in.readUe());
+        assertEquals(2, in.readUe());
+        assertEquals(3, in.readUe());
+        assertEquals(4, in.readUe());
+        assertEquals(7, in.readUe());
+        assertEquals(1, in.readSe());
+        assertEquals(-1, in.readSe());
+        assertEquals(2, in.readSe());
+        assertEquals(-2, in.readSe());
+    }
+
+    @Test
+    public void readsAcrossBytes() {
+        BitReader in = reader("ab cd ef 12 34");
+
+        in.skipBits(4);
+        assertEquals(0xbcdef123, in.readBits(32));
+        assertFalse(in.readBit());
+        assertEquals(0x4, in.readBits(3));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void readPastEnd() {
+        BitReader in = reader("ff");
+        in.readBits(8);
+        in.readBit();
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void emulationPreventionAtEnd() {
+        reader("00 00 03").readBits(24);
+    }
+
+    @Test
+    public void resetReadsAnotherRange() {
+        byte[] data = bytes("11 22 33 44");
+        BitReader in = new BitReader(data, 0, 2);
+        assertEquals(0x1122, in.readBits(16));
+
+        in.reset(ByteBuffer.wrap(data), 2, 2);
+        assertEquals(0x3344, in.readBits(16));
+    }
+
+    @Test
+    public void hasMoreRbspDataInCurrentByte() {
+        // 1 0 then the stop bit
+        BitReader in = reader("a0");
+        assertTrue(in.hasMoreRbspData());
+        in.readBit();
+        assertTrue(in.hasMoreRbspData());
+        in.readBit();
+        assertFalse(in.hasMoreRbspData());
+    }
+
+    @Test
+    public void hasMoreRbspDataWithStopBitInNextByte() {
+        BitReader in = reader("ff 80");
+        in.readBits(8);
+        assertFalse(in.hasMoreRbspData());
+
+        in = reader("ff 40");
+        in.readBits(8);
+        assertTrue(in.hasMoreRbspData());
+
+        in = reader("ff 00 80");
+        in.readBits(8);
+        assertTrue(in.hasMoreRbspData());
+
+        in = reader("f0 80");
+        in.readBits(4);
+        assertTrue(in.hasMoreRbspData());
+    }
+
+    @Test
+    public void hasMoreRbspDataIgnoresCabacZeroWords() {
+        BitReader in = reader("ff 80 00 00 03 00 00 03");
+        in.readBits(8);
+        assertFalse(in.hasMoreRbspData());
+
+        in = reader("c0 00 00 03 00 00");
+        in.readBit();
+        assertFalse(in.hasMoreRbspData());
+    }
+
+    @Test
+    public void highPpsHasMoreRbspDataForTransform8x8() {
+        // PPS fields up to redundant_pic_cnt_present_flag, then the High profile extension
+        BitReader in = new BitReader(H264Vectors.PPS_HIGH, 1, H264Vectors.PPS_HIGH.length - 1);
+        in.readUe();
+        in.readUe();
+        in.readBits(2);
+        in.readUe();
+        in.readUe();
+        in.readUe();
+        in.readBits(3);
+        in.readSe();
+        in.readSe();
+        in.readSe();
+        in.readBits(3);
+        assertTrue(in.hasMoreRbspData());
+        // transform_8x8_mode_flag, pic_scaling_matrix_present_flag, second_chroma_qp_index_offset
+        assertTrue(in.readBit());
+        assertFalse(in.readBit());
+        assertEquals(-2, in.readSe());
+        assertFalse(in.hasMoreRbspData());
+
+        in = new BitReader(H264Vectors.PPS_BASELINE, 1, H264Vectors.PPS_BASELINE.length - 1);
+        in.readUe();
+        in.readUe();
+        in.readBits(2);
+        in.readUe();
+        in.readUe();
+        in.readUe();
+        in.readBits(3);
+        in.readSe();
+        in.readSe();
+        in.readSe();
+        in.readBits(3);
+        assertFalse(in.hasMoreRbspData());
+    }
+}
@@ -0,0 +1,64 @@
+package com.github.boybeak.mediakit.h264;
+
+/**
+ * Parameter sets and slices as encoders write them, without start codes.
+ */
+final class H264Vectors {
+
+    /**
+     * x264, High 4.0, 1920x1080 (1088 coded, cropped by 8), 25fps, emulation prevention in the VUI
+     * timing info.
+     */
+    static final byte[] SPS_HIGH_1080P = bytes("67 64 00 28 ac d9 40 78 02 27 e5 c0 44 00 00 03 00 04 00 00 03 00 c8 3c 60 c6 58");
+    /**
+     * x264, CABAC, 3 L0 references, weighted prediction, 8x8 transform.
+     */
+    static final byte[] PPS_HIGH = bytes("68 eb e3 cb 22 c0");
+    /**
+     * Hardware encoder, Constrained Baseline 3.0, 640x360 (368 coded, cropped by 8), picture order
+     * count type 2, 30fps in 1/60000 ticks.
+     */
+    static final byte[] SPS_BASELINE_360P = bytes("67 42 c0 1e da 02 80 bf e5 9a 80 80 80 a0 00 00 7d 00 00 1d 4c 00 80");
+    static final byte[] PPS_BASELINE = bytes("68 ce 3c 80");
+
+    /**
+     * Slices for the High SPS/PPS: frame_num has 4 bits, pic_order_cnt_lsb 6.
+     */
+    static final byte[] IDR_HIGH = bytes("65 88 84 0a bc d8");
+    static final byte[] P_HIGH = bytes("41 9a 24 55 e6 c0");
+    /**
+     * Non reference B slice starting at macroblock 3600.
+     */
+    static final byte[] B_HIGH_SECOND_SLICE = bytes("01 00 1c 22 a4 25 5e 6c");
+    /**
+     * Slices for the Baseline SPS/PPS, no pic_order_cnt_lsb.
+     */
+    static final byte[] IDR_BASELINE = bytes("65 88 82 ab cd 80");
+    static final byte[] P_BASELINE = bytes("41 9a 75 79 b0");
+
+    private H264Vectors() {
+    }
+
+    static byte[] bytes(String hex) {
+        String[] parts = hex.trim().split(" +");
+        byte[] bytes = new byte[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(parts[i], 16);
+        }
+        return bytes;
+    }
+
+    static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] out = new byte[length];
+        int position = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, out, position, part.length);
+            position += part.length;
+        }
+        return out;
+    }
+}
@@ -0,0 +1,46 @@
+package com.github.boybeak.mediakit.h264;
+
+import org.junit.Test;
+
+import static com.github.boybeak.mediakit.h264.H264Vectors.*;
+import static org.junit.Assert.*;
+
+public class PpsTest {
+
+    @Test
+    public void high() {
+        Pps pps = Pps.parse(PPS_HIGH, 0, PPS_HIGH.length);
+
+        assertEquals(0, pps.getId());
+        assertEquals(0, pps.getSpsId());
+        assertTrue(pps.isEntropyCodingMode());
+        assertFalse(pps.isBottomFieldPicOrderInFramePresent());
+        assertEquals(1, pps.getNumSliceGroups());
+        assertEquals(3, pps.getNumRefIdxL0DefaultActive());
+        assertEquals(1, pps.getNumRefIdxL1DefaultActive());
+        assertTrue(pps.isWeightedPred());
+        assertEquals(2, pps.getWeightedBipredIdc());
+        assertTrue(pps.isDeblockingFilterControlPresent());
+        assertFalse(pps.isRedundantPicCntPresent());
+    }
+
+    @Test
+    public void baseline() {
+        Pps pps = Pps.parse(PPS_BASELINE, 0, PPS_BASELINE.length);
+
+        assertFalse(pps.isEntropyCodingMode());
+        assertEquals(1, pps.getNumSliceGroups());
+        assertEquals(1, pps.getNumRefIdxL0DefaultActive());
+        assertEquals(1, pps.getNumRefIdxL1DefaultActive());
+        assertFalse(pps.isWeightedPred());
+        assertEquals(0, pps.getWeightedBipredIdc());
+        assertTrue(pps.isDeblockingFilterControlPresent());
+    }
+
+    @Test
+    public void notAPps() {
+        assertNull(Pps.parse(SPS_BASELINE_360P, 0, SPS_BASELINE_360P.length));
+        assertNull(Pps.parse(PPS_HIGH, 0, 1));
+        assertNull(Pps.parse(PPS_HIGH, 0, 2));
+    }
+}
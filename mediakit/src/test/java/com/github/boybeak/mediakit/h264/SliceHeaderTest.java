@@ -0,0 +1,85 @@
+package com.github.boybeak.mediakit.h264;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static com.github.boybeak.mediakit.h264.H264Vectors.*;
+import static org.junit.Assert.*;
+
+public class SliceHeaderTest {
+
+    private static final Sps HIGH_SPS = Sps.parse(SPS_HIGH_1080P, 0, SPS_HIGH_1080P.length);
+    private static final Pps HIGH_PPS = Pps.parse(PPS_HIGH, 0, PPS_HIGH.length);
+    private static final Sps BASELINE_SPS = Sps.parse(SPS_BASELINE_360P, 0, SPS_BASELINE_360P.length);
+    private static final Pps BASELINE_PPS = Pps.parse(PPS_BASELINE, 0, PPS_BASELINE.length);
+
+    private static boolean parse(SliceHeader header, byte[] nal, Sps sps, Pps pps) {
+        return header.parse(ByteBuffer.wrap(nal), 0, nal.length, sps, pps);
+    }
+
+    @Test
+    public void highSlices() {
+        SliceHeader header = new SliceHeader();
+
+        assertTrue(parse(header, IDR_HIGH, HIGH_SPS, HIGH_PPS));
+        assertTrue(header.isIdr());
+        assertTrue(header.isReference());
+        assertEquals(3, header.getNalRefIdc());
+        assertEquals(SliceHeader.TYPE_I, header.getSliceType());
+        assertEquals(0, header.getFirstMbInSlice());
+        assertEquals(0, header.getFrameNum());
+        assertEquals(0, header.getIdrPicId());
+        assertEquals(0, header.getPicOrderCntLsb());
+        assertFalse(header.isFieldPic());
+
+        assertTrue(parse(header, P_HIGH, HIGH_SPS, HIGH_PPS));
+        assertFalse(header.isIdr());
+        assertEquals(2, header.getNalRefIdc());
+        assertEquals(SliceHeader.TYPE_P, header.getSliceType());
+        assertEquals(1, header.getFrameNum());
+        assertEquals(-1, header.getIdrPicId());
+        assertEquals(8, header.getPicOrderCntLsb());
+
+        assertTrue(parse(header, B_HIGH_SECOND_SLICE, HIGH_SPS, HIGH_PPS));
+        assertFalse(header.isReference());
+        assertEquals(NalUnit.TYPE_SLICE, header.getNalUnitType());
+        assertEquals(SliceHeader.TYPE_B, header.getSliceType());
+        assertEquals(3600, header.getFirstMbInSlice());
+        assertEquals(2, header.getFrameNum());
+        assertEquals(4, header.getPicOrderCntLsb());
+    }
+
+    @Test
+    public void baselineSlicesHaveNoPocLsb() {
+        SliceHeader header = new SliceHeader();
+
+        assertTrue(parse(header, IDR_BASELINE, BASELINE_SPS, BASELINE_PPS));
+        assertTrue(header.isIdr());
+        assertEquals(SliceHeader.TYPE_I, header.getSliceType());
+        assertEquals(1, header.getIdrPicId());
+        assertEquals(-1, header.getPicOrderCntLsb());
+
+        assertTrue(parse(header, P_BASELINE, BASELINE_SPS, BASELINE_PPS));
+        assertEquals(SliceHeader.TYPE_P, header.getSliceType());
+        assertEquals(3, header.getFrameNum());
+        assertEquals(-1, header.getPicOrderCntLsb());
+    }
+
+    @Test
+    public void rejectedSlicesKeepTheLastHeader() {
+        SliceHeader header = new SliceHeader();
+        assertTrue(parse(header, P_HIGH, HIGH_SPS, HIGH_PPS));
+
+        assertFalse(parse(header, SPS_HIGH_1080P, HIGH_SPS, HIGH_PPS));
+        // truncated inside pic_order_cnt_lsb
+        assertFalse(header.parse(ByteBuffer.wrap(IDR_HIGH), 0, 3, HIGH_SPS, HIGH_PPS));
+        byte[] otherPps = PPS_HIGH.clone();
+        // pic_parameter_set_id 1
+        otherPps[1] = 0x4b;
+        assertFalse(parse(header, P_HIGH, HIGH_SPS, Pps.parse(otherPps, 0, otherPps.length)));
+
+        assertEquals(SliceHeader.TYPE_P, header.getSliceType());
+        assertEquals(8, header.getPicOrderCntLsb());
+    }
+}
@@ -0,0 +1,124 @@
+package com.github.boybeak.mediakit.h264;
+
+import org.junit.Test;
+
+import static com.github.boybeak.mediakit.h264.H264Vectors.*;
+import static org.junit.Assert.*;
+
+public class SpsTest {
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    @Test
+    public void high1080p() {
+        Sps sps = Sps.parse(SPS_HIGH_1080P, 0, SPS_HIGH_1080P.length);
+
+        assertEquals(100, sps.getProfileIdc());
+        assertEquals(0, sps.getConstraintFlags());
+        assertEquals(40, sps.getLevelIdc());
+        assertEquals(0, sps.getId());
+        assertEquals(1, sps.getChromaFormatIdc());
+        assertEquals(8, sps.getBitDepthLuma());
+        assertEquals(8, sps.getBitDepthChroma());
+        assertEquals(4, sps.getLog2MaxFrameNum());
+        assertEquals(0, sps.getPicOrderCntType());
+        assertEquals(6, sps.getLog2MaxPicOrderCntLsb());
+        assertEquals(4, sps.getMaxNumRefFrames());
+        assertTrue(sps.isFrameMbsOnly());
+        assertEquals(1920, sps.getCodedWidth());
+        assertEquals(1088, sps.getCodedHeight());
+        assertArrayEquals(new int[]{0, 0, 0, 8}, sps.getCropRect());
+        assertEquals(1920, sps.getWidth());
+        assertEquals(1080, sps.getHeight());
+        assertEquals(1, sps.getSarWidth());
+        assertEquals(1, sps.getSarHeight());
+        // num_units_in_tick is 00 00 00 01, only readable with the emulation prevention byte skipped
+        assertTrue(sps.isTimingInfoPresent());
+        assertEquals(1, sps.getNumUnitsInTick());
+        assertEquals(50, sps.getTimeScale());
+        assertFalse(sps.isFixedFrameRate());
+        assertEquals(25f, sps.getFrameRate(), 0);
+    }
+
+    @Test
+    public void baseline360p() {
+        Sps sps = Sps.parse(SPS_BASELINE_360P, 0, SPS_BASELINE_360P.length);
+
+        assertEquals(66, sps.getProfileIdc());
+        assertEquals(0xc0, sps.getConstraintFlags());
+        assertEquals(30, sps.getLevelIdc());
+        assertEquals(1, sps.getChromaFormatIdc());
+        assertEquals(4, sps.getLog2MaxFrameNum());
+        assertEquals(2, sps.getPicOrderCntType());
+        assertEquals(1, sps.getMaxNumRefFrames());
+        assertEquals(640, sps.getCodedWidth());
+        assertEquals(368, sps.getCodedHeight());
+        assertEquals(640, sps.getWidth());
+        assertEquals(360, sps.getHeight());
+        assertEquals(1000, sps.getNumUnitsInTick());
+        assertEquals(60000, sps.getTimeScale());
+        assertEquals(30f, sps.getFrameRate(), 0);
+    }
+
+    @Test
+    public void truncatedVuiKeepsResolution() {
+        // cut inside the VUI, after the frame cropping
+        Sps sps = Sps.parse(SPS_HIGH_1080P, 0, 11);
+
+        assertEquals(1920, sps.getWidth());
+        assertEquals(1080, sps.getHeight());
+        assertFalse(sps.isTimingInfoPresent());
+        assertEquals(0, sps.getFrameRate(), 0);
+    }
+
+    @Test
+    public void parseAtOffset() {
+        byte[] data = concat(new byte[]{1, 2, 3}, SPS_BASELINE_360P);
+        Sps sps = Sps.parse(data, 3, SPS_BASELINE_360P.length);
+
+        assertEquals(360, sps.getHeight());
+    }
+
+    @Test
+    public void notAnSps() {
+        assertNull(Sps.parse(PPS_HIGH, 0, PPS_HIGH.length));
+        assertNull(Sps.parse(SPS_HIGH_1080P, 0, 3));
+        // ends inside the resolution
+        assertNull(Sps.parse(SPS_HIGH_1080P, 0, 7));
+    }
+
+    @Test
+    public void fromAnnexBCsd() {
+        // csd-0 as MediaExtractor hands it out: SPS and PPS with 4 byte start codes
+        byte[] csd = concat(START_CODE, SPS_HIGH_1080P, START_CODE, PPS_HIGH);
+        Sps sps = Sps.fromCsd(csd);
+
+        assertEquals(1920, sps.getWidth());
+        assertEquals(1080, sps.getHeight());
+        assertEquals(25f, sps.getFrameRate(), 0);
+    }
+
+    @Test
+    public void fromCsdSkipsOtherNalUnits() {
+        byte[] aud = {0x09, (byte) 0xf0};
+        byte[] csd = concat(new byte[]{0, 0, 1}, aud, new byte[]{0, 0, 1}, SPS_BASELINE_360P);
+        Sps sps = Sps.fromCsd(csd);
+
+        assertEquals(640, sps.getWidth());
+        assertEquals(360, sps.getHeight());
+    }
+
+    @Test
+    public void fromBareNalCsd() {
+        Sps sps = Sps.fromCsd(SPS_BASELINE_360P);
+
+        assertEquals(640, sps.getWidth());
+    }
+
+    @Test
+    public void fromCsdWithoutSps() {
+        assertNull(Sps.fromCsd(concat(START_CODE, PPS_HIGH)));
+        assertNull(Sps.fromCsd(new byte[0]));
+        assertNull(Sps.fromCsd(null));
+    }
+}
@@ -0,0 +1,75 @@
+package com.github.boybeak.mediakit.mp4;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DeltaLongArrayTest {
+
+    @Test
+    public void growsPastCapacityAndBlocks() {
+        DeltaLongArray array = new DeltaLongArray(1);
+        long base = 5L << 32;
+        for (int i = 0; i < 1000; i++) {
+            array.add(base + i * 3L);
+        }
+        assertEquals(1000, array.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(base + i * 3L, array.get(i));
+        }
+    }
+
+    @Test
+    public void negativeDeltas() {
+        DeltaLongArray array = new DeltaLongArray(4);
+        long[] values = {100, 50, -20, 70, Integer.MIN_VALUE + 200L};
+        for (long value : values) {
+            array.add(value);
+        }
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], array.get(i));
+        }
+    }
+
+    @Test
+    public void widensWhenDeltaOverflowsInt() {
+        DeltaLongArray array = new DeltaLongArray(16);
+        array.add(0);
+        array.add(10);
+        array.add(Integer.MAX_VALUE + 10L);
+        array.add(1L << 40);
+        array.add(11);
+        assertEquals(5, array.size());
+        assertEquals(0, array.get(0));
+        assertEquals(10, array.get(1));
+        assertEquals(Integer.MAX_VALUE + 10L, array.get(2));
+        assertEquals(1L << 40, array.get(3));
+        assertEquals(11, array.get(4));
+        for (int i = 0; i < 100; i++) {
+            array.add(i);
+        }
+        assertEquals(105, array.size());
+        assertEquals(99, array.get(104));
+    }
+
+    @Test
+    public void trimKeepsValues() {
+        DeltaLongArray array = new DeltaLongArray(1024);
+        for (int i = 0; i < 130; i++) {
+            array.add(i * 1000L);
+        }
+        array.trim();
+        assertEquals(130, array.size());
+        assertEquals(129000, array.get(129));
+        assertEquals(64000, array.get(64));
+    }
+
+    @Test
+    public void trimEmpty() {
+        DeltaLongArray array = new DeltaLongArray(8);
+        array.trim();
+        assertEquals(0, array.size());
+        array.add(42);
+        assertEquals(42, array.get(0));
+    }
+}
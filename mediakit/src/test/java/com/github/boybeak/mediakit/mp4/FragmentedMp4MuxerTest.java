@@ -0,0 +1,405 @@
+package com.github.boybeak.mediakit.mp4;
+
+import com.github.boybeak.mediakit.MuxerBackend;
+import com.github.boybeak.mediakit.TrackFormat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FragmentedMp4MuxerTest {
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    private static final int AUDIO_RATE = 48000;
+    private static final int AUDIO_FRAME = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * A sample as it was written, with what the fragment must hold for it.
+     */
+    private static final class Written {
+        final byte[] stored;
+        final long ticks;
+        final boolean sync;
+
+        Written(byte[] stored, long ticks, boolean sync) {
+            this.stored = stored;
+            this.ticks = ticks;
+            this.sync = sync;
+        }
+    }
+
+    /**
+     * One traf of a parsed fragment.
+     */
+    private static final class Run {
+        int trackId;
+        long baseDecodeTime;
+        int dataOffset;
+        int[] durations;
+        int[] sizes;
+        int[] flags;
+        int[] compositionOffsets;
+
+        long duration() {
+            long total = 0;
+            for (int duration : durations) {
+                total += duration;
+            }
+            return total;
+        }
+    }
+
+    private static final class Fragment {
+        int offset;
+        int size;
+        int sequenceNumber;
+        final List<Run> runs = new ArrayList<>();
+
+        Run run(int trackId) {
+            for (Run run : runs) {
+                if (run.trackId == trackId) {
+                    return run;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class Segments implements FragmentedMp4Muxer.FragmentListener {
+        final List<long[]> written = new ArrayList<>();
+
+        @Override
+        public void onFragmentWritten(int sequenceNumber, long offset, long size) {
+            written.add(new long[]{sequenceNumber, offset, size});
+        }
+    }
+
+    private static TrackFormat videoFormat() {
+        TrackFormat format = TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 640, 360);
+        format.setCsd(0, annexB(Mp4Fixture.SPS));
+        format.setCsd(1, annexB(Mp4Fixture.PPS));
+        return format;
+    }
+
+    private static TrackFormat audioFormat() {
+        TrackFormat format = TrackFormat.createAudioFormat(TrackFormat.MIMETYPE_AUDIO_AAC, AUDIO_RATE, 2);
+        format.setCsd(0, new byte[]{0x11, (byte) 0x90});
+        return format;
+    }
+
+    private static byte[] annexB(byte[] nal) {
+        return ByteBuffer.allocate(4 + nal.length).putInt(1).put(nal).array();
+    }
+
+    private static long frameUs(int frame) {
+        return frame * 1000000L / 30;
+    }
+
+    private static long audioUs(int frame) {
+        return frame * (long) AUDIO_FRAME * 1000000L / AUDIO_RATE;
+    }
+
+    /**
+     * Writes one video frame as Annex-B and records it length prefixed, the way the fragment stores it.
+     */
+    private static void writeVideo(FragmentedMp4Muxer muxer, int track, List<Written> written, int frame,
+                                   int size, boolean key) throws IOException {
+        byte[] nal = Mp4Fixture.nal(key ? 0x65 : 0x41, size, frame);
+        byte[] sample = annexB(nal);
+        muxer.writeSampleData(track, ByteBuffer.wrap(sample), 0, sample.length, frameUs(frame),
+                key ? MuxerBackend.FLAG_KEY_FRAME : 0);
+        written.add(new Written(Mp4Fixture.sample(4, nal), frame * 3000L, key));
+    }
+
+    private static void writeAudio(FragmentedMp4Muxer muxer, int track, List<Written> written, int frame) throws IOException {
+        byte[] sample = new byte[20 + frame % 7];
+        Arrays.fill(sample, (byte) frame);
+        muxer.writeSampleData(track, ByteBuffer.wrap(sample), 0, sample.length, audioUs(frame), 0);
+        written.add(new Written(sample, (long) frame * AUDIO_FRAME, true));
+    }
+
+    private static int findChild(ByteBuffer file, int start, int end, int type) {
+        int position = start;
+        while (position + 8 <= end) {
+            int size = file.getInt(position);
+            if (file.getInt(position + 4) == type) {
+                return position;
+            }
+            position += size;
+        }
+        return -1;
+    }
+
+    private static int child(ByteBuffer file, int parent, int type) {
+        int position = findChild(file, parent + 8, parent + file.getInt(parent), type);
+        assertTrue(Boxes.name(type) + " missing in " + Boxes.name(file.getInt(parent + 4)), position >= 0);
+        return position;
+    }
+
+    private static Run parseTraf(ByteBuffer file, int traf) {
+        Run run = new Run();
+        run.trackId = file.getInt(child(file, traf, Boxes.TFHD) + 12);
+        int tfdt = child(file, traf, Boxes.TFDT);
+        assertEquals(1, file.get(tfdt + 8));
+        run.baseDecodeTime = file.getLong(tfdt + 12);
+        int trun = child(file, traf, Boxes.TRUN);
+        int count = file.getInt(trun + 12);
+        run.dataOffset = file.getInt(trun + 16);
+        run.durations = new int[count];
+        run.sizes = new int[count];
+        run.flags = new int[count];
+        run.compositionOffsets = new int[count];
+        for (int i = 0; i < count; i++) {
+            int entry = trun + 20 + i * 16;
+            run.durations[i] = file.getInt(entry);
+            run.sizes[i] = file.getInt(entry + 4);
+            run.flags[i] = file.getInt(entry + 8);
+            run.compositionOffsets[i] = file.getInt(entry + 12);
+        }
+        return run;
+    }
+
+    /**
+     * Checks the init segment and returns the moof + mdat pairs that follow it.
+     */
+    private static List<Fragment> parse(ByteBuffer file, int trackCount) {
+        assertEquals(Boxes.FTYP, file.getInt(4));
+        int moov = file.getInt(0);
+        assertEquals(Boxes.MOOV, file.getInt(moov + 4));
+        int mvex = child(file, moov, Boxes.MVEX);
+        int trex = mvex + 8;
+        for (int id = 1; id <= trackCount; id++) {
+            assertEquals(Boxes.TREX, file.getInt(trex + 4));
+            assertEquals(id, file.getInt(trex + 12));
+            // default sample description index, then no defaults: trun carries everything
+            assertEquals(1, file.getInt(trex + 16));
+            assertEquals(0, file.getInt(trex + 20));
+            assertEquals(0, file.getInt(trex + 24));
+            assertEquals(0, file.getInt(trex + 28));
+            trex += file.getInt(trex);
+        }
+        assertEquals(mvex + file.getInt(mvex), trex);
+
+        List<Fragment> fragments = new ArrayList<>();
+        int position = moov + file.getInt(moov);
+        while (position < file.limit()) {
+            Fragment fragment = new Fragment();
+            fragment.offset = position;
+            int moof = position;
+            assertEquals(Boxes.MOOF, file.getInt(moof + 4));
+            fragment.sequenceNumber = file.getInt(child(file, moof, Boxes.MFHD) + 12);
+            int traf = moof + 8;
+            int moofEnd = moof + file.getInt(moof);
+            while ((traf = findChild(file, traf, moofEnd, Boxes.TRAF)) >= 0) {
+                Run run = parseTraf(file, traf);
+                run.dataOffset += moof;
+                fragment.runs.add(run);
+                traf += file.getInt(traf);
+            }
+            int mdat = moofEnd;
+            assertEquals(Boxes.MDAT, file.getInt(mdat + 4));
+            int dataStart = mdat + 8;
+            for (Run run : fragment.runs) {
+                assertEquals(dataStart, run.dataOffset);
+                for (int size : run.sizes) {
+                    dataStart += size;
+                }
+            }
+            position = mdat + file.getInt(mdat);
+            assertEquals(position, dataStart);
+            fragment.size = position - fragment.offset;
+            fragments.add(fragment);
+        }
+        return fragments;
+    }
+
+    /**
+     * Walks the runs of one track through all fragments: tfdt continues where the previous run
+     * ended, and sizes, flags, presentation times and bytes match what was written.
+     */
+    private static void assertTrack(ByteBuffer file, List<Fragment> fragments, int trackId, List<Written> written) {
+        int next = 0;
+        long expectedBase = 0;
+        for (Fragment fragment : fragments) {
+            Run run = fragment.run(trackId);
+            if (run == null) {
+                continue;
+            }
+            assertEquals("tfdt of track " + trackId + " in fragment " + fragment.sequenceNumber,
+                    expectedBase, run.baseDecodeTime);
+            long decodeTime = run.baseDecodeTime;
+            int data = run.dataOffset;
+            for (int i = 0; i < run.sizes.length; i++) {
+                Written sample = written.get(next++);
+                assertEquals(sample.stored.length, run.sizes[i]);
+                assertEquals(sample.sync ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC, run.flags[i]);
+                assertEquals(sample.ticks, decodeTime + run.compositionOffsets[i]);
+                byte[] stored = new byte[run.sizes[i]];
+                ByteBuffer view = file.duplicate();
+                view.position(data);
+                view.get(stored);
+                assertArrayEquals(sample.stored, stored);
+                decodeTime += run.durations[i];
+                data += run.sizes[i];
+            }
+            expectedBase = run.baseDecodeTime + run.duration();
+        }
+        assertEquals(written.size(), next);
+    }
+
+    private static void assertSegments(Segments segments, ByteBuffer file, List<Fragment> fragments) {
+        assertEquals(fragments.size() + 1, segments.written.size());
+        assertArrayEquals(new long[]{0, 0, fragments.get(0).offset}, segments.written.get(0));
+        for (int i = 0; i < fragments.size(); i++) {
+            Fragment fragment = fragments.get(i);
+            assertEquals(i + 1, fragment.sequenceNumber);
+            assertArrayEquals(new long[]{i + 1, fragment.offset, fragment.size}, segments.written.get(i + 1));
+        }
+        Fragment last = fragments.get(fragments.size() - 1);
+        assertEquals(file.limit(), last.offset + last.size);
+    }
+
+    private static ByteBuffer read(File file) throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void cutsOnDurationAtVideoKeyFrames() throws IOException {
+        File file = folder.newFile();
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(file);
+        Segments segments = new Segments();
+        muxer.setFragmentListener(segments);
+        muxer.setFragmentDurationUs(1000000);
+        int video = muxer.addTrack(videoFormat());
+        int audio = muxer.addTrack(audioFormat());
+        muxer.start();
+        List<Written> videoSamples = new ArrayList<>();
+        List<Written> audioSamples = new ArrayList<>();
+        int audioFrame = 0;
+        // 3 seconds, a key frame every 15 frames, audio interleaved by time
+        for (int frame = 0; frame < 90; frame++) {
+            while (audioUs(audioFrame) <= frameUs(frame)) {
+                writeAudio(muxer, audio, audioSamples, audioFrame++);
+            }
+            writeVideo(muxer, video, videoSamples, frame, 40 + frame % 11, frame % 15 == 0);
+        }
+        muxer.stop();
+
+        ByteBuffer bytes = read(file);
+        List<Fragment> fragments = parse(bytes, 2);
+        assertEquals(3, fragments.size());
+        for (Fragment fragment : fragments) {
+            Run run = fragment.run(1);
+            assertEquals(30, run.sizes.length);
+            assertEquals(SAMPLE_FLAGS_SYNC, run.flags[0]);
+        }
+        assertTrack(bytes, fragments, 1, videoSamples);
+        assertTrack(bytes, fragments, 2, audioSamples);
+        assertSegments(segments, bytes, fragments);
+    }
+
+    @Test
+    public void cutsEveryNKeyFrames() throws IOException {
+        File file = folder.newFile();
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(file);
+        Segments segments = new Segments();
+        muxer.setFragmentListener(segments);
+        muxer.setFragmentDurationUs(0);
+        muxer.setKeyFramesPerFragment(2);
+        int video = muxer.addTrack(videoFormat());
+        muxer.start();
+        List<Written> videoSamples = new ArrayList<>();
+        // irregular GOPs: key frames at 0, 10, 14, 30, 41
+        List<Integer> keys = Arrays.asList(0, 10, 14, 30, 41);
+        for (int frame = 0; frame < 50; frame++) {
+            writeVideo(muxer, video, videoSamples, frame, 30 + frame % 5, keys.contains(frame));
+        }
+        muxer.release();
+
+        ByteBuffer bytes = read(file);
+        List<Fragment> fragments = parse(bytes, 1);
+        assertEquals(3, fragments.size());
+        assertEquals(14, fragments.get(0).run(1).sizes.length);
+        assertEquals(27, fragments.get(1).run(1).sizes.length);
+        assertEquals(9, fragments.get(2).run(1).sizes.length);
+        for (Fragment fragment : fragments) {
+            assertEquals(SAMPLE_FLAGS_SYNC, fragment.run(1).flags[0]);
+        }
+        assertTrack(bytes, fragments, 1, videoSamples);
+        assertSegments(segments, bytes, fragments);
+    }
+
+    @Test
+    public void byteCapWaitsForTheNextVideoKeyFrame() throws IOException {
+        File file = folder.newFile();
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(file);
+        muxer.mMaxFragmentBytes = 2000;
+        muxer.setFragmentDurationUs(0);
+        int video = muxer.addTrack(videoFormat());
+        int audio = muxer.addTrack(audioFormat());
+        muxer.start();
+        List<Written> videoSamples = new ArrayList<>();
+        List<Written> audioSamples = new ArrayList<>();
+        int audioFrame = 0;
+        // a long GOP that crosses the cap after a few frames, audio keeps coming in between
+        for (int frame = 0; frame < 60; frame++) {
+            while (audioUs(audioFrame) <= frameUs(frame)) {
+                writeAudio(muxer, audio, audioSamples, audioFrame++);
+            }
+            writeVideo(muxer, video, videoSamples, frame, 200, frame % 30 == 0);
+        }
+        muxer.stop();
+
+        ByteBuffer bytes = read(file);
+        List<Fragment> fragments = parse(bytes, 2);
+        assertEquals(2, fragments.size());
+        for (Fragment fragment : fragments) {
+            Run run = fragment.run(1);
+            assertEquals(30, run.sizes.length);
+            assertEquals(SAMPLE_FLAGS_SYNC, run.flags[0]);
+        }
+        assertTrack(bytes, fragments, 1, videoSamples);
+        assertTrack(bytes, fragments, 2, audioSamples);
+    }
+
+    @Test
+    public void byteCapCutsAudioOnlyOutput() throws IOException {
+        File file = folder.newFile();
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(file);
+        muxer.mMaxFragmentBytes = 500;
+        muxer.setFragmentDurationUs(0);
+        int audio = muxer.addTrack(audioFormat());
+        muxer.start();
+        List<Written> audioSamples = new ArrayList<>();
+        for (int frame = 0; frame < 100; frame++) {
+            writeAudio(muxer, audio, audioSamples, frame);
+        }
+        muxer.stop();
+
+        ByteBuffer bytes = read(file);
+        List<Fragment> fragments = parse(bytes, 1);
+        assertTrue(fragments.size() > 1);
+        for (int i = 0; i < fragments.size() - 1; i++) {
+            int size = 0;
+            for (int sampleSize : fragments.get(i).run(1).sizes) {
+                size += sampleSize;
+            }
+            assertTrue(size >= 500 && size < 500 + 27);
+        }
+        assertTrack(bytes, fragments, 1, audioSamples);
+    }
+}
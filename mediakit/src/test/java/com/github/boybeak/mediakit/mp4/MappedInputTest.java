@@ -0,0 +1,121 @@
+package com.github.boybeak.mediakit.mp4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.*;
+
+public class MappedInputTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte valueAt(long position) {
+        return (byte) (position * 31 + (position >>> 8));
+    }
+
+    private FileChannel pattern(int length) throws IOException {
+        File file = folder.newFile();
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = valueAt(i);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.write(bytes);
+        return raf.getChannel();
+    }
+
+    private static void assertPattern(ByteBuffer slice, long position, int size) {
+        assertEquals(0, slice.position());
+        assertEquals(size, slice.remaining());
+        for (int i = 0; i < size; i++) {
+            assertEquals("byte " + (position + i), valueAt(position + i), slice.get(i));
+        }
+    }
+
+    @Test
+    public void readsInsideRegion() throws IOException {
+        try (FileChannel channel = pattern(10000)) {
+            // 1 KB regions overlapping by 256 bytes
+            MappedInput input = new MappedInput(channel, 10, 256);
+            assertEquals(10000, input.length());
+            assertPattern(input.slice(0, 100), 0, 100);
+            assertPattern(input.slice(3000, 1000), 3000, 1000);
+        }
+    }
+
+    @Test
+    public void readsAcrossBoundaryInsideOverlap() throws IOException {
+        try (FileChannel channel = pattern(10000)) {
+            MappedInput input = new MappedInput(channel, 10, 256);
+            // starts in region 0 and ends 200 bytes into region 1, still covered by region 0's overlap
+            assertPattern(input.slice(1000, 224), 1000, 224);
+            assertPattern(input.slice(1024 - 8, 256 + 8), 1024 - 8, 256 + 8);
+        }
+    }
+
+    @Test
+    public void readsAcrossBoundaryPastOverlap() throws IOException {
+        try (FileChannel channel = pattern(10000)) {
+            MappedInput input = new MappedInput(channel, 10, 256);
+            assertPattern(input.slice(900, 2000), 900, 2000);
+            // the straddle buffer is reused, a smaller read after a larger one must still be exact
+            assertPattern(input.slice(1020, 300), 1020, 300);
+            assertPattern(input.slice(9000, 1000), 9000, 1000);
+        }
+    }
+
+    @Test
+    public void lastRegionIsShort() throws IOException {
+        try (FileChannel channel = pattern(2100)) {
+            MappedInput input = new MappedInput(channel, 10, 256);
+            assertPattern(input.slice(2048, 52), 2048, 52);
+            assertPattern(input.slice(2099, 1), 2099, 1);
+            assertPattern(input.slice(2100, 0), 2100, 0);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsReadPastEnd() throws IOException {
+        try (FileChannel channel = pattern(100)) {
+            new MappedInput(channel, 10, 256).slice(90, 11);
+        }
+    }
+
+    @Test
+    public void readsAcrossGigabyteBoundary() throws IOException {
+        // sparse file, only the pages around the boundary are ever written or touched
+        File file = folder.newFile();
+        long boundary = 1L << 30;
+        long length = boundary + 80L * 1024 * 1024;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+            writePattern(raf, boundary - 4096, 8192);
+            writePattern(raf, boundary + 64L * 1024 * 1024 - 4096, 8192);
+            FileChannel channel = raf.getChannel();
+            MappedInput input = new MappedInput(channel);
+            // crosses 1 GB, served from the overlap of the first region
+            assertPattern(input.slice(boundary - 100, 200), boundary - 100, 200);
+            // crosses the end of the first region's overlap, served from the straddle buffer
+            assertPattern(input.slice(boundary + 64L * 1024 * 1024 - 100, 200), boundary + 64L * 1024 * 1024 - 100, 200);
+            // inside the second region
+            assertPattern(input.slice(boundary + 10, 100), boundary + 10, 100);
+        }
+    }
+
+    private static void writePattern(RandomAccessFile raf, long position, int size) throws IOException {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = valueAt(position + i);
+        }
+        raf.seek(position);
+        raf.write(bytes);
+    }
+}
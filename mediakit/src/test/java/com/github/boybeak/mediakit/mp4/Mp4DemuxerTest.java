@@ -0,0 +1,367 @@
+package com.github.boybeak.mediakit.mp4;
+
+import com.github.boybeak.mediakit.SampleSource;
+import com.github.boybeak.mediakit.TrackFormat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class Mp4DemuxerTest {
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Mp4Fixture fixture(int count, int nalLengthSize) {
+        Mp4Fixture fixture = new Mp4Fixture();
+        fixture.nalLengthSize = nalLengthSize;
+        fixture.samples = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int type = i % 3 == 0 ? 0x65 : 0x41;
+            fixture.samples[i] = Mp4Fixture.sample(nalLengthSize,
+                    Mp4Fixture.nal(0x06, 5, i), Mp4Fixture.nal(type, 40 + i * 13, i));
+        }
+        fixture.syncSamples = new int[]{0, 3};
+        return fixture;
+    }
+
+    private Mp4Demuxer open(Mp4Fixture fixture) throws IOException {
+        return new Mp4Demuxer(fixture.write(folder.newFile()));
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] annexB(byte[]... nals) {
+        int size = 0;
+        for (byte[] nal : nals) {
+            size += START_CODE.length + nal.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] nal : nals) {
+            buffer.put(START_CODE).put(nal);
+        }
+        return buffer.array();
+    }
+
+    @Test
+    public void parsesFormat() throws IOException {
+        Mp4Demuxer demuxer = open(fixture(6, 4));
+        try {
+            assertEquals(1, demuxer.getTrackCount());
+            TrackFormat format = demuxer.getTrackFormat(0);
+            assertEquals(TrackFormat.MIMETYPE_VIDEO_AVC, format.getMime());
+            assertEquals(640, format.getWidth());
+            assertEquals(360, format.getHeight());
+            assertEquals(Mp4Fixture.TIMESCALE, format.getTimescale());
+            assertArrayEquals(annexB(Mp4Fixture.SPS), format.getCsd(0));
+            assertArrayEquals(annexB(Mp4Fixture.PPS), format.getCsd(1));
+            assertEquals(4, demuxer.getNalLengthSize(0));
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void stcoOffsets() throws IOException {
+        Mp4Fixture fixture = fixture(7, 4);
+        fixture.samplesPerChunk = 3;
+        Mp4Demuxer demuxer = open(fixture);
+        try {
+            assertOffsets(fixture, demuxer.getSampleTable(0));
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void co64Offsets() throws IOException {
+        Mp4Fixture fixture = fixture(7, 4);
+        fixture.samplesPerChunk = 3;
+        fixture.co64 = true;
+        Mp4Demuxer demuxer = open(fixture);
+        try {
+            assertOffsets(fixture, demuxer.getSampleTable(0));
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    private static void assertOffsets(Mp4Fixture fixture, SampleTable table) {
+        assertEquals(fixture.samples.length, table.getSampleCount());
+        assertEquals(3, table.getChunkCount());
+        assertEquals(1, table.getChunkSampleCount(2));
+        for (int chunk = 0; chunk < table.getChunkCount(); chunk++) {
+            assertEquals(fixture.chunkOffsets[chunk], table.getChunkOffset(chunk));
+            assertEquals(chunk * 3, table.getChunkFirstSample(chunk));
+        }
+        long offset = fixture.chunkOffsets[0];
+        for (int i = 0; i < fixture.samples.length; i++) {
+            if (i % 3 == 0) {
+                offset = fixture.chunkOffsets[i / 3];
+            }
+            assertEquals(offset, table.getOffset(i));
+            assertEquals(fixture.samples[i].length, table.getSize(i));
+            offset += fixture.samples[i].length;
+        }
+    }
+
+    @Test
+    public void readsSamplesAsAnnexB() throws IOException {
+        Mp4Fixture fixture = fixture(6, 4);
+        Mp4Demuxer demuxer = open(fixture);
+        try {
+            demuxer.selectTrack(0);
+            int i = 0;
+            do {
+                byte[] expected = annexB(Mp4Fixture.nal(0x06, 5, i),
+                        Mp4Fixture.nal(i % 3 == 0 ? 0x65 : 0x41, 40 + i * 13, i));
+                assertEquals(expected.length, demuxer.getSampleSize());
+                assertArrayEquals(expected, toArray(demuxer.getSampleData()));
+                assertEquals(i == 0 || i == 3 ? SampleSource.SAMPLE_FLAG_SYNC : 0, demuxer.getSampleFlags());
+                assertEquals(i * 1000000L * Mp4Fixture.FRAME_TICKS / Mp4Fixture.TIMESCALE, demuxer.getSampleTime());
+                i++;
+            } while (demuxer.advance());
+            assertEquals(6, i);
+            assertEquals(-1, demuxer.getSampleTrackIndex());
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void annexBOffIsZeroCopy() throws IOException {
+        Mp4Fixture fixture = fixture(3, 4);
+        Mp4Demuxer demuxer = open(fixture);
+        try {
+            demuxer.setAnnexB(false);
+            demuxer.selectTrack(0);
+            assertArrayEquals(fixture.samples[0], toArray(demuxer.getSampleData()));
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void shortNalLengthSize() throws IOException {
+        Mp4Fixture fixture = fixture(3, 2);
+        Mp4Demuxer demuxer = open(fixture);
+        try {
+            demuxer.selectTrack(0);
+            byte[] expected = annexB(Mp4Fixture.nal(0x06, 5, 0), Mp4Fixture.nal(0x65, 40, 0));
+            assertEquals(expected.length, demuxer.getSampleSize());
+            ByteBuffer buffer = ByteBuffer.allocate(expected.length + 8);
+            assertEquals(expected.length, demuxer.readSampleData(buffer, 8));
+            assertEquals(8, buffer.position());
+            byte[] read = new byte[expected.length];
+            buffer.get(read);
+            assertArrayEquals(expected, read);
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void truncatedNalIsClamped() throws IOException {
+        Mp4Fixture fixture = fixture(2, 2);
+        // the second NAL claims 200 bytes but only 40 follow
+        byte[] broken = Mp4Fixture.sample(2, Mp4Fixture.nal(0x06, 5, 0), Mp4Fixture.nal(0x65, 40, 0));
+        broken[7] = 0;
+        broken[8] = (byte) 200;
+        fixture.samples[0] = broken;
+        Mp4Demuxer demuxer = open(fixture);
+        try {
+            demuxer.selectTrack(0);
+            int expected = 4 + 5 + 4 + 40;
+            assertEquals(expected, demuxer.getSampleSize());
+            assertEquals(expected, demuxer.getSampleData().remaining());
+            assertEquals(expected, demuxer.readSampleData(ByteBuffer.allocate(expected), 0));
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void compositionOffsets() throws IOException {
+        // decode order I P B B with presentation order 0 3 1 2
+        Mp4Fixture fixture = fixture(4, 4);
+        fixture.syncSamples = new int[]{0};
+        int f = Mp4Fixture.FRAME_TICKS;
+        fixture.compositionOffsets = new int[]{f, 3 * f, 0, 0};
+        Mp4Demuxer demuxer = open(fixture);
+        try {
+            SampleTable table = demuxer.getSampleTable(0);
+            assertTrue(table.hasCompositionOffsets());
+            assertEquals(4 * f, table.getPresentationTime(1));
+            assertEquals(2 * f, table.getDecodeTime(2));
+            assertEquals(2 * f, table.getPresentationTime(2));
+            // without an edit list the first frame starts at its composition offset
+            demuxer.selectTrack(0);
+            long[] expected = {1, 4, 2, 3};
+            int i = 0;
+            do {
+                assertEquals(expected[i] * 1000000L / 30, demuxer.getSampleTime());
+                i++;
+            } while (demuxer.advance());
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void zeroCompositionOffsetsAreDropped() throws IOException {
+        Mp4Fixture fixture = fixture(3, 4);
+        fixture.compositionOffsets = new int[3];
+        Mp4Demuxer demuxer = open(fixture);
+        try {
+            assertFalse(demuxer.getSampleTable(0).hasCompositionOffsets());
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void editListMediaTime() throws IOException {
+        Mp4Fixture fixture = fixture(4, 4);
+        fixture.syncSamples = new int[]{0};
+        int f = Mp4Fixture.FRAME_TICKS;
+        fixture.compositionOffsets = new int[]{f, 3 * f, 0, 0};
+        fixture.emptyEditMs = 0;
+        fixture.editMediaTime = f;
+        Mp4Demuxer demuxer = open(fixture);
+        try {
+            assertEquals(-1000000L / 30, demuxer.getPresentationOffsetUs(0));
+            demuxer.selectTrack(0);
+            long[] expected = {0, 3, 1, 2};
+            int i = 0;
+            do {
+                assertEquals(expected[i] * 1000000L / 30, demuxer.getSampleTime());
+                assertEquals(demuxer.getSampleTime(), demuxer.getPresentationTimeUs(0, i));
+                i++;
+            } while (demuxer.advance());
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void editListEmptyEdit() throws IOException {
+        Mp4Fixture fixture = fixture(3, 4);
+        fixture.syncSamples = new int[]{0};
+        fixture.emptyEditMs = 500;
+        Mp4Demuxer demuxer = open(fixture);
+        try {
+            assertEquals(500000, demuxer.getPresentationOffsetUs(0));
+            demuxer.selectTrack(0);
+            assertEquals(500000, demuxer.getSampleTime());
+            demuxer.advance();
+            assertEquals(500000 + 1000000L / 30, demuxer.getSampleTime());
+            // seeking uses the same timeline
+            demuxer.seekTo(500000 + 1000000L / 30, SampleSource.SEEK_TO_PREVIOUS_SYNC);
+            assertEquals(0, demuxer.getSampleIndex());
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void seekModes() throws IOException {
+        Mp4Demuxer demuxer = open(fixture(6, 4));
+        try {
+            demuxer.selectTrack(0);
+            long frameUs = 1000000L / 30;
+            demuxer.seekTo(2 * frameUs, SampleSource.SEEK_TO_PREVIOUS_SYNC);
+            assertEquals(0, demuxer.getSampleIndex());
+            demuxer.seekTo(2 * frameUs, SampleSource.SEEK_TO_NEXT_SYNC);
+            assertEquals(3, demuxer.getSampleIndex());
+            demuxer.seekTo(2 * frameUs, SampleSource.SEEK_TO_CLOSEST_SYNC);
+            assertEquals(3, demuxer.getSampleIndex());
+            demuxer.seekTo(demuxer.getPresentationTimeUs(0, 3), SampleSource.SEEK_TO_NEXT_SYNC);
+            assertEquals(3, demuxer.getSampleIndex());
+            demuxer.seekTo(10 * frameUs, SampleSource.SEEK_TO_NEXT_SYNC);
+            assertEquals(-1, demuxer.getSampleIndex());
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void readsMuxerOutput() throws IOException {
+        File file = folder.newFile();
+        Mp4Muxer muxer = new Mp4Muxer(file);
+        TrackFormat video = TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 640, 360);
+        video.setCsd(0, annexB(Mp4Fixture.SPS));
+        video.setCsd(1, annexB(Mp4Fixture.PPS));
+        TrackFormat audio = TrackFormat.createAudioFormat(TrackFormat.MIMETYPE_AUDIO_AAC, 44100, 2);
+        audio.setCsd(0, new byte[]{0x12, 0x10});
+        int videoTrack = muxer.addTrack(video);
+        int audioTrack = muxer.addTrack(audio);
+        muxer.start();
+        long audioFrameUs = 1024 * 1000000L / 44100;
+        long audioUs = 0;
+        int audioCount = 0;
+        for (int i = 0; i < 10; i++) {
+            long videoUs = i * 1000000L / 30;
+            ByteBuffer frame = ByteBuffer.wrap(annexB(Mp4Fixture.nal(i == 0 ? 0x65 : 0x41, 50 + i, i)));
+            muxer.writeSampleData(videoTrack, frame, 0, frame.remaining(), videoUs, i == 0 ? Mp4Muxer.FLAG_KEY_FRAME : 0);
+            while (audioUs <= videoUs) {
+                ByteBuffer samples = ByteBuffer.allocate(100 + audioCount);
+                muxer.writeSampleData(audioTrack, samples, 0, samples.remaining(), audioUs, 0);
+                audioUs += audioFrameUs;
+                audioCount++;
+            }
+        }
+        muxer.stop();
+        muxer.release();
+
+        Mp4Demuxer demuxer = new Mp4Demuxer(file);
+        try {
+            assertEquals(2, demuxer.getTrackCount());
+            assertEquals(44100, demuxer.getTrackFormat(1).getSampleRate());
+            assertArrayEquals(new byte[]{0x12, 0x10}, demuxer.getTrackFormat(1).getCsd(0));
+            demuxer.selectTrack(0);
+            demuxer.selectTrack(1);
+            int videoCount = 0;
+            int audioRead = 0;
+            do {
+                if (demuxer.getSampleTrackIndex() == 0) {
+                    byte[] expected = annexB(Mp4Fixture.nal(videoCount == 0 ? 0x65 : 0x41, 50 + videoCount, videoCount));
+                    assertArrayEquals(expected, toArray(demuxer.getSampleData()));
+                    assertEquals(videoCount * 1000000L / 30, demuxer.getSampleTime());
+                    videoCount++;
+                } else {
+                    assertEquals(100 + audioRead, demuxer.getSampleSize());
+                    audioRead++;
+                }
+            } while (demuxer.advance());
+            assertEquals(10, videoCount);
+            assertEquals(audioCount, audioRead);
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsFileWithoutMoov() throws IOException {
+        File file = folder.newFile();
+        BoxWriter w = new BoxWriter(64);
+        MoovWriter.writeFtyp(w, false);
+        ByteBuffer bytes = w.toBuffer();
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.getChannel().write(bytes);
+        }
+        new Mp4Demuxer(file);
+    }
+}
@@ -0,0 +1,157 @@
+package com.github.boybeak.mediakit.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a single AVC track mp4 box by box, so tests control exactly which tables the demuxer sees:
+ * stco or co64, ctts, stss, an edit list and the NAL length size.
+ */
+final class Mp4Fixture {
+
+    static final int TIMESCALE = 90000;
+    static final int FRAME_TICKS = 3000;
+    static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1e, (byte) 0xda, 0x02, (byte) 0x80, (byte) 0xbf, (byte) 0xe5};
+    static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    /**
+     * Sample payloads as written to the mdat, i.e. already length prefixed.
+     */
+    byte[][] samples;
+    int samplesPerChunk = 2;
+    boolean co64;
+    int nalLengthSize = 4;
+    /**
+     * Composition offsets in ticks, null for no ctts.
+     */
+    int[] compositionOffsets;
+    /**
+     * 0 based sync sample indices, null for no stss.
+     */
+    int[] syncSamples;
+    /**
+     * Empty edit in movie ticks (ms) and media time of the first edit in track ticks, -1 for no edts.
+     */
+    long emptyEditMs = -1;
+    long editMediaTime;
+
+    long[] chunkOffsets;
+
+    /**
+     * Builds a length prefixed sample holding one NAL unit per entry of {@code nals}.
+     */
+    static byte[] sample(int nalLengthSize, byte[]... nals) {
+        int size = 0;
+        for (byte[] nal : nals) {
+            size += nalLengthSize + nal.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] nal : nals) {
+            for (int i = nalLengthSize - 1; i >= 0; i--) {
+                buffer.put((byte) (nal.length >>> (i * 8)));
+            }
+            buffer.put(nal);
+        }
+        return buffer.array();
+    }
+
+    static byte[] nal(int type, int length, int seed) {
+        byte[] nal = new byte[length];
+        nal[0] = (byte) type;
+        for (int i = 1; i < length; i++) {
+            nal[i] = (byte) (seed + i * 7 | 1);
+        }
+        return nal;
+    }
+
+    File write(File file) throws IOException {
+        int chunkCount = (samples.length + samplesPerChunk - 1) / samplesPerChunk;
+        chunkOffsets = new long[chunkCount];
+        BoxWriter w = new BoxWriter(4096);
+        MoovWriter.writeFtyp(w, false);
+        w.start(Boxes.MDAT);
+        for (int i = 0; i < samples.length; i++) {
+            if (i % samplesPerChunk == 0) {
+                chunkOffsets[i / samplesPerChunk] = w.position();
+            }
+            w.putBytes(samples[i]);
+        }
+        w.end();
+        writeMoov(w);
+        ByteBuffer bytes = w.toBuffer();
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(0);
+            out.getChannel().write(bytes);
+        }
+        return file;
+    }
+
+    private void writeMoov(BoxWriter w) {
+        long duration = (long) samples.length * FRAME_TICKS;
+        long durationMs = duration * 1000 / TIMESCALE;
+        w.start(Boxes.MOOV);
+        MoovWriter.writeMvhd(w, 0, durationMs, 2);
+        w.start(Boxes.TRAK);
+        w.startFull(Boxes.TKHD, 0, 7).putInt(0).putInt(0).putInt(1).putInt(0).putInt((int) durationMs)
+                .putZeros(8).putShort(0).putShort(0).putShort(0).putShort(0)
+                .putInt(0x10000).putInt(0).putInt(0).putInt(0).putInt(0x10000).putInt(0).putInt(0).putInt(0)
+                .putInt(0x40000000).putInt(640 << 16).putInt(360 << 16).end();
+        if (emptyEditMs >= 0) {
+            w.start(Boxes.EDTS).startFull(Boxes.ELST, 0, 0).putInt(emptyEditMs > 0 ? 2 : 1);
+            if (emptyEditMs > 0) {
+                w.putInt((int) emptyEditMs).putInt(-1).putInt(0x10000);
+            }
+            w.putInt((int) durationMs).putInt((int) editMediaTime).putInt(0x10000).end().end();
+        }
+        w.start(Boxes.MDIA);
+        w.startFull(Boxes.MDHD, 0, 0).putInt(0).putInt(0).putInt(TIMESCALE).putInt((int) duration)
+                .putShort(0x55c4).putShort(0).end();
+        w.startFull(Boxes.HDLR, 0, 0).putInt(0).putInt(Boxes.VIDE).putZeros(12).putByte(0).end();
+        w.start(Boxes.MINF).start(Boxes.STBL);
+        writeStsd(w);
+        w.startFull(Boxes.STTS, 0, 0).putInt(1).putInt(samples.length).putInt(FRAME_TICKS).end();
+        if (compositionOffsets != null) {
+            w.startFull(Boxes.CTTS, 0, 0).putInt(compositionOffsets.length);
+            for (int offset : compositionOffsets) {
+                w.putInt(1).putInt(offset);
+            }
+            w.end();
+        }
+        if (syncSamples != null) {
+            w.startFull(Boxes.STSS, 0, 0).putInt(syncSamples.length);
+            for (int sample : syncSamples) {
+                w.putInt(sample + 1);
+            }
+            w.end();
+        }
+        w.startFull(Boxes.STSC, 0, 0).putInt(1).putInt(1).putInt(samplesPerChunk).putInt(1).end();
+        w.startFull(Boxes.STSZ, 0, 0).putInt(0).putInt(samples.length);
+        for (byte[] sample : samples) {
+            w.putInt(sample.length);
+        }
+        w.end();
+        w.startFull(co64 ? Boxes.CO64 : Boxes.STCO, 0, 0).putInt(chunkOffsets.length);
+        for (long offset : chunkOffsets) {
+            if (co64) {
+                w.putLong(offset);
+            } else {
+                w.putInt((int) offset);
+            }
+        }
+        w.end();
+        w.end().end().end().end().end();
+    }
+
+    private void writeStsd(BoxWriter w) {
+        w.startFull(Boxes.STSD, 0, 0).putInt(1);
+        w.start(Boxes.AVC1).putZeros(6).putShort(1).putZeros(16).putShort(640).putShort(360)
+                .putInt(0x00480000).putInt(0x00480000).putInt(0).putShort(1).putZeros(32)
+                .putShort(0x0018).putShort(-1);
+        w.start(Boxes.AVCC).putByte(1).putByte(SPS[1]).putByte(SPS[2]).putByte(SPS[3])
+                .putByte(0xfc | (nalLengthSize - 1)).putByte(0xe1)
+                .putShort(SPS.length).putBytes(SPS).putByte(1).putShort(PPS.length).putBytes(PPS).end();
+        w.end().end();
+    }
+}
@@ -0,0 +1,319 @@
+package com.github.boybeak.mediakit.mp4;
+
+import com.github.boybeak.mediakit.MuxerBackend;
+import com.github.boybeak.mediakit.TrackFormat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class Mp4MuxerTest {
+
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static TrackFormat videoFormat() {
+        TrackFormat format = TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 640, 360);
+        format.setCsd(0, annexB(Mp4Fixture.SPS));
+        format.setCsd(1, annexB(Mp4Fixture.PPS));
+        return format;
+    }
+
+    private static byte[] annexB(byte[]... nals) {
+        int size = 0;
+        for (byte[] nal : nals) {
+            size += 4 + nal.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] nal : nals) {
+            buffer.putInt(1).put(nal);
+        }
+        return buffer.array();
+    }
+
+    private static long frameUs(int frame) {
+        return frame * 1000000L / 30;
+    }
+
+    private static byte[] frame(int i) {
+        return annexB(Mp4Fixture.nal(i == 0 ? 0x65 : 0x41, 30 + i * 5, i));
+    }
+
+    private static void write(Mp4Muxer muxer, int track, byte[] sample, long ptsUs, int flags) throws IOException {
+        muxer.writeSampleData(track, ByteBuffer.wrap(sample), 0, sample.length, ptsUs, flags);
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static boolean contains(File file, String fourcc) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        byte[] type = fourcc.getBytes("US-ASCII");
+        outer:
+        for (int i = 0; i + type.length <= bytes.length; i++) {
+            for (int j = 0; j < type.length; j++) {
+                if (bytes[i + j] != type[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void recoversDecodeTimesOfBFrames() throws IOException {
+        File file = folder.newFile();
+        Mp4Muxer muxer = new Mp4Muxer(file);
+        int track = muxer.addTrack(videoFormat());
+        muxer.start();
+        // decode order I P B B, presentation order 0 3 1 2
+        int[] order = {0, 3, 1, 2, 4, 7, 5, 6, 8, 11, 9, 10};
+        for (int i = 0; i < order.length; i++) {
+            write(muxer, track, frame(i), frameUs(order[i]), i % 4 == 0 ? MuxerBackend.FLAG_KEY_FRAME : 0);
+        }
+        muxer.release();
+
+        Mp4Demuxer demuxer = new Mp4Demuxer(file);
+        try {
+            SampleTable table = demuxer.getSampleTable(0);
+            assertTrue(table.hasCompositionOffsets());
+            for (int i = 0; i < order.length; i++) {
+                assertTrue(table.getDecodeTime(i) <= table.getPresentationTime(i));
+                if (i > 0) {
+                    assertTrue(table.getDecodeTime(i) > table.getDecodeTime(i - 1));
+                }
+            }
+            demuxer.selectTrack(0);
+            int i = 0;
+            do {
+                assertEquals(frameUs(order[i]), demuxer.getSampleTime(), 1);
+                assertArrayEquals(frame(i), toArray(demuxer.getSampleData()));
+                i++;
+            } while (demuxer.advance());
+            assertEquals(order.length, i);
+            assertEquals(3, table.getSyncSampleCount());
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void nonZeroFirstPtsBecomesEmptyEdit() throws IOException {
+        File file = folder.newFile();
+        Mp4Muxer muxer = new Mp4Muxer(file);
+        int track = muxer.addTrack(videoFormat());
+        muxer.start();
+        for (int i = 0; i < 5; i++) {
+            write(muxer, track, frame(i), 500000 + frameUs(i), i == 0 ? MuxerBackend.FLAG_KEY_FRAME : 0);
+        }
+        muxer.release();
+
+        assertTrue(contains(file, "elst"));
+        Mp4Demuxer demuxer = new Mp4Demuxer(file);
+        try {
+            assertEquals(500000, demuxer.getPresentationOffsetUs(0));
+            demuxer.selectTrack(0);
+            assertEquals(500000, demuxer.getSampleTime());
+            demuxer.advance();
+            assertEquals(500000 + frameUs(1), demuxer.getSampleTime(), 1);
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void zeroFirstPtsHasNoEditList() throws IOException {
+        File file = folder.newFile();
+        Mp4Muxer muxer = new Mp4Muxer(file);
+        int track = muxer.addTrack(videoFormat());
+        muxer.start();
+        for (int i = 0; i < 3; i++) {
+            write(muxer, track, frame(i), frameUs(i), i == 0 ? MuxerBackend.FLAG_KEY_FRAME : 0);
+        }
+        muxer.release();
+        assertFalse(contains(file, "elst"));
+    }
+
+    @Test
+    public void rotation() throws IOException {
+        for (int degrees : new int[]{0, 90, 180, 270}) {
+            File file = folder.newFile();
+            Mp4Muxer muxer = new Mp4Muxer(file);
+            int track = muxer.addTrack(videoFormat());
+            muxer.setOrientationHint(degrees);
+            muxer.start();
+            write(muxer, track, frame(0), 0, MuxerBackend.FLAG_KEY_FRAME);
+            muxer.release();
+            Mp4Demuxer demuxer = new Mp4Demuxer(file);
+            try {
+                assertEquals(degrees, demuxer.getTrackFormat(0).getRotation());
+            } finally {
+                demuxer.release();
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOddRotation() throws IOException {
+        new Mp4Muxer(folder.newFile()).setOrientationHint(45);
+    }
+
+    @Test
+    public void convertsAnnexBToLengthPrefixed() throws IOException {
+        File file = folder.newFile();
+        Mp4Muxer muxer = new Mp4Muxer(file);
+        int track = muxer.addTrack(videoFormat());
+        muxer.start();
+        byte[] sei = Mp4Fixture.nal(0x06, 7, 1);
+        byte[] slice = Mp4Fixture.nal(0x65, 60, 2);
+        // a 4 byte start code followed by a 3 byte one
+        ByteBuffer sample = ByteBuffer.allocate(4 + sei.length + 3 + slice.length);
+        sample.putInt(1).put(sei).put((byte) 0).put((byte) 0).put((byte) 1).put(slice).flip();
+        muxer.writeSampleData(track, sample, 0, sample.remaining(), 0, MuxerBackend.FLAG_KEY_FRAME);
+        // already length prefixed samples are written as they are
+        byte[] prefixed = Mp4Fixture.sample(4, Mp4Fixture.nal(0x41, 20, 3));
+        write(muxer, track, prefixed, frameUs(1), 0);
+        muxer.release();
+
+        Mp4Demuxer demuxer = new Mp4Demuxer(file);
+        try {
+            demuxer.setAnnexB(false);
+            demuxer.selectTrack(0);
+            assertArrayEquals(Mp4Fixture.sample(4, sei, slice), toArray(demuxer.getSampleData()));
+            demuxer.advance();
+            assertArrayEquals(prefixed, toArray(demuxer.getSampleData()));
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void codecConfigBufferFillsCsd() throws IOException {
+        File file = folder.newFile();
+        Mp4Muxer muxer = new Mp4Muxer(file);
+        int track = muxer.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 640, 360));
+        muxer.start();
+        write(muxer, track, annexB(Mp4Fixture.SPS, Mp4Fixture.PPS), 0, MuxerBackend.FLAG_CODEC_CONFIG);
+        write(muxer, track, frame(0), 0, MuxerBackend.FLAG_KEY_FRAME);
+        muxer.release();
+
+        Mp4Demuxer demuxer = new Mp4Demuxer(file);
+        try {
+            assertEquals(1, demuxer.getSampleTable(0).getSampleCount());
+            assertArrayEquals(annexB(Mp4Fixture.SPS), demuxer.getTrackFormat(0).getCsd(0));
+            assertArrayEquals(annexB(Mp4Fixture.PPS), demuxer.getTrackFormat(0).getCsd(1));
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void writeChunkCopiesSamples() throws IOException {
+        int count = 6;
+        int[] sizes = new int[count];
+        long[] times = new long[count];
+        int[] flags = new int[count];
+        byte[][] samples = new byte[count][];
+        File source = folder.newFile();
+        long base = 100;
+        try (RandomAccessFile raf = new RandomAccessFile(source, "rw")) {
+            raf.write(new byte[(int) base]);
+            for (int i = 0; i < count; i++) {
+                samples[i] = Mp4Fixture.sample(4, Mp4Fixture.nal(i == 0 ? 0x65 : 0x41, 25 + i, i));
+                sizes[i] = samples[i].length;
+                times[i] = frameUs(i);
+                flags[i] = i == 0 ? MuxerBackend.FLAG_KEY_FRAME : 0;
+                raf.write(samples[i]);
+            }
+        }
+        File file = folder.newFile();
+        Mp4Muxer muxer = new Mp4Muxer(file);
+        int track = muxer.addTrack(videoFormat());
+        muxer.start();
+        try (FileChannel channel = new RandomAccessFile(source, "r").getChannel()) {
+            long second = base + sizes[0] + sizes[1];
+            muxer.writeChunk(track, channel, base, sizes, times, flags, 0, 2);
+            muxer.writeChunk(track, channel, second, sizes, times, flags, 2, count - 2);
+        }
+        muxer.release();
+
+        Mp4Demuxer demuxer = new Mp4Demuxer(file);
+        try {
+            SampleTable table = demuxer.getSampleTable(0);
+            assertEquals(count, table.getSampleCount());
+            assertEquals(2, table.getChunkCount());
+            assertEquals(4, table.getChunkSampleCount(1));
+            assertTrue(table.isSync(0));
+            assertFalse(table.isSync(1));
+            demuxer.setAnnexB(false);
+            demuxer.selectTrack(0);
+            int i = 0;
+            do {
+                assertArrayEquals(samples[i], toArray(demuxer.getSampleData()));
+                assertEquals(times[i], demuxer.getSampleTime(), 1);
+                i++;
+            } while (demuxer.advance());
+            assertEquals(count, i);
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void largeFileUsesCo64AndLargesizeMdat() throws IOException {
+        File file = folder.newFile();
+        Mp4Muxer muxer = new Mp4Muxer(file);
+        muxer.mLargeSizeThreshold = 16;
+        int video = muxer.addTrack(videoFormat());
+        TrackFormat audioFormat = TrackFormat.createAudioFormat(TrackFormat.MIMETYPE_AUDIO_AAC, 48000, 2);
+        audioFormat.setCsd(0, new byte[]{0x11, (byte) 0x90});
+        int audio = muxer.addTrack(audioFormat);
+        muxer.start();
+        for (int i = 0; i < 4; i++) {
+            write(muxer, video, frame(i), frameUs(i), i == 0 ? MuxerBackend.FLAG_KEY_FRAME : 0);
+            write(muxer, audio, new byte[50 + i], frameUs(i), 0);
+        }
+        muxer.release();
+
+        assertTrue(contains(file, "co64"));
+        assertFalse(contains(file, "stco"));
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        int ftypSize = ByteBuffer.wrap(bytes).getInt(0);
+        ByteBuffer mdat = ByteBuffer.wrap(bytes, ftypSize, 16);
+        assertEquals(1, mdat.getInt());
+        assertEquals(Boxes.MDAT, mdat.getInt());
+
+        long mdatSize = mdat.getLong();
+        // the moov follows the mdat directly
+        assertEquals(Boxes.MOOV, ByteBuffer.wrap(bytes).getInt((int) (ftypSize + mdatSize) + 4));
+
+        Mp4Demuxer demuxer = new Mp4Demuxer(file);
+        try {
+            assertEquals(2, demuxer.getTrackCount());
+            assertEquals(ftypSize + 16, demuxer.getSampleTable(0).getChunkOffset(0));
+            demuxer.selectTrack(0);
+            int i = 0;
+            do {
+                assertArrayEquals(frame(i), toArray(demuxer.getSampleData()));
+                i++;
+            } while (demuxer.advance());
+            assertEquals(4, i);
+        } finally {
+            demuxer.release();
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.github.boybeak.mediakit.mp4;
+
+import com.github.boybeak.mediakit.CancellationToken;
+import com.github.boybeak.mediakit.MuxerBackend;
+import com.github.boybeak.mediakit.SampleIndex;
+import com.github.boybeak.mediakit.SampleSource;
+import com.github.boybeak.mediakit.TrackFormat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RemuxerTest {
+
+    /**
+     * 29.97 fps, so no frame time is a whole number of microseconds.
+     */
+    private static final int VIDEO_TIMESCALE = 30000;
+    private static final int FRAME_TICKS = 1001;
+    private static final int SAMPLE_RATE = 44100;
+    private static final int GOP_FRAMES = 12;
+    private static final int FRAMES = GOP_FRAMES * 5;
+
+    /**
+     * Decode order of a group of four frames: I or P, then the P after two B frames, then the B frames.
+     */
+    private static final int[] REORDER = {0, 3, 1, 2};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static long frameUs(int frame) {
+        return frame * FRAME_TICKS * 1000000L / VIDEO_TIMESCALE;
+    }
+
+    private static long audioUs(int frame) {
+        return frame * 1024 * 1000000L / SAMPLE_RATE;
+    }
+
+    /**
+     * An AVC track with B frames and an AAC track, interleaved in decode order.
+     */
+    private File source() throws IOException {
+        File file = folder.newFile();
+        Mp4Muxer muxer = new Mp4Muxer(file);
+        TrackFormat videoFormat = TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 640, 360);
+        videoFormat.setCsd(0, annexB(Mp4Fixture.SPS));
+        videoFormat.setCsd(1, annexB(Mp4Fixture.PPS));
+        videoFormat.setTimescale(VIDEO_TIMESCALE);
+        int video = muxer.addTrack(videoFormat);
+        TrackFormat audioFormat = TrackFormat.createAudioFormat(TrackFormat.MIMETYPE_AUDIO_AAC, SAMPLE_RATE, 2);
+        audioFormat.setCsd(0, new byte[]{0x12, 0x10});
+        int audio = muxer.addTrack(audioFormat);
+        muxer.start();
+        int audioFrame = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            while (audioUs(audioFrame) <= frameUs(i)) {
+                byte[] sample = Mp4Fixture.nal(0x21, 100 + audioFrame % 7 * 13, 1000 + audioFrame);
+                muxer.writeSampleData(audio, ByteBuffer.wrap(sample), 0, sample.length, audioUs(audioFrame), 0);
+                audioFrame++;
+            }
+            int frame = i / 4 * 4 + REORDER[i % 4];
+            boolean key = i % GOP_FRAMES == 0;
+            byte[] sample = annexB(Mp4Fixture.nal(key ? 0x65 : 0x41, 40 + i * 3, i));
+            muxer.writeSampleData(video, ByteBuffer.wrap(sample), 0, sample.length, frameUs(frame),
+                    key ? MuxerBackend.FLAG_KEY_FRAME : 0);
+        }
+        muxer.release();
+        return file;
+    }
+
+    private static byte[] annexB(byte[]... nals) {
+        int size = 0;
+        for (byte[] nal : nals) {
+            size += 4 + nal.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] nal : nals) {
+            buffer.putInt(1).put(nal);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @return the bytes of every sample of a track, in decode order and in mp4 form
+     */
+    private static List<byte[]> samples(Mp4Demuxer demuxer, int track) throws IOException {
+        List<byte[]> samples = new ArrayList<>();
+        demuxer.setAnnexB(false);
+        for (int t = 0; t < demuxer.getTrackCount(); t++) {
+            demuxer.unselectTrack(t);
+        }
+        demuxer.selectTrack(track);
+        demuxer.seekTo(0, SampleSource.SEEK_TO_PREVIOUS_SYNC);
+        do {
+            ByteBuffer data = demuxer.getSampleData();
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            samples.add(bytes);
+        } while (demuxer.advance());
+        demuxer.unselectTrack(track);
+        return samples;
+    }
+
+    /**
+     * @return segment duration and media time of the last entry of the {@code n}th elst box in the file,
+     * null when there are fewer
+     */
+    private static long[] lastEdit(File file, int n) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        for (int i = 4; i + 8 <= bytes.limit(); i++) {
+            if (bytes.getInt(i) != Boxes.ELST || n-- > 0) {
+                continue;
+            }
+            // version 0 entries: segment_duration, media_time, media_rate
+            int count = bytes.getInt(i + 8);
+            int entry = i + 12 + (count - 1) * 12;
+            return new long[]{bytes.getInt(entry) & 0xffffffffL, bytes.getInt(entry + 4)};
+        }
+        return null;
+    }
+
+    private static void assertSameSamples(Mp4Demuxer expected, Mp4Demuxer actual) throws IOException {
+        assertEquals(expected.getTrackCount(), actual.getTrackCount());
+        for (int t = 0; t < expected.getTrackCount(); t++) {
+            SampleTable source = expected.getSampleTable(t);
+            SampleTable copy = actual.getSampleTable(t);
+            assertEquals(source.getSampleCount(), copy.getSampleCount());
+            assertEquals(source.getSyncSampleCount(), copy.getSyncSampleCount());
+            for (int i = 0; i < source.getSampleCount(); i++) {
+                String at = "track " + t + " sample " + i;
+                assertEquals(at, source.getSize(i), copy.getSize(i));
+                assertEquals(at, source.isSync(i), copy.isSync(i));
+                assertEquals(at, expected.getPresentationTimeUs(t, i), actual.getPresentationTimeUs(t, i), 1);
+            }
+            List<byte[]> sourceSamples = samples(expected, t);
+            List<byte[]> copySamples = samples(actual, t);
+            for (int i = 0; i < sourceSamples.size(); i++) {
+                assertArrayEquals("track " + t + " sample " + i, sourceSamples.get(i), copySamples.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void chunkCopyKeepsTheSampleTablesExactly() throws IOException {
+        File file = folder.newFile();
+        List<Float> progress = new ArrayList<>();
+        try (Mp4Demuxer source = new Mp4Demuxer(source())) {
+            Mp4Muxer muxer = new Mp4Muxer(file);
+            Remuxer.remux(source, muxer, progress::add);
+            muxer.release();
+
+            try (Mp4Demuxer copy = new Mp4Demuxer(file)) {
+                assertTrue(source.getSampleTable(0).hasCompositionOffsets());
+                assertTrue(source.getSampleTable(0).getChunkCount() > 1);
+                assertSameSamples(source, copy);
+                for (int t = 0; t < source.getTrackCount(); t++) {
+                    SampleTable expected = source.getSampleTable(t);
+                    SampleTable actual = copy.getSampleTable(t);
+                    // same ticks, not just the same microseconds
+                    assertEquals(expected.getTimescale(), actual.getTimescale());
+                    assertEquals(expected.hasCompositionOffsets(), actual.hasCompositionOffsets());
+                    assertEquals(expected.getChunkCount(), actual.getChunkCount());
+                    for (int i = 0; i < expected.getSampleCount(); i++) {
+                        assertEquals("track " + t + " sample " + i, expected.getDecodeTime(i), actual.getDecodeTime(i));
+                        assertEquals("track " + t + " sample " + i,
+                                expected.getPresentationTime(i), actual.getPresentationTime(i));
+                    }
+                    for (int c = 0; c < expected.getChunkCount(); c++) {
+                        assertEquals(expected.getChunkSampleCount(c), actual.getChunkSampleCount(c));
+                    }
+                    assertEquals(source.getPresentationOffsetUs(t), copy.getPresentationOffsetUs(t));
+                }
+            }
+        }
+        assertEquals(1f, progress.get(progress.size() - 1), 0);
+        for (int i = 1; i < progress.size(); i++) {
+            assertTrue(progress.get(i) >= progress.get(i - 1));
+        }
+    }
+
+    @Test
+    public void sampleCopyKeepsTimesWithinAMicrosecond() throws IOException {
+        File file = folder.newFile();
+        try (Mp4Demuxer source = new Mp4Demuxer(source())) {
+            Mp4Muxer muxer = new Mp4Muxer(file);
+            // not an Mp4Muxer, so every sample goes through writeSampleData
+            MuxerBackend wrapper = new MuxerBackend() {
+                @Override
+                public int addTrack(TrackFormat format) {
+                    return muxer.addTrack(format);
+                }
+
+                @Override
+                public void setOrientationHint(int degrees) {
+                    muxer.setOrientationHint(degrees);
+                }
+
+                @Override
+                public void start() throws IOException {
+                    muxer.start();
+                }
+
+                @Override
+                public void writeSampleData(int trackIndex, ByteBuffer data, int offset, int size,
+                                            long presentationTimeUs, int flags) throws IOException {
+                    muxer.writeSampleData(trackIndex, data, offset, size, presentationTimeUs, flags);
+                }
+
+                @Override
+                public void stop() throws IOException {
+                    muxer.stop();
+                }
+
+                @Override
+                public void release() {
+                    muxer.release();
+                }
+            };
+            Remuxer.remux(source, wrapper, null);
+            wrapper.release();
+
+            try (Mp4Demuxer copy = new Mp4Demuxer(file)) {
+                assertSameSamples(source, copy);
+            }
+        }
+    }
+
+    @Test
+    public void trimStartsAtThePreviousSyncSampleBehindAnEdit() throws IOException {
+        // mid GOP on both ends, the cut frames are a B frame and a P frame
+        long startUs = frameUs(GOP_FRAMES + 5);
+        long endUs = frameUs(3 * GOP_FRAMES + 7);
+        File file = folder.newFile();
+        try (Mp4Demuxer source = new Mp4Demuxer(source())) {
+            SampleIndex index = SampleIndex.build(source);
+            Mp4Muxer muxer = new Mp4Muxer(file);
+            Remuxer.trim(source, index, muxer, startUs, endUs, null, new CancellationToken());
+            muxer.release();
+
+            try (Mp4Demuxer trimmed = new Mp4Demuxer(file)) {
+                for (int t = 0; t < source.getTrackCount(); t++) {
+                    SampleIndex.Track track = index.getTrack(t);
+                    int first = track.findSyncSample(startUs, SampleSource.SEEK_TO_PREVIOUS_SYNC);
+                    int last = track.findLastSampleBefore(endUs);
+                    SampleTable table = trimmed.getSampleTable(t);
+                    assertEquals("track " + t, last - first + 1, table.getSampleCount());
+                    List<byte[]> sourceSamples = samples(source, t);
+                    List<byte[]> trimmedSamples = samples(trimmed, t);
+                    for (int i = 0; i < table.getSampleCount(); i++) {
+                        String at = "track " + t + " sample " + i;
+                        assertEquals(at, track.getSize(first + i), table.getSize(i));
+                        assertEquals(at, track.isSync(first + i), table.isSync(i));
+                        assertEquals(at, track.getPresentationTimeUs(first + i) - startUs,
+                                trimmed.getPresentationTimeUs(t, i), 1);
+                        assertArrayEquals(at, sourceSamples.get(first + i), trimmedSamples.get(i));
+                    }
+                    // the edit skips the lead-in, the first sample is the earliest presented one,
+                    // and plays up to the end point
+                    long[] edit = lastEdit(file, t);
+                    assertNotNull(edit);
+                    assertEquals((endUs - startUs) / 1000, edit[0], 1);
+                    assertEquals(table.getPresentationTime(0)
+                            + table.toTicks(startUs - track.getPresentationTimeUs(first)), edit[1], 1);
+                }
+                // the video lead-in starts on the key frame of the second GOP
+                assertEquals(GOP_FRAMES, index.getTrack(0).findSyncSample(startUs, SampleSource.SEEK_TO_PREVIOUS_SYNC));
+                assertTrue(trimmed.getSampleTable(0).isSync(0));
+            }
+        }
+    }
+
+    @Test
+    public void trimToTheEndPresentsEverySample() throws IOException {
+        long startUs = frameUs(2 * GOP_FRAMES);
+        File file = folder.newFile();
+        try (Mp4Demuxer source = new Mp4Demuxer(source())) {
+            SampleIndex index = SampleIndex.build(source);
+            Mp4Muxer muxer = new Mp4Muxer(file);
+            Remuxer.trim(source, index, muxer, startUs, -1, null, new CancellationToken());
+            muxer.release();
+
+            try (Mp4Demuxer trimmed = new Mp4Demuxer(file)) {
+                SampleTable table = trimmed.getSampleTable(0);
+                // starting on a key frame leaves no lead-in
+                assertEquals(FRAMES - 2 * GOP_FRAMES, table.getSampleCount());
+                for (int i = 0; i < table.getSampleCount(); i++) {
+                    assertEquals(index.getTrack(0).getPresentationTimeUs(2 * GOP_FRAMES + i) - startUs,
+                            trimmed.getPresentationTimeUs(0, i), 1);
+                }
+                SampleIndex.Track audio = index.getTrack(1);
+                int first = audio.findSyncSample(startUs, SampleSource.SEEK_TO_PREVIOUS_SYNC);
+                assertEquals(audio.getSampleCount() - first, trimmed.getSampleTable(1).getSampleCount());
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.boybeak.mediakit.mp4;
+
+import com.github.boybeak.mediakit.SampleSource;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SampleTableTest {
+
+    /**
+     * 8 samples of 1000 ticks at timescale 30000, I P B B I P B B in decode order, two chunks of 4.
+     */
+    private static SampleTable table(int[] compositionOffsets) {
+        int[] sizes = {500, 100, 50, 60, 400, 90, 40, 30};
+        DeltaLongArray offsets = new DeltaLongArray(sizes.length);
+        DeltaLongArray decodeTimes = new DeltaLongArray(sizes.length);
+        long[] chunkOffsets = {1000, 5000};
+        long offset = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            if (i % 4 == 0) {
+                offset = chunkOffsets[i / 4];
+            }
+            offsets.add(offset);
+            offset += sizes[i];
+            decodeTimes.add(i * 1000L);
+        }
+        return new SampleTable(30000, sizes, offsets, decodeTimes, compositionOffsets, new int[]{0, 4},
+                chunkOffsets, new int[]{0, 4}, 1000);
+    }
+
+    @Test
+    public void basics() {
+        SampleTable table = table(null);
+        assertEquals(8, table.getSampleCount());
+        assertEquals(1270, table.getTotalBytes());
+        assertEquals(500, table.getMaxSampleSize());
+        assertEquals(5000 + 400 + 90, table.getOffset(6));
+        assertEquals(1000, table.getDuration(3));
+        assertEquals(1000, table.getDuration(7));
+        assertEquals(8000, table.getEndTime());
+        assertEquals(4, table.getChunkSampleCount(1));
+        assertEquals(2, table.getSyncSampleCount());
+        assertTrue(table.isSync(4));
+        assertFalse(table.isSync(5));
+        assertFalse(table.hasCompositionOffsets());
+        assertEquals(table.getDecodeTime(5), table.getPresentationTime(5));
+    }
+
+    @Test
+    public void compositionOffsets() {
+        SampleTable table = table(new int[]{1000, 3000, 0, 0, 1000, 3000, 0, 0});
+        assertTrue(table.hasCompositionOffsets());
+        assertEquals(4000, table.getPresentationTime(1));
+        assertEquals(2000, table.getPresentationTime(2));
+        assertEquals(3000, table.getCompositionOffset(5));
+    }
+
+    @Test
+    public void allSyncWithoutStss() {
+        SampleTable table = new SampleTable(1000, new int[]{1, 1, 1}, offsets(0, 1, 2), offsets(0, 10, 20),
+                null, null, new long[]{0}, new int[]{0}, 10);
+        assertEquals(3, table.getSyncSampleCount());
+        assertEquals(2, table.getSyncSample(2));
+        assertTrue(table.isSync(1));
+    }
+
+    private static DeltaLongArray offsets(long... values) {
+        DeltaLongArray array = new DeltaLongArray(values.length);
+        for (long value : values) {
+            array.add(value);
+        }
+        return array;
+    }
+
+    @Test
+    public void findSyncSample() {
+        SampleTable table = table(null);
+        assertEquals(0, table.findSyncSample(3000, SampleSource.SEEK_TO_PREVIOUS_SYNC));
+        assertEquals(4, table.findSyncSample(3000, SampleSource.SEEK_TO_NEXT_SYNC));
+        assertEquals(4, table.findSyncSample(3000, SampleSource.SEEK_TO_CLOSEST_SYNC));
+        assertEquals(0, table.findSyncSample(1000, SampleSource.SEEK_TO_CLOSEST_SYNC));
+        assertEquals(4, table.findSyncSample(4000, SampleSource.SEEK_TO_NEXT_SYNC));
+        assertEquals(4, table.findSyncSample(4000, SampleSource.SEEK_TO_PREVIOUS_SYNC));
+        // before the first and after the last sync sample
+        assertEquals(0, table.findSyncSample(-5000, SampleSource.SEEK_TO_PREVIOUS_SYNC));
+        assertEquals(4, table.findSyncSample(100000, SampleSource.SEEK_TO_PREVIOUS_SYNC));
+        assertEquals(8, table.findSyncSample(100000, SampleSource.SEEK_TO_NEXT_SYNC));
+    }
+
+    @Test
+    public void seekTicksRoundTripReportedTimes() {
+        // 1001 ticks at 30000 is not a whole number of microseconds
+        SampleTable table = new SampleTable(30000, new int[]{1, 1, 1, 1}, offsets(0, 1, 2, 3),
+                offsets(0, 1001, 2002, 3003), null, null, new long[]{0}, new int[]{0}, 1001);
+        for (int i = 0; i < 4; i++) {
+            long timeUs = table.toUs(table.getPresentationTime(i));
+            assertEquals(i, table.findSyncSample(table.toSeekTicks(timeUs), SampleSource.SEEK_TO_PREVIOUS_SYNC));
+        }
+        assertEquals(33366, table.toUs(1001));
+        assertEquals(1001, table.toSeekTicks(33366));
+        assertEquals(1000, table.toSeekTicks(33333));
+    }
+}
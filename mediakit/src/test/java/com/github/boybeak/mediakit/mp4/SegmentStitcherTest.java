@@ -0,0 +1,135 @@
+package com.github.boybeak.mediakit.mp4;
+
+import com.github.boybeak.mediakit.CancellationToken;
+import com.github.boybeak.mediakit.TrackFormat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class SegmentStitcherTest {
+
+    private static final int FRAMES = 4;
+    /**
+     * Same as {@link Mp4Fixture#SPS} with level 3.1 instead of 3.0, what an encoder restarted with
+     * another bitrate may write.
+     */
+    private static final byte[] OTHER_SPS = {0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xda, 0x02, (byte) 0x80, (byte) 0xbf, (byte) 0xe5};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] annexB(byte[]... nals) {
+        int size = 0;
+        for (byte[] nal : nals) {
+            size += 4 + nal.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] nal : nals) {
+            buffer.putInt(1).put(nal);
+        }
+        return buffer.array();
+    }
+
+    private static long frameUs(int frame) {
+        return frame * 1000000L / 30;
+    }
+
+    private File segment(byte[] sps, int seed) throws IOException {
+        File file = folder.newFile();
+        Mp4Muxer muxer = new Mp4Muxer(file);
+        TrackFormat format = TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 640, 360);
+        format.setCsd(0, annexB(sps));
+        format.setCsd(1, annexB(Mp4Fixture.PPS));
+        int track = muxer.addTrack(format);
+        muxer.start();
+        for (int i = 0; i < FRAMES; i++) {
+            byte[] frame = annexB(Mp4Fixture.nal(i == 0 ? 0x65 : 0x41, 40 + i, seed + i));
+            muxer.writeSampleData(track, ByteBuffer.wrap(frame), 0, frame.length, frameUs(i),
+                    i == 0 ? Mp4Muxer.FLAG_KEY_FRAME : 0);
+        }
+        muxer.release();
+        return file;
+    }
+
+    private static byte[] sample(Mp4Demuxer demuxer) throws IOException {
+        ByteBuffer data = demuxer.getSampleData();
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    private static boolean contains(File file, String fourcc) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), "ISO-8859-1").contains(fourcc);
+    }
+
+    private File stitch(SegmentStitcher stitcher) throws IOException {
+        File output = folder.newFile();
+        Mp4Muxer muxer = new Mp4Muxer(output);
+        try {
+            stitcher.stitch(muxer, null, new CancellationToken());
+        } finally {
+            muxer.release();
+        }
+        return output;
+    }
+
+    @Test
+    public void sameParameterSetsStayAvc1() throws IOException {
+        SegmentStitcher stitcher = new SegmentStitcher()
+                .addSegment(segment(Mp4Fixture.SPS, 0), 0)
+                .addSegment(segment(Mp4Fixture.SPS, 50), frameUs(FRAMES));
+        assertFalse(stitcher.hasParameterSetChanges());
+
+        File output = stitch(stitcher);
+        assertFalse(contains(output, "avc3"));
+
+        Mp4Demuxer demuxer = new Mp4Demuxer(output);
+        try {
+            assertFalse(demuxer.getTrackFormat(0).isInBandParameterSets());
+            demuxer.selectTrack(0);
+            demuxer.seekTo(frameUs(FRAMES), Mp4Demuxer.SEEK_TO_PREVIOUS_SYNC);
+            assertArrayEquals(annexB(Mp4Fixture.nal(0x65, 40, 50)), sample(demuxer));
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void changedParameterSetsMakeAvc3() throws IOException {
+        SegmentStitcher stitcher = new SegmentStitcher()
+                .addSegment(segment(Mp4Fixture.SPS, 0), 0)
+                .addSegment(segment(OTHER_SPS, 50), frameUs(FRAMES))
+                .addSegment(segment(OTHER_SPS, 100), frameUs(FRAMES * 2));
+        assertTrue(stitcher.hasParameterSetChanges());
+
+        File output = stitch(stitcher);
+        assertTrue(contains(output, "avc3"));
+
+        Mp4Demuxer demuxer = new Mp4Demuxer(output);
+        try {
+            TrackFormat format = demuxer.getTrackFormat(0);
+            assertTrue(format.isInBandParameterSets());
+            // the sample description keeps the parameter sets of the first segment
+            assertArrayEquals(annexB(Mp4Fixture.SPS), format.getCsd(0));
+            assertEquals(FRAMES * 3, demuxer.getSampleTable(0).getSampleCount());
+
+            demuxer.selectTrack(0);
+            assertArrayEquals(annexB(Mp4Fixture.nal(0x65, 40, 0)), sample(demuxer));
+            // the segment that switches carries its SPS/PPS in-band, the one after it does not repeat them
+            demuxer.seekTo(frameUs(FRAMES), Mp4Demuxer.SEEK_TO_PREVIOUS_SYNC);
+            assertArrayEquals(annexB(OTHER_SPS, Mp4Fixture.PPS, Mp4Fixture.nal(0x65, 40, 50)), sample(demuxer));
+            demuxer.seekTo(frameUs(FRAMES * 2), Mp4Demuxer.SEEK_TO_PREVIOUS_SYNC);
+            assertArrayEquals(annexB(Mp4Fixture.nal(0x65, 40, 100)), sample(demuxer));
+        } finally {
+            demuxer.release();
+        }
+    }
+}
@@ -4,12 +4,23 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
-import android.media.MediaMetadataRetriever;
-import android.media.MediaMuxer;
-import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 
+import com.github.boybeak.mediakit.CancellationToken;
+import com.github.boybeak.mediakit.FrameCodec;
+import com.github.boybeak.mediakit.MuxerBackend;
+import com.github.boybeak.mediakit.SampleSource;
+import com.github.boybeak.mediakit.TrackFormat;
+import com.github.boybeak.mediakit.android.AsyncFrameCodec;
+import com.github.boybeak.mediakit.android.ExtractorSampleSource;
+import com.github.boybeak.mediakit.android.MediaCodecFrameCodec;
+import com.github.boybeak.mediakit.android.MediaFormats;
+import com.github.boybeak.mediakit.android.MediaMuxerBackend;
+import com.github.boybeak.mediakit.h264.ParameterSets;
+import com.github.boybeak.mediakit.h264.Sps;
+import com.github.boybeak.mediakit.mp4.Mp4Demuxer;
 import com.github.boybeak.vcompressor.listner.SlimProgressListener;
 import com.github.boybeak.vcompressor.muxer.CodecInputSurface;
 
@@ -28,10 +39,11 @@ public class VideoSlimEncoder {
     public String path;
     private String outputPath;
     public final static String MIME_TYPE = "video/avc";
-    private MediaCodec.BufferInfo mBufferInfo;
-    private MediaMuxer mMuxer;
-    private MediaCodec mEncoder;
-    private MediaCodec mDecoder;
+    private FrameCodec.BufferInfo mBufferInfo;
+    private MuxerBackend mMuxer;
+    private MuxerBackend.Factory mMuxerFactory = MediaMuxerBackend.FACTORY;
+    private FrameCodec mEncoder;
+    private FrameCodec mDecoder;
     private int mTrackIndex;
     private CodecInputSurface mInputSurface;
     // size of a frame, in pixels
@@ -43,11 +55,55 @@ public class VideoSlimEncoder {
     private static int IFRAME_INTERVAL = 10;          // 10 seconds between I-frames
     private static final int MEDIATYPE_NOT_AUDIO_VIDEO = -233;
     private final int TIMEOUT_USEC = 10;
+    // in async mode the loop sleeps until a codec calls back, this only bounds a single wait
+    private static final int ASYNC_TIMEOUT_USEC = 10000;
+    private boolean mAsyncCodec;
+    private long mCpuTimeMs;
+    private long mCallbackCpuTimeMs;
+    private CancellationToken mToken = new CancellationToken();
 
     public  VideoSlimEncoder () {
 
     }
 
+    /**
+     * Which muxer writes the output, MediaMuxer by default. Pass Mp4Muxer::new for the pure-java one.
+     */
+    public void setMuxerFactory(MuxerBackend.Factory muxerFactory) {
+        mMuxerFactory = muxerFactory;
+    }
+
+    /**
+     * Checked once per loop iteration; a cancelled conversion releases the codecs, surface and
+     * muxer, deletes the partial output and returns false. Interrupting the converting thread
+     * (VideoSlimTask.cancel(true)) cancels it as well.
+     */
+    public void setCancellationToken(CancellationToken token) {
+        mToken = token;
+    }
+
+    /**
+     * Drive the codecs with MediaCodec callbacks instead of polling them, so the converting thread
+     * sleeps while the codecs work. Ignored below API 23.
+     */
+    public void setAsyncCodec(boolean asyncCodec) {
+        mAsyncCodec = asyncCodec && AsyncFrameCodec.isSupported();
+    }
+
+    /**
+     * @return CPU time of the thread that ran the last {@link #convertVideo}
+     */
+    public long getCpuTimeMs() {
+        return mCpuTimeMs;
+    }
+
+    /**
+     * @return CPU time of the codec callback threads during the last {@link #convertVideo}, 0 when not async
+     */
+    public long getCallbackCpuTimeMs() {
+        return mCallbackCpuTimeMs;
+    }
+
 
     /***
      * trans video and audio  by mediacodec
@@ -62,21 +118,9 @@ public class VideoSlimEncoder {
             return false;
         }
 
-        //get origin video info
-        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-        retriever.setDataSource(path);
-        String width = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH);
-        String height = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT);
-        String rotation = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION);
-      //  String framecount = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_FRAME_COUNT);
-        long duration = Long.valueOf(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)) * 1000;
-
         long startTime = -1;
         long endTime = -1;
 
-        int originalWidth = Integer.valueOf(width);
-        int originalHeight = Integer.valueOf(height);
-
         mBitRate = nbitrate;
         mWidth = nwidth;
         mHeight = nheight;
@@ -90,6 +134,8 @@ public class VideoSlimEncoder {
         long videoStartTime = -1;
 
         long time = System.currentTimeMillis();
+        long cpuTime = SystemClock.currentThreadTimeMillis();
+        mCallbackCpuTimeMs = 0;
 
         File cacheFile = new File(destinationPath);
         File inputFile = new File(path);
@@ -106,15 +152,26 @@ public class VideoSlimEncoder {
             extractor = new MediaExtractor();
             extractor.setDataSource(inputFile.toString());
 
+            //get origin video info
+            int sourceVideoIndex = selectTrack(extractor, false);
+            if (sourceVideoIndex < 0) {
+                throw new IOException("no video track in " + path);
+            }
+            TrackFormat sourceFormat = MediaFormats.toTrackFormat(extractor.getTrackFormat(sourceVideoIndex));
+            int[] originalSize = getVideoSize(sourceFormat);
+            int originalWidth = originalSize[0];
+            int originalHeight = originalSize[1];
+            long duration = sourceFormat.getDurationUs();
+
             // audio MediaExtractor
             mAudioExtractor = new MediaExtractor();
             mAudioExtractor.setDataSource(inputFile.toString());
             try {
-                mMuxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                mMuxer = mMuxerFactory.create(outputPath);
             } catch (IOException ioe) {
 
 
-                throw new RuntimeException("MediaMuxer creation failed", ioe);
+                throw new RuntimeException("Muxer creation failed", ioe);
             }
 
             int muxerAudioTrackIndex = 0;
@@ -125,7 +182,7 @@ public class VideoSlimEncoder {
                 mAudioExtractor.selectTrack(audioIndex);
                 mAudioExtractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
                 MediaFormat trackFormat = mAudioExtractor.getTrackFormat(audioIndex);
-                muxerAudioTrackIndex = mMuxer.addTrack(trackFormat);
+                muxerAudioTrackIndex = mMuxer.addTrack(MediaFormats.toTrackFormat(trackFormat));
 
                // extractor.unselectTrack(muxerAudioTrackIndex);
             }
@@ -160,32 +217,27 @@ public class VideoSlimEncoder {
                      ** init mediacodec  / encoder and decoder
                      **/
                     prepareEncoder(inputFormat);
-
-
-                    ByteBuffer[] decoderInputBuffers = null;
-                    ByteBuffer[] encoderOutputBuffers = null;
-
-
-                    decoderInputBuffers = mDecoder.getInputBuffers();
-                    encoderOutputBuffers = mEncoder.getOutputBuffers();
+                    AsyncFrameCodec asyncDecoder = mDecoder instanceof AsyncFrameCodec ? (AsyncFrameCodec) mDecoder : null;
+                    AsyncFrameCodec asyncEncoder = mEncoder instanceof AsyncFrameCodec ? (AsyncFrameCodec) mEncoder : null;
+                    // async: block once per round until either codec has something, then never wait in dequeue
+                    long timeoutUs = asyncDecoder != null ? 0 : TIMEOUT_USEC;
 
 
                     while (!outputDone) {
+                        checkCancelled();
+                        if (asyncDecoder != null) {
+                            asyncDecoder.awaitEvent(!inputDone, ASYNC_TIMEOUT_USEC, asyncEncoder);
+                        }
                         if (!inputDone) {
                             boolean eof = false;
                             int index = extractor.getSampleTrackIndex();
                             if (index == videoIndex) {
-                                int inputBufIndex = mDecoder.dequeueInputBuffer(TIMEOUT_USEC);
+                                int inputBufIndex = mDecoder.dequeueInputBuffer(timeoutUs);
                                 if (inputBufIndex >= 0) {
-                                    ByteBuffer inputBuf;
-                                    if (Build.VERSION.SDK_INT < 21) {
-                                        inputBuf = decoderInputBuffers[inputBufIndex];
-                                    } else {
-                                        inputBuf = mDecoder.getInputBuffer(inputBufIndex);
-                                    }
+                                    ByteBuffer inputBuf = mDecoder.getInputBuffer(inputBufIndex);
                                     int chunkSize = extractor.readSampleData(inputBuf, 0);
                                     if (chunkSize < 0) {
-                                        mDecoder.queueInputBuffer(inputBufIndex, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                                        mDecoder.queueInputBuffer(inputBufIndex, 0, 0, 0L, FrameCodec.BUFFER_FLAG_END_OF_STREAM);
                                         inputDone = true;
                                     } else {
                                         mDecoder.queueInputBuffer(inputBufIndex, 0, chunkSize, extractor.getSampleTime(), 0);
@@ -196,9 +248,9 @@ public class VideoSlimEncoder {
                                 eof = true;
                             }
                             if (eof) {
-                                int inputBufIndex = mDecoder.dequeueInputBuffer(TIMEOUT_USEC);
+                                int inputBufIndex = mDecoder.dequeueInputBuffer(timeoutUs);
                                 if (inputBufIndex >= 0) {
-                                    mDecoder.queueInputBuffer(inputBufIndex, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                                    mDecoder.queueInputBuffer(inputBufIndex, 0, 0, 0L, FrameCodec.BUFFER_FLAG_END_OF_STREAM);
                                     inputDone = true;
                                 }
                             }
@@ -209,15 +261,13 @@ public class VideoSlimEncoder {
 
                         while (decoderOutputAvailable || encoderOutputAvailable) {
 
-                            int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-                            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                            int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+                            if (encoderStatus == FrameCodec.INFO_TRY_AGAIN_LATER) {
                                 encoderOutputAvailable = false;
-                            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                                if (Build.VERSION.SDK_INT < 21) {
-                                    encoderOutputBuffers = mEncoder.getOutputBuffers();
-                                }
-                            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                                MediaFormat newFormat = mEncoder.getOutputFormat();
+                            } else if (encoderStatus == FrameCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                                // MediaCodecFrameCodec refreshes the pre-lollipop buffer arrays itself
+                            } else if (encoderStatus == FrameCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                                TrackFormat newFormat = mEncoder.getOutputFormat();
                                 if (videoTrackIndex == MEDIATYPE_NOT_AUDIO_VIDEO) {
                                     videoTrackIndex = mMuxer.addTrack(newFormat);
                                     mTrackIndex = videoTrackIndex;
@@ -227,64 +277,46 @@ public class VideoSlimEncoder {
                             } else if (encoderStatus < 0) {
                                 throw new RuntimeException("unexpected result from mEncoder.dequeueOutputBuffer: " + encoderStatus);
                             } else {
-                                ByteBuffer encodedData;
-                                if (Build.VERSION.SDK_INT < 21) {
-                                    encodedData = encoderOutputBuffers[encoderStatus];
-                                } else {
-                                    encodedData = mEncoder.getOutputBuffer(encoderStatus);
-                                }
+                                ByteBuffer encodedData = mEncoder.getOutputBuffer(encoderStatus);
                                 if (encodedData == null) {
                                     throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
                                 }
                                 if (mBufferInfo.size > 1) {
-                                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
-                                        mMuxer.writeSampleData(videoTrackIndex, encodedData, mBufferInfo);
+                                    if ((mBufferInfo.flags & FrameCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                                        mMuxer.writeSampleData(videoTrackIndex, encodedData, mBufferInfo.offset,
+                                                mBufferInfo.size, mBufferInfo.presentationTimeUs, mBufferInfo.flags);
                                     } else if (videoTrackIndex == MEDIATYPE_NOT_AUDIO_VIDEO) {
                                         byte[] csd = new byte[mBufferInfo.size];
                                         encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
                                         encodedData.position(mBufferInfo.offset);
                                         encodedData.get(csd);
-                                        ByteBuffer sps = null;
-                                        ByteBuffer pps = null;
-                                        for (int a = mBufferInfo.size - 1; a >= 0; a--) {
-                                            if (a > 3) {
-                                                if (csd[a] == 1 && csd[a - 1] == 0 && csd[a - 2] == 0 && csd[a - 3] == 0) {
-                                                    sps = ByteBuffer.allocate(a - 3);
-                                                    pps = ByteBuffer.allocate(mBufferInfo.size - (a - 3));
-                                                    sps.put(csd, 0, a - 3).position(0);
-                                                    pps.put(csd, a - 3, mBufferInfo.size - (a - 3)).position(0);
-                                                    break;
-                                                }
-                                            } else {
-                                                break;
-                                            }
-                                        }
+                                        byte[][] parameterSets = ParameterSets.split(csd, 0, csd.length);
 
                                         MediaFormat newFormat = MediaFormat.createVideoFormat(MIME_TYPE, nwidth, nheight);
-                                        if (sps != null && pps != null) {
-                                            newFormat.setByteBuffer("csd-0", sps);
-                                            newFormat.setByteBuffer("csd-1", pps);
+                                        if (parameterSets != null) {
+                                            newFormat.setByteBuffer("csd-0", ByteBuffer.wrap(parameterSets[0]));
+                                            newFormat.setByteBuffer("csd-1", ByteBuffer.wrap(parameterSets[1]));
                                         }
-                                        videoTrackIndex = mMuxer.addTrack(newFormat);
+                                        videoTrackIndex = mMuxer.addTrack(MediaFormats.toTrackFormat(newFormat));
                                         mMuxer.start();
                                         Log.d(TAG, "START 2");
                                     }
                                 }
-                                outputDone = (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                                outputDone = (mBufferInfo.flags & FrameCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
                                 mEncoder.releaseOutputBuffer(encoderStatus, false);
                             }
-                            if (encoderStatus != MediaCodec.INFO_TRY_AGAIN_LATER) {
+                            if (encoderStatus != FrameCodec.INFO_TRY_AGAIN_LATER) {
                                 continue;
                             }
 
                             if (!decoderDone) {
-                                int decoderStatus = mDecoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-                                if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                                int decoderStatus = mDecoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+                                if (decoderStatus == FrameCodec.INFO_TRY_AGAIN_LATER) {
                                     decoderOutputAvailable = false;
-                                } else if (decoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                                } else if (decoderStatus == FrameCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
 
-                                } else if (decoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                                    MediaFormat newFormat = mDecoder.getOutputFormat();
+                                } else if (decoderStatus == FrameCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                                    TrackFormat newFormat = mDecoder.getOutputFormat();
                                     Log.e(TAG, "newFormat = " + newFormat);
                                 } else if (decoderStatus < 0) {
                                     throw new RuntimeException("unexpected result from mDecoder.dequeueOutputBuffer: " + decoderStatus);
@@ -297,7 +329,7 @@ public class VideoSlimEncoder {
                                         inputDone = true;
                                         decoderDone = true;
                                         doRender = false;
-                                        mBufferInfo.flags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+                                        mBufferInfo.flags |= FrameCodec.BUFFER_FLAG_END_OF_STREAM;
                                     }
                                     if (startTime > 0 && videoTime == -1) {
                                         if (mBufferInfo.presentationTimeUs < startTime) {
@@ -329,7 +361,7 @@ public class VideoSlimEncoder {
 
                                         }
                                     }
-                                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                                    if ((mBufferInfo.flags & FrameCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                                         decoderOutputAvailable = false;
                                         Log.e(TAG, "decoder stream end");
 
@@ -352,7 +384,7 @@ public class VideoSlimEncoder {
 
             } else {
                 Log.e(TAG,"startvideorecord");
-                long videoTime = simpleReadAndWriteTrack(extractor, mMuxer, mBufferInfo, startTime, endTime, cacheFile, false);
+                long videoTime = simpleReadAndWriteTrack(extractor, inputFile, mMuxer, mBufferInfo, startTime, endTime, cacheFile, false);
                 if (videoTime != -1) {
                     videoStartTime = videoTime;
                 }
@@ -391,6 +423,11 @@ public class VideoSlimEncoder {
 
 
         releaseCoder();
+        mCpuTimeMs = SystemClock.currentThreadTimeMillis() - cpuTime;
+        if (error && cacheFile.exists() && !cacheFile.delete()) {
+            // a cancelled or failed conversion leaves no half written output behind
+            cacheFile.deleteOnExit();
+        }
 
         if(error)
             return  false;
@@ -399,6 +436,13 @@ public class VideoSlimEncoder {
     }
 
 
+    private void checkCancelled() {
+        if (Thread.currentThread().isInterrupted()) {
+            mToken.cancel();
+        }
+        mToken.throwIfCancelled();
+    }
+
     private boolean checkParmsError(String sourcePath, String destinationPath, int nwidth, int nheight, int nbitrate) {
 
 
@@ -410,68 +454,99 @@ public class VideoSlimEncoder {
     }
 
 
-    private long simpleReadAndWriteTrack(MediaExtractor extractor, MediaMuxer mediaMuxer, MediaCodec.BufferInfo info, long start, long end, File file, boolean isAudio) throws Exception {
+    private long simpleReadAndWriteTrack(MediaExtractor extractor, File inputFile, MuxerBackend mediaMuxer, FrameCodec.BufferInfo info, long start, long end, File file, boolean isAudio) throws Exception {
         int trackIndex = selectTrack(extractor, isAudio);
         if (trackIndex >= 0) {
-            extractor.selectTrack(trackIndex);
             MediaFormat trackFormat = extractor.getTrackFormat(trackIndex);
-            int muxerTrackIndex = mediaMuxer.addTrack(trackFormat);
+            int muxerTrackIndex = mediaMuxer.addTrack(MediaFormats.toTrackFormat(trackFormat));
 
             if(!isAudio) {
                 mediaMuxer.start();
                 Log.d(TAG, "START 3");
             }
+            if (info == null) {
+                info = new FrameCodec.BufferInfo();
+            }
 
-            int maxBufferSize = trackFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
+            // samples are read from the mapped file when possible, MediaExtractor is only the fallback
+            SampleSource source = openSampleSource(extractor, inputFile);
+            int sourceTrackIndex = selectTrack(source, isAudio);
+            source.selectTrack(sourceTrackIndex);
             boolean inputDone = false;
             if (start > 0) {
-                extractor.seekTo(start, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                source.seekTo(start, SampleSource.SEEK_TO_PREVIOUS_SYNC);
             } else {
-                extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                source.seekTo(0, SampleSource.SEEK_TO_PREVIOUS_SYNC);
             }
-            ByteBuffer buffer = ByteBuffer.allocateDirect(maxBufferSize);
             long startTime = -1;
 
-            while (!inputDone) {
+            try {
+                while (!inputDone) {
+                    checkCancelled();
 
-                boolean eof = false;
-                int index = extractor.getSampleTrackIndex();
-                if (index == trackIndex) {
-                    info.size = extractor.readSampleData(buffer, 0);
+                    boolean eof = false;
+                    int index = source.getSampleTrackIndex();
+                    if (index == sourceTrackIndex) {
+                        ByteBuffer sample = source.getSampleData();
 
-                    if (info.size < 0) {
-                        info.size = 0;
-                        eof = true;
-                    } else {
-                        info.presentationTimeUs = extractor.getSampleTime();
-                        if (start > 0 && startTime == -1) {
-                            startTime = info.presentationTimeUs;
-                        }
-                        if (end < 0 || info.presentationTimeUs < end) {
-                            info.offset = 0;
-                            info.flags = extractor.getSampleFlags();
-                            mediaMuxer.writeSampleData(muxerTrackIndex, buffer, info);
-                            extractor.advance();
-                        } else {
+                        if (sample == null) {
+                            info.size = 0;
                             eof = true;
+                        } else {
+                            info.size = sample.remaining();
+                            info.presentationTimeUs = source.getSampleTime();
+                            if (start > 0 && startTime == -1) {
+                                startTime = info.presentationTimeUs;
+                            }
+                            if (end < 0 || info.presentationTimeUs < end) {
+                                info.offset = sample.position();
+                                info.flags = source.getSampleFlags();
+                                mediaMuxer.writeSampleData(muxerTrackIndex, sample, info.offset, info.size,
+                                        info.presentationTimeUs, info.flags);
+                                source.advance();
+                            } else {
+                                eof = true;
+                            }
                         }
+                    } else if (index == -1) {
+                        eof = true;
+                    }
+                    if (eof) {
+                        inputDone = true;
                     }
-                } else if (index == -1) {
-                    eof = true;
-                }
-                if (eof) {
-                    inputDone = true;
                 }
+            } finally {
+                source.unselectTrack(sourceTrackIndex);
+                source.release();
             }
-
-            extractor.unselectTrack(trackIndex);
             return startTime;
         }
         return -1;
     }
 
+    private SampleSource openSampleSource(MediaExtractor extractor, File inputFile) {
+        try {
+            return new Mp4Demuxer(inputFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Mp4Demuxer can not open " + inputFile + ", fall back to MediaExtractor", e);
+            // the extractor stays owned by this encoder
+            return new ExtractorSampleSource(extractor, false);
+        }
+    }
 
-    private long writeAudioTrack(MediaExtractor extractor, MediaMuxer mediaMuxer, MediaCodec.BufferInfo info, long start, long end, File file,int muxerTrackIndex ) throws Exception {
+    private int selectTrack(SampleSource source, boolean audio) {
+        int numTracks = source.getTrackCount();
+        for (int i = 0; i < numTracks; i++) {
+            TrackFormat format = source.getTrackFormat(i);
+            if (audio ? format.isAudio() : format.isVideo()) {
+                return i;
+            }
+        }
+        return MEDIATYPE_NOT_AUDIO_VIDEO;
+    }
+
+
+    private long writeAudioTrack(MediaExtractor extractor, MuxerBackend mediaMuxer, FrameCodec.BufferInfo info, long start, long end, File file,int muxerTrackIndex ) throws Exception {
         int trackIndex = selectTrack(extractor, true);
         if (trackIndex >= 0) {
             extractor.selectTrack(trackIndex);
@@ -489,6 +564,7 @@ public class VideoSlimEncoder {
             long startTime = -1;
 
             while (!inputDone) {
+                checkCancelled();
 
                 boolean eof = false;
                 int index = extractor.getSampleTrackIndex();
@@ -506,7 +582,8 @@ public class VideoSlimEncoder {
                         if (end < 0 || info.presentationTimeUs < end) {
                             info.offset = 0;
                             info.flags = extractor.getSampleFlags();
-                            mediaMuxer.writeSampleData(muxerTrackIndex, buffer, info);
+                            mediaMuxer.writeSampleData(muxerTrackIndex, buffer, info.offset, info.size,
+                                    info.presentationTimeUs, info.flags);
                             extractor.advance();
                         } else {
                             eof = true;
@@ -527,6 +604,20 @@ public class VideoSlimEncoder {
     }
     
 
+    /**
+     * The displayed size of the source video, from its SPS when it is H.264 so the crop window is
+     * honored, otherwise from the container.
+     */
+    private static int[] getVideoSize(TrackFormat format) {
+        if (MIME_TYPE.equals(format.getMime())) {
+            Sps sps = Sps.fromCsd(format.getCsd(0));
+            if (sps != null) {
+                return new int[]{sps.getWidth(), sps.getHeight()};
+            }
+        }
+        return new int[]{format.getWidth(), format.getHeight()};
+    }
+
     private int selectTrack(MediaExtractor extractor, boolean audio) {
         int numTracks = extractor.getTrackCount();
         for (int i = 0; i < numTracks; i++) {
@@ -550,7 +641,7 @@ public class VideoSlimEncoder {
      * Configures encoder and muxer state, and prepares the input Surface.
      */
     private void prepareEncoder(MediaFormat inputFormat) {
-        mBufferInfo = new MediaCodec.BufferInfo();
+        mBufferInfo = new FrameCodec.BufferInfo();
 
         MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
 
@@ -570,23 +661,29 @@ public class VideoSlimEncoder {
         // you will likely want to defer instantiation of CodecInputSurface until after the
         // "display" EGL context is created, then modify the eglCreateContext call to
         // take eglGetCurrentContext() as the share_context argument.
+        MediaCodec encoder = null;
         try {
-            mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+            encoder = MediaCodec.createEncoderByType(MIME_TYPE);
         } catch (IOException e) {
             e.printStackTrace();
         }
-        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mInputSurface = new CodecInputSurface(mEncoder.createInputSurface());
+        // callbacks have to be set before configure(), both codecs share a lock so one loop can wait on both
+        Object codecLock = new Object();
+        mEncoder = mAsyncCodec ? new AsyncFrameCodec(encoder, "SlimEncodeCallback", codecLock) : new MediaCodecFrameCodec(encoder);
+        encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mInputSurface = new CodecInputSurface(encoder.createInputSurface());
         mInputSurface.makeCurrent();
         mEncoder.start();
 
+        MediaCodec decoder = null;
         try {
-            mDecoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+            decoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
         } catch (IOException e) {
             e.printStackTrace();
         }
         mInputSurface.createRender();
-        mDecoder.configure(inputFormat, mInputSurface.getSurface(), null, 0);
+        mDecoder = mAsyncCodec ? new AsyncFrameCodec(decoder, "SlimDecodeCallback", codecLock) : new MediaCodecFrameCodec(decoder);
+        decoder.configure(inputFormat, mInputSurface.getSurface(), null, 0);
         mDecoder.start();
 
         // Output filename.  Ideally this would use Context.getFilesDir() rather than a
@@ -611,11 +708,17 @@ public class VideoSlimEncoder {
         if (mEncoder != null) {
             mEncoder.stop();
             mEncoder.release();
+            if (mEncoder instanceof AsyncFrameCodec) {
+                mCallbackCpuTimeMs += ((AsyncFrameCodec) mEncoder).getCallbackCpuTimeMs();
+            }
             mEncoder = null;
         }
         if (mDecoder != null) {
             mDecoder.stop();
             mDecoder.release();
+            if (mDecoder instanceof AsyncFrameCodec) {
+                mCallbackCpuTimeMs += ((AsyncFrameCodec) mDecoder).getCallbackCpuTimeMs();
+            }
             mDecoder = null;
         }
         if (mInputSurface != null) {
@@ -624,7 +727,12 @@ public class VideoSlimEncoder {
         }
         if (mMuxer != null) {
 //            MediaMuxerDebugger.showState(mMuxer);
-            mMuxer.stop();
+            try {
+                mMuxer.stop();
+            } catch (IOException | IllegalStateException e) {
+                // MediaMuxer refuses to stop a cancelled muxer that got no samples yet
+                e.printStackTrace();
+            }
             mMuxer.release();
             mMuxer = null;
         }
@@ -1,6 +1,12 @@
 package com.github.boybeak.vcompressor;
 
 
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+
+import com.github.boybeak.mediakit.CompressionScheduler;
+
 /**
  * Video Slimmer
  * a library to convert video to smaller mp4 file
@@ -8,13 +14,69 @@ package com.github.boybeak.vcompressor;
  */
 public class VideoSlimmer {
 
+    private static CompressionScheduler sScheduler;
 
     public static VideoSlimTask convertVideo(String srcPath, String destPath, int outputWidth, int outputHeight, int bitrate, ProgressListener listener) {
+        return convertVideo(srcPath, destPath, outputWidth, outputHeight, bitrate, CompressionScheduler.Priority.USER_INITIATED, listener);
+    }
+
+    /**
+     * Queues the conversion on {@link #getScheduler()}, ahead of every queued task with a lower priority.
+     */
+    public static VideoSlimTask convertVideo(String srcPath, String destPath, int outputWidth, int outputHeight, int bitrate,
+                                             CompressionScheduler.Priority priority, ProgressListener listener) {
         VideoSlimTask task = new VideoSlimTask(listener);
-        task.execute(srcPath, destPath, outputWidth, outputHeight, bitrate);
+        task.executeOnExecutor(getScheduler().asExecutor(priority), srcPath, destPath, outputWidth, outputHeight, bitrate);
         return task;
     }
 
+    /**
+     * The scheduler conversions run on, {@link #getDefaultWorkerCount()} at a time unless changed
+     * with {@link CompressionScheduler#setWorkerCount(int)}.
+     */
+    public static synchronized CompressionScheduler getScheduler() {
+        if (sScheduler == null) {
+            sScheduler = new CompressionScheduler(getDefaultWorkerCount());
+        }
+        return sScheduler;
+    }
+
+    /**
+     * Every conversion holds an AVC decoder and encoder, so this is the smaller of their supported
+     * instance counts, capped at half the CPU cores and at least 1.
+     */
+    public static int getDefaultWorkerCount() {
+        int instances = Math.min(getMaxSupportedInstances(VideoSlimEncoder.MIME_TYPE, false),
+                getMaxSupportedInstances(VideoSlimEncoder.MIME_TYPE, true));
+        int cpus = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(instances, cpus / 2));
+    }
+
+    /**
+     * @return how many instances the first codec for the type supports, 1 below API 23 where it can not be queried
+     */
+    private static int getMaxSupportedInstances(String mime, boolean encoder) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return 1;
+        }
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo codecInfo : codecList.getCodecInfos()) {
+            if (codecInfo.isEncoder() != encoder) {
+                continue;
+            }
+            for (String type : codecInfo.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mime)) {
+                    try {
+                        return Math.max(1, codecInfo.getCapabilitiesForType(mime).getMaxSupportedInstances());
+                    } catch (IllegalArgumentException e) {
+                        return 1;
+                    }
+                }
+            }
+        }
+        return 1;
+    }
+
 
     public static interface ProgressListener {
 
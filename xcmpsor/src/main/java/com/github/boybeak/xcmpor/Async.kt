@@ -3,22 +3,30 @@ package com.github.boybeak.xcmpor
 import android.os.AsyncTask
 import android.os.Handler
 import android.os.Looper
+import java.util.concurrent.Executor
 
-fun <O> async(block: (ProgressUpdater) -> O): Async<Unit, O> {
-    return async(Unit) { progressUpdater, _ ->
+/**
+ * @param executor 在哪里执行，为null时使用AsyncTask默认的串行executor
+ */
+fun <O> async(executor: Executor? = null, block: (ProgressUpdater) -> O): Async<Unit, O> {
+    return async(Unit, executor) { progressUpdater, _ ->
         block.invoke(progressUpdater)
     }
 }
 
-fun <I, O> async(params: I, block: (ProgressUpdater, input: I) -> O): Async<I, O> {
-    return Async(params, block)
+fun <I, O> async(params: I, executor: Executor? = null, block: (ProgressUpdater, input: I) -> O): Async<I, O> {
+    return Async(params, block, executor)
 }
 
 interface ProgressUpdater {
     fun updateProgress(progress: Int)
 }
 
-class Async<I, O>(private val input: I, private val block: (ProgressUpdater, input: I) -> O) : AsyncTask<I, Int, O>(){
+class Async<I, O>(
+    private val input: I,
+    private val block: (ProgressUpdater, input: I) -> O,
+    private val executor: Executor? = null
+) : AsyncTask<I, Int, O>(){
 
     private var onStart: (() -> Unit)? = null
     private var onProgress: ((Int) -> Unit)? = null
@@ -41,11 +49,14 @@ class Async<I, O>(private val input: I, private val block: (ProgressUpdater, inp
             block.invoke(progressUpdater, params[0])
         } catch (e: Throwable) {
             e.printStackTrace()
-            mainHandler.post {
-                onError?.invoke(e)
-                onComplete?.invoke()
-                isExecuting = false
-                clear()
+            // cancel(true)中断了任务，由onCancelled回调，不算出错
+            if (!isCancelled) {
+                mainHandler.post {
+                    onError?.invoke(e)
+                    onComplete?.invoke()
+                    isExecuting = false
+                    clear()
+                }
             }
             null
         }
@@ -88,7 +99,11 @@ class Async<I, O>(private val input: I, private val block: (ProgressUpdater, inp
     }
 
     fun start(): Async<I, O> {
-        execute(input)
+        if (executor != null) {
+            executeOnExecutor(executor, input)
+        } else {
+            execute(input)
+        }
         return this
     }
 
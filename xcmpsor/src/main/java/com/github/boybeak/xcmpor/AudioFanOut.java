@@ -0,0 +1,38 @@
+package com.github.boybeak.xcmpor;
+
+import com.github.boybeak.mediakit.MuxerBackend;
+import com.github.boybeak.mediakit.SampleSink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 多路输出时把同一份音频样本写到每一路的音频轨，音频只需要读取、解码、混音、编码一次。
+ * 只负责写入，各路muxer的addTrack、start、release仍由各自的调用方负责
+ */
+final class AudioFanOut implements SampleSink {
+
+    private final MuxerBackend[] mMuxers;
+    private final int[] mTrackIndices;
+
+    /**
+     * @param trackIndices 每一路muxer上音频轨的序号，和muxers一一对应
+     */
+    AudioFanOut(MuxerBackend[] muxers, int[] trackIndices) {
+        if (muxers.length != trackIndices.length) {
+            throw new IllegalArgumentException(muxers.length + " muxers but " + trackIndices.length + " track indices");
+        }
+        mMuxers = muxers;
+        mTrackIndices = trackIndices;
+    }
+
+    /**
+     * trackIndex被忽略，写到构造时传入的各路音频轨。写入不改动buffer的position和limit，同一个buffer可以依次写给每一路
+     */
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, int offset, int size, long presentationTimeUs, int flags) throws IOException {
+        for (int i = 0; i < mMuxers.length; i++) {
+            mMuxers[i].writeSampleData(mTrackIndices[i], data, offset, size, presentationTimeUs, flags);
+        }
+    }
+}
@@ -1,14 +1,17 @@
 package com.github.boybeak.xcmpor;
 
 import android.content.Context;
-import android.media.MediaExtractor;
-import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.os.Build;
+import android.os.SystemClock;
 
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
+import com.github.boybeak.mediakit.CancellationToken;
+import com.github.boybeak.mediakit.SampleSink;
+import com.github.boybeak.mediakit.SampleSource;
+
+import java.io.IOException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -20,13 +23,22 @@ public class AudioProcessThread extends Thread implements VideoProgressListener
     private final Integer mEndTimeMs;
     private final Context mContext;
     private Exception mException;
-    private final MediaMuxer mMuxer;
+    private final SampleSink mMuxer;
     private final int mMuxerAudioTrackIndex;
-    private final MediaExtractor mExtractor;
+    private SampleSource mSource;
     private final CountDownLatch mMuxerStartLatch;
     private VideoProgressAve mProgressAve;
+    private long mCpuTimeMs;
+    private CancellationToken mToken = new CancellationToken();
+    private AudioTranscoder.Target mTranscodeTarget;
+    private VideoProcessor.MediaSource mMixAudio;
+    private SampleSource mMixSource;
+    private float mGain = 1;
+    private float mMixGain = 1;
+    private long mMixDurationUs;
+    private long[] mRangesUs;
 
-    public AudioProcessThread(Context context, VideoProcessor.MediaSource mediaSource, MediaMuxer muxer,
+    public AudioProcessThread(Context context, VideoProcessor.MediaSource mediaSource, SampleSink muxer,
                               @Nullable Integer startTimeMs, @Nullable Integer endTimeMs, int muxerAudioTrackIndex,
                               CountDownLatch muxerStartLatch
 
@@ -38,7 +50,6 @@ public class AudioProcessThread extends Thread implements VideoProgressListener
         mMuxer = muxer;
         mContext = context;
         mMuxerAudioTrackIndex = muxerAudioTrackIndex;
-        mExtractor = new MediaExtractor();
         mMuxerStartLatch = muxerStartLatch;
     }
 
@@ -52,38 +63,118 @@ public class AudioProcessThread extends Thread implements VideoProgressListener
             e.printStackTrace();
             mException = e;
         } finally {
-            mExtractor.release();
+            if (mSource != null) {
+                mSource.release();
+            }
+            if (mMixSource != null) {
+                mMixSource.release();
+            }
+            mCpuTimeMs = SystemClock.currentThreadTimeMillis();
+            if (mException != null) {
+                mToken.fail(mException);
+            }
         }
     }
 
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     private void doProcessAudio() throws Exception {
-        mMediaSource.setDataSource(mExtractor);
-        int audioTrackIndex = VideoUtil.selectTrack(mExtractor, true);
-        if (audioTrackIndex >= 0) {
-            //处理音频
-            mExtractor.selectTrack(audioTrackIndex);
-            MediaFormat mediaFormat = mExtractor.getTrackFormat(audioTrackIndex);
-            String inputMimeType = mediaFormat.containsKey(MediaFormat.KEY_MIME)?mediaFormat.getString(MediaFormat.KEY_MIME):MediaFormat.MIMETYPE_AUDIO_AAC;
-            String outputMimeType = MediaFormat.MIMETYPE_AUDIO_AAC;
+        mSource = mMediaSource.openSampleSource();
+        int audioTrackIndex = VideoUtil.selectTrack(mSource, true);
+        if (audioTrackIndex >= 0 || mMixAudio != null) {
             //音频暂不支持变速
-            Integer startTimeUs = mStartTimeMs == null ? null : mStartTimeMs * 1000;
-            Integer endTimeUs = mEndTimeMs == null ? null : mEndTimeMs * 1000;
+            Long startTimeUs = mStartTimeMs == null ? null : mStartTimeMs * 1000L;
+            Long endTimeUs = mEndTimeMs == null ? null : mEndTimeMs * 1000L;
             boolean await = mMuxerStartLatch.await(3, TimeUnit.SECONDS);
+            //取消时latch也会被countDown
+            mToken.throwIfCancelled();
             if (!await) {
                 throw new TimeoutException("wait muxerStartLatch timeout!");
             }
-            AudioUtil.writeAudioTrack(mExtractor, mMuxer, mMuxerAudioTrackIndex, startTimeUs, endTimeUs, this);
+            if (mRangesUs != null) {
+                processRanges(audioTrackIndex);
+            } else if (mMixAudio != null) {
+                mMixSource = mMixAudio.openSampleSource();
+                int mixTrackIndex = VideoUtil.selectTrack(mMixSource, true);
+                new AudioTranscoder(mTranscodeTarget).mix(audioTrackIndex >= 0 ? mSource : null, audioTrackIndex,
+                        mMixSource, mixTrackIndex, startTimeUs == null ? 0 : startTimeUs,
+                        endTimeUs == null ? null : endTimeUs.longValue(), mMixDurationUs, mGain, mMixGain,
+                        VideoProcessor.AUDIO_MIX_REPEAT, mMuxer, mMuxerAudioTrackIndex, this, mToken);
+            } else if (mTranscodeTarget != null) {
+                new AudioTranscoder(mTranscodeTarget).transcode(mSource, audioTrackIndex, mMuxer, mMuxerAudioTrackIndex,
+                        startTimeUs == null ? 0 : startTimeUs, endTimeUs == null ? null : endTimeUs.longValue(), this, mToken);
+            } else {
+                AudioUtil.writeAudioTrack(mSource, mMuxer, mMuxerAudioTrackIndex, startTimeUs == null ? 0 : startTimeUs, endTimeUs,
+                        0, this, mToken);
+            }
         }
         if (mProgressAve != null) {
             mProgressAve.setAudioProgress(1);
         }
     }
 
+    /**
+     * 多段拼接：各段依次接在前一段之后，重新编码时整个过程只用一个解码器和一个编码器
+     */
+    private void processRanges(int audioTrackIndex) throws IOException {
+        if (mMixAudio != null) {
+            mMixSource = mMixAudio.openSampleSource();
+            int mixTrackIndex = VideoUtil.selectTrack(mMixSource, true);
+            new AudioTranscoder(mTranscodeTarget).mix(audioTrackIndex >= 0 ? mSource : null, audioTrackIndex,
+                    mMixSource, mixTrackIndex, mRangesUs, mMixDurationUs, mGain, mMixGain,
+                    VideoProcessor.AUDIO_MIX_REPEAT, mMuxer, mMuxerAudioTrackIndex, this, mToken);
+        } else if (mTranscodeTarget != null) {
+            new AudioTranscoder(mTranscodeTarget).transcode(mSource, audioTrackIndex, mMuxer, mMuxerAudioTrackIndex,
+                    mRangesUs, VideoUtil.getRangesDurationUs(mRangesUs), this, mToken);
+        } else {
+            AudioUtil.writeAudioRanges(mSource, mMuxer, mMuxerAudioTrackIndex, mRangesUs, this, mToken);
+        }
+    }
+
     public Exception getException() {
         return mException;
     }
 
+    /**
+     * @return 本线程用掉的CPU时间，线程结束后有效
+     */
+    public long getCpuTimeMs() {
+        return mCpuTimeMs;
+    }
+
+    /**
+     * 原音频不符合目标时重新编码，为null时直接拷贝压缩数据
+     */
+    public void setTranscodeTarget(@Nullable AudioTranscoder.Target target) {
+        mTranscodeTarget = target;
+    }
+
+    /**
+     * 混入背景音频，需要同时设置{@link #setTranscodeTarget}
+     *
+     * @param gain       原音频的增益
+     * @param mixGain    背景音频的增益
+     * @param durationUs 输出音频时长，原视频没有音轨时按它截取背景音频
+     */
+    public void setMixAudio(VideoProcessor.MediaSource mixAudio, float gain, float mixGain, long durationUs) {
+        mMixAudio = mixAudio;
+        mGain = gain;
+        mMixGain = mixGain;
+        mMixDurationUs = durationUs;
+    }
+
+    /**
+     * 按顺序截取多段拼接，设置后忽略构造时传入的起止时间
+     *
+     * @param rangesUs 每两个一组依次为各段的起点和终点
+     */
+    public void setRanges(@Nullable long[] rangesUs) {
+        mRangesUs = rangesUs;
+    }
+
+    public void setCancellationToken(CancellationToken token) {
+        mToken = token;
+    }
+
     public void setProgressAve(VideoProgressAve progressAve) {
         mProgressAve = progressAve;
     }
@@ -0,0 +1,383 @@
+package com.github.boybeak.xcmpor;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import com.github.boybeak.mediakit.CancellationToken;
+import com.github.boybeak.mediakit.FrameCodec;
+import com.github.boybeak.mediakit.SampleSink;
+import com.github.boybeak.mediakit.SampleSource;
+import com.github.boybeak.mediakit.TrackFormat;
+import com.github.boybeak.mediakit.aac.AacConfig;
+import com.github.boybeak.mediakit.aac.AudioSpecificConfig;
+import com.github.boybeak.mediakit.android.MediaCodecFrameCodec;
+import com.github.boybeak.mediakit.audio.OpusHead;
+import com.github.boybeak.mediakit.audio.PcmMixer;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * 音频重新编码：解码 → PCM转换(下混到单声道/立体声、重采样) → 混入背景音频(可选) → AAC-LC或Opus编码。
+ * 只在原音频的编码格式、码率、声道数或采样率不符合目标，或者需要混音时使用，否则{@link AudioUtil#writeAudioTrack}直接拷贝更快
+ */
+public class AudioTranscoder {
+
+    private static final int TIMEOUT_USEC = 2500;
+    private static final int MAX_INPUT_SIZE = 64 * 1024;
+
+    /**
+     * 输出音频的编码格式
+     */
+    public enum Codec {
+        AAC,
+        /**
+         * 需要Android 10以上(编码器和MediaMuxer都要求)，否则退回AAC
+         */
+        OPUS
+    }
+
+    /**
+     * 输出音频的参数
+     */
+    public static class Target {
+
+        private final Codec codec;
+        private final int sampleRate;
+        private final int channelCount;
+        private final int bitrate;
+
+        public Target(Codec codec, int sampleRate, int channelCount, int bitrate) {
+            this.codec = codec;
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+            this.bitrate = bitrate;
+        }
+
+        /**
+         * 未指定的参数沿用原音频，声道数最多为2，Opus固定为48kHz
+         *
+         * @param sourceBitrate 原音频码率，未知时为0
+         */
+        public static Target resolve(TrackFormat source, int sourceBitrate, @Nullable Codec codec,
+                                     @Nullable Integer bitrate, @Nullable Integer channelCount,
+                                     @Nullable Integer sampleRate) {
+            if (codec == null || (codec == Codec.OPUS && Build.VERSION.SDK_INT < Build.VERSION_CODES.Q)) {
+                codec = Codec.AAC;
+            }
+            int channels = channelCount != null ? channelCount : Math.min(Math.max(outputChannelCount(source), 1), 2);
+            int rate;
+            if (codec == Codec.OPUS) {
+                rate = 48000;
+            } else if (sampleRate != null) {
+                rate = sampleRate;
+            } else {
+                int sourceRate = outputSampleRate(source);
+                rate = AacConfig.samplingFrequencyIndex(sourceRate) >= 0 ? sourceRate : 44100;
+            }
+            int targetBitrate = bitrate != null ? bitrate : sourceBitrate > 0 ? sourceBitrate : VideoProcessor.DEFAULT_AAC_BITRATE;
+            return new Target(codec, rate, channels, targetBitrate);
+        }
+
+        public String getMime() {
+            return codec == Codec.OPUS ? TrackFormat.MIMETYPE_AUDIO_OPUS : TrackFormat.MIMETYPE_AUDIO_AAC;
+        }
+
+        public Codec getCodec() {
+            return codec;
+        }
+
+        public int getSampleRate() {
+            return sampleRate;
+        }
+
+        public int getChannelCount() {
+            return channelCount;
+        }
+
+        public int getBitrate() {
+            return bitrate;
+        }
+
+        /**
+         * 原音频能否直接拷贝：编码格式相同，解码输出的声道数、采样率相同，码率不高于目标。
+         * 拷贝时沿用原csd，所以HE-AAC/HE-AACv2也可以直接拷贝；csd无法解析的AAC重新编码
+         *
+         * @param sourceBitrate 原音频码率，未知时视为符合
+         */
+        public boolean fits(TrackFormat source, int sourceBitrate) {
+            if (!getMime().equals(source.getMime())) {
+                return false;
+            }
+            if (codec == Codec.AAC && AudioSpecificConfig.parse(source.getCsd(0)) == null) {
+                return false;
+            }
+            if (outputChannelCount(source) != channelCount || (codec == Codec.AAC && outputSampleRate(source) != sampleRate)) {
+                return false;
+            }
+            return sourceBitrate <= 0 || sourceBitrate <= bitrate;
+        }
+
+        /**
+         * HE-AACv2的参数立体声在单声道的core上还原出立体声，以csd为准
+         */
+        private static int outputChannelCount(TrackFormat source) {
+            AudioSpecificConfig config = TrackFormat.MIMETYPE_AUDIO_AAC.equals(source.getMime())
+                    ? AudioSpecificConfig.parse(source.getCsd(0)) : null;
+            return config != null && config.getOutputChannelCount() > 0 ? config.getOutputChannelCount() : source.getChannelCount();
+        }
+
+        /**
+         * 显式声明SBR的HE-AAC，容器里的采样率可能是core的一半，以csd为准
+         */
+        private static int outputSampleRate(TrackFormat source) {
+            AudioSpecificConfig config = TrackFormat.MIMETYPE_AUDIO_AAC.equals(source.getMime())
+                    ? AudioSpecificConfig.parse(source.getCsd(0)) : null;
+            return config != null && config.getOutputSampleRate() > 0 ? config.getOutputSampleRate() : source.getSampleRate();
+        }
+
+        /**
+         * 编码器输出的格式，csd提前按参数生成，这样muxer不用等编码器就能addTrack
+         */
+        public TrackFormat createTrackFormat() {
+            TrackFormat format = TrackFormat.createAudioFormat(getMime(), sampleRate, channelCount);
+            format.setBitrate(bitrate);
+            if (codec == Codec.OPUS) {
+                format.setCsd(0, OpusHead.create(channelCount, OpusHead.DEFAULT_PRE_SKIP, sampleRate));
+                format.setCsd(1, OpusHead.nanos(OpusHead.preSkipNanos(OpusHead.DEFAULT_PRE_SKIP)));
+                format.setCsd(2, OpusHead.nanos(OpusHead.DEFAULT_SEEK_PRE_ROLL_NS));
+            } else {
+                format.setCsd(0, AacConfig.create(AacConfig.PROFILE_LC, sampleRate, channelCount));
+            }
+            return format;
+        }
+
+        MediaFormat createEncoderFormat() {
+            MediaFormat format = MediaFormat.createAudioFormat(getMime(), sampleRate, channelCount);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+            format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, MAX_INPUT_SIZE);
+            if (codec == Codec.AAC) {
+                format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+            }
+            return format;
+        }
+
+        @Override
+        public String toString() {
+            return "Target{" + codec + ", " + sampleRate + "Hz, " + channelCount + "ch, " + bitrate + "bps}";
+        }
+    }
+
+    /**
+     * 每次从解码端拉取、混音、送入编码器的帧数
+     */
+    private static final int BLOCK_FRAMES = 1024;
+
+    private final Target mTarget;
+    private long mQueuedFrames;
+
+    public AudioTranscoder(Target target) {
+        mTarget = target;
+    }
+
+    /**
+     * 把source中的音频轨[startTimeUs, endTimeUs]重新编码写入muxer，时间戳从0开始
+     *
+     * @param endTimeUs 为null时到音频结束
+     * @param token     每轮循环检查一次
+     * @return 最后一帧的时间戳
+     */
+    public long transcode(SampleSource source, int audioTrack, SampleSink muxer, int muxerTrack,
+                          long startTimeUs, @Nullable Long endTimeUs, @Nullable VideoProgressListener listener,
+                          CancellationToken token) throws IOException {
+        long durationUs = (endTimeUs == null ? source.getTrackFormat(audioTrack).getDurationUs() : endTimeUs) - startTimeUs;
+        return transcode(source, audioTrack, muxer, muxerTrack, new long[]{startTimeUs, endTimeUs == null ? -1 : endTimeUs},
+                durationUs, listener, token);
+    }
+
+    /**
+     * 把source中的音频轨按顺序截取多段，首尾衔接后重新编码写入muxer，时间戳从0开始。
+     * 整个过程只用一个解码器和一个编码器，段与段之间解码器seek后flush
+     *
+     * @param rangesUs   每两个一组依次为各段的起点和终点，只有最后一段的终点可以为-1
+     * @param durationUs 各段的总时长，用于计算进度
+     */
+    public long transcode(SampleSource source, int audioTrack, SampleSink muxer, int muxerTrack,
+                          long[] rangesUs, long durationUs, @Nullable VideoProgressListener listener,
+                          CancellationToken token) throws IOException {
+        PcmDecoder decoder = new PcmDecoder(source, audioTrack, rangesUs, false,
+                mTarget.getSampleRate(), mTarget.getChannelCount());
+        try {
+            return encode(decoder, null, null, -1, durationUs, muxer, muxerTrack, listener, token);
+        } finally {
+            decoder.release();
+        }
+    }
+
+    /**
+     * 把背景音频混入原音频后编码写入muxer，时间戳从0开始。两路都按块边解码边混音，内存不随音频长度增长。
+     * 背景音频不够长时按repeat从头重复或以静音补齐，超出的部分丢弃
+     *
+     * @param source     原音频，为null时只输出背景音频，长度为durationUs
+     * @param endTimeUs  原音频的结束位置，为null时到音频结束
+     * @param durationUs 输出时长，用于计算进度和没有原音频时的长度
+     * @param gain       原音频的增益
+     * @param mixGain    背景音频的增益
+     */
+    public long mix(@Nullable SampleSource source, int audioTrack, SampleSource mixSource, int mixTrack,
+                    long startTimeUs, @Nullable Long endTimeUs, long durationUs, float gain, float mixGain,
+                    boolean repeat, SampleSink muxer, int muxerTrack, @Nullable VideoProgressListener listener,
+                    CancellationToken token) throws IOException {
+        return mix(source, audioTrack, mixSource, mixTrack, new long[]{startTimeUs, endTimeUs == null ? -1 : endTimeUs},
+                durationUs, gain, mixGain, repeat, muxer, muxerTrack, listener, token);
+    }
+
+    /**
+     * 同{@link #mix(SampleSource, int, SampleSource, int, long, Long, long, float, float, boolean, SampleSink, int, VideoProgressListener, CancellationToken)}，
+     * 原音频按顺序截取多段首尾衔接，背景音频连续铺满整个输出
+     *
+     * @param rangesUs 原音频每两个一组依次为各段的起点和终点，只有最后一段的终点可以为-1
+     */
+    public long mix(@Nullable SampleSource source, int audioTrack, SampleSource mixSource, int mixTrack,
+                    long[] rangesUs, long durationUs, float gain, float mixGain,
+                    boolean repeat, SampleSink muxer, int muxerTrack, @Nullable VideoProgressListener listener,
+                    CancellationToken token) throws IOException {
+        int rate = mTarget.getSampleRate();
+        int channels = mTarget.getChannelCount();
+        PcmDecoder main = null;
+        PcmDecoder mix = null;
+        try {
+            mix = new PcmDecoder(mixSource, mixTrack, 0, null, repeat, rate, channels);
+            if (source == null) {
+                return encode(mix, null, new PcmMixer(mixGain, 0), durationUs * rate / 1000000,
+                        durationUs, muxer, muxerTrack, listener, token);
+            }
+            main = new PcmDecoder(source, audioTrack, rangesUs, false, rate, channels);
+            return encode(main, mix, new PcmMixer(gain, mixGain), -1, durationUs, muxer, muxerTrack, listener, token);
+        } finally {
+            if (main != null) {
+                main.release();
+            }
+            if (mix != null) {
+                mix.release();
+            }
+        }
+    }
+
+    /**
+     * 按块从main拉取PCM，有mixer时混入mix，送入编码器，编码输出写入muxer，直到main结束
+     *
+     * @param maxFrames 最多编码的帧数，<0表示不限
+     */
+    private long encode(PcmDecoder main, @Nullable PcmDecoder mix, @Nullable PcmMixer mixer, long maxFrames,
+                        long durationUs, SampleSink muxer, int muxerTrack,
+                        @Nullable VideoProgressListener listener, CancellationToken token) throws IOException {
+        int channels = mTarget.getChannelCount();
+        long totalFrames = durationUs * mTarget.getSampleRate() / 1000000;
+        FrameCodec encoder = null;
+        try {
+            MediaCodec encoderCodec = MediaCodec.createEncoderByType(mTarget.getMime());
+            encoder = new MediaCodecFrameCodec(encoderCodec);
+            encoderCodec.configure(mTarget.createEncoderFormat(), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            encoder.start();
+
+            short[] block = new short[BLOCK_FRAMES * channels];
+            short[] mixBlock = mix == null ? null : new short[block.length];
+            int blockOffset = 0;
+            int blockCount = 0;
+            boolean readDone = false;
+            boolean encodeInputDone = false;
+            FrameCodec.BufferInfo info = new FrameCodec.BufferInfo();
+            long lastTimeUs = 0;
+            while (true) {
+                token.throwIfCancelled();
+                //上一块全部送入编码器后才取下一块
+                if (blockOffset == blockCount && !readDone) {
+                    int samples = maxFrames < 0 ? block.length : (int) Math.min(block.length, (maxFrames - mQueuedFrames) * channels);
+                    int count = samples > 0 ? main.read(block, 0, samples, token) : -1;
+                    if (count <= 0) {
+                        readDone = true;
+                    } else {
+                        if (mixer != null) {
+                            int mixCount = mix == null ? 0 : Math.max(mix.read(mixBlock, 0, count, token), 0);
+                            if (mixBlock != null) {
+                                //背景音频结束后以静音补齐
+                                Arrays.fill(mixBlock, mixCount, count, (short) 0);
+                            }
+                            mixer.mix(block, 0, mixBlock, 0, count);
+                        }
+                        blockOffset = 0;
+                        blockCount = count;
+                        if (listener != null && totalFrames > 0) {
+                            listener.onProgress(Math.min(1f, mQueuedFrames / (float) totalFrames));
+                        }
+                    }
+                }
+                //送入编码器
+                if (!encodeInputDone && (blockOffset < blockCount || readDone)) {
+                    int index = encoder.dequeueInputBuffer(TIMEOUT_USEC);
+                    if (index >= 0) {
+                        if (blockOffset == blockCount) {
+                            encoder.queueInputBuffer(index, 0, 0, presentationTimeUs(), FrameCodec.BUFFER_FLAG_END_OF_STREAM);
+                            encodeInputDone = true;
+                        } else {
+                            ByteBuffer input = encoder.getInputBuffer(index);
+                            input.clear();
+                            int count = Math.min(blockCount - blockOffset, input.remaining() / 2 / channels * channels);
+                            input.order(ByteOrder.nativeOrder()).asShortBuffer().put(block, blockOffset, count);
+                            encoder.queueInputBuffer(index, 0, count * 2, presentationTimeUs(), 0);
+                            mQueuedFrames += count / channels;
+                            blockOffset += count;
+                        }
+                    }
+                }
+                //编码输出写入muxer
+                int index = encoder.dequeueOutputBuffer(info, TIMEOUT_USEC);
+                if (index >= 0) {
+                    //csd已经在addTrack时给出
+                    if ((info.flags & FrameCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                        ByteBuffer data = encoder.getOutputBuffer(index);
+                        muxer.writeSampleData(muxerTrack, data, info.offset, info.size, info.presentationTimeUs,
+                                info.flags & ~FrameCodec.BUFFER_FLAG_END_OF_STREAM);
+                        lastTimeUs = info.presentationTimeUs;
+                    }
+                    encoder.releaseOutputBuffer(index, false);
+                    if ((info.flags & FrameCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        break;
+                    }
+                }
+            }
+            if (listener != null) {
+                listener.onProgress(1);
+            }
+            return lastTimeUs;
+        } finally {
+            release(encoder);
+        }
+    }
+
+    /**
+     * 按送入编码器的帧数计算时间戳，重采样后原时间戳不再和样本对应
+     */
+    private long presentationTimeUs() {
+        return mQueuedFrames * 1000000L / mTarget.getSampleRate();
+    }
+
+    static void release(@Nullable FrameCodec codec) {
+        if (codec == null) {
+            return;
+        }
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+        }
+        codec.release();
+    }
+}
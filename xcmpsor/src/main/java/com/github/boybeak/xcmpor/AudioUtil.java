@@ -1,35 +1,26 @@
 package com.github.boybeak.xcmpor;
 
-import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
 
+import androidx.annotation.Nullable;
+
+import com.github.boybeak.mediakit.CancellationToken;
+import com.github.boybeak.mediakit.SampleSink;
+import com.github.boybeak.mediakit.SampleSource;
+import com.github.boybeak.mediakit.TrackFormat;
+import com.github.boybeak.mediakit.aac.AacConfig;
+import com.github.boybeak.mediakit.aac.AudioSpecificConfig;
+import com.github.boybeak.mediakit.android.ExtractorSampleSource;
+import com.github.boybeak.mediakit.android.MediaMuxerBackend;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
 
 public class AudioUtil {
-    private final static Map<Integer, Integer> freqIdxMap = new HashMap<Integer, Integer>();
-
-    static {
-        freqIdxMap.put(96000, 0);
-        freqIdxMap.put(88200, 1);
-        freqIdxMap.put(64000, 2);
-        freqIdxMap.put(48000, 3);
-        freqIdxMap.put(44100, 4);
-        freqIdxMap.put(32000, 5);
-        freqIdxMap.put(24000, 6);
-        freqIdxMap.put(22050, 7);
-        freqIdxMap.put(16000, 8);
-        freqIdxMap.put(12000, 9);
-        freqIdxMap.put(11025, 10);
-        freqIdxMap.put(8000, 11);
-        freqIdxMap.put(7350, 12);
-    }
-
     final static String TAG = "VideoProcessor";
+    final static int DEFAULT_MAX_BUFFER_SIZE = 100 * 1000;
     public static int VOLUMN_MAX_RATIO = 1;
 
     public static long writeAudioTrack(MediaExtractor extractor, MediaMuxer mediaMuxer, int muxerAudioTrackIndex,
@@ -37,31 +28,57 @@ public class AudioUtil {
         return writeAudioTrack(extractor, mediaMuxer, muxerAudioTrackIndex, startTimeUs, endTimeUs, 0, listener);
     }
 
+    public static long writeAudioTrack(SampleSource source, SampleSink muxer, int muxerAudioTrackIndex,
+                                       Integer startTimeUs, Integer endTimeUs, VideoProgressListener listener) throws IOException {
+        return writeAudioTrack(source, muxer, muxerAudioTrackIndex, startTimeUs, endTimeUs, 0, listener);
+    }
+
+    public static long writeAudioTrack(MediaExtractor extractor, MediaMuxer mediaMuxer, int muxerAudioTrackIndex,
+                                       Integer startTimeUs, Integer endTimeUs, long baseMuxerFrameTimeUs, VideoProgressListener listener) throws IOException {
+        return writeAudioTrack(new ExtractorSampleSource(extractor, false), new MediaMuxerBackend(mediaMuxer, false),
+                muxerAudioTrackIndex, startTimeUs, endTimeUs, baseMuxerFrameTimeUs, listener);
+    }
+
+    public static long writeAudioTrack(SampleSource source, SampleSink muxer, int muxerAudioTrackIndex,
+                                       Integer startTimeUs, Integer endTimeUs, long baseMuxerFrameTimeUs, VideoProgressListener listener) throws IOException {
+        return writeAudioTrack(source, muxer, muxerAudioTrackIndex, startTimeUs, endTimeUs, baseMuxerFrameTimeUs, listener, new CancellationToken());
+    }
+
     /**
      * 不需要改变音频速率的情况下，直接读写就可
+     *
+     * @param token 每写一帧前检查一次
      */
-    public static long writeAudioTrack(MediaExtractor extractor, MediaMuxer mediaMuxer, int muxerAudioTrackIndex,
-                                       Integer startTimeUs, Integer endTimeUs, long baseMuxerFrameTimeUs, VideoProgressListener listener) throws IOException {
-        int audioTrack = VideoUtil.selectTrack(extractor, true);
-        extractor.selectTrack(audioTrack);
-        if (startTimeUs == null) {
-            startTimeUs = 0;
-        }
-        extractor.seekTo(startTimeUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
-        MediaFormat audioFormat = extractor.getTrackFormat(audioTrack);
-        long durationUs = audioFormat.getLong(MediaFormat.KEY_DURATION);
-        int maxBufferSize = audioFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
-        ByteBuffer buffer = ByteBuffer.allocateDirect(maxBufferSize);
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    public static long writeAudioTrack(SampleSource source, SampleSink muxer, int muxerAudioTrackIndex,
+                                       Integer startTimeUs, Integer endTimeUs, long baseMuxerFrameTimeUs, VideoProgressListener listener,
+                                       CancellationToken token) throws IOException {
+        return writeAudioTrack(source, muxer, muxerAudioTrackIndex, startTimeUs == null ? 0 : startTimeUs,
+                endTimeUs == null ? null : Long.valueOf(endTimeUs), baseMuxerFrameTimeUs, listener, token);
+    }
+
+    /**
+     * 和上面相同，起止时间用long表示，超过约35分钟(2^31微秒)的时间点不会溢出
+     *
+     * @param endTimeUs 为null时一直写到音轨结束
+     */
+    public static long writeAudioTrack(SampleSource source, SampleSink muxer, int muxerAudioTrackIndex,
+                                       long startTimeUs, @Nullable Long endTimeUs, long baseMuxerFrameTimeUs, VideoProgressListener listener,
+                                       CancellationToken token) throws IOException {
+        int audioTrack = VideoUtil.selectTrack(source, true);
+        source.selectTrack(audioTrack);
+        source.seekTo(startTimeUs, SampleSource.SEEK_TO_CLOSEST_SYNC);
+        TrackFormat audioFormat = source.getTrackFormat(audioTrack);
+        long durationUs = audioFormat.getDurationUs();
 
         long lastFrametimeUs = baseMuxerFrameTimeUs;
         while (true) {
-            long sampleTimeUs = extractor.getSampleTime();
+            token.throwIfCancelled();
+            long sampleTimeUs = source.getSampleTime();
             if (sampleTimeUs == -1) {
                 break;
             }
             if (sampleTimeUs < startTimeUs) {
-                extractor.advance();
+                source.advance();
                 continue;
             }
             if (endTimeUs != null && sampleTimeUs > endTimeUs) {
@@ -73,24 +90,46 @@ public class AudioUtil {
                 progress = progress > 1 ? 1 : progress;
                 listener.onProgress(progress);
             }
-            info.presentationTimeUs = sampleTimeUs - startTimeUs + baseMuxerFrameTimeUs;
-            info.flags = extractor.getSampleFlags();
-            info.size = extractor.readSampleData(buffer, 0);
-            if (info.size < 0) {
+            //mp4直接映射的情况下拿到的是文件内容的切片，不发生拷贝
+            ByteBuffer sample = source.getSampleData();
+            if (sample == null) {
                 break;
             }
-            mediaMuxer.writeSampleData(muxerAudioTrackIndex, buffer, info);
-            lastFrametimeUs = info.presentationTimeUs;
-            extractor.advance();
+            long presentationTimeUs = sampleTimeUs - startTimeUs + baseMuxerFrameTimeUs;
+            muxer.writeSampleData(muxerAudioTrackIndex, sample, sample.position(), sample.remaining(),
+                    presentationTimeUs, source.getSampleFlags());
+            lastFrametimeUs = presentationTimeUs;
+            source.advance();
         }
         return lastFrametimeUs;
     }
 
+    /**
+     * 按顺序拷贝多段音频，每段从包含起点的那一帧开始、到终点前结束，时间戳接在前面各段的时长之后
+     *
+     * @param rangesUs 每两个一组依次为各段的起点和终点
+     * @param token    每写一帧前检查一次
+     */
+    public static void writeAudioRanges(SampleSource source, SampleSink muxer, int muxerAudioTrackIndex, long[] rangesUs,
+                                        VideoProgressListener listener, CancellationToken token) throws IOException {
+        long totalUs = Math.max(VideoUtil.getRangesDurationUs(rangesUs), 1);
+        long baseUs = 0;
+        for (int i = 0; i < rangesUs.length; i += 2) {
+            long startUs = rangesUs[i];
+            long endUs = rangesUs[i + 1];
+            long doneUs = baseUs;
+            VideoProgressListener rangeListener = listener == null ? null
+                    : progress -> listener.onProgress((doneUs + progress * (endUs - startUs)) / totalUs);
+            writeAudioTrack(source, muxer, muxerAudioTrackIndex, startUs, Long.valueOf(endUs - 1), baseUs, rangeListener, token);
+            baseUs += endUs - startUs;
+        }
+    }
+
     public static int getAudioMaxBufferSize(MediaFormat format) {
         if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
             return format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
         } else {
-            return 100 * 1000;
+            return DEFAULT_MAX_BUFFER_SIZE;
         }
     }
 
@@ -102,13 +141,18 @@ public class AudioUtil {
         }
     }
 
+    /**
+     * 原格式带有可解析的csd-0(包括HE-AAC/HE-AACv2)时保留它，只有缺失或无法解析时才按参数生成
+     */
     public static void checkCsd(MediaFormat audioMediaFormat, int profile, int sampleRate, int channel) {
-        int freqIdx = freqIdxMap.containsKey(sampleRate) ? freqIdxMap.get(sampleRate) : 4;
-//        byte[] bytes = new byte[]{(byte) 0x11, (byte) 0x90};
-//        ByteBuffer bb = ByteBuffer.wrap(bytes);
-        ByteBuffer csd = ByteBuffer.allocate(2);
-        csd.put(0, (byte) (profile << 3 | freqIdx >> 1));
-        csd.put(1, (byte) ((freqIdx & 0x01) << 7 | channel << 3));
-        audioMediaFormat.setByteBuffer("csd-0", csd);
+        ByteBuffer csd = audioMediaFormat.getByteBuffer("csd-0");
+        if (csd != null) {
+            byte[] config = new byte[csd.remaining()];
+            csd.duplicate().get(config);
+            if (AudioSpecificConfig.parse(config) != null) {
+                return;
+            }
+        }
+        audioMediaFormat.setByteBuffer("csd-0", ByteBuffer.wrap(AacConfig.create(profile, sampleRate, channel)));
     }
 }
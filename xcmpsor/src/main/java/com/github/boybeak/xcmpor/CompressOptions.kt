@@ -2,6 +2,9 @@ package com.github.boybeak.xcmpor
 
 import android.content.Context
 import android.net.Uri
+import com.github.boybeak.mediakit.ContentComplexity
+import com.github.boybeak.mediakit.ResolutionLadder
+import java.io.IOException
 import kotlin.math.max
 import kotlin.math.min
 import kotlin.math.roundToInt
@@ -12,7 +15,14 @@ class CompressOptions private constructor(
     val width: Int,
     val height: Int,
     val bitrate: Int,
-    val fps: Int
+    val fps: Int,
+    val codecMode: VideoProcessor.CodecMode,
+    val segmentDurationMs: Int,
+    val parallelism: Int?,
+    val audioCodec: AudioTranscoder.Codec?,
+    val audioBitrate: Int?,
+    val audioChannelCount: Int?,
+    val targetSizeBytes: Long?
 ) {
 
     companion object {
@@ -25,25 +35,28 @@ class CompressOptions private constructor(
         fun from(context: Context, uri: Uri): Builder {
             return Builder(VideoProcessor.MediaSource(context, uri))
         }
-        // 一切参数先按照原参数设定，可以稍后修改
+        // 一切参数先按照原参数设定，可以稍后修改；没设置的参数在build()时才取原视频的值，这里不等探测结果
         fun asUsual(src: String): Builder {
-            val source = VideoProcessor.MediaSource(src)
-            return Builder(source).bitrate(source.bitrate)
-                .frameRate(source.fps)
-                .size(source.width, source.height)
+            return Builder(VideoProcessor.MediaSource(src))
         }
         fun asUsual(context: Context, uri: Uri): Builder {
-            val source = VideoProcessor.MediaSource(context, uri)
-            return Builder(source).bitrate(source.bitrate)
-                .frameRate(source.fps)
-                .size(source.width, source.height)
+            return Builder(VideoProcessor.MediaSource(context, uri))
         }
+        /**
+         * 要等探测结果才能决定参数，会阻塞调用线程，主线程上用[chooseVideoOptionsAsync]
+         */
         fun chooseVideoOptions(src: String, dst: String): CompressOptions {
             return chooseVideoOptions(VideoProcessor.MediaSource(src), dst)
         }
         fun chooseVideoOptions(context: Context, src: Uri, dst: String): CompressOptions {
             return chooseVideoOptions(VideoProcessor.MediaSource(context, src), dst)
         }
+        fun chooseVideoOptionsAsync(src: String, dst: String): Async<Unit, CompressOptions> {
+            return async { chooseVideoOptions(src, dst) }
+        }
+        fun chooseVideoOptionsAsync(context: Context, src: Uri, dst: String): Async<Unit, CompressOptions> {
+            return async { chooseVideoOptions(context, src, dst) }
+        }
         fun chooseMediaOptions(src: String, dst: String): CompressOptions {
             return chooseVideoOptions(src, dst)
         }
@@ -64,8 +77,72 @@ class CompressOptions private constructor(
                 }
                 Pair(pendingWidth, 540)
             }
-            val dstBitrate = min(550 * 1000, source.bitrate)
-            val dstFPS = max(min(source.fps, 25), 12) // 避免srcFps为0的情况
+            // 按内容复杂度决定码率和帧率：静态画面少给码率和帧率，运动多、细节多的多给，分析失败时用固定值
+            val complexity = analyzeComplexity(source)
+            val dstFPS = max(complexity?.suggestFrameRate(source.fps, 20, 25) ?: min(source.fps, 25), 12) // 避免srcFps为0的情况
+            // 不超过原码率由build()处理，原码率读不到时不限制
+            val dstBitrate = complexity?.suggestBitrate(dstWidth, dstHeight, dstFPS) ?: 550 * 1000
+            return Builder(source)
+                .output(dst)
+                .size(dstWidth, dstHeight)
+                .bitrate(dstBitrate)
+                .frameRate(dstFPS)
+                .build()
+        }
+        /**
+         * 从探测得到的样本索引抽样几个GOP统计帧大小，不解码，只要遍历抽到的样本。
+         * 会阻塞到探测完成，探测或分析失败(包括解析出错抛出的RuntimeException)时返回null
+         */
+        private fun analyzeComplexity(source: VideoProcessor.MediaSource): ContentComplexity? {
+            return try {
+                val probe = source.getProbe(null)
+                val track = probe.sampleIndex.findTrack(false) ?: return null
+                ContentComplexity.analyze(track, probe.width, probe.height, ContentComplexity.DEFAULT_SAMPLED_GOPS)
+            } catch (e: IOException) {
+                e.printStackTrace()
+                null
+            } catch (e: RuntimeException) {
+                e.printStackTrace()
+                null
+            }
+        }
+        /**
+         * 按码率和帧率选分辨率：每像素每帧分到的比特数低于minBitsPerPixel时沿分辨率阶梯往下降，
+         * 同样的码率分给更少的像素，编码更快画质也更好。尺寸符合编码器支持的范围和对齐要求
+         */
+        fun fitBitrate(
+            src: String, dst: String, bitrate: Int, fps: Int,
+            minBitsPerPixel: Float = ResolutionLadder.DEFAULT_MIN_BITS_PER_PIXEL
+        ): CompressOptions {
+            return fitBitrate(VideoProcessor.MediaSource(src), dst, bitrate, fps, minBitsPerPixel)
+        }
+        fun fitBitrate(
+            context: Context, src: Uri, dst: String, bitrate: Int, fps: Int,
+            minBitsPerPixel: Float = ResolutionLadder.DEFAULT_MIN_BITS_PER_PIXEL
+        ): CompressOptions {
+            return fitBitrate(VideoProcessor.MediaSource(context, src), dst, bitrate, fps, minBitsPerPixel)
+        }
+        private fun fitBitrate(
+            source: VideoProcessor.MediaSource, dst: String, bitrate: Int, fps: Int, minBitsPerPixel: Float
+        ): CompressOptions {
+            val dstBitrate = if (source.bitrate > 0) min(bitrate, source.bitrate) else bitrate
+            val dstFPS = if (source.fps > 0) min(fps, source.fps) else fps
+            val capabilities = VideoUtil.getEncoderVideoCapabilities(VideoProcessor.OUTPUT_MIME_TYPE)
+            // 编码器收到的是转正后的画面，旋转90/270度时宽高互换后再检查
+            val rotated = try {
+                source.getProbe(null).rotation.let { it == 90 || it == 270 }
+            } catch (e: IOException) {
+                false
+            }
+            val alignment = capabilities?.let { max(it.widthAlignment, it.heightAlignment) } ?: 2
+            val filter = capabilities?.let { caps ->
+                ResolutionLadder.SizeFilter { w, h ->
+                    if (rotated) caps.isSizeSupported(h, w) else caps.isSizeSupported(w, h)
+                }
+            }
+            val (dstWidth, dstHeight) = ResolutionLadder.choose(
+                source.width, source.height, dstBitrate, dstFPS.toFloat(), minBitsPerPixel, alignment, filter
+            )
             return Builder(source)
                 .output(dst)
                 .size(dstWidth, dstHeight)
@@ -92,13 +169,26 @@ class CompressOptions private constructor(
         }
     }
 
+    /**
+     * 设置的值只记录下来，到[build]时才和原视频的尺寸、码率、帧率比较，所以创建Builder和设置参数都不用等探测结果，
+     * [build]会阻塞到探测完成
+     */
     class Builder internal constructor(private val source: VideoProcessor.MediaSource) {
 
         private var output: String? = null
-        private var dstWidth: Int = source.width
-        private var dstHeight: Int = source.height
-        private var dstBitrate: Int = source.bitrate
-        private var dstFPS: Int = source.fps
+        private var dstWidth: Int? = null
+        private var dstHeight: Int? = null
+        private var dstWidthScale: Float? = null
+        private var dstHeightScale: Float? = null
+        private var dstBitrate: Int? = null
+        private var dstFPS: Int? = null
+        private var codecMode = VideoProcessor.CodecMode.SYNC
+        private var segmentDurationMs = 0
+        private var parallelism: Int? = null
+        private var audioCodec: AudioTranscoder.Codec? = null
+        private var audioBitrate: Int? = null
+        private var audioChannelCount: Int? = null
+        private var targetSizeBytes: Long? = null
 
         fun output(dst: String): Builder {
             this.output = dst
@@ -107,13 +197,15 @@ class CompressOptions private constructor(
 
         fun width(width: Int): Builder {
             require(width > 0 && width % 2 != 1) { "width must > 0 and even number" }
-            dstWidth = min(width, source.width)
+            dstWidth = width
+            dstWidthScale = null
             return this
         }
 
         fun height(height: Int): Builder {
             require(height > 0) { "height must > 0" }
-            dstHeight = min(height, source.height)
+            dstHeight = height
+            dstHeightScale = null
             return this
         }
 
@@ -135,33 +227,104 @@ class CompressOptions private constructor(
 
         fun widthScale(scale: Float): Builder {
             require(scale > 0F && scale <= 1F) { "scale must be in (0.0, 1.0]" }
-            var pendingWidth = (source.width * scale).roundToInt()
-            if (pendingWidth % 2 == 1) {
-                pendingWidth += 1
-            }
-            return width(pendingWidth)
+            dstWidthScale = scale
+            dstWidth = null
+            return this
         }
 
         fun heightScale(scale: Float): Builder {
             require(scale > 0F && scale <= 1F) { "scale must be in (0.0, 1.0]" }
-            return height((source.height * scale).roundToInt())
+            dstHeightScale = scale
+            dstHeight = null
+            return this
         }
 
         fun bitrate(bitrate: Int): Builder {
             require(bitrate > 0) { "bitrate must be > 0" }
-            this.dstBitrate = min(bitrate, source.bitrate)
+            this.dstBitrate = bitrate
             return this
         }
 
         fun frameRate(fps: Int): Builder {
             require(fps > 0) { "fps must be > 0" }
-            this.dstFPS = min(fps, source.fps)
+            this.dstFPS = fps
+            return this
+        }
+
+        /**
+         * 编解码器驱动方式，ASYNC在Android 6.0以下自动退回SYNC
+         */
+        fun codecMode(mode: VideoProcessor.CodecMode): Builder {
+            this.codecMode = mode
+            return this
+        }
+
+        /**
+         * 可续传模式，按关键帧切成约segmentDurationMs一段编码，进程被杀后用同样的参数重新压缩会从未完成的段继续
+         */
+        fun resumable(segmentDurationMs: Int): Builder {
+            require(segmentDurationMs > 0) { "segmentDurationMs must be > 0" }
+            this.segmentDurationMs = segmentDurationMs
+            return this
+        }
+
+        /**
+         * 并行模式，把视频切成encoderCount段同时编码再拼接，encoderCount<=0时按设备支持的编解码器实例数决定
+         */
+        fun parallel(encoderCount: Int = 0): Builder {
+            this.parallelism = encoderCount
+            return this
+        }
+
+        /**
+         * 输出音频格式，原音频不是该格式时重新编码
+         */
+        fun audioCodec(codec: AudioTranscoder.Codec): Builder {
+            this.audioCodec = codec
+            return this
+        }
+
+        /**
+         * 输出音频码率，原音频码率更高时重新编码，语音为主的视频可以明显减小输出
+         */
+        fun audioBitrate(bitrate: Int): Builder {
+            require(bitrate > 0) { "bitrate must be > 0" }
+            this.audioBitrate = bitrate
+            return this
+        }
+
+        fun audioChannelCount(channelCount: Int): Builder {
+            require(channelCount == 1 || channelCount == 2) { "channelCount must be 1 or 2" }
+            this.audioChannelCount = channelCount
+            return this
+        }
+
+        /**
+         * 目标文件大小，按时长和音频码率算出视频码率，编码时按实际大小调整，不超过[bitrate]
+         */
+        fun targetSizeBytes(bytes: Long): Builder {
+            require(bytes > 0) { "targetSizeBytes must be > 0" }
+            this.targetSizeBytes = bytes
             return this
         }
 
         fun build(): CompressOptions {
             require(output != null) { "You must set an output path" }
-            return CompressOptions(source, output!!, dstWidth, dstHeight, dstBitrate, dstFPS)
+            val srcWidth = source.width
+            val srcHeight = source.height
+            val width = dstWidth ?: dstWidthScale?.let {
+                var pendingWidth = (srcWidth * it).roundToInt()
+                if (pendingWidth % 2 == 1) {
+                    pendingWidth += 1
+                }
+                pendingWidth
+            } ?: srcWidth
+            val height = dstHeight ?: dstHeightScale?.let { (srcHeight * it).roundToInt() } ?: srcHeight
+            // 原视频的码率、帧率读不到(为0)时不能拿来限制设置的值
+            val bitrate = dstBitrate?.let { if (source.bitrate > 0) min(it, source.bitrate) else it } ?: source.bitrate
+            val fps = dstFPS?.let { if (source.fps > 0) min(it, source.fps) else it } ?: source.fps
+            return CompressOptions(source, output!!, min(width, srcWidth), min(height, srcHeight), bitrate, fps,
+                codecMode, segmentDurationMs, parallelism, audioCodec, audioBitrate, audioChannelCount, targetSizeBytes)
         }
 
     }
@@ -0,0 +1,164 @@
+package com.github.boybeak.xcmpor;
+
+import android.annotation.TargetApi;
+import android.media.MediaExtractor;
+
+import com.github.boybeak.mediakit.CancellationToken;
+import com.github.boybeak.mediakit.mp4.Mp4Muxer;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 把多个视频依次解码、渲染，用同一个编码器和EGL context编码成一个只有视频轨的mp4，换输入时只重新创建解码器。
+ * 第i个输入接在前面各输入的时长之后，第一帧请求编成关键帧，拼接时可以从那里切开
+ */
+@TargetApi(21)
+class ConcatEncoder {
+
+    private final int mBitrate;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mIFrameInterval;
+    private final int mFrameRate;
+    private final boolean mDropFrames;
+    private final VideoProcessor.CodecMode mCodecMode;
+    private final CancellationToken mToken;
+    private long mFirstFrameUs = -1;
+    private long mDecodeCpuTimeMs;
+    private long mEncodeCpuTimeMs;
+    private long mCallbackCpuTimeMs;
+
+    ConcatEncoder(int bitrate, int width, int height, int iFrameInterval, int frameRate, boolean dropFrames,
+                  VideoProcessor.CodecMode codecMode, CancellationToken token) {
+        mBitrate = bitrate;
+        mWidth = width;
+        mHeight = height;
+        mIFrameInterval = iFrameInterval;
+        mFrameRate = frameRate;
+        mDropFrames = dropFrames;
+        mCodecMode = codecMode;
+        mToken = token;
+    }
+
+    /**
+     * 阻塞到全部输入编码完成。取消或失败时删除写了一半的输出，由调用方检查token
+     *
+     * @param durationsUs 各输入的时长，决定后面输入的时间戳
+     * @param listener    整体的编码进度
+     */
+    void encode(List<VideoProcessor.MediaSource> inputs, long[] durationsUs, File output,
+                @Nullable VideoProgressListener listener) throws Exception {
+        mFirstFrameUs = -1;
+        List<MediaExtractor> extractors = new ArrayList<>();
+        Mp4Muxer muxer = null;
+        try {
+            int[] videoIndices = new int[inputs.size()];
+            long totalUs = 0;
+            for (int i = 0; i < inputs.size(); i++) {
+                MediaExtractor extractor = new MediaExtractor();
+                extractors.add(extractor);
+                inputs.get(i).setDataSource(extractor);
+                videoIndices[i] = VideoUtil.selectTrack(extractor, false);
+                if (videoIndices[i] < 0) {
+                    throw new IOException("no video track in input " + i);
+                }
+                extractor.selectTrack(videoIndices[i]);
+                totalUs += durationsUs[i];
+            }
+            MediaExtractor first = extractors.get(0);
+            first.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            muxer = new Mp4Muxer(output);
+            muxer.setPreallocateBytes((long) mBitrate / 8 * totalUs / 1000000);
+
+            int srcFrameRate = VideoUtil.getFrameRate(inputs.get(0));
+            if (srcFrameRate <= 0) {
+                srcFrameRate = (int) Math.ceil(VideoUtil.getAveFrameRate(inputs.get(0)));
+            }
+            AtomicBoolean decodeDone = new AtomicBoolean(false);
+            CountDownLatch muxerStartLatch = new CountDownLatch(1);
+            VideoEncodeThread encodeThread = new VideoEncodeThread(first, muxer, mBitrate, mWidth, mHeight,
+                    mIFrameInterval, mFrameRate, videoIndices[0], decodeDone, muxerStartLatch);
+            VideoDecodeThread decodeThread = new VideoDecodeThread(encodeThread, first, null, null,
+                    srcFrameRate, mFrameRate, mDropFrames, videoIndices[0], decodeDone);
+            decodeThread.setRanges(new long[]{0, durationsUs[0]});
+            for (int i = 1; i < inputs.size(); i++) {
+                decodeThread.addInput(extractors.get(i), videoIndices[i], new long[]{0, durationsUs[i]});
+            }
+            VideoProgressAve progressAve = new VideoProgressAve(listener);
+            progressAve.setVideoOnly(true);
+            progressAve.setStartTimeMs(0);
+            progressAve.setEndTimeMs((int) (totalUs / 1000));
+            encodeThread.setProgressAve(progressAve);
+            if (mCodecMode == VideoProcessor.CodecMode.ASYNC) {
+                encodeThread.setAsyncCodec(true);
+                decodeThread.setAsyncCodec(true);
+            }
+            encodeThread.setCancellationToken(mToken);
+            decodeThread.setCancellationToken(mToken);
+            Runnable wakeUp = () -> encodeThread.getEglContextLatch().countDown();
+            mToken.addListener(wakeUp);
+            decodeThread.start();
+            encodeThread.start();
+            boolean interrupted = false;
+            for (Thread thread : new Thread[]{decodeThread, encodeThread}) {
+                while (true) {
+                    try {
+                        thread.join();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        mToken.cancel();
+                    }
+                }
+            }
+            mToken.removeListener(wakeUp);
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            mDecodeCpuTimeMs += decodeThread.getCpuTimeMs();
+            mEncodeCpuTimeMs += encodeThread.getCpuTimeMs();
+            mCallbackCpuTimeMs += decodeThread.getCallbackCpuTimeMs() + encodeThread.getCallbackCpuTimeMs();
+            mFirstFrameUs = decodeThread.getVideoStartTimeUs();
+        } finally {
+            try {
+                if (muxer != null) {
+                    muxer.release();
+                }
+                for (MediaExtractor extractor : extractors) {
+                    extractor.release();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            if (mToken.isCancelled() && output.exists() && !output.delete()) {
+                output.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * @return 上一次{@link #encode}第一帧在第一个输入中的时间，输出时间戳都以它为0点，没有帧时为-1
+     */
+    long getFirstFrameUs() {
+        return mFirstFrameUs;
+    }
+
+    long getDecodeCpuTimeMs() {
+        return mDecodeCpuTimeMs;
+    }
+
+    long getEncodeCpuTimeMs() {
+        return mEncodeCpuTimeMs;
+    }
+
+    long getCallbackCpuTimeMs() {
+        return mCallbackCpuTimeMs;
+    }
+}
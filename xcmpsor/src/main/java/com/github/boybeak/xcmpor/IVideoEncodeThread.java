@@ -7,4 +7,9 @@ import java.util.concurrent.CountDownLatch;
 public interface IVideoEncodeThread {
     Surface getSurface();
     CountDownLatch getEglContextLatch();
+
+    /**
+     * 让编码器把接下来送入的一帧编成关键帧，在swapBuffers之前调用
+     */
+    void requestSyncFrame();
 }
@@ -26,6 +26,8 @@ import android.opengl.EGLSurface;
 import android.os.Build;
 import android.view.Surface;
 
+import org.jetbrains.annotations.Nullable;
+
 @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
 public class InputSurface {
     private static final boolean VERBOSE = false;
@@ -34,14 +36,32 @@ public class InputSurface {
     private EGLDisplay mEGLDisplay;
     private EGLContext mEGLContext;
     private EGLSurface mEGLSurface;
+    private EGLConfig mEGLConfig;
     private Surface mSurface;
+    private final boolean mOwnsContext;
 
     public InputSurface(Surface surface) {
+        this(surface, null);
+    }
+
+    /**
+     * @param shared 不为null时沿用它的EGL display和context，只创建自己的window surface，
+     *               在它的context里创建的纹理可以直接绘制到这里。要在shared之前release
+     */
+    public InputSurface(Surface surface, @Nullable InputSurface shared) {
         if (surface == null) {
             throw new NullPointerException();
         }
         mSurface = surface;
-        eglSetup();
+        mOwnsContext = shared == null;
+        if (shared == null) {
+            eglSetup();
+        } else {
+            mEGLDisplay = shared.mEGLDisplay;
+            mEGLContext = shared.mEGLContext;
+            mEGLConfig = shared.mEGLConfig;
+            createWindowSurface();
+        }
     }
 
     private void eglSetup() {
@@ -75,16 +95,20 @@ public class InputSurface {
                 EGL14.EGL_NONE
         };
 
-        mEGLContext = EGL14.eglCreateContext(mEGLDisplay, configs[0], EGL14.EGL_NO_CONTEXT, attrib_list, 0);
+        mEGLConfig = configs[0];
+        mEGLContext = EGL14.eglCreateContext(mEGLDisplay, mEGLConfig, EGL14.EGL_NO_CONTEXT, attrib_list, 0);
         checkEglError("eglCreateContext");
         if (mEGLContext == null) {
             throw new RuntimeException("null context");
         }
+        createWindowSurface();
+    }
 
+    private void createWindowSurface() {
         int[] surfaceAttribs = {
                 EGL14.EGL_NONE
         };
-        mEGLSurface = EGL14.eglCreateWindowSurface(mEGLDisplay, configs[0], mSurface,
+        mEGLSurface = EGL14.eglCreateWindowSurface(mEGLDisplay, mEGLConfig, mSurface,
                 surfaceAttribs, 0);
         checkEglError("eglCreateWindowSurface");
         if (mEGLSurface == null) {
@@ -93,11 +117,13 @@ public class InputSurface {
     }
 
     public void release() {
-        if (EGL14.eglGetCurrentContext().equals(mEGLContext)) {
+        if (mOwnsContext && EGL14.eglGetCurrentContext().equals(mEGLContext)) {
             EGL14.eglMakeCurrent(mEGLDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
         }
         EGL14.eglDestroySurface(mEGLDisplay, mEGLSurface);
-        EGL14.eglDestroyContext(mEGLDisplay, mEGLContext);
+        if (mOwnsContext) {
+            EGL14.eglDestroyContext(mEGLDisplay, mEGLContext);
+        }
         mSurface.release();
         mEGLDisplay = null;
         mEGLContext = null;
@@ -119,6 +145,20 @@ public class InputSurface {
         return mSurface;
     }
 
+    public int getWidth() {
+        return querySurface(EGL14.EGL_WIDTH);
+    }
+
+    public int getHeight() {
+        return querySurface(EGL14.EGL_HEIGHT);
+    }
+
+    private int querySurface(int what) {
+        int[] value = new int[1];
+        EGL14.eglQuerySurface(mEGLDisplay, mEGLSurface, what, value, 0);
+        return value[0];
+    }
+
     public void setPresentationTime(long nsecs) {
         EGLExt.eglPresentationTimeANDROID(mEGLDisplay, mEGLSurface, nsecs);
     }
@@ -0,0 +1,244 @@
+package com.github.boybeak.xcmpor;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import com.github.boybeak.mediakit.SampleIndex;
+import com.github.boybeak.mediakit.TrackFormat;
+import com.github.boybeak.mediakit.h264.Sps;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * 输入视频的探测结果：尺寸、旋转角度、码率、时长、帧率、各轨道格式及csd，H.264视频还有解析出的SPS。
+ * 只打开输入一次(持久化的样本索引命中时一次都不用打开)，结果按输入保存在LRU里，同一个视频的各个处理阶段共用一份。
+ */
+public class MediaProbe {
+
+    private static final int MAX_CACHE_SIZE = 16;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "MediaProbe");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final Map<String, Future<MediaProbe>> CACHE =
+            new LinkedHashMap<String, Future<MediaProbe>>(MAX_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Future<MediaProbe>> eldest) {
+                    return size() > MAX_CACHE_SIZE;
+                }
+            };
+
+    private final SampleIndex sampleIndex;
+    private final int videoTrackIndex;
+    private final int audioTrackIndex;
+    private final int width, height;
+    private final int rotation;
+    private final int bitrate;
+    private final long durationUs;
+    private final int fps;
+    @Nullable
+    private final Sps sps;
+
+    private MediaProbe(SampleIndex sampleIndex) {
+        this.sampleIndex = sampleIndex;
+        int video = -1;
+        int audio = -1;
+        long duration = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < sampleIndex.getTrackCount(); i++) {
+            SampleIndex.Track track = sampleIndex.getTrack(i);
+            TrackFormat format = track.getFormat();
+            if (video < 0 && format.isVideo()) {
+                video = i;
+            } else if (audio < 0 && format.isAudio()) {
+                audio = i;
+            }
+            duration = Math.max(duration, format.getDurationUs() > 0 ? format.getDurationUs() : track.getLastPresentationTimeUs());
+            totalBytes += track.getTotalBytes();
+        }
+        videoTrackIndex = video;
+        audioTrackIndex = audio;
+        durationUs = duration;
+        bitrate = duration > 0 ? (int) (totalBytes * 8L * 1000000L / duration) : 0;
+        if (video >= 0) {
+            SampleIndex.Track track = sampleIndex.getTrack(video);
+            TrackFormat format = track.getFormat();
+            sps = "video/avc".equals(format.getMime()) ? Sps.fromCsd(format.getCsd(0)) : null;
+            // 容器没写尺寸时用SPS裁剪后的尺寸
+            width = format.getWidth() > 0 || sps == null ? format.getWidth() : sps.getWidth();
+            height = format.getHeight() > 0 || sps == null ? format.getHeight() : sps.getHeight();
+            rotation = format.getRotation();
+            float frameRate = format.getFrameRate();
+            if (frameRate <= 0 && sps != null && sps.isFixedFrameRate()) {
+                // 可变帧率时VUI里的只是上限，固定帧率才可信
+                frameRate = sps.getFrameRate();
+            }
+            if (frameRate <= 0) {
+                frameRate = track.getAverageFrameRate();
+            }
+            fps = Math.round(frameRate);
+        } else {
+            sps = null;
+            width = 0;
+            height = 0;
+            rotation = 0;
+            fps = 0;
+        }
+    }
+
+    /**
+     * 在后台线程探测，同一个输入(且文件未变)只会探测一次
+     *
+     * @param context 用于持久化样本索引，可以为null
+     */
+    public static Future<MediaProbe> probeAsync(@Nullable Context context, VideoProcessor.MediaSource source) {
+        String key = getKey(source);
+        synchronized (CACHE) {
+            Future<MediaProbe> future = CACHE.get(key);
+            if (future == null) {
+                Context appContext = context == null ? null : context.getApplicationContext();
+                FutureTask<MediaProbe> task = new FutureTask<>(new Callable<MediaProbe>() {
+                    @Override
+                    public MediaProbe call() throws Exception {
+                        return new MediaProbe(SampleIndexCache.get(appContext, source));
+                    }
+                });
+                CACHE.put(key, task);
+                EXECUTOR.execute(task);
+                future = task;
+            }
+            return future;
+        }
+    }
+
+    /**
+     * 等待{@link #probeAsync(Context, VideoProcessor.MediaSource)}的结果，失败的结果不会留在缓存里
+     */
+    public static MediaProbe probe(@Nullable Context context, VideoProcessor.MediaSource source) throws IOException {
+        Future<MediaProbe> future = probeAsync(context, source);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while probing " + getKey(source), e);
+        } catch (ExecutionException e) {
+            synchronized (CACHE) {
+                CACHE.values().remove(future);
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("can not probe " + getKey(source), cause);
+        }
+    }
+
+    /**
+     * 本地文件带上大小和修改时间，文件被覆盖后不会拿到旧结果
+     */
+    private static String getKey(VideoProcessor.MediaSource source) {
+        if (source.inputPath != null) {
+            File file = new File(source.inputPath);
+            return file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+        }
+        return String.valueOf(source.inputUri);
+    }
+
+    public SampleIndex getSampleIndex() {
+        return sampleIndex;
+    }
+
+    /**
+     * @return 第一个视频轨在输入中的序号，没有时为-1
+     */
+    public int getVideoTrackIndex() {
+        return videoTrackIndex;
+    }
+
+    /**
+     * @return 第一个音频轨在输入中的序号，没有时为-1
+     */
+    public int getAudioTrackIndex() {
+        return audioTrackIndex;
+    }
+
+    @Nullable
+    public TrackFormat getVideoFormat() {
+        return videoTrackIndex < 0 ? null : sampleIndex.getTrack(videoTrackIndex).getFormat();
+    }
+
+    @Nullable
+    public TrackFormat getAudioFormat() {
+        return audioTrackIndex < 0 ? null : sampleIndex.getTrack(audioTrackIndex).getFormat();
+    }
+
+    /**
+     * @return 音频轨的码率，容器没有记录时按样本总大小和时长估算，没有音频时为0
+     */
+    public int getAudioBitrate() {
+        if (audioTrackIndex < 0) {
+            return 0;
+        }
+        SampleIndex.Track track = sampleIndex.getTrack(audioTrackIndex);
+        if (track.getFormat().getBitrate() > 0) {
+            return track.getFormat().getBitrate();
+        }
+        long durationUs = track.getLastPresentationTimeUs();
+        return durationUs <= 0 ? 0 : (int) (track.getTotalBytes() * 8 * 1000000L / durationUs);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getRotation() {
+        return rotation;
+    }
+
+    /**
+     * @return 所有轨道的总码率
+     */
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    public long getDurationUs() {
+        return durationUs;
+    }
+
+    public int getDurationMs() {
+        return (int) (durationUs / 1000);
+    }
+
+    /**
+     * @return 容器记录的帧率，没有时为SPS声明的固定帧率，再没有时为平均帧率
+     */
+    public int getFps() {
+        return fps;
+    }
+
+    /**
+     * @return 视频轨的SPS，不是H.264或者csd解析失败时为null
+     */
+    @Nullable
+    public Sps getSps() {
+        return sps;
+    }
+}
@@ -0,0 +1,210 @@
+package com.github.boybeak.xcmpor;
+
+import android.media.MediaCodec;
+
+import com.github.boybeak.mediakit.CancellationToken;
+import com.github.boybeak.mediakit.FrameCodec;
+import com.github.boybeak.mediakit.SampleSource;
+import com.github.boybeak.mediakit.TrackFormat;
+import com.github.boybeak.mediakit.android.MediaCodecFrameCodec;
+import com.github.boybeak.mediakit.android.MediaFormats;
+import com.github.boybeak.mediakit.audio.PcmConverter;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 把一条音频轨解码并转换成指定采样率、声道数的PCM，由调用方按块拉取：要多少才解码多少，
+ * 只缓存一个解码器输出块，内存不随音频长度增长。
+ * <p>
+ * 可以按顺序解码多个时间段，前后两段的PCM直接衔接，段与段之间seek并flush同一个解码器
+ */
+class PcmDecoder {
+
+    private static final int TIMEOUT_USEC = 2500;
+
+    private final SampleSource mSource;
+    /**
+     * 每两个一组依次为各段的起点和终点，终点为-1时到音频结束
+     */
+    private final long[] mRangesUs;
+    private int mRange;
+    private final boolean mLoop;
+    private final int mOutputSampleRate;
+    private final int mOutputChannels;
+    private final FrameCodec mDecoder;
+    private final FrameCodec.BufferInfo mInfo = new FrameCodec.BufferInfo();
+    private PcmConverter mConverter;
+    /**
+     * 转换后还没被读走的PCM，只在解码器输出块变大时扩容
+     */
+    private short[] mPending = new short[0];
+    private int mPendingOffset;
+    private int mPendingCount;
+    private boolean mInputDone;
+    private boolean mDone;
+    /**
+     * 上次回到起点后是否读到过样本，防止空轨道无限循环
+     */
+    private boolean mReadSinceLoop;
+
+    /**
+     * @param endTimeUs 为null时到音频结束
+     * @param loop      到结束位置后从startTimeUs重新开始，直到调用方不再读取
+     */
+    PcmDecoder(SampleSource source, int track, long startTimeUs, @Nullable Long endTimeUs, boolean loop,
+               int outputSampleRate, int outputChannels) throws IOException {
+        this(source, track, new long[]{startTimeUs, endTimeUs == null ? -1 : endTimeUs}, loop,
+                outputSampleRate, outputChannels);
+    }
+
+    /**
+     * @param rangesUs 每两个一组依次为各段的起点和终点，只有最后一段的终点可以为-1
+     * @param loop     到最后一段结束后从第一段重新开始，直到调用方不再读取
+     */
+    PcmDecoder(SampleSource source, int track, long[] rangesUs, boolean loop,
+               int outputSampleRate, int outputChannels) throws IOException {
+        mSource = source;
+        mRangesUs = rangesUs;
+        mLoop = loop;
+        mOutputSampleRate = outputSampleRate;
+        mOutputChannels = outputChannels;
+        TrackFormat format = source.getTrackFormat(track);
+        source.selectTrack(track);
+        source.seekTo(rangesUs[0], SampleSource.SEEK_TO_CLOSEST_SYNC);
+        MediaCodec codec = MediaCodec.createDecoderByType(format.getMime());
+        mDecoder = new MediaCodecFrameCodec(codec);
+        try {
+            codec.configure(MediaFormats.toMediaFormat(format), null, null, 0);
+            mDecoder.start();
+        } catch (RuntimeException e) {
+            mDecoder.release();
+            throw e;
+        }
+    }
+
+    /**
+     * 阻塞到读满samples个样本或音频结束
+     *
+     * @param samples 样本数(不是帧数)，应为声道数的整数倍
+     * @return 读到的样本数，音频已结束时为-1
+     */
+    int read(short[] dst, int offset, int samples, CancellationToken token) throws IOException {
+        int written = 0;
+        while (written < samples) {
+            if (mPendingCount > 0) {
+                int count = Math.min(mPendingCount, samples - written);
+                System.arraycopy(mPending, mPendingOffset, dst, offset + written, count);
+                mPendingOffset += count;
+                mPendingCount -= count;
+                written += count;
+                continue;
+            }
+            if (mDone) {
+                break;
+            }
+            token.throwIfCancelled();
+            queueInput();
+            drainOutput();
+        }
+        return written == 0 && mDone ? -1 : written;
+    }
+
+    void release() {
+        AudioTranscoder.release(mDecoder);
+    }
+
+    private void queueInput() throws IOException {
+        if (mInputDone) {
+            return;
+        }
+        int index = mDecoder.dequeueInputBuffer(TIMEOUT_USEC);
+        if (index < 0) {
+            return;
+        }
+        long sampleTimeUs = mSource.getSampleTime();
+        if (isPastEnd(sampleTimeUs) && mLoop && mReadSinceLoop && mRange == mRangesUs.length - 2) {
+            //不flush解码器，直接接着送起点的数据，循环点处只有一帧的过渡
+            mRange = 0;
+            mSource.seekTo(startUs(), SampleSource.SEEK_TO_CLOSEST_SYNC);
+            mReadSinceLoop = false;
+            sampleTimeUs = mSource.getSampleTime();
+        }
+        if (isPastEnd(sampleTimeUs)) {
+            mDecoder.queueInputBuffer(index, 0, 0, 0, FrameCodec.BUFFER_FLAG_END_OF_STREAM);
+            mInputDone = true;
+            return;
+        }
+        int size = mSource.readSampleData(mDecoder.getInputBuffer(index), 0);
+        mDecoder.queueInputBuffer(index, 0, Math.max(size, 0), sampleTimeUs, 0);
+        mSource.advance();
+        mReadSinceLoop = true;
+    }
+
+    private boolean isPastEnd(long sampleTimeUs) {
+        return sampleTimeUs < 0 || (endUs() >= 0 && sampleTimeUs > endUs());
+    }
+
+    private long startUs() {
+        return mRangesUs[mRange];
+    }
+
+    private long endUs() {
+        return mRangesUs[mRange + 1];
+    }
+
+    private void drainOutput() {
+        int index = mDecoder.dequeueOutputBuffer(mInfo, TIMEOUT_USEC);
+        if (index == FrameCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            //HE-AAC解码后采样率会翻倍，以解码器的实际输出为准
+            createConverter();
+        } else if (index >= 0) {
+            if (mInfo.size > 0 && mInfo.presentationTimeUs >= startUs()
+                    && (endUs() < 0 || mInfo.presentationTimeUs <= endUs())) {
+                if (mConverter == null) {
+                    createConverter();
+                }
+                ByteBuffer pcm = mDecoder.getOutputBuffer(index);
+                pcm.limit(mInfo.offset + mInfo.size).position(mInfo.offset);
+                ensurePending(mConverter.getMaxOutputSamples(mInfo.size / 2));
+                mPendingCount += mConverter.convert(pcm.order(ByteOrder.nativeOrder()).asShortBuffer(),
+                        mPending, mPendingOffset + mPendingCount);
+            }
+            mDecoder.releaseOutputBuffer(index, false);
+            if ((mInfo.flags & FrameCodec.BUFFER_FLAG_END_OF_STREAM) != 0 && mRange < mRangesUs.length - 2) {
+                //这一段已全部输出，flush后从下一段的起点继续，转换器不重置，PCM前后衔接
+                mDecoder.flush();
+                mRange += 2;
+                mSource.seekTo(startUs(), SampleSource.SEEK_TO_CLOSEST_SYNC);
+                mInputDone = false;
+            } else if ((mInfo.flags & FrameCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mDone = true;
+                if (mConverter != null) {
+                    ensurePending(mConverter.getMaxOutputSamples(0));
+                    mPendingCount += mConverter.flush(mPending, mPendingOffset + mPendingCount);
+                }
+            }
+        }
+    }
+
+    private void createConverter() {
+        TrackFormat pcmFormat = mDecoder.getOutputFormat();
+        mConverter = new PcmConverter(pcmFormat.getSampleRate(), pcmFormat.getChannelCount(),
+                mOutputSampleRate, mOutputChannels);
+    }
+
+    private void ensurePending(int samples) {
+        if (mPendingCount == 0) {
+            mPendingOffset = 0;
+        }
+        if (mPending.length < mPendingOffset + mPendingCount + samples) {
+            short[] pending = new short[mPendingCount + samples];
+            System.arraycopy(mPending, mPendingOffset, pending, 0, mPendingCount);
+            mPending = pending;
+            mPendingOffset = 0;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.boybeak.xcmpor;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 一次处理的耗时统计，用来比较同步轮询和异步回调两种编解码模式的CPU占用
+ */
+public class ProcessStats {
+
+    private final VideoProcessor.CodecMode codecMode;
+    private final boolean remuxed;
+    private final long wallTimeMs;
+    private final long decodeCpuTimeMs;
+    private final long encodeCpuTimeMs;
+    private final long audioCpuTimeMs;
+    private final long callbackCpuTimeMs;
+
+    ProcessStats(VideoProcessor.CodecMode codecMode, boolean remuxed, long wallTimeMs,
+                 long decodeCpuTimeMs, long encodeCpuTimeMs, long audioCpuTimeMs, long callbackCpuTimeMs) {
+        this.codecMode = codecMode;
+        this.remuxed = remuxed;
+        this.wallTimeMs = wallTimeMs;
+        this.decodeCpuTimeMs = decodeCpuTimeMs;
+        this.encodeCpuTimeMs = encodeCpuTimeMs;
+        this.audioCpuTimeMs = audioCpuTimeMs;
+        this.callbackCpuTimeMs = callbackCpuTimeMs;
+    }
+
+    /**
+     * @return 实际使用的模式，设备不支持异步回调(低于Android 6.0)时为SYNC
+     */
+    public VideoProcessor.CodecMode getCodecMode() {
+        return codecMode;
+    }
+
+    /**
+     * @return 是否跳过了编解码直接拷贝，此时只有wallTime和调用线程的CPU时间
+     */
+    public boolean isRemuxed() {
+        return remuxed;
+    }
+
+    public long getWallTimeMs() {
+        return wallTimeMs;
+    }
+
+    /**
+     * @return 视频解码线程的CPU时间，remux时为调用线程的CPU时间
+     */
+    public long getDecodeCpuTimeMs() {
+        return decodeCpuTimeMs;
+    }
+
+    public long getEncodeCpuTimeMs() {
+        return encodeCpuTimeMs;
+    }
+
+    public long getAudioCpuTimeMs() {
+        return audioCpuTimeMs;
+    }
+
+    /**
+     * @return 异步模式下编解码器回调线程的CPU时间，同步模式为0
+     */
+    public long getCallbackCpuTimeMs() {
+        return callbackCpuTimeMs;
+    }
+
+    public long getTotalCpuTimeMs() {
+        return decodeCpuTimeMs + encodeCpuTimeMs + audioCpuTimeMs + callbackCpuTimeMs;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "ProcessStats{" +
+                "codecMode=" + codecMode +
+                ", remuxed=" + remuxed +
+                ", wallTimeMs=" + wallTimeMs +
+                ", decodeCpuTimeMs=" + decodeCpuTimeMs +
+                ", encodeCpuTimeMs=" + encodeCpuTimeMs +
+                ", audioCpuTimeMs=" + audioCpuTimeMs +
+                ", callbackCpuTimeMs=" + callbackCpuTimeMs +
+                ", totalCpuTimeMs=" + getTotalCpuTimeMs() +
+                '}';
+    }
+}
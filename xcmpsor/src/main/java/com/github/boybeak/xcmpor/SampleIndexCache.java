@@ -0,0 +1,149 @@
+package com.github.boybeak.xcmpor;
+
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.github.boybeak.mediakit.SampleIndex;
+import com.github.boybeak.mediakit.SampleSource;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 每个输入文件的{@link SampleIndex}持久化在{@link VideoUtil#getVideoCacheDir(Context)}/index下，
+ * 以路径+大小+修改时间为key，文件不变时再次处理同一个视频不需要重新扫描
+ */
+public class SampleIndexCache {
+
+    private static final String TAG = "SampleIndexCache";
+    private static final String DIR = "index";
+    private static final String SUFFIX = ".idx";
+
+    /**
+     * 读取缓存的索引，不存在或已失效时扫描一遍输入生成并写入缓存
+     *
+     * @param context 为null时只生成不缓存
+     */
+    public static SampleIndex get(@Nullable Context context, VideoProcessor.MediaSource source) throws IOException {
+        String key = context == null ? null : getKey(context, source);
+        File file = key == null ? null : new File(getIndexDir(context), hash(key) + SUFFIX);
+        if (file != null && file.exists()) {
+            SampleIndex index = read(file, key);
+            if (index != null) {
+                return index;
+            }
+        }
+        SampleIndex index;
+        SampleSource sampleSource = source.openSampleSource();
+        try {
+            index = SampleIndex.build(sampleSource);
+        } finally {
+            sampleSource.release();
+        }
+        if (file != null) {
+            write(file, key, index);
+        }
+        return index;
+    }
+
+    public static void clear(Context context) {
+        File[] files = getIndexDir(context).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private static File getIndexDir(Context context) {
+        File dir = new File(VideoUtil.getVideoCacheDir(context), DIR);
+        //noinspection ResultOfMethodCallIgnored
+        dir.mkdirs();
+        return dir;
+    }
+
+    /**
+     * @return 路径+大小+修改时间，拿不到大小或修改时间(比如pipe)时返回null，不做缓存
+     */
+    @Nullable
+    private static String getKey(Context context, VideoProcessor.MediaSource source) {
+        if (source.inputPath != null) {
+            File file = new File(source.inputPath);
+            if (!file.isFile()) {
+                return null;
+            }
+            return file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+        }
+        try (ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(source.inputUri, "r")) {
+            if (pfd == null || pfd.getStatSize() < 0) {
+                return null;
+            }
+            long mtime = Os.fstat(pfd.getFileDescriptor()).st_mtime;
+            return source.inputUri + "|" + pfd.getStatSize() + "|" + mtime;
+        } catch (IOException | ErrnoException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private static SampleIndex read(File file, String key) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (!key.equals(in.readUTF())) {
+                return null;
+            }
+            return SampleIndex.readFrom(in);
+        } catch (IOException e) {
+            Log.w(TAG, "drop broken index " + file, e);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+    }
+
+    private static void write(File file, String key, SampleIndex index) {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeUTF(key);
+            index.writeTo(out);
+        } catch (IOException e) {
+            Log.w(TAG, "can not write index " + file, e);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        }
+        //先写临时文件再改名，进程中途被杀也不会留下半个索引
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.github.boybeak.xcmpor;
+
+import android.annotation.TargetApi;
+import android.media.MediaExtractor;
+
+import com.github.boybeak.mediakit.CancellationToken;
+import com.github.boybeak.mediakit.SegmentPlan;
+import com.github.boybeak.mediakit.mp4.Mp4Muxer;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 把视频的一段(从关键帧开始)单独解码、渲染、编码成只有视频轨的mp4，每段都有自己的extractor、编解码器和EGL context。
+ * 分段的输出时间戳从0开始，拼接时按{@link #getFirstFrameUs()}平移回去
+ */
+@TargetApi(21)
+class SegmentEncoder {
+
+    private final VideoProcessor.MediaSource mInput;
+    private final int mBitrate;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mIFrameInterval;
+    private final int mFrameRate;
+    private final int mSrcFrameRate;
+    private final boolean mDropFrames;
+    private final VideoProcessor.CodecMode mCodecMode;
+    private final CancellationToken mToken;
+    private long mFirstFrameUs = -1;
+    private long mDecodeCpuTimeMs;
+    private long mEncodeCpuTimeMs;
+    private long mCallbackCpuTimeMs;
+
+    SegmentEncoder(VideoProcessor.MediaSource input, int bitrate, int width, int height, int iFrameInterval,
+                   int frameRate, int srcFrameRate, boolean dropFrames, VideoProcessor.CodecMode codecMode,
+                   CancellationToken token) {
+        mInput = input;
+        mBitrate = bitrate;
+        mWidth = width;
+        mHeight = height;
+        mIFrameInterval = iFrameInterval;
+        mFrameRate = frameRate;
+        mSrcFrameRate = srcFrameRate;
+        mDropFrames = dropFrames;
+        mCodecMode = codecMode;
+        mToken = token;
+    }
+
+    /**
+     * 阻塞到这一段编码完成。取消或失败时删除写了一半的分段，由调用方检查token
+     *
+     * @param endTimeMs  最后一段的结束时间，为null时编码到视频结束
+     * @param durationMs 视频时长，用于计算最后一段的进度
+     * @param listener   这一段的编码进度
+     */
+    void encode(SegmentPlan.Segment segment, @Nullable Integer endTimeMs, int durationMs, File output,
+                @Nullable VideoProgressListener listener) throws Exception {
+        mFirstFrameUs = -1;
+        MediaExtractor extractor = new MediaExtractor();
+        Mp4Muxer muxer = null;
+        try {
+            mInput.setDataSource(extractor);
+            int videoIndex = VideoUtil.selectTrack(extractor, false);
+            extractor.selectTrack(videoIndex);
+            //除第一段外起点都是关键帧，第一段和不分段时一样从起点前的关键帧解码
+            extractor.seekTo(segment.getStartUs(), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            muxer = new Mp4Muxer(output);
+            muxer.setPreallocateBytes(segment.isLast() ? 0 : (long) mBitrate / 8 * (segment.getEndUs() - segment.getStartUs()) / 1000000);
+
+            //时间戳按毫秒向下取整，相邻两帧不会落在同一毫秒内，所以分段之间不重不漏
+            Integer startMs = (int) (segment.getStartUs() / 1000);
+            Integer endMs = segment.isLast() ? endTimeMs : Integer.valueOf((int) (segment.getEndUs() / 1000));
+            AtomicBoolean decodeDone = new AtomicBoolean(false);
+            CountDownLatch muxerStartLatch = new CountDownLatch(1);
+            VideoEncodeThread encodeThread = new VideoEncodeThread(extractor, muxer, mBitrate, mWidth, mHeight,
+                    mIFrameInterval, mFrameRate, videoIndex, decodeDone, muxerStartLatch);
+            VideoDecodeThread decodeThread = new VideoDecodeThread(encodeThread, extractor, startMs, endMs,
+                    mSrcFrameRate, mFrameRate, mDropFrames, videoIndex, decodeDone);
+            VideoProgressAve progressAve = new VideoProgressAve(listener);
+            progressAve.setVideoOnly(true);
+            progressAve.setStartTimeMs(startMs);
+            progressAve.setEndTimeMs(endMs == null ? durationMs : endMs);
+            encodeThread.setProgressAve(progressAve);
+            if (mCodecMode == VideoProcessor.CodecMode.ASYNC) {
+                encodeThread.setAsyncCodec(true);
+                decodeThread.setAsyncCodec(true);
+            }
+            encodeThread.setCancellationToken(mToken);
+            decodeThread.setCancellationToken(mToken);
+            Runnable wakeUp = () -> encodeThread.getEglContextLatch().countDown();
+            mToken.addListener(wakeUp);
+            decodeThread.start();
+            encodeThread.start();
+            boolean interrupted = false;
+            for (Thread thread : new Thread[]{decodeThread, encodeThread}) {
+                while (true) {
+                    try {
+                        thread.join();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        mToken.cancel();
+                    }
+                }
+            }
+            mToken.removeListener(wakeUp);
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            mDecodeCpuTimeMs += decodeThread.getCpuTimeMs();
+            mEncodeCpuTimeMs += encodeThread.getCpuTimeMs();
+            mCallbackCpuTimeMs += decodeThread.getCallbackCpuTimeMs() + encodeThread.getCallbackCpuTimeMs();
+            mFirstFrameUs = decodeThread.getVideoStartTimeUs();
+        } finally {
+            try {
+                if (muxer != null) {
+                    muxer.release();
+                }
+                extractor.release();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            if (mToken.isCancelled() && output.exists() && !output.delete()) {
+                output.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * @return 上一次{@link #encode}第一帧在原视频中的时间，这一段没有帧时为-1
+     */
+    long getFirstFrameUs() {
+        return mFirstFrameUs;
+    }
+
+    long getDecodeCpuTimeMs() {
+        return mDecodeCpuTimeMs;
+    }
+
+    long getEncodeCpuTimeMs() {
+        return mEncodeCpuTimeMs;
+    }
+
+    long getCallbackCpuTimeMs() {
+        return mCallbackCpuTimeMs;
+    }
+}
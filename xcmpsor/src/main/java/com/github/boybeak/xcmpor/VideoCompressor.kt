@@ -1,7 +1,10 @@
 package com.github.boybeak.xcmpor
 
 import android.content.Context
+import com.github.boybeak.mediakit.CompressionScheduler
+import com.github.boybeak.mediakit.CompressionScheduler.Priority
 import java.io.File
+import java.util.concurrent.Callable
 import kotlin.math.roundToInt
 
 fun File.mkdirsIfNotExists() {
@@ -12,6 +15,15 @@ fun File.mkdirsIfNotExists() {
 }
 
 object VideoCompressor {
+
+    /**
+     * 所有异步压缩任务共用的调度器，并发数默认为[VideoUtil.getDefaultWorkerCount]，可以通过setWorkerCount修改
+     */
+    @JvmStatic
+    val scheduler: CompressionScheduler by lazy {
+        CompressionScheduler(VideoUtil.getDefaultWorkerCount())
+    }
+
     fun compressSync(context: Context, options: CompressOptions, block: ((Float) -> Unit)? = null): CompressResult {
         val startAt = System.currentTimeMillis()
         val outputFile = File(options.output)
@@ -20,7 +32,7 @@ object VideoCompressor {
             outputFile.delete()
         }
 
-        VideoProcessor.processor(context)
+        val stats = VideoProcessor.processor(context)
             .input(options.source)
             .output(options.output)
             .outWidth(options.width)
@@ -28,25 +40,56 @@ object VideoCompressor {
             .bitrate(options.bitrate)
             .frameRate(options.fps)
             .dropFrames(true)
+            .codecMode(options.codecMode)
+            .apply {
+                if (options.segmentDurationMs > 0) {
+                    resumable(options.segmentDurationMs)
+                }
+                options.parallelism?.let { parallel(it) }
+                options.audioCodec?.let { audioCodec(it) }
+                options.audioBitrate?.let { audioBitrate(it) }
+                options.audioChannelCount?.let { audioChannelCount(it) }
+                options.targetSizeBytes?.let { targetSizeBytes(it) }
+            }
             .progressListener(block)
             .process()
 
         val timeCostMills = System.currentTimeMillis() - startAt
         val success = outputFile.exists()
 
-        return CompressResult(outputFile, timeCostMills, success)
+        return CompressResult(outputFile, timeCostMills, success, stats)
+    }
+    /**
+     * 提交到[scheduler]排队，同一优先级先进先出，返回的Job可以分别查询排队时间和运行时间
+     */
+    fun compress(
+        context: Context,
+        options: CompressOptions,
+        priority: Priority = Priority.DEFAULT,
+        block: ((Float) -> Unit)? = null
+    ): CompressionScheduler.Job<CompressResult> {
+        val appContext = context.applicationContext
+        return scheduler.submit(priority, Callable { compressSync(appContext, options, block) })
     }
-    fun compressAsync(context: Context, options: CompressOptions): Async<Unit, CompressResult> {
-        return async { progressUpdater ->
+
+    fun compressAsync(
+        context: Context,
+        options: CompressOptions,
+        priority: Priority = Priority.USER_INITIATED
+    ): Async<Unit, CompressResult> {
+        return async(scheduler.asExecutor(priority)) { progressUpdater ->
             compressSync(context, options) { progress ->
                 progressUpdater.updateProgress((progress * 100).roundToInt())
             }
         }
     }
 
-    class CompressResult(val output: File, val timeCostMills: Long, val success: Boolean) {
+    /**
+     * @param stats 编解码模式及各线程的CPU时间
+     */
+    class CompressResult(val output: File, val timeCostMills: Long, val success: Boolean, val stats: ProcessStats) {
         override fun toString(): String {
-            return "CompressResult(output=${output.absolutePath}, timeCostMills=${timeCostMills / 1000} sec, success=$success)"
+            return "CompressResult(output=${output.absolutePath}, timeCostMills=${timeCostMills / 1000} sec, success=$success, stats=$stats)"
         }
     }
 
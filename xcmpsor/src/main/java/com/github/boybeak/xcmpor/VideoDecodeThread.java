@@ -3,15 +3,25 @@ package com.github.boybeak.xcmpor;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.opengl.GLES20;
 import android.os.Build;
+import android.os.SystemClock;
 import android.view.Surface;
 
 import androidx.annotation.RequiresApi;
 
+import com.github.boybeak.mediakit.CancellationToken;
+import com.github.boybeak.mediakit.FrameCodec;
+import com.github.boybeak.mediakit.TrackFormat;
+import com.github.boybeak.mediakit.android.AsyncFrameCodec;
+import com.github.boybeak.mediakit.android.MediaCodecFrameCodec;
+
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -20,21 +30,47 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class VideoDecodeThread extends Thread {
 
     private static final int TIMEOUT_USEC = 1;
+    /**
+     * 异步模式下每轮最多等待回调这么久，之后和同步模式一样按tryAgain计数
+     */
+    private static final int ASYNC_TIMEOUT_USEC = 10000;
 
     private MediaExtractor mExtractor;
-    private MediaCodec mDecoder;
+    private FrameCodec mDecoder;
     private Integer mStartTimeMs;
     private Integer mEndTimeMs;
     private AtomicBoolean mDecodeDone;
     private Exception mException;
     private int mVideoIndex;
-    private IVideoEncodeThread mVideoEncodeThread;
-    private InputSurface mInputSurface;
+    /**
+     * 每一帧渲染到的编码器，第一个是构造时传入的，其余的共用它的EGL context
+     */
+    private final List<Target> mTargets = new ArrayList<>();
     private OutputSurface mOutputSurface;
-    private Integer mDstFrameRate;
     private Integer mSrcFrameRate;
     private boolean mDropFrames;
-    private FrameDropper mFrameDropper;
+    private boolean mAsyncCodec;
+    private CancellationToken mToken = new CancellationToken();
+    private long mCpuTimeMs;
+    private long mCallbackCpuTimeMs;
+    private volatile long mVideoStartTimeUs = -1;
+    /**
+     * 每两个一组依次为各段的起点和终点，终点为-1时到视频结束
+     */
+    private long[] mRangesUs;
+    private int mRange;
+    /**
+     * 当前段之前各段的总时长，当前段的帧接在它之后
+     */
+    private long mRangeBaseUs;
+    /**
+     * 第一帧渲染帧在拼接后时间轴上的位置，输出时间戳都减去它，从0开始
+     */
+    private long mLeadUs;
+    /**
+     * 当前输入之后要接着解码的输入，每个都要有明确的终点
+     */
+    private final List<Input> mNextInputs = new ArrayList<>();
 
     public VideoDecodeThread(IVideoEncodeThread videoEncodeThread, MediaExtractor extractor,
                              @Nullable Integer startTimeMs, @Nullable Integer endTimeMs,
@@ -49,8 +85,7 @@ public class VideoDecodeThread extends Thread {
         mEndTimeMs = endTimeMs;
         mVideoIndex = videoIndex;
         mDecodeDone = decodeDone;
-        mVideoEncodeThread = videoEncodeThread;
-        mDstFrameRate = dstFrameRate;
+        mTargets.add(new Target(videoEncodeThread, dstFrameRate));
         mSrcFrameRate = srcFrameRate;
         mDropFrames = dropFrames;
     }
@@ -65,75 +100,88 @@ public class VideoDecodeThread extends Thread {
             e.printStackTrace();
             mException = e;
         } finally {
-            if (mInputSurface != null) {
-                mInputSurface.release();
+            //共用context的先释放，拥有context的最后释放
+            for (int i = mTargets.size() - 1; i >= 0; i--) {
+                Target target = mTargets.get(i);
+                if (target.inputSurface != null) {
+                    target.inputSurface.release();
+                }
             }
             if (mOutputSurface != null) {
                 mOutputSurface.release();
             }
             try {
-                if (mDecoder != null) {
-                    mDecoder.stop();
-                    mDecoder.release();
-                }
+                releaseDecoder();
             } catch (Exception e) {
                 e.printStackTrace();
                 mException = mException == null ? e : mException;
             }
+            mCpuTimeMs = SystemClock.currentThreadTimeMillis();
+            if (mException != null) {
+                //第一个失败的线程让其他线程一起停下
+                mToken.fail(mException);
+            }
         }
     }
 
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private void doDecode() throws IOException {
-        CountDownLatch eglContextLatch = mVideoEncodeThread.getEglContextLatch();
-        try {
+    private void doDecode() throws Exception {
+        InputSurface shared = null;
+        for (Target target : mTargets) {
+            CountDownLatch eglContextLatch = target.encodeThread.getEglContextLatch();
             boolean await = eglContextLatch.await(5, TimeUnit.SECONDS);
+            //取消时latch也会被countDown
+            mToken.throwIfCancelled();
             if (!await) {
-                mException = new TimeoutException("wait eglContext timeout!");
-                return;
+                throw new TimeoutException("wait eglContext timeout!");
+            }
+            Surface encodeSurface = target.encodeThread.getSurface();
+            //多路输出共用一个EGL context，解码出的纹理每一路都能直接绘制
+            target.inputSurface = new InputSurface(encodeSurface, shared);
+            if (shared == null) {
+                shared = target.inputSurface;
             }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-            mException = e;
-            return;
         }
-        Surface encodeSurface = mVideoEncodeThread.getSurface();
-        mInputSurface = new InputSurface(encodeSurface);
-        mInputSurface.makeCurrent();
-
-        MediaFormat inputFormat = mExtractor.getTrackFormat(mVideoIndex);
+        shared.makeCurrent();
 
-        //初始化解码器
-        mDecoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
         mOutputSurface = new OutputSurface();
-        mDecoder.configure(inputFormat, mOutputSurface.getSurface(), null, 0);
-        mDecoder.start();
+        createDecoder();
+        //异步模式在每轮开始时阻塞等待回调，之后的dequeue都不再等待
+        long timeoutUs = mAsyncCodec ? 0 : TIMEOUT_USEC;
         //丢帧判断
         int frameIndex = 0;
-        if (mDropFrames && mSrcFrameRate != null && mDstFrameRate != null) {
-            if (mSrcFrameRate > mDstFrameRate) {
-                mFrameDropper = new FrameDropper(mSrcFrameRate,mDstFrameRate);
+        for (Target target : mTargets) {
+            if (mDropFrames && mSrcFrameRate != null && target.dstFrameRate != null) {
+                if (mSrcFrameRate > target.dstFrameRate) {
+                    target.frameDropper = new FrameDropper(mSrcFrameRate, target.dstFrameRate);
+                }
             }
         }
+        if (mRangesUs == null) {
+            mRangesUs = new long[]{mStartTimeMs == null ? 0 : mStartTimeMs * 1000L, mEndTimeMs == null ? -1 : mEndTimeMs * 1000L};
+        }
         //开始解码
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        FrameCodec.BufferInfo info = new FrameCodec.BufferInfo();
         boolean decoderDone = false;
         boolean inputDone = false;
-        long videoStartTimeUs = -1;
         int decodeTryAgainCount = 0;
 
         while (!decoderDone) {
+            mToken.throwIfCancelled();
+            if (mDecoder instanceof AsyncFrameCodec) {
+                ((AsyncFrameCodec) mDecoder).awaitEvent(!inputDone, ASYNC_TIMEOUT_USEC, null);
+            }
             //还有帧数据，输入解码器
             if (!inputDone) {
                 boolean eof = false;
                 int index = mExtractor.getSampleTrackIndex();
                 if (index == mVideoIndex) {
-                    int inputBufIndex = mDecoder.dequeueInputBuffer(TIMEOUT_USEC);
+                    int inputBufIndex = mDecoder.dequeueInputBuffer(timeoutUs);
                     if (inputBufIndex >= 0) {
                         ByteBuffer inputBuf = mDecoder.getInputBuffer(inputBufIndex);
                         int chunkSize = mExtractor.readSampleData(inputBuf, 0);
                         if (chunkSize < 0) {
-                            mDecoder.queueInputBuffer(inputBufIndex, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            mDecoder.queueInputBuffer(inputBufIndex, 0, 0, 0L, FrameCodec.BUFFER_FLAG_END_OF_STREAM);
                             decoderDone = true;
                         } else {
                             long sampleTime = mExtractor.getSampleTime();
@@ -147,9 +195,9 @@ public class VideoDecodeThread extends Thread {
 
                 if (eof) {
                     //解码输入结束
-                    int inputBufIndex = mDecoder.dequeueInputBuffer(TIMEOUT_USEC);
+                    int inputBufIndex = mDecoder.dequeueInputBuffer(timeoutUs);
                     if (inputBufIndex >= 0) {
-                        mDecoder.queueInputBuffer(inputBufIndex, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        mDecoder.queueInputBuffer(inputBufIndex, 0, 0, 0L, FrameCodec.BUFFER_FLAG_END_OF_STREAM);
                         inputDone = true;
                     }
                 }
@@ -158,43 +206,62 @@ public class VideoDecodeThread extends Thread {
             if (decoderDone) {
             }
             while (decoderOutputAvailable) {
-                int outputBufferIndex = mDecoder.dequeueOutputBuffer(info, TIMEOUT_USEC);
-                if (inputDone && outputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                int outputBufferIndex = mDecoder.dequeueOutputBuffer(info, timeoutUs);
+                if (inputDone && outputBufferIndex == FrameCodec.INFO_TRY_AGAIN_LATER) {
                     decodeTryAgainCount++;
                     if (decodeTryAgainCount > 10) {
                         //小米2上出现BUFFER_FLAG_END_OF_STREAM之后一直tryAgain的问题
-                        decoderDone = true;
+                        if (hasNext()) {
+                            next();
+                            inputDone = false;
+                            decodeTryAgainCount = 0;
+                        } else {
+                            decoderDone = true;
+                        }
                         break;
                     }
                 } else {
                     decodeTryAgainCount = 0;
                 }
-                if (outputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (outputBufferIndex == FrameCodec.INFO_TRY_AGAIN_LATER) {
                     break;
-                } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    MediaFormat newFormat = mDecoder.getOutputFormat();
+                } else if (outputBufferIndex == FrameCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    TrackFormat newFormat = mDecoder.getOutputFormat();
                 } else if (outputBufferIndex < 0) {
                     //ignore
                 } else {
                     boolean doRender = true;
                     //解码数据可用
-                    if (mEndTimeMs != null && info.presentationTimeUs >= mEndTimeMs * 1000) {
+                    boolean pastEnd = endUs() >= 0 && info.presentationTimeUs >= endUs();
+                    if ((pastEnd || info.flags == FrameCodec.BUFFER_FLAG_END_OF_STREAM) && hasNext()) {
+                        //当前段结束，接着解下一段或下一个输入
+                        mDecoder.releaseOutputBuffer(outputBufferIndex, false);
+                        next();
+                        inputDone = false;
+                        break;
+                    }
+                    if (pastEnd) {
                         inputDone = true;
                         decoderDone = true;
                         doRender = false;
-                        info.flags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+                        info.flags |= FrameCodec.BUFFER_FLAG_END_OF_STREAM;
                     }
-                    if (mStartTimeMs != null && info.presentationTimeUs < mStartTimeMs * 1000) {
+                    if (info.presentationTimeUs < startUs()) {
                         doRender = false;
                     }
-                    if (info.flags == MediaCodec.BUFFER_FLAG_END_OF_STREAM) {
+                    if (info.flags == FrameCodec.BUFFER_FLAG_END_OF_STREAM) {
                         decoderDone = true;
                         mDecoder.releaseOutputBuffer(outputBufferIndex, false);
                         break;
                     }
-                    //检查是否需要丢帧
-                    if (mFrameDropper!=null && mFrameDropper.checkDrop(frameIndex)) {
-                            doRender = false;
+                    //检查是否需要丢帧，多路输出时各按各的帧率，有一路保留就要渲染
+                    boolean keep = false;
+                    for (Target target : mTargets) {
+                        target.render = target.frameDropper == null || !target.frameDropper.checkDrop(frameIndex);
+                        keep |= target.render;
+                    }
+                    if (!keep) {
+                        doRender = false;
                     }
                     frameIndex++;
                     mDecoder.releaseOutputBuffer(outputBufferIndex, doRender);
@@ -207,13 +274,17 @@ public class VideoDecodeThread extends Thread {
                             e.printStackTrace();
                         }
                         if (!errorWait) {
-                            if (videoStartTimeUs == -1) {
-                                videoStartTimeUs = info.presentationTimeUs;
+                            long timelineUs = info.presentationTimeUs - startUs() + mRangeBaseUs;
+                            if (mVideoStartTimeUs == -1) {
+                                mVideoStartTimeUs = info.presentationTimeUs;
+                                mLeadUs = timelineUs;
+                            }
+                            long presentationTimeNs = (timelineUs - mLeadUs) * 1000;
+                            for (Target target : mTargets) {
+                                if (target.render) {
+                                    renderTo(target, presentationTimeNs);
+                                }
                             }
-                            mOutputSurface.drawImage(false);
-                            long presentationTimeNs = (info.presentationTimeUs - videoStartTimeUs) * 1000;
-                            mInputSurface.setPresentationTime(presentationTimeNs);
-                            mInputSurface.swapBuffers();
                             break;
                         }
                     }
@@ -223,7 +294,190 @@ public class VideoDecodeThread extends Thread {
         mDecodeDone.set(true);
     }
 
+    private void renderTo(Target target, long presentationTimeNs) {
+        if (mTargets.size() > 1) {
+            //各路尺寸不同，切换surface后视口也要跟着改
+            target.inputSurface.makeCurrent();
+            GLES20.glViewport(0, 0, target.inputSurface.getWidth(), target.inputSurface.getHeight());
+        }
+        mOutputSurface.drawImage(false);
+        if (target.syncFrameRequested) {
+            target.syncFrameRequested = false;
+            target.encodeThread.requestSyncFrame();
+        }
+        target.inputSurface.setPresentationTime(presentationTimeNs);
+        target.inputSurface.swapBuffers();
+    }
+
+    private long startUs() {
+        return mRangesUs[mRange];
+    }
+
+    private long endUs() {
+        return mRangesUs[mRange + 1];
+    }
+
+    private boolean hasNext() {
+        return mRange + 2 < mRangesUs.length || !mNextInputs.isEmpty();
+    }
+
+    private void next() throws IOException {
+        if (mRange + 2 < mRangesUs.length) {
+            nextRange();
+        } else {
+            nextInput();
+        }
+    }
+
+    /**
+     * 当前段已经渲染完，flush解码器后seek到下一段起点前的关键帧，编码器、EGL和muxer都不受影响
+     */
+    private void nextRange() {
+        mDecoder.flush();
+        mRangeBaseUs += endUs() - startUs();
+        mRange += 2;
+        mExtractor.seekTo(startUs(), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+    }
+
+    /**
+     * 当前输入已经渲染完，换下一个输入：格式可能不同，解码器重新创建，OutputSurface、EGL和编码器继续使用
+     */
+    private void nextInput() throws IOException {
+        mRangeBaseUs += endUs() - startUs();
+        Input input = mNextInputs.remove(0);
+        releaseDecoder();
+        mExtractor = input.extractor;
+        mVideoIndex = input.videoIndex;
+        mRangesUs = input.rangesUs;
+        mRange = 0;
+        mExtractor.seekTo(startUs(), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        createDecoder();
+        //换了输入后第一帧要编成关键帧，拼接时从这里切开
+        for (Target target : mTargets) {
+            target.syncFrameRequested = true;
+        }
+    }
+
+    private void createDecoder() throws IOException {
+        MediaFormat inputFormat = mExtractor.getTrackFormat(mVideoIndex);
+        MediaCodec decoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+        //异步回调必须在configure之前设置
+        mDecoder = mAsyncCodec ? new AsyncFrameCodec(decoder, "VideoDecodeCallback") : new MediaCodecFrameCodec(decoder);
+        decoder.configure(inputFormat, mOutputSurface.getSurface(), null, 0);
+        mDecoder.start();
+    }
+
+    private void releaseDecoder() {
+        FrameCodec decoder = mDecoder;
+        if (decoder == null) {
+            return;
+        }
+        mDecoder = null;
+        try {
+            decoder.stop();
+        } finally {
+            decoder.release();
+            if (decoder instanceof AsyncFrameCodec) {
+                mCallbackCpuTimeMs += ((AsyncFrameCodec) decoder).getCallbackCpuTimeMs();
+            }
+        }
+    }
+
     public Exception getException() {
         return mException;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return 第一帧渲染到编码器的帧在原视频中的时间，输出的时间戳都以它为0点，还没有渲染过时为-1
+     */
+    public long getVideoStartTimeUs() {
+        return mVideoStartTimeUs;
+    }
+
+    /**
+     * 按顺序解码多段拼接成连续的输出，设置后忽略构造时传入的起止时间。extractor应已seek到第一段起点前的关键帧
+     *
+     * @param rangesUs 每两个一组依次为各段的起点和终点
+     */
+    public void setRanges(@Nullable long[] rangesUs) {
+        mRangesUs = rangesUs;
+    }
+
+    /**
+     * 当前输入解码完后接着解码extractor，时间戳接在前面各输入之后，第一帧编成关键帧。
+     * 可以多次调用，按调用顺序解码。前面的输入都要有明确的终点，用来计算后面输入的时间戳
+     *
+     * @param rangesUs 每两个一组依次为各段的起点和终点
+     */
+    public void addInput(MediaExtractor extractor, int videoIndex, long[] rangesUs) {
+        mNextInputs.add(new Input(extractor, videoIndex, rangesUs));
+    }
+
+    /**
+     * 把解码出的每一帧也渲染到另一个编码器，一次解码得到多路不同尺寸、码率、帧率的输出。
+     * 各路共用构造时传入的编码器的EGL context，时间戳相同，按各自的帧率丢帧。在start之前调用
+     *
+     * @param dstFrameRate 这一路的帧率，丢帧时使用
+     */
+    public void addEncodeThread(IVideoEncodeThread encodeThread, @Nullable Integer dstFrameRate) {
+        mTargets.add(new Target(encodeThread, dstFrameRate));
+    }
+
+    /**
+     * 每轮循环检查一次，取消或其他线程失败时停止解码并释放解码器和EGL surface
+     */
+    public void setCancellationToken(CancellationToken token) {
+        mToken = token;
+    }
+
+    /**
+     * 使用MediaCodec异步回调，需要Android 6.0以上
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    public void setAsyncCodec(boolean asyncCodec) {
+        mAsyncCodec = asyncCodec;
+    }
+
+    /**
+     * @return 本线程用掉的CPU时间，线程结束后有效
+     */
+    public long getCpuTimeMs() {
+        return mCpuTimeMs;
+    }
+
+    /**
+     * @return 异步模式下解码器回调线程的CPU时间
+     */
+    public long getCallbackCpuTimeMs() {
+        return mCallbackCpuTimeMs;
+    }
+
+    private static final class Target {
+        final IVideoEncodeThread encodeThread;
+        final Integer dstFrameRate;
+        InputSurface inputSurface;
+        FrameDropper frameDropper;
+        /**
+         * 当前这一帧是否渲染到这一路
+         */
+        boolean render;
+        boolean syncFrameRequested;
+
+        Target(IVideoEncodeThread encodeThread, @Nullable Integer dstFrameRate) {
+            this.encodeThread = encodeThread;
+            this.dstFrameRate = dstFrameRate;
+        }
+    }
+
+    private static final class Input {
+        final MediaExtractor extractor;
+        final int videoIndex;
+        final long[] rangesUs;
+
+        Input(MediaExtractor extractor, int videoIndex, long[] rangesUs) {
+            this.extractor = extractor;
+            this.videoIndex = videoIndex;
+            this.rangesUs = rangesUs;
+        }
+    }
+}
@@ -6,12 +6,21 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
 import android.view.Surface;
 
 import androidx.annotation.RequiresApi;
 
+import com.github.boybeak.mediakit.CancellationToken;
+import com.github.boybeak.mediakit.FrameCodec;
+import com.github.boybeak.mediakit.MuxerBackend;
+import com.github.boybeak.mediakit.SizeBudget;
+import com.github.boybeak.mediakit.TrackFormat;
+import com.github.boybeak.mediakit.android.AsyncFrameCodec;
+import com.github.boybeak.mediakit.android.MediaCodecFrameCodec;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.CountDownLatch;
@@ -20,9 +29,14 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class VideoEncodeThread extends Thread implements IVideoEncodeThread {
 
     private static final int TIMEOUT_USEC = 1;
+    /**
+     * 异步模式下dequeue会阻塞等待回调，超时只决定多久检查一次解码是否结束
+     */
+    private static final int ASYNC_TIMEOUT_USEC = 10000;
 
-    private MediaCodec mEncoder;
-    private final MediaMuxer mMuxer;
+    private FrameCodec mEncoder;
+    private volatile MediaCodec mEncoderCodec;
+    private final MuxerBackend mMuxer;
     private final AtomicBoolean mDecodeDone;
     private final CountDownLatch mMuxerStartLatch;
     private Exception mException;
@@ -37,8 +51,15 @@ public class VideoEncodeThread extends Thread implements IVideoEncodeThread {
     private final CountDownLatch mEglContextLatch;
     private volatile Surface mSurface;
     private VideoProgressAve mProgressAve;
+    private boolean mAsyncCodec;
+    private CancellationToken mToken = new CancellationToken();
+    private long mCpuTimeMs;
+    private long mCallbackCpuTimeMs;
+    private long mTargetVideoBytes;
+    private long mTargetDurationUs;
+    private SizeBudget mSizeBudget;
 
-    public VideoEncodeThread(MediaExtractor extractor, MediaMuxer muxer,
+    public VideoEncodeThread(MediaExtractor extractor, MuxerBackend muxer,
                              int bitrate, int resultWidth, int resultHeight, int iFrameInterval,
                              int frameRate, int videoIndex,
                              AtomicBoolean decodeDone, CountDownLatch muxerStartLatch) {
@@ -75,6 +96,14 @@ public class VideoEncodeThread extends Thread implements IVideoEncodeThread {
                 mException = mException == null ? e : mException;
                 e.printStackTrace();
             }
+            if (mEncoder instanceof AsyncFrameCodec) {
+                mCallbackCpuTimeMs = ((AsyncFrameCodec) mEncoder).getCallbackCpuTimeMs();
+            }
+            mCpuTimeMs = SystemClock.currentThreadTimeMillis();
+            if (mException != null) {
+                //第一个失败的线程让其他线程一起停下
+                mToken.fail(mException);
+            }
         }
     }
 
@@ -94,20 +123,28 @@ public class VideoEncodeThread extends Thread implements IVideoEncodeThread {
         outputFormat.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
         outputFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mIFrameInterval);
 
-        mEncoder = MediaCodec.createEncoderByType(mimeType);
-        boolean supportProfileHigh = VideoUtil.trySetProfileAndLevel(mEncoder, mimeType, outputFormat,
+        MediaCodec encoder = MediaCodec.createEncoderByType(mimeType);
+        //异步回调必须在configure之前设置
+        mEncoder = mAsyncCodec ? new AsyncFrameCodec(encoder, "VideoEncodeCallback") : new MediaCodecFrameCodec(encoder);
+        long timeoutUs = mAsyncCodec ? ASYNC_TIMEOUT_USEC : TIMEOUT_USEC;
+        boolean supportProfileHigh = VideoUtil.trySetProfileAndLevel(encoder, mimeType, outputFormat,
                 MediaCodecInfo.CodecProfileLevel.AVCProfileHigh,
                 MediaCodecInfo.CodecProfileLevel.AVCLevel31
         );
         if (supportProfileHigh) {
         }
-        int maxBitrate = VideoUtil.getMaxSupportBitrate(mEncoder,mimeType);
+        int maxBitrate = VideoUtil.getMaxSupportBitrate(encoder,mimeType);
         if (maxBitrate > 0 && mBitrate > maxBitrate) {
             mBitrate = (int) (maxBitrate * 0.8f);//直接设置最大值小米2报错
         }
         outputFormat.setInteger(MediaFormat.KEY_BIT_RATE, mBitrate);
-        mEncoder.configure(outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mSurface = mEncoder.createInputSurface();
+        encoder.configure(outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mSurface = encoder.createInputSurface();
+        mEncoderCodec = encoder;
+        if (mTargetVideoBytes > 0) {
+            mSizeBudget = new SizeBudget(mTargetVideoBytes, mTargetDurationUs, mBitrate,
+                    maxBitrate > 0 ? (int) (maxBitrate * 0.8f) : Integer.MAX_VALUE);
+        }
 
 //        mInputSurface = new InputSurface(encodeSurface);
 //        mInputSurface.makeCurrent();
@@ -115,7 +152,7 @@ public class VideoEncodeThread extends Thread implements IVideoEncodeThread {
         mEglContextLatch.countDown();
 
         boolean signalEncodeEnd = false;
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        FrameCodec.BufferInfo info = new FrameCodec.BufferInfo();
         int encodeTryAgainCount = 0;
         int videoTrackIndex = -5;
         boolean detectTimeError = false;
@@ -124,12 +161,13 @@ public class VideoEncodeThread extends Thread implements IVideoEncodeThread {
         //开始编码
         //输出
         while (true) {
+            mToken.throwIfCancelled();
             if (mDecodeDone.get() && !signalEncodeEnd) {
                 signalEncodeEnd = true;
                 mEncoder.signalEndOfInputStream();
             }
-            int outputBufferIndex = mEncoder.dequeueOutputBuffer(info, TIMEOUT_USEC);
-            if (signalEncodeEnd && outputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+            int outputBufferIndex = mEncoder.dequeueOutputBuffer(info, timeoutUs);
+            if (signalEncodeEnd && outputBufferIndex == FrameCodec.INFO_TRY_AGAIN_LATER) {
                 encodeTryAgainCount++;
                 if (encodeTryAgainCount > 10) {
                     //三星S8上出现signalEndOfInputStream之后一直tryAgain的问题
@@ -138,10 +176,10 @@ public class VideoEncodeThread extends Thread implements IVideoEncodeThread {
             } else {
                 encodeTryAgainCount = 0;
             }
-            if (outputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+            if (outputBufferIndex == FrameCodec.INFO_TRY_AGAIN_LATER) {
                 continue;
-            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                MediaFormat newFormat = mEncoder.getOutputFormat();
+            } else if (outputBufferIndex == FrameCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                TrackFormat newFormat = mEncoder.getOutputFormat();
                 if (videoTrackIndex == -5) {
                     videoTrackIndex = mMuxer.addTrack(newFormat);
                     mMuxer.start();
@@ -152,7 +190,7 @@ public class VideoEncodeThread extends Thread implements IVideoEncodeThread {
             } else {
                 //编码数据可用
                 ByteBuffer outputBuffer = mEncoder.getOutputBuffer(outputBufferIndex);
-                if (info.flags == MediaCodec.BUFFER_FLAG_END_OF_STREAM && info.presentationTimeUs < 0) {
+                if (info.flags == FrameCodec.BUFFER_FLAG_END_OF_STREAM && info.presentationTimeUs < 0) {
                     info.presentationTimeUs = 0;
                 }
                 //写入视频
@@ -164,24 +202,48 @@ public class VideoEncodeThread extends Thread implements IVideoEncodeThread {
                     info.presentationTimeUs = lastVideoFrameTimeUs + VIDEO_FRAME_TIME_US;
                     detectTimeError = false;
                 }
-                if (info.flags != MediaCodec.BUFFER_FLAG_CODEC_CONFIG) {
+                if (info.flags != FrameCodec.BUFFER_FLAG_CODEC_CONFIG) {
                     lastVideoFrameTimeUs = info.presentationTimeUs;
                 }
-                mMuxer.writeSampleData(videoTrackIndex, outputBuffer, info);
+                mMuxer.writeSampleData(videoTrackIndex, outputBuffer, info.offset, info.size, info.presentationTimeUs, info.flags);
+                if (mSizeBudget != null) {
+                    updateBitrate(info);
+                }
                 notifyProgress(info);
                 mEncoder.releaseOutputBuffer(outputBufferIndex, false);
-                if (info.flags == MediaCodec.BUFFER_FLAG_END_OF_STREAM) {
+                if (info.flags == FrameCodec.BUFFER_FLAG_END_OF_STREAM) {
                     break;
                 }
             }
         }
     }
 
-    private void notifyProgress(MediaCodec.BufferInfo info) {
+    /**
+     * 每个GOP开始时按已写入的字节数重新分配剩下的预算，只在码率变化明显时才通知编码器
+     */
+    private void updateBitrate(FrameCodec.BufferInfo info) {
+        mSizeBudget.addBytes(info.size);
+        if ((info.flags & FrameCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+            return;
+        }
+        int bitrate = mSizeBudget.onSyncSample(info.presentationTimeUs);
+        if (bitrate <= 0) {
+            return;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        try {
+            mEncoderCodec.setParameters(params);
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void notifyProgress(FrameCodec.BufferInfo info) {
         if (mProgressAve == null) {
             return;
         }
-        mProgressAve.setEncodeTimeStamp((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) > 0 ? Long.MAX_VALUE : info.presentationTimeUs);
+        mProgressAve.setEncodeTimeStamp((info.flags & FrameCodec.BUFFER_FLAG_END_OF_STREAM) > 0 ? Long.MAX_VALUE : info.presentationTimeUs);
     }
 
     @Override
@@ -194,11 +256,66 @@ public class VideoEncodeThread extends Thread implements IVideoEncodeThread {
         return mEglContextLatch;
     }
 
+    @Override
+    public void requestSyncFrame() {
+        MediaCodec encoder = mEncoderCodec;
+        if (encoder == null) {
+            return;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            encoder.setParameters(params);
+        } catch (IllegalStateException e) {
+            //编码器已经停止
+            e.printStackTrace();
+        }
+    }
+
     public Exception getException() {
         return mException;
     }
 
+    /**
+     * 目标大小模式：视频只能占videoBytes，编码时每个GOP按实际写入的字节调整码率
+     *
+     * @param durationUs 输出时长，和编码时间戳同一个0点
+     */
+    public void setTargetSize(long videoBytes, long durationUs) {
+        mTargetVideoBytes = videoBytes;
+        mTargetDurationUs = durationUs;
+    }
+
     public void setProgressAve(VideoProgressAve progressAve) {
         mProgressAve = progressAve;
     }
+
+    /**
+     * 每轮循环检查一次，取消或其他线程失败时停止编码并释放编码器
+     */
+    public void setCancellationToken(CancellationToken token) {
+        mToken = token;
+    }
+
+    /**
+     * 使用MediaCodec异步回调，需要Android 6.0以上
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    public void setAsyncCodec(boolean asyncCodec) {
+        mAsyncCodec = asyncCodec;
+    }
+
+    /**
+     * @return 本线程用掉的CPU时间，线程结束后有效
+     */
+    public long getCpuTimeMs() {
+        return mCpuTimeMs;
+    }
+
+    /**
+     * @return 异步模式下编码器回调线程的CPU时间
+     */
+    public long getCallbackCpuTimeMs() {
+        return mCallbackCpuTimeMs;
+    }
 }
@@ -4,19 +4,47 @@ import static com.github.boybeak.xcmpor.AudioUtil.getAudioBitrate;
 
 import android.annotation.TargetApi;
 import android.content.Context;
-import android.media.MediaCodecInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaMetadataRetriever;
-import android.media.MediaMuxer;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+
+import com.github.boybeak.mediakit.CancellationToken;
+import com.github.boybeak.mediakit.MuxerBackend;
+import com.github.boybeak.mediakit.SampleIndex;
+import com.github.boybeak.mediakit.SampleSink;
+import com.github.boybeak.mediakit.SampleSource;
+import com.github.boybeak.mediakit.SegmentJournal;
+import com.github.boybeak.mediakit.SegmentPlan;
+import com.github.boybeak.mediakit.SizeBudget;
+import com.github.boybeak.mediakit.TrackFormat;
+import com.github.boybeak.mediakit.aac.AdtsSource;
+import com.github.boybeak.mediakit.android.AsyncFrameCodec;
+import com.github.boybeak.mediakit.android.ExtractorSampleSource;
+import com.github.boybeak.mediakit.android.MediaFormats;
+import com.github.boybeak.mediakit.android.MediaMuxerBackend;
+import com.github.boybeak.mediakit.mp4.FragmentedMp4Muxer;
+import com.github.boybeak.mediakit.mp4.Mp4Demuxer;
+import com.github.boybeak.mediakit.mp4.Mp4Muxer;
+import com.github.boybeak.mediakit.mp4.Remuxer;
+import com.github.boybeak.mediakit.mp4.SegmentStitcher;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @TargetApi(21)
 public class VideoProcessor {
@@ -37,19 +65,56 @@ public class VideoProcessor {
 
     final static int TIMEOUT_USEC = 2500;
 
+    /**
+     * 编解码器的驱动方式
+     */
+    public enum CodecMode {
+        /**
+         * 编解码线程轮询dequeue，兼容所有设备
+         */
+        SYNC,
+        /**
+         * MediaCodec异步回调，每个编解码器一个回调线程，没有数据时编解码线程休眠，需要Android 6.0以上，否则退回SYNC
+         */
+        ASYNC
+    }
+
     /**
      * 支持裁剪缩放快慢放
+     *
+     * @return 本次处理的耗时及各线程的CPU时间
      */
-    public static void processVideo(@NotNull Context context, @NotNull Processor processor) throws Exception {
-
-        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-        processor.input.setDataSource(retriever);
-        int originWidth = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
-        int originHeight = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
-        int rotationValue = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION));
-        int oriBitrate = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE));
-        int durationMs = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
-        retriever.release();
+    public static ProcessStats processVideo(@NotNull Context context, @NotNull Processor processor) throws Exception {
+        long processStartMs = SystemClock.elapsedRealtime();
+        CancellationToken token = processor.cancellationToken;
+        token.throwIfCancelled();
+
+        MediaProbe probe = processor.input.getProbe(context);
+        int originWidth = probe.getWidth();
+        int originHeight = probe.getHeight();
+        int rotationValue = probe.getRotation();
+        int oriBitrate = probe.getBitrate();
+        int durationMs = probe.getDurationMs();
+        //多段拼接，只有一段时等同于截取
+        long[] rangesUs = resolveRanges(processor, durationMs);
+        //目标大小模式：按输出时长和音频占用算出视频码率，不超过设置的或原视频的码率
+        long targetVideoBytes = 0;
+        if (processor.targetSizeBytes != null) {
+            long outputDurationUs = getOutputDurationMs(processor, rangesUs, durationMs) * 1000L;
+            targetVideoBytes = SizeBudget.videoBytes(processor.targetSizeBytes, outputDurationUs,
+                    estimateAudioBitrate(processor, probe));
+            int bitrate = SizeBudget.bitrateFor(targetVideoBytes, outputDurationUs);
+            if (bitrate <= 0) {
+                throw new IllegalArgumentException("targetSizeBytes " + processor.targetSizeBytes + " leaves no room for video");
+            }
+            int maxBitrate = processor.bitrate != null ? processor.bitrate : oriBitrate;
+            if (maxBitrate > 0 && bitrate > maxBitrate) {
+                //预算用不完，按上限编码即可，不需要调整码率
+                bitrate = maxBitrate;
+                targetVideoBytes = 0;
+            }
+            processor.bitrate = bitrate;
+        }
         if (processor.bitrate == null) {
             processor.bitrate = oriBitrate;
         }
@@ -61,65 +126,132 @@ public class VideoProcessor {
         int resultHeight = processor.outHeight == null ? originHeight : processor.outHeight;
         resultWidth = resultWidth % 2 == 0 ? resultWidth : resultWidth + 1;
         resultHeight = resultHeight % 2 == 0 ? resultHeight : resultHeight + 1;
+        boolean keepSize = resultWidth == originWidth && resultHeight == originHeight;
 
         if (rotationValue == 90 || rotationValue == 270) {
             int temp = resultHeight;
             resultHeight = resultWidth;
             resultWidth = temp;
         }
-
+        if (processor.concatInputs != null && processor.concatInputs.size() > 1) {
+            return processConcat(processor, resultWidth, resultHeight, processStartMs);
+        }
+        switch (chooseMode(processor, probe, rangesUs, keepSize)) {
+            case REMUX: {
+                long cpuStartMs = SystemClock.currentThreadTimeMillis();
+                remux(processor, token);
+                return new ProcessStats(null, true, SystemClock.elapsedRealtime() - processStartMs,
+                        SystemClock.currentThreadTimeMillis() - cpuStartMs, 0, 0, 0);
+            }
+            case EDIT_LIST_TRIM: {
+                long cpuStartMs = SystemClock.currentThreadTimeMillis();
+                editListTrim(processor, probe, token);
+                return new ProcessStats(null, true, SystemClock.elapsedRealtime() - processStartMs,
+                        SystemClock.currentThreadTimeMillis() - cpuStartMs, 0, 0, 0);
+            }
+            case SMART_TRIM:
+                return processSmartTrim(processor, probe, resultWidth, resultHeight, processStartMs);
+            case SEGMENTED:
+                return processSegmented(processor, probe, resultWidth, resultHeight, processStartMs);
+            default:
+                break;
+        }
+        //只有完整转码才需要MediaExtractor
         MediaExtractor extractor = new MediaExtractor();
         processor.input.setDataSource(extractor);
         int videoIndex = VideoUtil.selectTrack(extractor, false);
         int audioIndex = VideoUtil.selectTrack(extractor, true);
-        MediaMuxer mediaMuxer = new MediaMuxer(processor.output, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        MuxerBackend muxer = processor.muxerFactory.create(processor.output);
         int muxerAudioTrackIndex = 0;
         Integer audioEndTimeMs = processor.endTimeMs;
+        AudioTranscoder.Target audioTarget = null;
+        //每一路输出的音频轨都一样
+        TrackFormat audioOutputFormat = null;
+        long mixDurationUs = 0;
         if (audioIndex >= 0) {
             MediaFormat audioTrackFormat = extractor.getTrackFormat(audioIndex);
-            String audioMimeType = MediaFormat.MIMETYPE_AUDIO_AAC;
-            int bitrate = getAudioBitrate(audioTrackFormat);
-            int channelCount = audioTrackFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
-            int sampleRate = audioTrackFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
-            int maxBufferSize = AudioUtil.getAudioMaxBufferSize(audioTrackFormat);
-            MediaFormat audioEncodeFormat = MediaFormat.createAudioFormat(audioMimeType, sampleRate, channelCount);//参数对应-> mime type、采样率、声道数
-            audioEncodeFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);//比特率
-            audioEncodeFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-            audioEncodeFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, maxBufferSize);
+            TrackFormat sourceAudioFormat = MediaFormats.toTrackFormat(audioTrackFormat);
+            int sourceAudioBitrate = probe.getAudioBitrate();
+            AudioTranscoder.Target target = AudioTranscoder.Target.resolve(sourceAudioFormat, sourceAudioBitrate,
+                    processor.audioCodec, processor.audioBitrate, processor.audioChannelCount, processor.audioSampleRate);
+            //编码格式、码率、声道、采样率都符合且不混音时直接拷贝，否则重新编码
+            boolean transcodeAudio = processor.mixAudio != null || !target.fits(sourceAudioFormat, sourceAudioBitrate);
+            MediaFormat audioEncodeFormat;
+            if (transcodeAudio) {
+                audioTarget = target;
+                audioEncodeFormat = MediaFormats.toMediaFormat(target.createTrackFormat());
+            } else {
+                //拷贝时沿用原来的格式和csd
+                audioEncodeFormat = MediaFormats.toMediaFormat(sourceAudioFormat);
+                audioEncodeFormat.setInteger(MediaFormat.KEY_BIT_RATE, getAudioBitrate(audioTrackFormat));//比特率
+                audioEncodeFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, AudioUtil.getAudioMaxBufferSize(audioTrackFormat));
+            }
 
             long videoDurationUs = durationMs * 1000L;
             long audioDurationUs = audioTrackFormat.getLong(MediaFormat.KEY_DURATION);
+            mixDurationUs = audioDurationUs;
 
-            if (processor.startTimeMs != null || processor.endTimeMs != null) {
+            if (rangesUs != null) {
+                long splicedDurationUs = VideoUtil.getRangesDurationUs(rangesUs);
+                audioEncodeFormat.setLong(MediaFormat.KEY_DURATION, splicedDurationUs);
+                mixDurationUs = splicedDurationUs;
+            } else if (processor.startTimeMs != null || processor.endTimeMs != null) {
                 if (processor.startTimeMs != null && processor.endTimeMs != null) {
                     videoDurationUs = (processor.endTimeMs - processor.startTimeMs) * 1000L;
                 }
                 long avDurationUs = Math.min(videoDurationUs, audioDurationUs);
                 audioEncodeFormat.setLong(MediaFormat.KEY_DURATION, avDurationUs);
                 audioEndTimeMs = (processor.startTimeMs == null ? 0 : processor.startTimeMs) + (int) (avDurationUs / 1000);
+                mixDurationUs = avDurationUs;
             }
 
-            AudioUtil.checkCsd(audioEncodeFormat,
-                    MediaCodecInfo.CodecProfileLevel.AACObjectLC,
-                    sampleRate,
-                    channelCount
-            );
             //提前推断出音頻格式加到MeidaMuxer，不然实际上应该到音频预处理完才能addTrack，会卡住视频编码的进度
-            muxerAudioTrackIndex = mediaMuxer.addTrack(audioEncodeFormat);
+            audioOutputFormat = MediaFormats.toTrackFormat(audioEncodeFormat);
+            muxerAudioTrackIndex = muxer.addTrack(audioOutputFormat);
+        } else if (processor.mixAudio != null) {
+            //原视频没有音轨时只输出背景音频，长度和输出视频一致
+            TrackFormat mixFormat = getMixAudioFormat(processor.mixAudio);
+            audioTarget = AudioTranscoder.Target.resolve(mixFormat, 0, processor.audioCodec, processor.audioBitrate,
+                    processor.audioChannelCount, processor.audioSampleRate);
+            mixDurationUs = rangesUs != null ? VideoUtil.getRangesDurationUs(rangesUs)
+                    : ((processor.endTimeMs == null ? durationMs : processor.endTimeMs)
+                    - (processor.startTimeMs == null ? 0 : processor.startTimeMs)) * 1000L;
+            audioOutputFormat = audioTarget.createTrackFormat();
+            audioOutputFormat.setDurationUs(mixDurationUs);
+            muxerAudioTrackIndex = muxer.addTrack(audioOutputFormat);
         }
+        int outDurationMs = getOutputDurationMs(processor, rangesUs, durationMs);
+        int audioBitrate = audioTarget != null ? audioTarget.getBitrate() : audioIndex >= 0 ? DEFAULT_AAC_BITRATE : 0;
+        preallocate(muxer, processor.bitrate + audioBitrate, outDurationMs);
         extractor.selectTrack(videoIndex);
-        if (processor.startTimeMs != null) {
-            extractor.seekTo(processor.startTimeMs * 1000, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        Long firstStartUs = rangesUs != null ? Long.valueOf(rangesUs[0])
+                : processor.startTimeMs == null ? null : processor.startTimeMs * 1000L;
+        if (firstStartUs != null) {
+            //从索引里直接查到起点前的关键帧，精确seek到它
+            SampleIndex.Track videoTrack = probe.getSampleIndex().findTrack(false);
+            int syncSample = videoTrack == null ? -1 : videoTrack.findSyncSample(firstStartUs, SampleSource.SEEK_TO_PREVIOUS_SYNC);
+            if (syncSample >= 0) {
+                extractor.seekTo(videoTrack.getPresentationTimeUs(syncSample), MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+            } else {
+                extractor.seekTo(firstStartUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            }
         } else {
             extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
         }
 
         VideoProgressAve progressAve = new VideoProgressAve(processor.listener);
-        progressAve.setStartTimeMs(processor.startTimeMs == null ? 0 : processor.startTimeMs);
-        progressAve.setEndTimeMs(processor.endTimeMs == null ? durationMs : processor.endTimeMs);
+        if (rangesUs != null) {
+            //编码时间戳是拼接后的时间
+            progressAve.setStartTimeMs(0);
+            progressAve.setEndTimeMs((int) (VideoUtil.getRangesDurationUs(rangesUs) / 1000));
+        } else {
+            progressAve.setStartTimeMs(processor.startTimeMs == null ? 0 : processor.startTimeMs);
+            progressAve.setEndTimeMs(processor.endTimeMs == null ? durationMs : processor.endTimeMs);
+        }
         AtomicBoolean decodeDone = new AtomicBoolean(false);
-        CountDownLatch muxerStartLatch = new CountDownLatch(1);
-        VideoEncodeThread encodeThread = new VideoEncodeThread(extractor, mediaMuxer,processor.bitrate,
+        //音频写到每一路，要等所有muxer都启动
+        CountDownLatch muxerStartLatch = new CountDownLatch(processor.renditions == null ? 1 : 1 + processor.renditions.size());
+        VideoEncodeThread encodeThread = new VideoEncodeThread(extractor, muxer, processor.bitrate,
                 resultWidth, resultHeight, processor.iFrameInterval, processor.frameRate == null ? DEFAULT_FRAME_RATE : processor.frameRate, videoIndex,
                 decodeDone, muxerStartLatch);
         int srcFrameRate = VideoUtil.getFrameRate(processor.input);
@@ -129,38 +261,1026 @@ public class VideoProcessor {
         VideoDecodeThread decodeThread = new VideoDecodeThread(encodeThread, extractor, processor.startTimeMs, processor.endTimeMs,
                 srcFrameRate, processor.frameRate == null ? DEFAULT_FRAME_RATE : processor.frameRate,
                 processor.dropFrames, videoIndex, decodeDone);
+        decodeThread.setRanges(rangesUs);
 
+        //主输出在前，其余各路各有自己的编码器和muxer，共用解码线程和音频线程
+        List<MuxerBackend> muxers = new ArrayList<>();
+        List<VideoEncodeThread> encodeThreads = new ArrayList<>();
+        List<Integer> audioTrackIndices = new ArrayList<>();
+        muxers.add(muxer);
+        encodeThreads.add(encodeThread);
+        audioTrackIndices.add(muxerAudioTrackIndex);
+        if (targetVideoBytes > 0) {
+            encodeThread.setTargetSize(targetVideoBytes, outDurationMs * 1000L);
+        }
+        if (processor.renditions != null) {
+            for (Rendition rendition : processor.renditions) {
+                int width = rendition.width % 2 == 0 ? rendition.width : rendition.width + 1;
+                int height = rendition.height % 2 == 0 ? rendition.height : rendition.height + 1;
+                if (rotationValue == 90 || rotationValue == 270) {
+                    int temp = height;
+                    height = width;
+                    width = temp;
+                }
+                int frameRate = rendition.frameRate == null
+                        ? processor.frameRate == null ? DEFAULT_FRAME_RATE : processor.frameRate : rendition.frameRate;
+                MuxerBackend renditionMuxer = processor.muxerFactory.create(rendition.output);
+                muxers.add(renditionMuxer);
+                if (audioOutputFormat != null) {
+                    audioTrackIndices.add(renditionMuxer.addTrack(audioOutputFormat));
+                }
+                preallocate(renditionMuxer, rendition.bitrate + audioBitrate, outDurationMs);
+                VideoEncodeThread renditionEncodeThread = new VideoEncodeThread(extractor, renditionMuxer, rendition.bitrate,
+                        width, height, processor.iFrameInterval, frameRate, videoIndex, decodeDone, muxerStartLatch);
+                decodeThread.addEncodeThread(renditionEncodeThread, frameRate);
+                encodeThreads.add(renditionEncodeThread);
+            }
+        }
+        //音频只处理一次，编码好的样本写到每一路
+        SampleSink audioMuxer = muxer;
+        int audioTrackIndex = muxerAudioTrackIndex;
+        if (muxers.size() > 1 && audioOutputFormat != null) {
+            int[] trackIndices = new int[audioTrackIndices.size()];
+            for (int i = 0; i < trackIndices.length; i++) {
+                trackIndices[i] = audioTrackIndices.get(i);
+            }
+            audioMuxer = new AudioFanOut(muxers.toArray(new MuxerBackend[0]), trackIndices);
+            audioTrackIndex = 0;
+        }
         AudioProcessThread audioProcessThread = new AudioProcessThread(context, processor.input,
-                mediaMuxer, processor.startTimeMs, audioEndTimeMs, muxerAudioTrackIndex, muxerStartLatch);
+                audioMuxer, processor.startTimeMs, audioEndTimeMs, audioTrackIndex, muxerStartLatch);
+        audioProcessThread.setTranscodeTarget(audioTarget);
+        audioProcessThread.setRanges(rangesUs);
+        if (processor.mixAudio != null) {
+            audioProcessThread.setMixAudio(processor.mixAudio, processor.originVolume / 100f * AudioUtil.VOLUMN_MAX_RATIO,
+                    processor.mixVolume / 100f * AudioUtil.VOLUMN_MAX_RATIO, mixDurationUs);
+        }
+        //各路和解码同步前进，进度只看主输出
         encodeThread.setProgressAve(progressAve);
         audioProcessThread.setProgressAve(progressAve);
-        decodeThread.start();
-        encodeThread.start();
-        audioProcessThread.start();
-        try {
-            long s = System.currentTimeMillis();
-            decodeThread.join();
-            encodeThread.join();
-            long e1 = System.currentTimeMillis();
-            audioProcessThread.join();
-            long e2 = System.currentTimeMillis();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        CodecMode codecMode = processor.codecMode == CodecMode.ASYNC && AsyncFrameCodec.isSupported()
+                ? CodecMode.ASYNC : CodecMode.SYNC;
+        if (codecMode == CodecMode.ASYNC) {
+            for (VideoEncodeThread thread : encodeThreads) {
+                thread.setAsyncCodec(true);
+            }
+            decodeThread.setAsyncCodec(true);
+        }
+        List<Thread> threads = new ArrayList<>();
+        threads.add(decodeThread);
+        threads.addAll(encodeThreads);
+        threads.add(audioProcessThread);
+        decodeThread.setCancellationToken(token);
+        for (VideoEncodeThread thread : encodeThreads) {
+            thread.setCancellationToken(token);
+        }
+        audioProcessThread.setCancellationToken(token);
+        //取消时唤醒等待EGL context和muxer启动的线程
+        Runnable wakeUp = () -> {
+            for (VideoEncodeThread thread : encodeThreads) {
+                thread.getEglContextLatch().countDown();
+            }
+            while (muxerStartLatch.getCount() > 0) {
+                muxerStartLatch.countDown();
+            }
+        };
+        token.addListener(wakeUp);
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        //调用线程被中断(Future.cancel(true)、AsyncTask.cancel(true))视为取消，等各线程释放完资源再返回
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    token.cancel();
+                }
+            }
         }
+        token.removeListener(wakeUp);
 
         try {
-            mediaMuxer.release();
+            for (MuxerBackend backend : muxers) {
+                backend.release();
+            }
             extractor.release();
         } catch (Exception e2) {
             e2.printStackTrace();
         }
-        if (encodeThread.getException() != null) {
-            throw encodeThread.getException();
-        } else if (decodeThread.getException() != null) {
-            throw decodeThread.getException();
-        } else if (audioProcessThread.getException() != null) {
-            throw audioProcessThread.getException();
+        if (token.isCancelled()) {
+            deleteOutput(processor);
+            if (processor.renditions != null) {
+                for (Rendition rendition : processor.renditions) {
+                    deleteFile(new File(rendition.output));
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            throwReason(token);
+        }
+        long encodeCpuTimeMs = 0;
+        long callbackCpuTimeMs = decodeThread.getCallbackCpuTimeMs();
+        for (VideoEncodeThread thread : encodeThreads) {
+            encodeCpuTimeMs += thread.getCpuTimeMs();
+            callbackCpuTimeMs += thread.getCallbackCpuTimeMs();
+        }
+        return new ProcessStats(codecMode, false, SystemClock.elapsedRealtime() - processStartMs,
+                decodeThread.getCpuTimeMs(), encodeCpuTimeMs, audioProcessThread.getCpuTimeMs(), callbackCpuTimeMs);
+    }
+
+    private static int getOutputDurationMs(Processor processor, @Nullable long[] rangesUs, int durationMs) {
+        if (rangesUs != null) {
+            return (int) (VideoUtil.getRangesDurationUs(rangesUs) / 1000);
+        }
+        return (processor.endTimeMs == null ? durationMs : processor.endTimeMs)
+                - (processor.startTimeMs == null ? 0 : processor.startTimeMs);
+    }
+
+    /**
+     * 目标大小模式下音频占用的码率：能直接拷贝时是原音频的码率，否则是重新编码后的码率
+     */
+    private static int estimateAudioBitrate(Processor processor, MediaProbe probe) throws IOException {
+        TrackFormat format = probe.getAudioFormat();
+        if (format == null && processor.mixAudio == null) {
+            return 0;
+        }
+        int sourceBitrate = format == null ? 0 : probe.getAudioBitrate();
+        if (format == null) {
+            format = getMixAudioFormat(processor.mixAudio);
         }
+        AudioTranscoder.Target target = AudioTranscoder.Target.resolve(format, sourceBitrate, processor.audioCodec,
+                processor.audioBitrate, processor.audioChannelCount, processor.audioSampleRate);
+        if (processor.mixAudio == null && target.fits(format, sourceBitrate)) {
+            return sourceBitrate > 0 ? sourceBitrate : DEFAULT_AAC_BITRATE;
+        }
+        return target.getBitrate();
+    }
+
+    /**
+     * Mp4Muxer按码率预估输出大小，一次性扩展文件
+     */
+    private static void preallocate(MuxerBackend muxer, long totalBitrate, int durationMs) {
+        if (muxer instanceof Mp4Muxer) {
+            ((Mp4Muxer) muxer).setPreallocateBytes(totalBitrate / 8 * Math.max(durationMs, 0) / 1000);
+        }
+    }
+
+    /**
+     * 分段处理：按关键帧切成若干段，每段单独编码到{@code <output>.segments/}下，再把各段和原音频拼接成输出。
+     * <p>
+     * 可续传模式按时长切段，完成一段就记到{@code <output>.journal}，进程被杀后用同样的参数重新处理会跳过已完成的段，
+     * 取消或失败时保留已完成的段。并行模式按编码器数量切成等长的几段，每段一条解码-渲染-编码链同时运行。
+     * 两者可以同时使用
+     */
+    private static ProcessStats processSegmented(Processor processor, MediaProbe probe, int resultWidth, int resultHeight,
+                                                 long processStartMs) throws Exception {
+        CancellationToken token = processor.cancellationToken;
+        int durationMs = probe.getDurationMs();
+        long startUs = processor.startTimeMs == null ? 0 : processor.startTimeMs * 1000L;
+        long endUs = processor.endTimeMs == null ? -1 : processor.endTimeMs * 1000L;
+        boolean resumable = processor.segmentDurationMs != null;
+        SampleIndex.Track videoTrack = probe.getSampleIndex().findTrack(false);
+        int parallelism = 1;
+        if (processor.parallelism != null) {
+            parallelism = processor.parallelism > 0 ? processor.parallelism
+                    : VideoUtil.getParallelSegmentCount(videoTrack == null ? OUTPUT_MIME_TYPE : videoTrack.getFormat().getMime());
+        }
+        List<SegmentPlan.Segment> segments;
+        if (videoTrack == null) {
+            segments = Collections.singletonList(new SegmentPlan.Segment(0, startUs, endUs));
+        } else if (resumable) {
+            segments = SegmentPlan.split(videoTrack, startUs, endUs, processor.segmentDurationMs * 1000L);
+        } else {
+            segments = SegmentPlan.splitInto(videoTrack, startUs, endUs, parallelism);
+        }
+
+        int frameRate = processor.frameRate == null ? DEFAULT_FRAME_RATE : processor.frameRate;
+        File segmentDir = new File(processor.output + ".segments");
+        if (!segmentDir.isDirectory() && !segmentDir.mkdirs()) {
+            throw new IOException("can not create " + segmentDir);
+        }
+        SegmentJournal journal = resumable ? SegmentJournal.open(new File(processor.output + ".journal"),
+                fingerprint(processor, resultWidth, resultHeight, frameRate)) : null;
+        int srcFrameRate = VideoUtil.getFrameRate(processor.input);
+        if (srcFrameRate <= 0) {
+            srcFrameRate = (int) Math.ceil(VideoUtil.getAveFrameRate(processor.input));
+        }
+        CodecMode codecMode = processor.codecMode == CodecMode.ASYNC && AsyncFrameCodec.isSupported()
+                ? CodecMode.ASYNC : CodecMode.SYNC;
+
+        //编码占进度的90%，按各段时长加权，拼接占剩下的10%
+        long totalUs = Math.max((endUs < 0 ? durationMs * 1000L : endUs) - startUs, 1);
+        long[] segmentUs = new long[segments.size()];
+        float[] segmentProgress = new float[segments.size()];
+        long[] firstFrameUs = new long[segments.size()];
+        List<SegmentPlan.Segment> pending = new ArrayList<>();
+        for (SegmentPlan.Segment segment : segments) {
+            int index = segment.getIndex();
+            segmentUs[index] = (segment.isLast() ? startUs + totalUs : segment.getEndUs()) - segment.getStartUs();
+            SegmentJournal.Entry entry = journal == null ? null : journal.getIntact(index, segmentFile(segmentDir, segment));
+            if (entry != null) {
+                firstFrameUs[index] = entry.getFirstFrameUs();
+                segmentProgress[index] = 1;
+            } else {
+                pending.add(segment);
+            }
+        }
+        VideoProgressListener listener = processor.listener;
+        Runnable notifyProgress = () -> {
+            if (listener == null) {
+                return;
+            }
+            float encodedUs = 0;
+            synchronized (segmentProgress) {
+                for (int i = 0; i < segmentProgress.length; i++) {
+                    encodedUs += segmentProgress[i] * segmentUs[i];
+                }
+            }
+            listener.onProgress(0.9f * encodedUs / totalUs);
+        };
+
+        //每个线程一个SegmentEncoder，依次领取未完成的段
+        SegmentEncoder[] encoders = new SegmentEncoder[Math.max(1, Math.min(parallelism, pending.size()))];
+        Thread[] workers = new Thread[pending.isEmpty() ? 0 : encoders.length];
+        AtomicInteger nextSegment = new AtomicInteger();
+        for (int w = 0; w < encoders.length; w++) {
+            SegmentEncoder encoder = new SegmentEncoder(processor.input, processor.bitrate, resultWidth, resultHeight,
+                    processor.iFrameInterval, frameRate, srcFrameRate, processor.dropFrames, codecMode, token);
+            encoders[w] = encoder;
+            if (w >= workers.length) {
+                continue;
+            }
+            workers[w] = new Thread(() -> {
+                try {
+                    while (!token.isCancelled()) {
+                        int next = nextSegment.getAndIncrement();
+                        if (next >= pending.size()) {
+                            break;
+                        }
+                        SegmentPlan.Segment segment = pending.get(next);
+                        int index = segment.getIndex();
+                        File file = segmentFile(segmentDir, segment);
+                        encoder.encode(segment, processor.endTimeMs, durationMs, file, progress -> {
+                            synchronized (segmentProgress) {
+                                segmentProgress[index] = progress;
+                            }
+                            notifyProgress.run();
+                        });
+                        if (token.isCancelled()) {
+                            break;
+                        }
+                        firstFrameUs[index] = encoder.getFirstFrameUs();
+                        if (journal != null) {
+                            journal.append(index, encoder.getFirstFrameUs(), file.length());
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    token.fail(e);
+                }
+            }, "VideoSegmentThread-" + w);
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        boolean interrupted = false;
+        for (Thread worker : workers) {
+            while (true) {
+                try {
+                    worker.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    token.cancel();
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (token.isCancelled()) {
+            if (!resumable) {
+                deleteSegments(segmentDir, segments);
+            }
+            throwReason(token);
+        }
+
+        long stitchCpuStartMs = SystemClock.currentThreadTimeMillis();
+        SampleSource audioSource = processor.input.openSampleSource();
+        MuxerBackend muxer = null;
+        boolean success = false;
+        try {
+            SegmentStitcher stitcher = new SegmentStitcher();
+            long baseUs = -1;
+            for (SegmentPlan.Segment segment : segments) {
+                long frameUs = firstFrameUs[segment.getIndex()];
+                if (frameUs < 0) {
+                    //这一段没有帧
+                    continue;
+                }
+                if (baseUs < 0) {
+                    baseUs = frameUs;
+                }
+                //各段都从0开始，平移到第一帧在原视频中相对整个输出起点的位置，时间戳连续
+                stitcher.addSegment(segmentFile(segmentDir, segment), frameUs - baseUs);
+            }
+            stitcher.setAudio(audioSource, startUs, endUs);
+            muxer = createStitchMuxer(processor, stitcher);
+            stitcher.stitch(muxer, listener == null ? null : progress -> listener.onProgress(0.9f + 0.1f * progress), token);
+            success = true;
+        } finally {
+            if (muxer != null) {
+                muxer.release();
+            }
+            audioSource.release();
+            if (!success) {
+                deleteOutput(processor);
+                if (!resumable) {
+                    deleteSegments(segmentDir, segments);
+                }
+            }
+        }
+        if (journal != null) {
+            journal.delete();
+        }
+        deleteSegments(segmentDir, segments);
+
+        long decodeCpuTimeMs = 0;
+        long encodeCpuTimeMs = 0;
+        long callbackCpuTimeMs = 0;
+        for (SegmentEncoder encoder : encoders) {
+            decodeCpuTimeMs += encoder.getDecodeCpuTimeMs();
+            encodeCpuTimeMs += encoder.getEncodeCpuTimeMs();
+            callbackCpuTimeMs += encoder.getCallbackCpuTimeMs();
+        }
+        return new ProcessStats(codecMode, false, SystemClock.elapsedRealtime() - processStartMs,
+                decodeCpuTimeMs, encodeCpuTimeMs, SystemClock.currentThreadTimeMillis() - stitchCpuStartMs,
+                callbackCpuTimeMs);
+    }
+
+    /**
+     * 智能截取：只重新编码起点到它之后第一个关键帧、最后一个关键帧到终点这两小段，中间完整的GOP直接拷贝压缩数据，
+     * 音频也直接拷贝。编码出的两段和原视频的SPS/PPS不同时在各自第一帧前带上自己的，时间戳都按原视频的时间平移，前后连续
+     */
+    private static ProcessStats processSmartTrim(Processor processor, MediaProbe probe, int resultWidth, int resultHeight,
+                                                 long processStartMs) throws Exception {
+        CancellationToken token = processor.cancellationToken;
+        int durationMs = probe.getDurationMs();
+        long startUs = processor.startTimeMs == null ? 0 : processor.startTimeMs * 1000L;
+        long endUs = processor.endTimeMs == null ? -1 : processor.endTimeMs * 1000L;
+        List<SegmentPlan.Segment> segments = SegmentPlan.splitForTrim(probe.getSampleIndex().findTrack(false), startUs, endUs);
+
+        int frameRate = processor.frameRate == null ? DEFAULT_FRAME_RATE : processor.frameRate;
+        int srcFrameRate = VideoUtil.getFrameRate(processor.input);
+        if (srcFrameRate <= 0) {
+            srcFrameRate = (int) Math.ceil(VideoUtil.getAveFrameRate(processor.input));
+        }
+        CodecMode codecMode = processor.codecMode == CodecMode.ASYNC && AsyncFrameCodec.isSupported()
+                ? CodecMode.ASYNC : CodecMode.SYNC;
+        File segmentDir = new File(processor.output + ".segments");
+        if (!segmentDir.isDirectory() && !segmentDir.mkdirs()) {
+            throw new IOException("can not create " + segmentDir);
+        }
+
+        //编码按重新编码的时长占进度的一部分，拼接(主要是拷贝)占剩下的
+        long totalUs = Math.max((endUs < 0 ? durationMs * 1000L : endUs) - startUs, 1);
+        long encodeUs = 0;
+        for (SegmentPlan.Segment segment : segments) {
+            if (!segment.isCopy()) {
+                encodeUs += (segment.isLast() ? startUs + totalUs : segment.getEndUs()) - segment.getStartUs();
+            }
+        }
+        float encodeShare = Math.min(0.9f, Math.max(0.1f, encodeUs / (float) totalUs));
+        long encodeTotalUs = Math.max(encodeUs, 1);
+        VideoProgressListener listener = processor.listener;
+
+        SegmentEncoder encoder = new SegmentEncoder(processor.input, processor.bitrate, resultWidth, resultHeight,
+                processor.iFrameInterval, frameRate, srcFrameRate, processor.dropFrames, codecMode, token);
+        long[] firstFrameUs = new long[segments.size()];
+        long encodedUs = 0;
+        for (SegmentPlan.Segment segment : segments) {
+            int index = segment.getIndex();
+            if (segment.isCopy()) {
+                firstFrameUs[index] = segment.getStartUs();
+                continue;
+            }
+            long segmentUs = (segment.isLast() ? startUs + totalUs : segment.getEndUs()) - segment.getStartUs();
+            long doneUs = encodedUs;
+            encoder.encode(segment, processor.endTimeMs, durationMs, segmentFile(segmentDir, segment),
+                    listener == null ? null : progress -> listener.onProgress(
+                            encodeShare * (doneUs + progress * segmentUs) / encodeTotalUs));
+            if (token.isCancelled()) {
+                deleteSegments(segmentDir, segments);
+                throwReason(token);
+            }
+            firstFrameUs[index] = encoder.getFirstFrameUs();
+            encodedUs += segmentUs;
+        }
+
+        long stitchCpuStartMs = SystemClock.currentThreadTimeMillis();
+        SampleSource videoSource = processor.input.openSampleSource();
+        SampleSource audioSource = null;
+        MuxerBackend muxer = null;
+        boolean success = false;
+        try {
+            audioSource = processor.input.openSampleSource();
+            SegmentStitcher stitcher = new SegmentStitcher();
+            long baseUs = -1;
+            for (SegmentPlan.Segment segment : segments) {
+                long frameUs = firstFrameUs[segment.getIndex()];
+                if (frameUs < 0) {
+                    continue;
+                }
+                if (baseUs < 0) {
+                    baseUs = frameUs;
+                }
+                if (segment.isCopy()) {
+                    //拷贝的帧带着原视频的时间戳
+                    stitcher.addSource(videoSource, segment.getStartUs(), segment.getEndUs(), -baseUs);
+                } else {
+                    stitcher.addSegment(segmentFile(segmentDir, segment), frameUs - baseUs);
+                }
+            }
+            stitcher.setAudio(audioSource, startUs, endUs);
+            muxer = createStitchMuxer(processor, stitcher);
+            stitcher.stitch(muxer, listener == null ? null : progress -> listener.onProgress(encodeShare + (1 - encodeShare) * progress), token);
+            success = true;
+        } finally {
+            if (muxer != null) {
+                muxer.release();
+            }
+            videoSource.release();
+            if (audioSource != null) {
+                audioSource.release();
+            }
+            if (!success) {
+                deleteOutput(processor);
+            }
+            deleteSegments(segmentDir, segments);
+        }
+        return new ProcessStats(codecMode, false, SystemClock.elapsedRealtime() - processStartMs,
+                encoder.getDecodeCpuTimeMs(), encoder.getEncodeCpuTimeMs(),
+                SystemClock.currentThreadTimeMillis() - stitchCpuStartMs, encoder.getCallbackCpuTimeMs());
+    }
+
+    /**
+     * 拼接多个输入：和第一个可拷贝片段的编码参数一致的片段直接拷贝压缩数据，其余的依次送进同一个编码器，
+     * 只为每个输入重新创建解码器，编码器在每个片段的第一帧出关键帧，拼接时从那里切开。
+     * 某个片段的开头没有关键帧(编码器不支持请求关键帧)时，改为每个片段单独编码。
+     * 音频格式以第一个有音频的片段为准，不一致的片段单独重新编码成同样的格式
+     */
+    private static ProcessStats processConcat(Processor processor, int resultWidth, int resultHeight,
+                                              long processStartMs) throws Exception {
+        if (processor.startTimeMs != null || processor.endTimeMs != null || processor.ranges != null
+                || processor.mixAudio != null || processor.renditions != null || processor.targetSizeBytes != null) {
+            throw new IllegalArgumentException("concat does not support trimming, ranges, mixAudio, renditions or targetSizeBytes");
+        }
+        CancellationToken token = processor.cancellationToken;
+        List<MediaSource> inputs = processor.concatInputs;
+        int count = inputs.size();
+        MediaProbe[] probes = new MediaProbe[count];
+        long[] durationsUs = new long[count];
+        //各片段在输出中的起点
+        long[] outputStartsUs = new long[count];
+        long totalUs = 0;
+        for (int i = 0; i < count; i++) {
+            token.throwIfCancelled();
+            probes[i] = inputs.get(i).getProbe(processor.context);
+            durationsUs[i] = probes[i].getDurationUs();
+            outputStartsUs[i] = totalUs;
+            totalUs += durationsUs[i];
+        }
+        int frameRate = processor.frameRate == null ? DEFAULT_FRAME_RATE : processor.frameRate;
+
+        TrackFormat videoReference = null;
+        boolean[] copyVideo = new boolean[count];
+        List<Integer> encodeClips = new ArrayList<>();
+        long encodeUs = 0;
+        for (int i = 0; i < count; i++) {
+            if (canCopyConcatVideo(processor, probes[i], resultWidth, resultHeight, frameRate)) {
+                TrackFormat format = probes[i].getVideoFormat();
+                if (videoReference == null) {
+                    videoReference = format;
+                }
+                copyVideo[i] = sameCsd(videoReference, format, 2);
+            }
+            if (!copyVideo[i]) {
+                encodeClips.add(i);
+                encodeUs += durationsUs[i];
+            }
+        }
+
+        AudioTranscoder.Target audioTarget = null;
+        TrackFormat audioReference = null;
+        for (MediaProbe probe : probes) {
+            TrackFormat format = probe.getAudioFormat();
+            if (format != null) {
+                audioTarget = AudioTranscoder.Target.resolve(format, probe.getAudioBitrate(), processor.audioCodec,
+                        processor.audioBitrate, processor.audioChannelCount, processor.audioSampleRate);
+                audioReference = audioTarget.fits(format, probe.getAudioBitrate()) ? format : null;
+                break;
+            }
+        }
+        boolean[] copyAudio = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            TrackFormat format = probes[i].getAudioFormat();
+            copyAudio[i] = format != null && audioReference != null
+                    && audioTarget.fits(format, probes[i].getAudioBitrate()) && sameCsd(audioReference, format, 1);
+        }
+
+        CodecMode codecMode = processor.codecMode == CodecMode.ASYNC && AsyncFrameCodec.isSupported()
+                ? CodecMode.ASYNC : CodecMode.SYNC;
+        File segmentDir = new File(processor.output + ".segments");
+        if (!segmentDir.isDirectory() && !segmentDir.mkdirs()) {
+            throw new IOException("can not create " + segmentDir);
+        }
+        List<File> tempFiles = new ArrayList<>();
+        VideoProgressListener listener = processor.listener;
+        float encodeShare = encodeClips.isEmpty() ? 0 : Math.min(0.9f, Math.max(0.1f, encodeUs / (float) Math.max(totalUs, 1)));
+        ConcatEncoder encoder = new ConcatEncoder(processor.bitrate, resultWidth, resultHeight, processor.iFrameInterval,
+                frameRate, processor.dropFrames, codecMode, token);
+        //重新编码的片段在哪个文件、从哪里切到哪里、平移多少
+        File[] clipFiles = new File[count];
+        long[] clipStartsUs = new long[count];
+        long[] clipEndsUs = new long[count];
+        long[] clipOffsetsUs = new long[count];
+        boolean success = false;
+        try {
+            if (!encodeClips.isEmpty()) {
+                File file = new File(segmentDir, "concat.mp4");
+                tempFiles.add(file);
+                List<MediaSource> encodeInputs = new ArrayList<>();
+                long[] encodeDurationsUs = new long[encodeClips.size()];
+                for (int j = 0; j < encodeClips.size(); j++) {
+                    encodeInputs.add(inputs.get(encodeClips.get(j)));
+                    encodeDurationsUs[j] = durationsUs[encodeClips.get(j)];
+                }
+                encoder.encode(encodeInputs, encodeDurationsUs, file, listener == null ? null
+                        : progress -> listener.onProgress(encodeShare * progress));
+                if (token.isCancelled()) {
+                    throwReason(token);
+                }
+                if (!cutConcat(file, encoder.getFirstFrameUs(), encodeClips, durationsUs, outputStartsUs,
+                        clipFiles, clipStartsUs, clipEndsUs, clipOffsetsUs)) {
+                    long encodedUs = 0;
+                    for (int i : encodeClips) {
+                        token.throwIfCancelled();
+                        File clipFile = new File(segmentDir, "concat-" + i + ".mp4");
+                        tempFiles.add(clipFile);
+                        long doneUs = encodedUs;
+                        long clipUs = durationsUs[i];
+                        long encodeTotalUs = Math.max(encodeUs, 1);
+                        encoder.encode(Collections.singletonList(inputs.get(i)), new long[]{clipUs}, clipFile,
+                                listener == null ? null : progress -> listener.onProgress(
+                                        encodeShare * (doneUs + progress * clipUs) / encodeTotalUs));
+                        if (token.isCancelled()) {
+                            throwReason(token);
+                        }
+                        clipFiles[i] = encoder.getFirstFrameUs() < 0 ? null : clipFile;
+                        clipStartsUs[i] = 0;
+                        clipEndsUs[i] = -1;
+                        clipOffsetsUs[i] = outputStartsUs[i] + encoder.getFirstFrameUs();
+                        encodedUs += clipUs;
+                    }
+                }
+            }
+
+            File[] audioFiles = new File[count];
+            for (int i = 0; i < count; i++) {
+                if (probes[i].getAudioFormat() == null || copyAudio[i]) {
+                    continue;
+                }
+                token.throwIfCancelled();
+                audioFiles[i] = new File(segmentDir, "audio-" + i + ".mp4");
+                tempFiles.add(audioFiles[i]);
+                transcodeConcatAudio(inputs.get(i), audioTarget, durationsUs[i], audioFiles[i], token);
+            }
+
+            long stitchCpuStartMs = SystemClock.currentThreadTimeMillis();
+            stitchConcat(processor, copyVideo, clipFiles, clipStartsUs, clipEndsUs, clipOffsetsUs, copyAudio, audioFiles,
+                    durationsUs, outputStartsUs, listener == null ? null
+                            : progress -> listener.onProgress(encodeShare + (1 - encodeShare) * progress));
+            success = true;
+            long stitchCpuMs = SystemClock.currentThreadTimeMillis() - stitchCpuStartMs;
+            if (encodeClips.isEmpty()) {
+                return new ProcessStats(null, true, SystemClock.elapsedRealtime() - processStartMs, stitchCpuMs, 0, 0, 0);
+            }
+            return new ProcessStats(codecMode, false, SystemClock.elapsedRealtime() - processStartMs,
+                    encoder.getDecodeCpuTimeMs(), encoder.getEncodeCpuTimeMs(), stitchCpuMs, encoder.getCallbackCpuTimeMs());
+        } finally {
+            if (!success) {
+                deleteOutput(processor);
+            }
+            for (File file : tempFiles) {
+                if (file.exists() && !file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+            segmentDir.delete();
+        }
+    }
+
+    /**
+     * 直接拷贝的要求：H.264、不旋转、尺寸等于输出尺寸、码率不超过目标码率、需要丢帧时帧率不超过目标帧率
+     */
+    private static boolean canCopyConcatVideo(Processor processor, MediaProbe probe, int resultWidth, int resultHeight,
+                                              int frameRate) {
+        TrackFormat format = probe.getVideoFormat();
+        if (format == null || !OUTPUT_MIME_TYPE.equals(format.getMime()) || probe.getRotation() != 0) {
+            return false;
+        }
+        if (probe.getWidth() != resultWidth || probe.getHeight() != resultHeight || probe.getBitrate() > processor.bitrate) {
+            return false;
+        }
+        return !processor.dropFrames || probe.getFps() <= frameRate;
+    }
+
+    private static boolean sameCsd(TrackFormat a, TrackFormat b, int csdCount) {
+        for (int i = 0; i < csdCount; i++) {
+            if (!Arrays.equals(a.getCsd(i), b.getCsd(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 在一起编码的文件里找出每个片段的第一帧，它必须是关键帧，前面没有别的帧落在这个片段里
+     *
+     * @param leadUs 编码输出以第一个片段中的这个时间为0点
+     * @return 有片段的开头不是关键帧时为false
+     */
+    private static boolean cutConcat(File file, long leadUs, List<Integer> encodeClips, long[] durationsUs,
+                                     long[] outputStartsUs, File[] clipFiles, long[] clipStartsUs, long[] clipEndsUs,
+                                     long[] clipOffsetsUs) throws IOException {
+        if (leadUs < 0) {
+            return true;
+        }
+        SampleIndex.Track track;
+        Mp4Demuxer demuxer = new Mp4Demuxer(file);
+        try {
+            track = SampleIndex.build(demuxer).findTrack(false);
+        } finally {
+            demuxer.release();
+        }
+        if (track == null) {
+            return true;
+        }
+        long[] syncsUs = new long[encodeClips.size()];
+        long baseUs = 0;
+        for (int j = 0; j < encodeClips.size(); j++) {
+            long boundaryUs = baseUs - leadUs;
+            int sync = track.findSyncSample(boundaryUs, SampleSource.SEEK_TO_NEXT_SYNC);
+            if (sync < 0) {
+                //片段一帧都没有编出来时也没有关键帧，由下一个片段的检查兜底
+                syncsUs[j] = -1;
+            } else {
+                syncsUs[j] = track.getPresentationTimeUs(sync);
+                if (track.countSamples(boundaryUs, syncsUs[j]) > 0) {
+                    return false;
+                }
+            }
+            baseUs += durationsUs[encodeClips.get(j)];
+        }
+        baseUs = 0;
+        for (int j = 0; j < encodeClips.size(); j++) {
+            int i = encodeClips.get(j);
+            long endUs = j + 1 < encodeClips.size() ? syncsUs[j + 1] : -1;
+            boolean empty = syncsUs[j] < 0 || (endUs >= 0 && endUs <= syncsUs[j]);
+            clipFiles[i] = empty ? null : file;
+            clipStartsUs[i] = syncsUs[j];
+            clipEndsUs[i] = endUs;
+            clipOffsetsUs[i] = outputStartsUs[i] - baseUs + leadUs;
+            baseUs += durationsUs[i];
+        }
+        return true;
+    }
+
+    private static void transcodeConcatAudio(MediaSource input, AudioTranscoder.Target target, long durationUs,
+                                             File output, CancellationToken token) throws IOException {
+        SampleSource source = input.openSampleSource();
+        Mp4Muxer muxer = null;
+        try {
+            int track = VideoUtil.selectTrack(source, true);
+            muxer = new Mp4Muxer(output);
+            int muxerTrack = muxer.addTrack(target.createTrackFormat());
+            muxer.start();
+            new AudioTranscoder(target).transcode(source, track, muxer, muxerTrack, 0, durationUs - 1, null, token);
+            muxer.stop();
+        } finally {
+            if (muxer != null) {
+                muxer.release();
+            }
+            source.release();
+        }
+    }
+
+    /**
+     * 拼接用的muxer。各段参数集不同时输出需要avc3，MediaMuxer只能写avc1，使用默认muxer时改用Mp4Muxer
+     */
+    private static MuxerBackend createStitchMuxer(Processor processor, SegmentStitcher stitcher) throws IOException {
+        if (processor.muxerFactory == MediaMuxerBackend.FACTORY && stitcher.hasParameterSetChanges()) {
+            return new Mp4Muxer(processor.output);
+        }
+        return processor.muxerFactory.create(processor.output);
+    }
+
+    private static void stitchConcat(Processor processor, boolean[] copyVideo, File[] clipFiles, long[] clipStartsUs,
+                                     long[] clipEndsUs, long[] clipOffsetsUs, boolean[] copyAudio, File[] audioFiles,
+                                     long[] durationsUs, long[] outputStartsUs,
+                                     @Nullable Remuxer.ProgressListener listener) throws IOException {
+        List<SampleSource> sources = new ArrayList<>();
+        MuxerBackend muxer = null;
+        try {
+            SegmentStitcher stitcher = new SegmentStitcher();
+            for (int i = 0; i < copyVideo.length; i++) {
+                MediaSource input = processor.concatInputs.get(i);
+                if (copyVideo[i]) {
+                    SampleSource videoSource = input.openSampleSource();
+                    sources.add(videoSource);
+                    stitcher.addSource(videoSource, 0, -1, outputStartsUs[i]);
+                } else if (clipFiles[i] != null) {
+                    SampleSource videoSource = new Mp4Demuxer(clipFiles[i]);
+                    sources.add(videoSource);
+                    stitcher.addSource(videoSource, clipStartsUs[i], clipEndsUs[i], clipOffsetsUs[i]);
+                }
+                if (copyAudio[i]) {
+                    SampleSource audioSource = input.openSampleSource();
+                    sources.add(audioSource);
+                    stitcher.addAudio(audioSource, 0, durationsUs[i] - 1, outputStartsUs[i]);
+                } else if (audioFiles[i] != null) {
+                    stitcher.addAudio(audioFiles[i], outputStartsUs[i]);
+                }
+            }
+            muxer = createStitchMuxer(processor, stitcher);
+            stitcher.stitch(muxer, listener, processor.cancellationToken);
+        } finally {
+            if (muxer != null) {
+                muxer.release();
+            }
+            for (SampleSource source : sources) {
+                source.release();
+            }
+        }
+    }
+
+    private static void deleteSegments(File segmentDir, List<SegmentPlan.Segment> segments) {
+        for (SegmentPlan.Segment segment : segments) {
+            File file = segmentFile(segmentDir, segment);
+            if (file.exists() && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+        segmentDir.delete();
+    }
+
+    private static File segmentFile(File segmentDir, SegmentPlan.Segment segment) {
+        return new File(segmentDir, segment.getIndex() + ".mp4");
+    }
+
+    /**
+     * 输入文件和所有影响编码结果的参数，任何一个变了之前的分段都不能再用
+     */
+    private static String fingerprint(Processor processor, int width, int height, int frameRate) {
+        String input;
+        if (processor.input.inputPath != null) {
+            File file = new File(processor.input.inputPath);
+            input = file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+        } else {
+            input = String.valueOf(processor.input.inputUri);
+        }
+        return input + "|" + width + "x" + height + "|" + processor.bitrate + "|" + frameRate
+                + "|" + processor.iFrameInterval + "|" + processor.dropFrames
+                + "|" + processor.startTimeMs + "-" + processor.endTimeMs + "|" + processor.segmentDurationMs;
+    }
+
+    /**
+     * 把{@link Processor#addRange}的各段截到视频时长内，去掉截完为空的段。只剩一段时改为设置startTimeMs和endTimeMs
+     *
+     * @return 每两个一组依次为各段的起点和终点，没有设置或只有一段时为null
+     */
+    @Nullable
+    private static long[] resolveRanges(Processor processor, int durationMs) {
+        if (processor.ranges == null) {
+            return null;
+        }
+        List<int[]> ranges = new ArrayList<>();
+        for (int[] range : processor.ranges) {
+            int endMs = durationMs > 0 ? Math.min(range[1], durationMs) : range[1];
+            if (range[0] < endMs) {
+                ranges.add(new int[]{range[0], endMs});
+            }
+        }
+        if (ranges.isEmpty()) {
+            throw new IllegalArgumentException("no range lies inside the " + durationMs + "ms video");
+        }
+        if (ranges.size() == 1) {
+            processor.startTimeMs = ranges.get(0)[0];
+            processor.endTimeMs = ranges.get(0)[1];
+            return null;
+        }
+        long[] rangesUs = new long[ranges.size() * 2];
+        for (int i = 0; i < ranges.size(); i++) {
+            rangesUs[i * 2] = ranges.get(i)[0] * 1000L;
+            rangesUs[i * 2 + 1] = ranges.get(i)[1] * 1000L;
+        }
+        return rangesUs;
+    }
+
+    private static TrackFormat getMixAudioFormat(MediaSource mixAudio) throws IOException {
+        SampleSource source = mixAudio.openSampleSource();
+        try {
+            int track = VideoUtil.selectTrack(source, true);
+            if (track < 0) {
+                throw new IllegalArgumentException("mixAudio has no audio track");
+            }
+            return source.getTrackFormat(track);
+        } finally {
+            source.release();
+        }
+    }
+
+    /**
+     * 处理方式，从上到下依次尝试
+     */
+    private enum Mode {
+        /**
+         * 整个文件直接拷贝样本
+         */
+        REMUX,
+        /**
+         * 拷贝样本，用编辑列表截掉起点前的部分
+         */
+        EDIT_LIST_TRIM,
+        /**
+         * 只重新编码首尾两个GOP，中间直接拷贝
+         */
+        SMART_TRIM,
+        /**
+         * 按关键帧分段并行编码再拼接
+         */
+        SEGMENTED,
+        /**
+         * 解码再编码整个输出
+         */
+        TRANSCODE
+    }
+
+    /**
+     * 只看探测结果选择处理方式，除完整转码外都不需要打开MediaExtractor
+     */
+    private static Mode chooseMode(Processor processor, MediaProbe probe, @Nullable long[] rangesUs,
+                                   boolean keepSize) throws IOException {
+        //多路输出和多段拼接只在单次处理中一起编码，不走直接拷贝、截取拷贝和分段处理
+        if (processor.renditions != null || rangesUs != null) {
+            return Mode.TRANSCODE;
+        }
+        boolean keepQuality = keepSize && processor.bitrate >= probe.getBitrate();
+        if (processor.remuxIfPossible && keepQuality && canRemux(processor, probe)) {
+            return Mode.REMUX;
+        }
+        boolean copyTrim = (processor.editListTrim || processor.smartTrim) && keepQuality && canCopyTrim(processor, probe);
+        if (copyTrim && processor.editListTrim) {
+            return Mode.EDIT_LIST_TRIM;
+        }
+        //编码出的帧已经转正，和拷贝的帧方向不一致，带旋转角度的视频不能智能截取
+        if (copyTrim && processor.smartTrim && probe.getRotation() == 0) {
+            return Mode.SMART_TRIM;
+        }
+        //分段拼接时音频直接拷贝，混音只在单次处理中进行
+        if ((processor.segmentDurationMs != null || processor.parallelism != null) && processor.mixAudio == null) {
+            return Mode.SEGMENTED;
+        }
+        return Mode.TRANSCODE;
+    }
+
+    /**
+     * 不裁剪、不缩放、不降低码率且音视频已是目标编码(H.264/AAC)时，重新编码没有意义，直接拷贝压缩数据即可
+     */
+    private static boolean canRemux(Processor processor, MediaProbe probe) throws IOException {
+        if (processor.startTimeMs != null || processor.endTimeMs != null || processor.mixAudio != null) {
+            return false;
+        }
+        return canCopySamples(processor, probe);
+    }
+
+    /**
+     * 截取时除了和直接拷贝一样的要求，音频也要能原样拷贝
+     */
+    private static boolean canCopyTrim(Processor processor, MediaProbe probe) throws IOException {
+        if ((processor.startTimeMs == null && processor.endTimeMs == null) || processor.mixAudio != null
+                || probe.getSampleIndex().findTrack(false) == null) {
+            return false;
+        }
+        TrackFormat audioFormat = probe.getAudioFormat();
+        if (audioFormat != null) {
+            AudioTranscoder.Target target = AudioTranscoder.Target.resolve(audioFormat, probe.getAudioBitrate(),
+                    processor.audioCodec, processor.audioBitrate, processor.audioChannelCount, processor.audioSampleRate);
+            if (!target.fits(audioFormat, probe.getAudioBitrate())) {
+                return false;
+            }
+        }
+        return canCopySamples(processor, probe);
+    }
+
+    /**
+     * 音视频已是目标编码(H.264/AAC)，并且不需要丢帧
+     */
+    private static boolean canCopySamples(Processor processor, MediaProbe probe) throws IOException {
+        TrackFormat videoFormat = probe.getVideoFormat();
+        if (videoFormat == null || !OUTPUT_MIME_TYPE.equals(videoFormat.getMime())) {
+            return false;
+        }
+        TrackFormat audioFormat = probe.getAudioFormat();
+        if (audioFormat != null && !MediaFormat.MIMETYPE_AUDIO_AAC.equals(audioFormat.getMime())) {
+            return false;
+        }
+        if (processor.dropFrames) {
+            int srcFrameRate = VideoUtil.getFrameRate(processor.input);
+            if (srcFrameRate <= 0) {
+                srcFrameRate = (int) Math.ceil(VideoUtil.getAveFrameRate(processor.input));
+            }
+            return srcFrameRate <= (processor.frameRate == null ? DEFAULT_FRAME_RATE : processor.frameRate);
+        }
+        return true;
+    }
+
+    private static void remux(Processor processor, CancellationToken token) throws IOException {
+        SampleSource source = processor.input.openSampleSource();
+        MuxerBackend muxer = null;
+        boolean success = false;
+        try {
+            muxer = processor.muxerFactory.create(processor.output);
+            VideoProgressListener listener = processor.listener;
+            Remuxer.remux(source, muxer, listener == null ? null : listener::onProgress, token);
+            success = true;
+        } finally {
+            if (muxer != null) {
+                muxer.release();
+            }
+            source.release();
+            if (!success) {
+                deleteOutput(processor);
+            }
+        }
+    }
+
+    /**
+     * 从起点前的关键帧拷贝到终点，用编辑列表(elst)让播放器从起点开始、在终点结束，不解码也不编码。
+     * 编辑列表只有Mp4Muxer能写，Processor保证此时没有设置别的muxer
+     */
+    private static void editListTrim(Processor processor, MediaProbe probe, CancellationToken token) throws IOException {
+        long startUs = processor.startTimeMs == null ? 0 : processor.startTimeMs * 1000L;
+        long endUs = processor.endTimeMs == null ? -1 : processor.endTimeMs * 1000L;
+        SampleSource source = processor.input.openSampleSource();
+        Mp4Muxer muxer = null;
+        boolean success = false;
+        try {
+            muxer = new Mp4Muxer(processor.output);
+            VideoProgressListener listener = processor.listener;
+            Remuxer.trim(source, probe.getSampleIndex(), muxer, startUs, endUs,
+                    listener == null ? null : listener::onProgress, token);
+            success = true;
+        } finally {
+            if (muxer != null) {
+                muxer.release();
+            }
+            source.release();
+            if (!success) {
+                deleteOutput(processor);
+            }
+        }
+    }
+
+    /**
+     * 取消或失败时删除写了一半的输出
+     */
+    private static void deleteOutput(Processor processor) {
+        deleteFile(new File(processor.output));
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * 用户取消时抛出CancellationException，否则抛出第一个失败线程的异常
+     */
+    private static void throwReason(CancellationToken token) throws Exception {
+        Throwable reason = token.getReason();
+        if (reason instanceof Exception) {
+            throw (Exception) reason;
+        } else if (reason instanceof Error) {
+            throw (Error) reason;
+        }
+        throw new RuntimeException(reason);
     }
 
     public static Processor processor(Context context) {
@@ -179,6 +1299,21 @@ public class VideoProcessor {
         private Integer startTimeMs;
         @Nullable
         private Integer endTimeMs;
+        /**
+         * 多段拼接时每段的[startTimeMs, endTimeMs)
+         */
+        @Nullable
+        private List<int[]> ranges;
+        /**
+         * 拼接的各个输入，第一个同时是input
+         */
+        @Nullable
+        private List<MediaSource> concatInputs;
+        /**
+         * output之外的其他输出
+         */
+        @Nullable
+        private List<Rendition> renditions;
         /*@Nullable
         private Float speed;*/
         /*@Nullable
@@ -186,6 +1321,8 @@ public class VideoProcessor {
         @Nullable
         private Integer bitrate;
         @Nullable
+        private Long targetSizeBytes;
+        @Nullable
         private Integer frameRate;
         @Nullable
         private Integer iFrameInterval;
@@ -195,6 +1332,28 @@ public class VideoProcessor {
          * 帧率超过指定帧率时是否丢帧
          */
         private boolean dropFrames = true;
+        private MuxerBackend.Factory muxerFactory = MediaMuxerBackend.FACTORY;
+        private boolean remuxIfPossible = true;
+        private boolean smartTrim;
+        private boolean editListTrim;
+        private CodecMode codecMode = CodecMode.SYNC;
+        private CancellationToken cancellationToken = new CancellationToken();
+        @Nullable
+        private Integer segmentDurationMs;
+        @Nullable
+        private Integer parallelism;
+        @Nullable
+        private AudioTranscoder.Codec audioCodec;
+        @Nullable
+        private Integer audioBitrate;
+        @Nullable
+        private Integer audioChannelCount;
+        @Nullable
+        private Integer audioSampleRate;
+        @Nullable
+        private MediaSource mixAudio;
+        private int originVolume = 100;
+        private int mixVolume = 100;
 
         public Processor(Context context) {
             this.context = context;
@@ -210,7 +1369,7 @@ public class VideoProcessor {
         }
 
         public Processor input(String input) {
-            this.input = new MediaSource(input);
+            this.input = new MediaSource(context, input);
             return this;
         }
 
@@ -239,6 +1398,60 @@ public class VideoProcessor {
             return this;
         }
 
+        /**
+         * 追加一段要保留的时间段，多次调用按调用顺序拼接成一个输出，设置后忽略startTimeMs和endTimeMs。
+         * 只有一段时等同于截取；多段时一次完成：段与段之间只seek并flush解码器，编码器、EGL和muxer只创建一次，
+         * 时间戳依次衔接。多段时不走直接拷贝、智能截取和分段处理
+         *
+         * @param endTimeMs 超过视频时长时截到视频结束
+         */
+        public Processor addRange(int startTimeMs, int endTimeMs) {
+            if (startTimeMs < 0 || endTimeMs <= startTimeMs) {
+                throw new IllegalArgumentException("range must satisfy 0 <= startTimeMs < endTimeMs");
+            }
+            if (ranges == null) {
+                ranges = new ArrayList<>();
+            }
+            ranges.add(new int[]{startTimeMs, endTimeMs});
+            return this;
+        }
+
+        /**
+         * 把多个视频按顺序拼接成一个输出，取代input。编码参数(H.264、尺寸、csd)和第一个可拷贝片段一致、
+         * 码率不超过目标码率的片段直接拷贝压缩数据，其余片段用同一个编码器重新编码；音频同理。
+         * 没有设置时输出尺寸和码率取第一个输入的。拼接时不支持截取、多段和混音
+         */
+        public Processor concat(List<MediaSource> inputs) {
+            if (inputs.isEmpty()) {
+                throw new IllegalArgumentException("concat needs at least one input");
+            }
+            this.concatInputs = new ArrayList<>(inputs);
+            this.input = inputs.get(0);
+            return this;
+        }
+
+        public Processor concat(MediaSource... inputs) {
+            return concat(Arrays.asList(inputs));
+        }
+
+        /**
+         * 在output之外再输出一路不同尺寸、码率、帧率的视频，可以多次调用。
+         * 源视频只解码一次，每一帧渲染到每一路各自的编码器，音频和截取、多段、混音的设置各路相同。
+         * 设置后不走直接拷贝、截取拷贝和分段处理
+         *
+         * @param frameRate 为null时和output相同
+         */
+        public Processor addRendition(String output, int outWidth, int outHeight, int bitrate, @Nullable Integer frameRate) {
+            if (outWidth <= 0 || outHeight <= 0 || bitrate <= 0) {
+                throw new IllegalArgumentException("rendition size and bitrate must be positive");
+            }
+            if (renditions == null) {
+                renditions = new ArrayList<>();
+            }
+            renditions.add(new Rendition(output, outWidth, outHeight, bitrate, frameRate));
+            return this;
+        }
+
         /*public Processor speed(float speed) {
             this.speed = speed;
             return this;
@@ -254,6 +1467,19 @@ public class VideoProcessor {
             return this;
         }
 
+        /**
+         * 目标大小模式：按截取后的时长扣除音频和容器的占用算出初始码率，编码时每个GOP按实际写入的字节调整码率，
+         * 一次编码就让输出接近targetSizeBytes。同时设置了bitrate时以它为上限。
+         * 分段处理和addRendition的其他输出只使用初始码率
+         */
+        public Processor targetSizeBytes(long targetSizeBytes) {
+            if (targetSizeBytes <= 0) {
+                throw new IllegalArgumentException("targetSizeBytes must be > 0");
+            }
+            this.targetSizeBytes = targetSizeBytes;
+            return this;
+        }
+
         public Processor frameRate(int frameRate) {
             this.frameRate = frameRate;
             return this;
@@ -272,13 +1498,199 @@ public class VideoProcessor {
             return this;
         }
 
+        /**
+         * 输出使用的muxer，默认为MediaMuxer，传入Mp4Muxer::new使用纯java的mp4 muxer。
+         * 不能和{@link #editListTrim}同时使用
+         */
+        public Processor muxer(MuxerBackend.Factory muxerFactory) {
+            checkMuxerForEditListTrim(editListTrim, muxerFactory);
+            this.muxerFactory = muxerFactory;
+            return this;
+        }
+
+        /**
+         * 输出分片mp4(fMP4)，每个moof+mdat分片写完即可被读取，崩溃时最多丢失内存中的一个分片
+         *
+         * @param fragmentDurationMs   分片时长达到该值后在下一个关键帧处切分，<=0表示不按时长切分
+         * @param keyFramesPerFragment 每个分片包含的关键帧数，<=0表示不按关键帧数切分
+         * @param listener             每写完一个分片回调一次，序号0为初始化分片(ftyp+moov)
+         */
+        public Processor fragmentedOutput(int fragmentDurationMs, int keyFramesPerFragment,
+                                          @Nullable FragmentedMp4Muxer.FragmentListener listener) {
+            if (editListTrim) {
+                throw new IllegalArgumentException("editListTrim always writes a plain mp4, it can not be combined with fragmentedOutput");
+            }
+            this.muxerFactory = outputPath -> {
+                FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(outputPath);
+                muxer.setFragmentDurationUs(Math.max(fragmentDurationMs, 0) * 1000L);
+                muxer.setKeyFramesPerFragment(Math.max(keyFramesPerFragment, 0));
+                muxer.setFragmentListener(listener);
+                return muxer;
+            };
+            return this;
+        }
+
+        /**
+         * 输出参数与原视频一致(不裁剪、尺寸不变、码率不低于原码率、无需丢帧)且原视频为H.264时，
+         * 跳过解码编码直接拷贝音视频数据，默认为true
+         */
+        public Processor remuxIfPossible(boolean remuxIfPossible) {
+            this.remuxIfPossible = remuxIfPossible;
+            return this;
+        }
+
+        /**
+         * 截取(设置了startTimeMs或endTimeMs)且其余参数满足直接拷贝的条件时，只重新编码两个切点所在的不完整GOP，
+         * 中间的部分和音频直接拷贝，截取长视频的一小段时几乎只有I/O。输出包含原视频和编码器两套SPS/PPS，
+         * 后者放在对应帧前面，视频带旋转角度时不生效。默认为false
+         */
+        public Processor smartTrim(boolean smartTrim) {
+            this.smartTrim = smartTrim;
+            return this;
+        }
+
+        /**
+         * 截取且其余参数满足直接拷贝的条件时，完全不解码：视频从起点前的关键帧拷贝到终点，音频从包含起点的那一帧开始，
+         * 再写入编辑列表(elst)让播放器正好从起点播放到终点，速度和直接拷贝一样。起点前多出的帧仍在文件里，
+         * 不支持编辑列表的播放器会从那个关键帧开始播放。编辑列表只有Mp4Muxer能写，所以不能和{@link #muxer}、
+         * {@link #fragmentedOutput}同时使用，同时设置了{@link #smartTrim}时优先使用。默认为false
+         */
+        public Processor editListTrim(boolean editListTrim) {
+            checkMuxerForEditListTrim(editListTrim, muxerFactory);
+            this.editListTrim = editListTrim;
+            return this;
+        }
+
+        private static void checkMuxerForEditListTrim(boolean editListTrim, MuxerBackend.Factory muxerFactory) {
+            if (editListTrim && muxerFactory != MediaMuxerBackend.FACTORY) {
+                throw new IllegalArgumentException("editListTrim always writes with Mp4Muxer, it can not be combined with a custom muxer");
+            }
+        }
+
+        /**
+         * 编解码器驱动方式，默认为{@link CodecMode#SYNC}，可以通过{@link ProcessStats}比较两种模式的CPU占用
+         */
+        public Processor codecMode(CodecMode codecMode) {
+            this.codecMode = codecMode;
+            return this;
+        }
+
+        /**
+         * 调用{@link CancellationToken#cancel()}后解码、编码、音频线程都会在当前一轮循环后停下，
+         * 释放编解码器、EGL surface和muxer，删除未完成的输出，{@link #process()}抛出CancellationException。
+         * 中断调用process()的线程效果相同
+         */
+        public Processor cancellationToken(CancellationToken cancellationToken) {
+            this.cancellationToken = cancellationToken;
+            return this;
+        }
+
+        /**
+         * 可续传模式，按关键帧切成约segmentDurationMs一段分别编码，每完成一段记录到输出旁的journal。
+         * 进程被杀或取消后用同样的参数再处理一次，会从第一个未完成的段继续，最后拼接成输出。
+         * 段越短丢失的进度越少，但每段都要重新创建编解码器
+         */
+        public Processor resumable(int segmentDurationMs) {
+            if (segmentDurationMs <= 0) {
+                throw new IllegalArgumentException("segmentDurationMs must be > 0");
+            }
+            this.segmentDurationMs = segmentDurationMs;
+            return this;
+        }
+
+        /**
+         * 并行模式，按关键帧把视频切成encoderCount段，每段在自己的线程和EGL context上同时解码、渲染、编码，
+         * 最后按顺序拼接，时间戳连续，共用第一段的SPS/PPS。长视频的处理速度大致随编码器数量成倍提升。
+         * 一个任务会同时占用encoderCount对编解码器，和{@link com.github.boybeak.mediakit.CompressionScheduler}一起使用时要相应减少并发任务数
+         *
+         * @param encoderCount <=0时取设备能同时运行的硬件编解码器实例数，见{@link VideoUtil#getParallelSegmentCount(String)}
+         */
+        public Processor parallel(int encoderCount) {
+            this.parallelism = encoderCount;
+            return this;
+        }
+
+        /**
+         * 输出音频的编码格式，默认AAC。原音频已是该格式且码率、声道、采样率都符合时直接拷贝，否则重新编码
+         */
+        public Processor audioCodec(AudioTranscoder.Codec audioCodec) {
+            this.audioCodec = audioCodec;
+            return this;
+        }
+
+        /**
+         * 输出音频码率，默认沿用原音频码率，原音频码率更高时重新编码
+         */
+        public Processor audioBitrate(int audioBitrate) {
+            this.audioBitrate = audioBitrate;
+            return this;
+        }
+
+        /**
+         * 输出音频声道数，1或2，默认沿用原音频(多声道下混为立体声)
+         */
+        public Processor audioChannelCount(int audioChannelCount) {
+            if (audioChannelCount != 1 && audioChannelCount != 2) {
+                throw new IllegalArgumentException("audioChannelCount must be 1 or 2");
+            }
+            this.audioChannelCount = audioChannelCount;
+            return this;
+        }
+
+        /**
+         * 输出音频采样率，默认沿用原音频，Opus固定为48kHz
+         */
+        public Processor audioSampleRate(int audioSampleRate) {
+            this.audioSampleRate = audioSampleRate;
+            return this;
+        }
+
+        /**
+         * 把mixAudio的音频混入输出，两路边解码边按块混音，内存不随时长增长。背景音频比输出短时是否从头重复由
+         * {@link #AUDIO_MIX_REPEAT}控制，比输出长时截断。原视频没有音轨时只输出背景音频。
+         * 混音总要重新编码音频，并且不走直接拷贝和分段模式
+         *
+         * @param originVolume 原音频音量，0~100
+         * @param mixVolume    背景音频音量，0~100，两路相加超过满幅时自动压低而不是削波
+         */
+        public Processor mixAudio(MediaSource mixAudio, int originVolume, int mixVolume) {
+            if (originVolume < 0 || originVolume > 100 || mixVolume < 0 || mixVolume > 100) {
+                throw new IllegalArgumentException("volume must be in [0, 100]");
+            }
+            this.mixAudio = mixAudio;
+            this.originVolume = originVolume;
+            this.mixVolume = mixVolume;
+            return this;
+        }
+
+        public Processor mixAudio(String mixAudioPath, int originVolume, int mixVolume) {
+            return mixAudio(new MediaSource(context, mixAudioPath), originVolume, mixVolume);
+        }
+
         public Processor progressListener(VideoProgressListener listener) {
             this.listener = listener;
             return this;
         }
 
-        public void process() throws Exception {
-            processVideo(context, this);
+        public ProcessStats process() throws Exception {
+            return processVideo(context, this);
+        }
+    }
+
+    private static final class Rendition {
+        final String output;
+        final int width;
+        final int height;
+        final int bitrate;
+        @Nullable
+        final Integer frameRate;
+
+        Rendition(String output, int width, int height, int bitrate, @Nullable Integer frameRate) {
+            this.output = output;
+            this.width = width;
+            this.height = height;
+            this.bitrate = bitrate;
+            this.frameRate = frameRate;
         }
     }
 
@@ -288,71 +1700,40 @@ public class VideoProcessor {
         public String inputPath;
         public Uri inputUri;
 
-        private int width, height;
-        private int bitrate;
-        private int fps;
-
         public MediaSource(String inputPath) {
+            this(null, inputPath);
+        }
+
+        /**
+         * @param context 不为null时探测得到的样本索引会持久化到缓存目录
+         */
+        public MediaSource(@Nullable Context context, String inputPath) {
+            this.context = context;
             this.inputPath = inputPath;
-            try {
-                initParse(inputPath);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            //构造时不做I/O，在后台线程探测，用到时再等结果
+            MediaProbe.probeAsync(context, this);
         }
 
         public MediaSource(Context context, Uri inputUri) {
             this.context = context;
             this.inputUri = inputUri;
-
-            try {
-                initParse(context, inputUri);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            MediaProbe.probeAsync(context, this);
         }
 
-        private void initParse(String inputPath) throws IOException {
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-            retriever.setDataSource(inputPath);
-            MediaExtractor extractor = new MediaExtractor();
-            extractor.setDataSource(inputPath);
-
-            initParse(retriever, extractor);
+        /**
+         * 尺寸、码率、帧率、轨道格式等探测结果，同一个输入只探测一次
+         *
+         * @param context 用于持久化样本索引，为null时使用构造时传入的context
+         */
+        public MediaProbe getProbe(@Nullable Context context) throws IOException {
+            return MediaProbe.probe(context == null ? this.context : context, this);
         }
-        private void initParse(Context context, Uri inputUri) throws IOException {
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-            retriever.setDataSource(context, inputUri);
-            MediaExtractor extractor = new MediaExtractor();
-            extractor.setDataSource(context, inputUri, null);
 
-            initParse(retriever, extractor);
-        }
-        private void initParse(MediaMetadataRetriever retriever, MediaExtractor extractor) {
-            width = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
-            height = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
-            bitrate = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE));
-            fps = parseFPS(extractor);
-            try {
-                retriever.close();
-                retriever.release();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-            extractor.release();
-        }
-        private int parseFPS(MediaExtractor extractor) {
-            int numTracks = extractor.getTrackCount();
-            for (int i = 0; i < numTracks; i++) {
-                MediaFormat format = extractor.getTrackFormat(i);
-                String mime = format.getString(MediaFormat.KEY_MIME);
-                if (mime != null && mime.startsWith("video/")) {
-                    if (format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
-                        return format.getInteger(MediaFormat.KEY_FRAME_RATE);
-                    }
-                }
-            }
-            return 0;
+        /**
+         * 样本索引(关键帧表、每帧时间戳/大小/偏移、轨道格式)，来自{@link #getProbe(Context)}
+         */
+        public SampleIndex getSampleIndex(@Nullable Context context) throws IOException {
+            return getProbe(context).getSampleIndex();
         }
 
         public void setDataSource(MediaMetadataRetriever retriever){
@@ -371,20 +1752,68 @@ public class VideoProcessor {
             }
         }
 
+        /**
+         * mp4能直接映射时使用纯java的Mp4Demuxer，裸AAC(ADTS)使用AdtsSource，否则退回到MediaExtractor
+         */
+        public SampleSource openSampleSource() throws IOException {
+            try {
+                return new Mp4Demuxer(openChannel(), true);
+            } catch (IOException e) {
+                //背景音乐常见的.aac文件
+                try {
+                    return new AdtsSource(openChannel(), true);
+                } catch (IOException ignored) {
+                }
+                MediaExtractor extractor = new MediaExtractor();
+                try {
+                    setDataSource(extractor);
+                } catch (IOException e2) {
+                    extractor.release();
+                    throw e2;
+                }
+                return new ExtractorSampleSource(extractor, true);
+            }
+        }
+
+        private FileChannel openChannel() throws IOException {
+            if (inputPath != null) {
+                return new FileInputStream(inputPath).getChannel();
+            }
+            ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(inputUri, "r");
+            if (pfd == null) {
+                throw new IOException("can not open " + inputUri);
+            }
+            return new ParcelFileDescriptor.AutoCloseInputStream(pfd).getChannel();
+        }
+
         public int getWidth() {
-            return width;
+            MediaProbe probe = probeOrNull();
+            return probe == null ? 0 : probe.getWidth();
         }
 
         public int getHeight() {
-            return height;
+            MediaProbe probe = probeOrNull();
+            return probe == null ? 0 : probe.getHeight();
         }
 
         public int getBitrate() {
-            return bitrate;
+            MediaProbe probe = probeOrNull();
+            return probe == null ? 0 : probe.getBitrate();
         }
 
         public int getFps() {
-            return fps;
+            MediaProbe probe = probeOrNull();
+            return probe == null ? 0 : probe.getFps();
+        }
+
+        @Nullable
+        private MediaProbe probeOrNull() {
+            try {
+                return getProbe(null);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
         }
     }
 }
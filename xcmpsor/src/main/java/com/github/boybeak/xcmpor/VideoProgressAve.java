@@ -7,6 +7,7 @@ public class VideoProgressAve {
     private int mStartTimeMs;
     private int mEndTimeMs;
     private Float mSpeed;
+    private boolean mVideoOnly;
 
     public VideoProgressAve(VideoProgressListener listener) {
         mListener = listener;
@@ -22,7 +23,7 @@ public class VideoProgressAve {
         mEncodeProgress = (timeStampUs/1000f)/(mEndTimeMs - mStartTimeMs);
         mEncodeProgress = mEncodeProgress <0?0:mEncodeProgress;
         mEncodeProgress = mEncodeProgress>1?1:mEncodeProgress;
-        mListener.onProgress((mEncodeProgress + mAudioProgress) / 2);
+        mListener.onProgress(mVideoOnly ? mEncodeProgress : (mEncodeProgress + mAudioProgress) / 2);
     }
 
     public void setAudioProgress(float audioProgress) {
@@ -43,4 +44,11 @@ public class VideoProgressAve {
     public void setSpeed(Float speed) {
         mSpeed = speed;
     }
+
+    /**
+     * 没有音频线程参与时(分段编码)，进度只按视频编码计算
+     */
+    public void setVideoOnly(boolean videoOnly) {
+        mVideoOnly = videoOnly;
+    }
 }
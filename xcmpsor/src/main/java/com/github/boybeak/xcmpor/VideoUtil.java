@@ -3,12 +3,19 @@ package com.github.boybeak.xcmpor;
 import android.content.Context;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.os.Build;
 
 import androidx.annotation.RequiresApi;
 
+import com.github.boybeak.mediakit.SampleIndex;
+import com.github.boybeak.mediakit.SampleSource;
+import com.github.boybeak.mediakit.TrackFormat;
+
+import org.jetbrains.annotations.Nullable;
+
 import java.io.File;
 import java.io.IOException;
 
@@ -32,40 +39,37 @@ public class VideoUtil {
         return -5;
     }
 
+    public static int selectTrack(SampleSource source, boolean audio) {
+        int numTracks = source.getTrackCount();
+        for (int i = 0; i < numTracks; i++) {
+            TrackFormat format = source.getTrackFormat(i);
+            if (audio ? format.isAudio() : format.isVideo()) {
+                return i;
+            }
+        }
+        return -5;
+    }
+
+    /**
+     * @return 容器里记录的视频帧率，没有时返回-1
+     */
     public static int getFrameRate(VideoProcessor.MediaSource mediaSource) {
-        MediaExtractor extractor = new MediaExtractor();
         try {
-            mediaSource.setDataSource(extractor);
-            int trackIndex = VideoUtil.selectTrack(extractor, false);
-            MediaFormat format = extractor.getTrackFormat(trackIndex);
-            return format.containsKey(MediaFormat.KEY_FRAME_RATE) ? format.getInteger(MediaFormat.KEY_FRAME_RATE) : -1;
+            SampleIndex.Track track = mediaSource.getSampleIndex(null).findTrack(false);
+            float frameRate = track == null ? 0 : track.getFormat().getFrameRate();
+            return frameRate > 0 ? Math.round(frameRate) : -1;
         } catch (IOException e) {
             e.printStackTrace();
             return -1;
-        } finally {
-            extractor.release();
         }
     }
 
+    /**
+     * 帧数/最后一帧时间戳，来自样本索引，不需要逐帧advance
+     */
     public static float getAveFrameRate(VideoProcessor.MediaSource mediaSource) throws IOException {
-        MediaExtractor extractor = new MediaExtractor();
-        mediaSource.setDataSource(extractor);
-        int trackIndex = VideoUtil.selectTrack(extractor, false);
-        extractor.selectTrack(trackIndex);
-        long lastSampleTimeUs = 0;
-        int frameCount = 0;
-        while (true) {
-            long sampleTime = extractor.getSampleTime();
-            if (sampleTime < 0) {
-                break;
-            } else {
-                lastSampleTimeUs = sampleTime;
-            }
-            frameCount++;
-            extractor.advance();
-        }
-        extractor.release();
-        return frameCount / (lastSampleTimeUs / 1000f / 1000f);
+        SampleIndex.Track track = mediaSource.getSampleIndex(null).findTrack(false);
+        return track == null ? 0 : track.getAverageFrameRate();
     }
 
     public static File getVideoCacheDir(Context context) {
@@ -111,4 +115,90 @@ public class VideoUtil {
         }
     }
 
+    /**
+     * 能同时运行的压缩任务数：每个任务占用一个H.264解码器和一个编码器，取两者支持的实例数中较小的，
+     * 且不超过CPU核数的一半(EGL绘制和音频处理也要占CPU)，至少为1
+     */
+    public static int getDefaultWorkerCount() {
+        int instances = Math.min(getMaxSupportedInstances(VideoProcessor.OUTPUT_MIME_TYPE, false),
+                getMaxSupportedInstances(VideoProcessor.OUTPUT_MIME_TYPE, true));
+        int cpus = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(instances, cpus / 2));
+    }
+
+    /**
+     * 并行分段编码时一个任务同时运行的解码-编码链数：输入格式的解码器和H.264编码器支持的实例数中较小的，
+     * 且不超过CPU核数的一半，至少为1
+     */
+    public static int getParallelSegmentCount(String inputMime) {
+        int instances = Math.min(getMaxSupportedInstances(inputMime, false),
+                getMaxSupportedInstances(VideoProcessor.OUTPUT_MIME_TYPE, true));
+        int cpus = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(instances, cpus / 2));
+    }
+
+    /**
+     * @return 该类型第一个编/解码器(即createEncoderByType/createDecoderByType会选中的)能同时创建的实例数，
+     * Android 6.0以下无法查询，返回1
+     */
+    public static int getMaxSupportedInstances(String mime, boolean encoder) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return 1;
+        }
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo codecInfo : codecList.getCodecInfos()) {
+            if (codecInfo.isEncoder() != encoder) {
+                continue;
+            }
+            for (String type : codecInfo.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mime)) {
+                    try {
+                        return Math.max(1, codecInfo.getCapabilitiesForType(mime).getMaxSupportedInstances());
+                    } catch (IllegalArgumentException e) {
+                        return 1;
+                    }
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * @return 该类型第一个编码器(即createEncoderByType会选中的)支持的尺寸范围、对齐和码率范围，
+     * Android 5.0以下或查询失败时为null
+     */
+    @Nullable
+    public static MediaCodecInfo.VideoCapabilities getEncoderVideoCapabilities(String mime) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return null;
+        }
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo codecInfo : codecList.getCodecInfos()) {
+            if (!codecInfo.isEncoder()) {
+                continue;
+            }
+            for (String type : codecInfo.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mime)) {
+                    try {
+                        return codecInfo.getCapabilitiesForType(mime).getVideoCapabilities();
+                    } catch (IllegalArgumentException e) {
+                        return null;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param rangesUs 每两个一组依次为各段的起点和终点
+     * @return 各段时长之和，即拼接后的输出时长
+     */
+    public static long getRangesDurationUs(long[] rangesUs) {
+        long durationUs = 0;
+        for (int i = 0; i < rangesUs.length; i += 2) {
+            durationUs += rangesUs[i + 1] - rangesUs[i];
+        }
+        return durationUs;
+    }
 }